@@ -0,0 +1,278 @@
+package com.danielcswain.fogofwar.Cache;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Owns the memory budget shared by all of the app's in-memory caches.
+ *
+ * Caches are LruCaches sized in bytes which register with a priority. Whenever the caches together
+ * grow past the budget, or the system asks the app to trim its memory, the governor evicts from
+ * the lowest priority caches first. Memory the app holds outside the caches, such as the overlay's
+ * software layer, is reserved from the budget so the caches shrink to make room for it.
+ */
+public class CacheGovernor implements ComponentCallbacks2 {
+
+    private static final String TAG = CacheGovernor.class.getSimpleName();
+
+    // Caches with a lower priority are evicted first.
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_HIGH = 2;
+
+    private static final long BYTES_PER_MEGABYTE = 1024 * 1024;
+
+    // The share of the per-app heap limit the caches and reservations may use together.
+    private static final int HEAP_FRACTION = 4;
+    private static final int LOW_RAM_HEAP_FRACTION = 8;
+
+    private static final Comparator<Entry> EVICTION_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return a.priority - b.priority;
+        }
+    };
+
+    private static CacheGovernor sInstance;
+
+    private final long mBudget;
+    private final List<Entry> mEntries = new ArrayList<>();
+    private final Map<String, Long> mReservations = new HashMap<>();
+    private long mReservedBytes = 0;
+
+    /**
+     * A registered cache and the evictions the governor has made from it.
+     */
+    private static class Entry {
+        final String name;
+        final int priority;
+        final LruCache<?, ?> cache;
+        long trims = 0;
+        long trimmedBytes = 0;
+
+        Entry(String name, int priority, LruCache<?, ?> cache) {
+            this.name = name;
+            this.priority = priority;
+            this.cache = cache;
+        }
+    }
+
+    /**
+     * Get the shared CacheGovernor, creating it on first use.
+     * @param context: The Activity/Application context.
+     * @return the CacheGovernor shared by the whole application.
+     */
+    public static synchronized CacheGovernor getInstance(Context context) {
+        if (sInstance == null) {
+            Context applicationContext = context.getApplicationContext();
+            ActivityManager activityManager =
+                    (ActivityManager) applicationContext.getSystemService(Context.ACTIVITY_SERVICE);
+            int heapFraction = activityManager.isLowRamDevice() ?
+                    LOW_RAM_HEAP_FRACTION : HEAP_FRACTION;
+            sInstance = new CacheGovernor(
+                    activityManager.getMemoryClass() * BYTES_PER_MEGABYTE / heapFraction);
+            applicationContext.registerComponentCallbacks(sInstance);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Create a CacheGovernor with a fixed budget which is not told about system memory pressure,
+     * e.g. for replaying a recorded track off-device.
+     * @param budget: long, the number of bytes the caches and reservations may use together.
+     * @return a new CacheGovernor.
+     */
+    @VisibleForTesting
+    public static CacheGovernor newInstance(long budget) {
+        return new CacheGovernor(budget);
+    }
+
+    /**
+     * Constructor for the CacheGovernor.
+     * @param budget: long, the number of bytes the caches and reservations may use together.
+     */
+    private CacheGovernor(long budget) {
+        mBudget = budget;
+    }
+
+    /**
+     * Put a cache under the governor's budget.
+     * @param name: String, the name the cache is reported under.
+     * @param priority: int, one of the PRIORITY constants. Lower priorities are evicted first.
+     * @param cache: The LruCache, whose sizeOf must return bytes.
+     */
+    public synchronized void register(String name, int priority, LruCache<?, ?> cache) {
+        mEntries.add(new Entry(name, priority, cache));
+        Collections.sort(mEntries, EVICTION_ORDER);
+        trimToSize(mBudget);
+    }
+
+    /**
+     * Remove a cache from the governor, e.g. when its owner is destroyed.
+     * @param cache: The LruCache passed to register.
+     */
+    public synchronized void unregister(LruCache<?, ?> cache) {
+        for (int i = mEntries.size() - 1; i >= 0; i--) {
+            if (mEntries.get(i).cache == cache) {
+                mEntries.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Reserve part of the budget for memory held outside the caches.
+     * @param name: String, the name the reservation is reported under.
+     * @param bytes: long, the bytes held, replacing any earlier reservation of the same name.
+     */
+    public synchronized void setReservedBytes(String name, long bytes) {
+        Long previous = mReservations.put(name, bytes);
+        mReservedBytes += bytes - (previous == null ? 0 : previous);
+        trimToSize(mBudget);
+    }
+
+    /**
+     * Evict from the caches if they have grown past the budget. Called by caches after they add
+     * entries; must not be called while holding the cache's lock.
+     */
+    public synchronized void onCacheGrown() {
+        trimToSize(mBudget);
+    }
+
+    /**
+     * Shrink the caches when the system is short of memory. The more severe the level, the
+     * smaller the caches are made; they grow again as they are used.
+     */
+    @Override
+    public synchronized void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_COMPLETE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimToSize(0);
+        } else if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(mBudget / 4);
+        } else {
+            trimToSize(mBudget / 2);
+        }
+        Log.d(TAG, "onTrimMemory(" + level + ") " + getStats());
+    }
+
+    /**
+     * Empty the caches when the whole system is short of memory.
+     */
+    @Override
+    public synchronized void onLowMemory() {
+        trimToSize(0);
+        Log.d(TAG, "onLowMemory " + getStats());
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration configuration) {
+    }
+
+    /**
+     * Get the bytes used by the caches and reservations together.
+     * @return the resident size in bytes.
+     */
+    public synchronized long getResidentBytes() {
+        long residentBytes = mReservedBytes;
+        for (Entry entry : mEntries) {
+            residentBytes += entry.cache.size();
+        }
+        return residentBytes;
+    }
+
+    public long getBudget() {
+        return mBudget;
+    }
+
+    /**
+     * Get the number of times the governor has evicted from a cache.
+     * @param cache: The LruCache passed to register.
+     * @return the number of trims which removed bytes from the cache.
+     */
+    @VisibleForTesting
+    synchronized long getTrims(LruCache<?, ?> cache) {
+        Entry entry = getEntry(cache);
+        return entry == null ? 0 : entry.trims;
+    }
+
+    /**
+     * Get the number of bytes the governor has evicted from a cache.
+     * @param cache: The LruCache passed to register.
+     * @return the bytes trimmed from the cache.
+     */
+    @VisibleForTesting
+    synchronized long getTrimmedBytes(LruCache<?, ?> cache) {
+        Entry entry = getEntry(cache);
+        return entry == null ? 0 : entry.trimmedBytes;
+    }
+
+    private Entry getEntry(LruCache<?, ?> cache) {
+        for (Entry entry : mEntries) {
+            if (entry.cache == cache) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Log the resident size and evictions of each cache.
+     */
+    public void logStats() {
+        Log.d(TAG, getStats());
+    }
+
+    /**
+     * Get a summary of the memory held by each cache and reservation, and the evictions made.
+     * @return a String describing the budget and each cache.
+     */
+    public synchronized String getStats() {
+        StringBuilder stats = new StringBuilder(String.format(Locale.US,
+                "budgetKB=%d residentKB=%d reservedKB=%d",
+                mBudget / 1024, getResidentBytes() / 1024, mReservedBytes / 1024));
+        for (Entry entry : mEntries) {
+            stats.append(String.format(Locale.US,
+                    " [%s residentKB=%d maxKB=%d evictions=%d trims=%d trimmedKB=%d]",
+                    entry.name, entry.cache.size() / 1024, entry.cache.maxSize() / 1024,
+                    entry.cache.evictionCount(), entry.trims, entry.trimmedBytes / 1024));
+        }
+        return stats.toString();
+    }
+
+    /**
+     * Evict from the caches in priority order until the caches and reservations fit in the size.
+     * @param size: long, the target size in bytes.
+     */
+    private void trimToSize(long size) {
+        long excess = getResidentBytes() - size;
+        for (Entry entry : mEntries) {
+            if (excess <= 0) {
+                break;
+            }
+
+            long before = entry.cache.size();
+            if (before == 0) {
+                continue;
+            }
+            entry.cache.trimToSize((int) Math.max(0, before - excess));
+            long trimmed = before - entry.cache.size();
+            if (trimmed > 0) {
+                entry.trims++;
+                entry.trimmedBytes += trimmed;
+                excess -= trimmed;
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.danielcswain.fogofwar.Cache;
+
+import com.danielcswain.fogofwar.Geometry.WebMercator;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+
+/**
+ * Identifies a Web Mercator map tile by zoom level and tile column/row.
+ */
+public final class TileKey {
+
+    public final int zoom;
+    public final int x;
+    public final int y;
+
+    public TileKey(int zoom, int x, int y) {
+        this.zoom = zoom;
+        this.x = x;
+        this.y = y;
+    }
+
+    /**
+     * Get the geographic bounds covered by this tile.
+     * @return the LatLngBounds of the tile.
+     */
+    public LatLngBounds getBounds() {
+        double scale = 1 << zoom;
+        LatLng southwest = new LatLng(
+                WebMercator.toLatitude((y + 1) / scale), WebMercator.toLongitude(x / scale));
+        LatLng northeast = new LatLng(
+                WebMercator.toLatitude(y / scale), WebMercator.toLongitude((x + 1) / scale));
+        return new LatLngBounds(southwest, northeast);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TileKey)) {
+            return false;
+        }
+        TileKey other = (TileKey) o;
+        return zoom == other.zoom && x == other.x && y == other.y;
+    }
+
+    @Override
+    public int hashCode() {
+        return (zoom * 31 + x) * 31 + y;
+    }
+
+    @Override
+    public String toString() {
+        return zoom + "/" + x + "/" + y;
+    }
+}
@@ -0,0 +1,322 @@
+package com.danielcswain.fogofwar.Cache;
+
+import android.util.Log;
+import android.util.LruCache;
+
+import com.danielcswain.fogofwar.Data.Partition;
+import com.danielcswain.fogofwar.Data.SegmentObject;
+import com.danielcswain.fogofwar.Data.SQLDatabaseHelper;
+import com.danielcswain.fogofwar.Geometry.WebMercator;
+import com.google.android.gms.maps.model.LatLngBounds;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in-memory cache of track data, keyed by fixed-zoom map tiles.
+ *
+ * Viewport queries are answered from the tiles covering the viewport, loading any missing tile
+ * from the database. The ViewportPrefetcher fills tiles ahead of the camera so that a pan into a
+ * new area is served from memory.
+ */
+public class TrackTileCache implements SQLDatabaseHelper.OnSegmentsAddedListener,
+        SQLDatabaseHelper.OnTrackRewrittenListener {
+
+    private static final String TAG = TrackTileCache.class.getSimpleName();
+
+    // Zoom 14 tiles are roughly 2.4 km across at the equator, a few screens at street level.
+    public static final int TILE_ZOOM = 14;
+
+    // Beyond this many tiles the viewport is zoomed too far out for tiles to be worthwhile.
+    public static final int MAX_TILES_PER_VIEWPORT = 64;
+
+    // Rough heap size of a cached SegmentObject and its reference in the tile's list.
+    private static final int SEGMENT_BYTES = 80;
+
+    private static final int MAX_CACHED_BYTES = 4 * 1024 * 1024;
+
+    private static final Comparator<SegmentObject> ID_ORDER = new Comparator<SegmentObject>() {
+        @Override
+        public int compare(SegmentObject a, SegmentObject b) {
+            return a.getId() < b.getId() ? -1 : (a.getId() == b.getId() ? 0 : 1);
+        }
+    };
+
+    private final SQLDatabaseHelper mSqlDatabaseHelper;
+    private final CacheGovernor mCacheGovernor;
+    private final LruCache<TileKey, List<SegmentObject>> mTiles;
+
+    // Tiles loaded by the prefetcher which have not yet been requested by a viewport query.
+    private final Set<TileKey> mPrefetchedTiles = Collections.synchronizedSet(new HashSet<TileKey>());
+
+    // Segments stored while a tile is being loaded, guarded by the mTiles lock.
+    private final Map<TileKey, List<SegmentObject>> mPendingAdditions = new HashMap<>();
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mPrefetchHits = new AtomicLong();
+    private final AtomicLong mPrefetchLoads = new AtomicLong();
+    private final AtomicLong mBypasses = new AtomicLong();
+
+    /**
+     * Constructor for the TrackTileCache.
+     * @param sqlDatabaseHelper: The database helper tiles are loaded from.
+     * @param cacheGovernor: The CacheGovernor owning the memory budget.
+     */
+    public TrackTileCache(SQLDatabaseHelper sqlDatabaseHelper, CacheGovernor cacheGovernor) {
+        mSqlDatabaseHelper = sqlDatabaseHelper;
+        mCacheGovernor = cacheGovernor;
+        mTiles = new LruCache<TileKey, List<SegmentObject>>(MAX_CACHED_BYTES) {
+            @Override
+            protected int sizeOf(TileKey key, List<SegmentObject> value) {
+                return (value.size() + 1) * SEGMENT_BYTES;
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, TileKey key, List<SegmentObject> oldValue,
+                                        List<SegmentObject> newValue) {
+                if (newValue == null) {
+                    mPrefetchedTiles.remove(key);
+                }
+            }
+        };
+        mSqlDatabaseHelper.addOnSegmentsAddedListener(this);
+        mSqlDatabaseHelper.addOnTrackRewrittenListener(this);
+        mCacheGovernor.register(TAG, CacheGovernor.PRIORITY_NORMAL, mTiles);
+    }
+
+    /**
+     * Stop receiving new segments and release the cache's memory. The cache cannot be used
+     * afterwards.
+     */
+    public void release() {
+        mSqlDatabaseHelper.removeOnSegmentsAddedListener(this);
+        mSqlDatabaseHelper.removeOnTrackRewrittenListener(this);
+        mCacheGovernor.unregister(mTiles);
+        mTiles.evictAll();
+    }
+
+    /**
+     * Get the SegmentObjects in the tiles covering the map bounds, in the order they were
+     * travelled. The result may include segments just outside the bounds.
+     * @param mapBounds: The LatLngBounds of the map view.
+     * @return a List of SegmentObjects covering the map view's bounds.
+     */
+    public List<SegmentObject> getSegmentsInWindow(LatLngBounds mapBounds) {
+        List<TileKey> tileKeys = getTilesInBounds(mapBounds);
+        if (tileKeys == null) {
+            mBypasses.incrementAndGet();
+            return mSqlDatabaseHelper.getSegmentsInWindow(mapBounds);
+        }
+
+        List<SegmentObject> segmentObjects = new ArrayList<>();
+        for (TileKey tileKey : tileKeys) {
+            List<SegmentObject> tile = mTiles.get(tileKey);
+            if (tile != null) {
+                mHits.incrementAndGet();
+                if (mPrefetchedTiles.remove(tileKey)) {
+                    mPrefetchHits.incrementAndGet();
+                }
+            } else {
+                mMisses.incrementAndGet();
+                tile = loadTile(tileKey);
+            }
+            segmentObjects.addAll(tile);
+        }
+
+        if (tileKeys.size() > 1) {
+            // Segments crossing a tile edge are returned by each tile they overlap.
+            Collections.sort(segmentObjects, ID_ORDER);
+            removeDuplicateIds(segmentObjects);
+            Collections.sort(segmentObjects, SegmentObject.RECORDED_ORDER);
+        }
+        return segmentObjects;
+    }
+
+    /**
+     * Load a tile into the cache ahead of it being needed. Does nothing if it is already cached.
+     * @param tileKey: The TileKey of the tile to load.
+     * @return true if the tile was loaded from the database.
+     */
+    boolean prefetchTile(TileKey tileKey) {
+        if (mTiles.get(tileKey) != null) {
+            return false;
+        }
+        loadTile(tileKey);
+        mPrefetchedTiles.add(tileKey);
+        mPrefetchLoads.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Add newly stored segments to the tiles they overlap if those tiles are cached, so they do
+     * not have to be reloaded.
+     */
+    @Override
+    public void onSegmentsAdded(List<SegmentObject> segmentObjects) {
+        for (SegmentObject segmentObject : segmentObjects) {
+            List<TileKey> tileKeys = getTilesInRange(
+                    WebMercator.toNormalisedX(segmentObject.getMinLongitude()),
+                    WebMercator.toNormalisedY(segmentObject.getMaxLatitude()),
+                    WebMercator.toNormalisedX(segmentObject.getMaxLongitude()),
+                    WebMercator.toNormalisedY(segmentObject.getMinLatitude()));
+            if (tileKeys == null) {
+                continue;
+            }
+
+            synchronized (mTiles) {
+                for (TileKey tileKey : tileKeys) {
+                    List<SegmentObject> pending = mPendingAdditions.get(tileKey);
+                    if (pending != null) {
+                        pending.add(segmentObject);
+                    }
+
+                    List<SegmentObject> tile = mTiles.get(tileKey);
+                    if (tile != null) {
+                        // Tiles are shared with readers, so replace rather than modify the list.
+                        List<SegmentObject> updatedTile = new ArrayList<>(tile.size() + 1);
+                        updatedTile.addAll(tile);
+                        updatedTile.add(segmentObject);
+                        mTiles.put(tileKey, Collections.unmodifiableList(updatedTile));
+                    }
+                }
+            }
+        }
+        mCacheGovernor.onCacheGrown();
+    }
+
+    /**
+     * Drop every cached tile once a partition has been rewritten, since its segments may have
+     * been replaced under the same IDs. This happens rarely, e.g. after compaction.
+     */
+    @Override
+    public void onTrackRewritten(Partition partition) {
+        mTiles.evictAll();
+    }
+
+    /**
+     * Get the tiles covering the bounds.
+     * @param bounds: The LatLngBounds to cover.
+     * @return a List of TileKeys, or null if the bounds cover too many tiles to cache.
+     */
+    public static List<TileKey> getTilesInBounds(LatLngBounds bounds) {
+        return getTilesInRange(
+                WebMercator.toNormalisedX(bounds.southwest.longitude),
+                WebMercator.toNormalisedY(bounds.northeast.latitude),
+                WebMercator.toNormalisedX(bounds.northeast.longitude),
+                WebMercator.toNormalisedY(bounds.southwest.latitude));
+    }
+
+    /**
+     * Get the tiles covering a range of normalised Web Mercator coordinates.
+     * @return a List of TileKeys, or null if the range covers too many tiles to cache.
+     */
+    static List<TileKey> getTilesInRange(double minX, double minY, double maxX, double maxY) {
+        int scale = 1 << TILE_ZOOM;
+        int minTileX = clampTile((int) Math.floor(minX * scale));
+        int maxTileX = clampTile((int) Math.floor(maxX * scale));
+        int minTileY = clampTile((int) Math.floor(minY * scale));
+        int maxTileY = clampTile((int) Math.floor(maxY * scale));
+
+        long tileCount = (long) (maxTileX - minTileX + 1) * (maxTileY - minTileY + 1);
+        if (tileCount > MAX_TILES_PER_VIEWPORT || tileCount <= 0) {
+            return null;
+        }
+
+        List<TileKey> tileKeys = new ArrayList<>((int) tileCount);
+        for (int x = minTileX; x <= maxTileX; x++) {
+            for (int y = minTileY; y <= maxTileY; y++) {
+                tileKeys.add(new TileKey(TILE_ZOOM, x, y));
+            }
+        }
+        return tileKeys;
+    }
+
+    /**
+     * Log the cache counters.
+     */
+    public void logStats() {
+        Log.d(TAG, getStats());
+    }
+
+    /**
+     * Get a summary of the cache counters, used to judge whether prefetching is paying off.
+     * @return a String describing hits, misses and prefetch effectiveness.
+     */
+    public String getStats() {
+        long hits = mHits.get();
+        long misses = mMisses.get();
+        long requests = hits + misses;
+        double hitRate = requests == 0 ? 0 : 100.0 * hits / requests;
+        return String.format(Locale.US,
+                "tiles=%d residentKB=%d hits=%d misses=%d hitRate=%.1f%% prefetched=%d " +
+                        "prefetchHits=%d bypassed=%d",
+                mTiles.snapshot().size(), mTiles.size() / 1024, hits, misses, hitRate,
+                mPrefetchLoads.get(), mPrefetchHits.get(), mBypasses.get());
+    }
+
+    /**
+     * Load a tile from the database and store it in the cache.
+     */
+    private List<SegmentObject> loadTile(TileKey tileKey) {
+        synchronized (mTiles) {
+            if (!mPendingAdditions.containsKey(tileKey)) {
+                mPendingAdditions.put(tileKey, new ArrayList<SegmentObject>());
+            }
+        }
+
+        List<SegmentObject> tile = mSqlDatabaseHelper.getSegmentsInWindow(tileKey.getBounds());
+
+        synchronized (mTiles) {
+            List<SegmentObject> pending = mPendingAdditions.remove(tileKey);
+            List<SegmentObject> existing = mTiles.get(tileKey);
+            if (existing != null) {
+                // Loaded concurrently by another thread, which is now keeping it up to date.
+                return existing;
+            }
+
+            // Segments stored while the query ran may or may not be in its snapshot.
+            if (pending != null) {
+                // The snapshot is in recorded order, so merged history may put its newest ID
+                // anywhere in it.
+                long lastId = -1;
+                for (SegmentObject segmentObject : tile) {
+                    lastId = Math.max(lastId, segmentObject.getId());
+                }
+                for (SegmentObject segmentObject : pending) {
+                    if (segmentObject.getId() > lastId) {
+                        tile.add(segmentObject);
+                    }
+                }
+            }
+
+            tile = Collections.unmodifiableList(tile);
+            mTiles.put(tileKey, tile);
+        }
+        mCacheGovernor.onCacheGrown();
+        return tile;
+    }
+
+    private static int clampTile(int tile) {
+        return Math.max(0, Math.min((1 << TILE_ZOOM) - 1, tile));
+    }
+
+    private static void removeDuplicateIds(List<SegmentObject> segmentObjects) {
+        int write = 0;
+        for (int read = 0; read < segmentObjects.size(); read++) {
+            SegmentObject segmentObject = segmentObjects.get(read);
+            if (write == 0 || segmentObjects.get(write - 1).getId() != segmentObject.getId()) {
+                segmentObjects.set(write++, segmentObject);
+            }
+        }
+        segmentObjects.subList(write, segmentObjects.size()).clear();
+    }
+}
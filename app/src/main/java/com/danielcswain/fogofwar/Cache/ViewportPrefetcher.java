@@ -0,0 +1,190 @@
+package com.danielcswain.fogofwar.Cache;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.danielcswain.fogofwar.Geometry.WebMercator;
+import com.google.android.gms.maps.model.CameraPosition;
+import com.google.android.gms.maps.model.LatLngBounds;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Predicts where the camera is heading and loads the tiles around it into the TrackTileCache
+ * before they become visible.
+ *
+ * Camera velocity and zoom direction are estimated from successive onCameraMove calls. Once the
+ * camera pauses, the tiles in a margin ring around the viewport, extended in the direction of
+ * the pan (and outwards when zooming out), are loaded on a low priority background thread.
+ */
+public class ViewportPrefetcher {
+
+    // Wait this long after the last camera move before prefetching, so loads happen when idle.
+    private static final long IDLE_DELAY_MS = 150;
+
+    // How far ahead along the current pan velocity to predict the viewport.
+    private static final long LOOKAHEAD_MS = 750;
+
+    // The ring of extra area around the viewport, as a fraction of the viewport size.
+    private static final double MARGIN_FRACTION = 0.5;
+
+    // Weight of the newest sample in the smoothed velocity.
+    private static final double SMOOTHING = 0.5;
+
+    private static final int MAX_TILES_PER_PREFETCH = 24;
+
+    private final TrackTileCache mTrackTileCache;
+    private final HandlerThread mHandlerThread;
+    private final Handler mHandler;
+
+    private long mLastMoveTime = -1;
+    private double mLastX;
+    private double mLastY;
+    private float mLastZoom;
+    private double mVelocityX;
+    private double mVelocityY;
+    private double mZoomVelocity;
+
+    // Incremented on every camera move so stale prefetch passes stop early.
+    private volatile int mGeneration;
+
+    /**
+     * Constructor for the ViewportPrefetcher.
+     * @param trackTileCache: The TrackTileCache to fill.
+     */
+    public ViewportPrefetcher(TrackTileCache trackTileCache) {
+        mTrackTileCache = trackTileCache;
+        mHandlerThread = new HandlerThread(
+                ViewportPrefetcher.class.getSimpleName(), Process.THREAD_PRIORITY_BACKGROUND);
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+    }
+
+    /**
+     * Record a camera movement and schedule a prefetch once the camera pauses. Called on the UI
+     * thread from onCameraMove.
+     * @param cameraPosition: The current CameraPosition of the map.
+     * @param mapBounds: The LatLngBounds of the map view.
+     */
+    public void onCameraMove(CameraPosition cameraPosition, LatLngBounds mapBounds) {
+        long now = SystemClock.uptimeMillis();
+        double x = WebMercator.toNormalisedX(cameraPosition.target.longitude);
+        double y = WebMercator.toNormalisedY(cameraPosition.target.latitude);
+
+        if (mLastMoveTime >= 0) {
+            long elapsed = now - mLastMoveTime;
+            if (elapsed > 0 && elapsed < 1000) {
+                mVelocityX = smooth(mVelocityX, (x - mLastX) / elapsed);
+                mVelocityY = smooth(mVelocityY, (y - mLastY) / elapsed);
+                mZoomVelocity = smooth(mZoomVelocity, (cameraPosition.zoom - mLastZoom) / elapsed);
+            } else {
+                // The camera was at rest, so there is no velocity to carry forward.
+                mVelocityX = 0;
+                mVelocityY = 0;
+                mZoomVelocity = 0;
+            }
+        }
+        mLastMoveTime = now;
+        mLastX = x;
+        mLastY = y;
+        mLastZoom = cameraPosition.zoom;
+
+        schedulePrefetch(mapBounds, IDLE_DELAY_MS);
+    }
+
+    /**
+     * Prefetch around the viewport straight away once the camera has stopped.
+     * @param mapBounds: The LatLngBounds of the map view.
+     */
+    public void onCameraIdle(LatLngBounds mapBounds) {
+        schedulePrefetch(mapBounds, 0);
+    }
+
+    /**
+     * Stop the background thread. The prefetcher cannot be used afterwards.
+     */
+    public void quit() {
+        mGeneration++;
+        mHandler.removeCallbacksAndMessages(null);
+        mHandlerThread.quit();
+    }
+
+    private void schedulePrefetch(LatLngBounds mapBounds, long delayMs) {
+        final int generation = ++mGeneration;
+
+        double minX = WebMercator.toNormalisedX(mapBounds.southwest.longitude);
+        double maxX = WebMercator.toNormalisedX(mapBounds.northeast.longitude);
+        double minY = WebMercator.toNormalisedY(mapBounds.northeast.latitude);
+        double maxY = WebMercator.toNormalisedY(mapBounds.southwest.latitude);
+        double width = maxX - minX;
+        double height = maxY - minY;
+
+        // A ring around the viewport, stretched in the direction the camera is panning.
+        double shiftX = mVelocityX * LOOKAHEAD_MS;
+        double shiftY = mVelocityY * LOOKAHEAD_MS;
+        double margin = MARGIN_FRACTION;
+        if (mZoomVelocity < 0) {
+            // Zooming out reveals more area on every side.
+            margin += 0.5;
+        }
+
+        final double centreX = (minX + maxX) / 2 + shiftX;
+        final double centreY = (minY + maxY) / 2 + shiftY;
+        final List<TileKey> tileKeys = TrackTileCache.getTilesInRange(
+                minX - width * margin + Math.min(0, shiftX),
+                minY - height * margin + Math.min(0, shiftY),
+                maxX + width * margin + Math.max(0, shiftX),
+                maxY + height * margin + Math.max(0, shiftY));
+
+        mHandler.removeCallbacksAndMessages(null);
+        if (tileKeys == null) {
+            // Zoomed too far out for the tile cache to be used.
+            return;
+        }
+
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                prefetch(tileKeys, centreX, centreY, generation);
+            }
+        }, delayMs);
+    }
+
+    /**
+     * Load the tiles nearest the predicted viewport centre first. Runs on the background thread.
+     */
+    private void prefetch(List<TileKey> tileKeys, final double centreX, final double centreY,
+                          int generation) {
+        final double scale = 1 << TrackTileCache.TILE_ZOOM;
+        Collections.sort(tileKeys, new Comparator<TileKey>() {
+            @Override
+            public int compare(TileKey a, TileKey b) {
+                return Double.compare(distance(a), distance(b));
+            }
+
+            private double distance(TileKey tileKey) {
+                double dx = (tileKey.x + 0.5) / scale - centreX;
+                double dy = (tileKey.y + 0.5) / scale - centreY;
+                return dx * dx + dy * dy;
+            }
+        });
+
+        int loaded = 0;
+        for (TileKey tileKey : tileKeys) {
+            if (generation != mGeneration || loaded >= MAX_TILES_PER_PREFETCH) {
+                return;
+            }
+            if (mTrackTileCache.prefetchTile(tileKey)) {
+                loaded++;
+            }
+        }
+    }
+
+    private static double smooth(double previous, double sample) {
+        return previous + SMOOTHING * (sample - previous);
+    }
+}
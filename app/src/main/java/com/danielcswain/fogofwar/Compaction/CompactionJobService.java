@@ -0,0 +1,130 @@
+package com.danielcswain.fogofwar.Compaction;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.database.sqlite.SQLiteException;
+import android.os.Process;
+import android.util.Log;
+
+import com.danielcswain.fogofwar.Data.CompactionResult;
+import com.danielcswain.fogofwar.Data.Partition;
+import com.danielcswain.fogofwar.Data.SQLDatabaseHelper;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodic job compacting the raw location history while the device is idle and charging.
+ *
+ * Each sealed month is simplified in its own transaction (see SQLDatabaseHelper.compactPartition)
+ * and the space freed is then returned to the file system. If the job is stopped, e.g. because
+ * the device is unplugged or woken, it stops after the current month and the next run carries on
+ * from the months not yet compacted.
+ */
+public class CompactionJobService extends JobService {
+
+    private static final String TAG = CompactionJobService.class.getSimpleName();
+
+    private static final int JOB_ID = 1;
+
+    private static final long PERIOD_MS = TimeUnit.DAYS.toMillis(1);
+
+    // Well inside the accuracy of a GPS fix and the width of the path cleared through the fog at
+    // street zoom, so simplifying does not visibly change the revealed area.
+    public static final double TOLERANCE_METRES = 5;
+
+    // Only rebuild the database file once at least this much of it is unused.
+    private static final long MIN_RECLAIM_BYTES = 1024 * 1024;
+
+    private volatile boolean mStopped;
+
+    /**
+     * Schedule the compaction job unless it is already scheduled.
+     * @param context: The Activity/Application context.
+     */
+    public static void schedule(Context context) {
+        JobScheduler jobScheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        for (JobInfo jobInfo : jobScheduler.getAllPendingJobs()) {
+            if (jobInfo.getId() == JOB_ID) {
+                return;
+            }
+        }
+
+        JobInfo jobInfo = new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, CompactionJobService.class))
+                .setRequiresCharging(true)
+                .setRequiresDeviceIdle(true)
+                .setPeriodic(PERIOD_MS)
+                .setPersisted(true)
+                .build();
+        if (jobScheduler.schedule(jobInfo) != JobScheduler.RESULT_SUCCESS) {
+            Log.w(TAG, "Could not schedule compaction");
+        }
+    }
+
+    /**
+     * Start compacting on a background thread.
+     * @return true, as the work continues after this returns.
+     */
+    @Override
+    public boolean onStartJob(final JobParameters jobParameters) {
+        mStopped = false;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                boolean finished = compact();
+                jobFinished(jobParameters, !finished);
+            }
+        }, TAG).start();
+        return true;
+    }
+
+    /**
+     * Stop after the month being compacted.
+     * @return true, so the remaining months are compacted in a later run.
+     */
+    @Override
+    public boolean onStopJob(JobParameters jobParameters) {
+        mStopped = true;
+        return true;
+    }
+
+    /**
+     * Compact every month not yet compacted, then reclaim the space freed.
+     * @return true if the run finished, false if it was stopped or failed and should be retried.
+     */
+    private boolean compact() {
+        SQLDatabaseHelper sqlDatabaseHelper = SQLDatabaseHelper.getInstance(this);
+        CompactionResult compactionResult = new CompactionResult();
+        long start = System.nanoTime();
+
+        try {
+            for (Partition partition : sqlDatabaseHelper.getPartitionsToCompact()) {
+                if (mStopped) {
+                    break;
+                }
+                sqlDatabaseHelper.compactPartition(partition.getKey(), TOLERANCE_METRES,
+                        compactionResult);
+            }
+
+            // Rebuilding the file rewrites all of it, so it is only done once enough is free,
+            // including space freed by an earlier run which was stopped before getting here.
+            if (!mStopped && sqlDatabaseHelper.getReclaimableBytes() >= MIN_RECLAIM_BYTES) {
+                compactionResult.addBytesSaved(sqlDatabaseHelper.reclaimSpace());
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Compaction failed: " + compactionResult, e);
+            return false;
+        }
+
+        Log.i(TAG, (mStopped ? "Compaction stopped: " : "Compaction finished: ") +
+                compactionResult + " in " +
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        return !mStopped;
+    }
+}
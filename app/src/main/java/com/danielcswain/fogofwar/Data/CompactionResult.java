@@ -0,0 +1,57 @@
+package com.danielcswain.fogofwar.Data;
+
+import java.util.Locale;
+
+/**
+ * What a compaction run removed from the database, reported once it finishes or is stopped.
+ */
+public class CompactionResult {
+
+    private int partitionsCompacted;
+    private long locationsRemoved;
+    private long segmentsRemoved;
+    private long bytesSaved;
+
+    /**
+     * Add the rows removed from one partition.
+     * @param locationsRemoved: long, the number of location fixes deleted.
+     * @param segmentsRemoved: long, how many fewer segments the partition holds.
+     */
+    public void addPartition(long locationsRemoved, long segmentsRemoved) {
+        this.partitionsCompacted++;
+        this.locationsRemoved += locationsRemoved;
+        this.segmentsRemoved += segmentsRemoved;
+    }
+
+    public void addBytesSaved(long bytesSaved) {
+        this.bytesSaved += bytesSaved;
+    }
+
+    public int getPartitionsCompacted() {
+        return partitionsCompacted;
+    }
+
+    public long getLocationsRemoved() {
+        return locationsRemoved;
+    }
+
+    public long getSegmentsRemoved() {
+        return segmentsRemoved;
+    }
+
+    public long getRowsRemoved() {
+        return locationsRemoved + segmentsRemoved;
+    }
+
+    public long getBytesSaved() {
+        return bytesSaved;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "partitions=%d rowsRemoved=%d (locations=%d segments=%d) bytesSaved=%d",
+                partitionsCompacted, getRowsRemoved(), locationsRemoved, segmentsRemoved,
+                bytesSaved);
+    }
+}
@@ -0,0 +1,51 @@
+package com.danielcswain.fogofwar.Data;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Reads and writes location fixes as CSV lines of "datetime,latitude,longitude", the format used
+ * for recorded tracks and exported histories.
+ */
+public final class LocationCsv {
+
+    public static final String HEADER = "datetime,latitude,longitude";
+
+    private LocationCsv() {
+    }
+
+    /**
+     * Parse one CSV line.
+     * @param line: String, a line of the file.
+     * @return a LocationObject, or null for the header, blank lines and comments.
+     * @throws IllegalArgumentException if the line is malformed.
+     */
+    public static LocationObject parse(String line) {
+        String trimmed = line.trim();
+        if (trimmed.isEmpty() || trimmed.startsWith("#") || trimmed.equals(HEADER)) {
+            return null;
+        }
+
+        String[] fields = trimmed.split(",");
+        if (fields.length < 3) {
+            throw new IllegalArgumentException("Expected " + HEADER + " but got: " + line);
+        }
+        try {
+            return new LocationObject(0, Long.parseLong(fields[0].trim()),
+                    Double.parseDouble(fields[1].trim()), Double.parseDouble(fields[2].trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed location: " + line, e);
+        }
+    }
+
+    /**
+     * Write one location as a CSV line.
+     * @param writer: The Writer to append to.
+     * @param locationObject: The LocationObject to write.
+     */
+    public static void write(Writer writer, LocationObject locationObject) throws IOException {
+        writer.write(String.format(Locale.US, "%d,%.7f,%.7f\n", locationObject.getDatetime(),
+                locationObject.getLatitude(), locationObject.getLongitude()));
+    }
+}
@@ -0,0 +1,224 @@
+package com.danielcswain.fogofwar.Data;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Summary of one month of stored track data: the time range and bounding box it covers, how many
+ * rows it holds and the largest IDs used, so queries can skip the months that cannot match
+ * without opening their tables.
+ *
+ * Locations are assigned to the month (UTC) they were recorded in, and segments to the month of
+ * the location they end at, so a live fix and the segment leading to it are always stored
+ * together. Partitions are immutable; each change produces a new Partition.
+ */
+public class Partition {
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private final int key;
+    private final long startDatetime;
+    private final long endDatetime;
+    private final double minLatitude;
+    private final double maxLatitude;
+    private final double minLongitude;
+    private final double maxLongitude;
+    private final int locationCount;
+    private final int segmentCount;
+    private final long maxLocationId;
+    private final long maxSegmentId;
+    private final boolean sealed;
+
+    /**
+     * Constructor for a Partition read from the database.
+     * @param key: int, the month of the partition as yyyyMM.
+     * @param startDatetime: long, time in milliseconds of the earliest row.
+     * @param endDatetime: long, time in milliseconds of the latest row.
+     * @param minLatitude: double, the southern edge of the rows' bounding box.
+     * @param maxLatitude: double, the northern edge of the rows' bounding box.
+     * @param minLongitude: double, the western edge of the rows' bounding box.
+     * @param maxLongitude: double, the eastern edge of the rows' bounding box.
+     * @param locationCount: int, the number of locations stored.
+     * @param segmentCount: int, the number of segments stored.
+     * @param maxLocationId: long, the largest location ID stored, or 0.
+     * @param maxSegmentId: long, the largest segment ID stored, or 0.
+     * @param sealed: boolean, true once the month is over and its tables have been optimised.
+     */
+    public Partition(int key, long startDatetime, long endDatetime,
+                     double minLatitude, double maxLatitude,
+                     double minLongitude, double maxLongitude,
+                     int locationCount, int segmentCount,
+                     long maxLocationId, long maxSegmentId, boolean sealed) {
+        this.key = key;
+        this.startDatetime = startDatetime;
+        this.endDatetime = endDatetime;
+        this.minLatitude = minLatitude;
+        this.maxLatitude = maxLatitude;
+        this.minLongitude = minLongitude;
+        this.maxLongitude = maxLongitude;
+        this.locationCount = locationCount;
+        this.segmentCount = segmentCount;
+        this.maxLocationId = maxLocationId;
+        this.maxSegmentId = maxSegmentId;
+        this.sealed = sealed;
+    }
+
+    /**
+     * Create the summary of a month with nothing stored in it yet.
+     * @param key: int, the month of the partition as yyyyMM.
+     * @return a new, empty Partition.
+     */
+    public static Partition empty(int key) {
+        return new Partition(key, Long.MAX_VALUE, Long.MIN_VALUE,
+                Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 0, 0, 0, 0, false);
+    }
+
+    /**
+     * Get the partition key of the month a time falls in.
+     * @param datetime: long, time in milliseconds.
+     * @return the month (UTC) as yyyyMM.
+     */
+    public static int getKey(long datetime) {
+        Calendar calendar = Calendar.getInstance(UTC);
+        calendar.setTimeInMillis(datetime);
+        return calendar.get(Calendar.YEAR) * 100 + calendar.get(Calendar.MONTH) + 1;
+    }
+
+    /**
+     * Get a copy of this partition which also covers a stored location.
+     * @param locationObject: The LocationObject stored, carrying its ID.
+     * @return a new Partition.
+     */
+    public Partition withLocation(LocationObject locationObject) {
+        double latitude = locationObject.getLatitude();
+        double longitude = locationObject.getLongitude();
+        return new Partition(key,
+                Math.min(startDatetime, locationObject.getDatetime()),
+                Math.max(endDatetime, locationObject.getDatetime()),
+                Math.min(minLatitude, latitude), Math.max(maxLatitude, latitude),
+                Math.min(minLongitude, longitude), Math.max(maxLongitude, longitude),
+                locationCount + 1, segmentCount,
+                Math.max(maxLocationId, locationObject.getId()), maxSegmentId, sealed);
+    }
+
+    /**
+     * Get a copy of this partition which also covers a stored segment.
+     * @param segmentObject: The SegmentObject stored, carrying its ID.
+     * @return a new Partition.
+     */
+    public Partition withSegment(SegmentObject segmentObject) {
+        return new Partition(key,
+                Math.min(startDatetime, segmentObject.getStartDatetime()),
+                Math.max(endDatetime, segmentObject.getEndDatetime()),
+                Math.min(minLatitude, segmentObject.getMinLatitude()),
+                Math.max(maxLatitude, segmentObject.getMaxLatitude()),
+                Math.min(minLongitude, segmentObject.getMinLongitude()),
+                Math.max(maxLongitude, segmentObject.getMaxLongitude()),
+                locationCount, segmentCount + 1,
+                maxLocationId, Math.max(maxSegmentId, segmentObject.getId()), sealed);
+    }
+
+    /**
+     * Get the summary covering the rows of both this partition and another summary of the same
+     * month.
+     * @param other: The other Partition.
+     * @return a new Partition.
+     */
+    public Partition union(Partition other) {
+        return new Partition(key,
+                Math.min(startDatetime, other.startDatetime),
+                Math.max(endDatetime, other.endDatetime),
+                Math.min(minLatitude, other.minLatitude), Math.max(maxLatitude, other.maxLatitude),
+                Math.min(minLongitude, other.minLongitude),
+                Math.max(maxLongitude, other.maxLongitude),
+                locationCount + other.locationCount, segmentCount + other.segmentCount,
+                Math.max(maxLocationId, other.maxLocationId),
+                Math.max(maxSegmentId, other.maxSegmentId), sealed && other.sealed);
+    }
+
+    /**
+     * Get a copy of this partition marked as sealed.
+     * @return a new Partition.
+     */
+    public Partition asSealed() {
+        return new Partition(key, startDatetime, endDatetime,
+                minLatitude, maxLatitude, minLongitude, maxLongitude,
+                locationCount, segmentCount, maxLocationId, maxSegmentId, true);
+    }
+
+    /**
+     * Check whether any row of the partition could lie in a window.
+     * @return true unless the partition's bounding box and the window are disjoint.
+     */
+    public boolean overlaps(double minLatitude, double maxLatitude,
+                            double minLongitude, double maxLongitude) {
+        return this.minLatitude <= maxLatitude && this.maxLatitude >= minLatitude &&
+                this.minLongitude <= maxLongitude && this.maxLongitude >= minLongitude;
+    }
+
+    /**
+     * Check whether any row of the partition could have been recorded in a time range.
+     * @param startDatetime: long, time in milliseconds at the start of the range, inclusive.
+     * @param endDatetime: long, time in milliseconds at the end of the range, inclusive.
+     * @return true unless the partition's time range and the range are disjoint.
+     */
+    public boolean overlapsTime(long startDatetime, long endDatetime) {
+        return this.startDatetime <= endDatetime && this.endDatetime >= startDatetime;
+    }
+
+    /**
+     * @return the suffix added to the base table names for this partition's tables.
+     */
+    public String getTableSuffix() {
+        return "_" + key;
+    }
+
+    public int getKey() {
+        return key;
+    }
+
+    public long getStartDatetime() {
+        return startDatetime;
+    }
+
+    public long getEndDatetime() {
+        return endDatetime;
+    }
+
+    public double getMinLatitude() {
+        return minLatitude;
+    }
+
+    public double getMaxLatitude() {
+        return maxLatitude;
+    }
+
+    public double getMinLongitude() {
+        return minLongitude;
+    }
+
+    public double getMaxLongitude() {
+        return maxLongitude;
+    }
+
+    public int getLocationCount() {
+        return locationCount;
+    }
+
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    public long getMaxLocationId() {
+        return maxLocationId;
+    }
+
+    public long getMaxSegmentId() {
+        return maxSegmentId;
+    }
+
+    public boolean isSealed() {
+        return sealed;
+    }
+}
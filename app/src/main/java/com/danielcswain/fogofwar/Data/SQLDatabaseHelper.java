@@ -1,143 +1,2329 @@
 package com.danielcswain.fogofwar.Data;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.VisibleForTesting;
+import android.util.LruCache;
 
+import com.danielcswain.fogofwar.Cache.CacheGovernor;
+import com.danielcswain.fogofwar.Cache.TileKey;
+
+import com.danielcswain.fogofwar.Explored.CheckpointWeeks;
+import com.danielcswain.fogofwar.Explored.CoverageTile;
+import com.danielcswain.fogofwar.Explored.ExploredRegion;
+import com.danielcswain.fogofwar.Explored.FogTile;
+import com.danielcswain.fogofwar.Heatmap.VisitCell;
+import com.danielcswain.fogofwar.Heatmap.VisitCounter;
+import com.danielcswain.fogofwar.Heatmap.VisitEvent;
 import com.google.android.gms.maps.model.LatLng;
 import com.google.android.gms.maps.model.LatLngBounds;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Database helper to connect to and write to the SQLite database.
+ *
+ * A single shared instance holds one long-lived connection to the database. The database runs in
+ * write-ahead logging mode so viewport queries are served from the reader connections of the pool
+ * and never wait on an insert, while all writes are serialised through one writer thread.
+ *
+ * Raw location fixes are kept in Locations tables. The track drawn on the map is stored in
+ * Segments tables as straight segments between consecutive fixes, each with its own bounding box,
+ * so a viewport query finds every segment crossing the screen even when both ends are off it.
+ *
+ * Both are partitioned by month: each month has its own Locations_yyyyMM and Segments_yyyyMM
+ * tables, summarised by a row in the Partitions table (see Partition). Queries skip the months
+ * whose bounding box or time range cannot match, so their cost follows the data near the viewport
+ * rather than the whole history. Once a month is over its partition is sealed: its segments are
+ * rebuilt clustered by latitude, it is analysed, and new fixes are no longer written to it.
+ *
+ * The VisitCells table keeps per-cell visit counters for the heatmap, updated as each fix is
+ * stored rather than recomputed from the Locations table.
+ *
+ * Sealed partitions can later be compacted: their fixes are simplified to within a small
+ * tolerance of the recorded track and their segments rebuilt from the kept fixes. The Compactions
+ * table records which months have been compacted, so an interrupted run resumes where it stopped.
+ *
+ * The CoverageTiles table holds the explored area (see ExploredRegion), merged with each new
+ * segment as it is stored. It is kept from the full track, so compaction never shrinks it.
+ * The CoverageCheckpoints table keeps a compressed copy of each tile as it was at the end of every
+ * week it changed in, so the explored area at any past date can be rebuilt quickly.
+ * The FogTiles table holds the levels of the fog pyramid above the coverage tiles (see FogTile),
+ * each tile downsampled from its four children, so the fog can be drawn at any zoom from a
+ * handful of tiles. Only the tiles above a changed coverage tile are rebuilt. Fixes queue their
+ * changed coverage tiles in the FogPyramidPending table, which is merged into the pyramid a few
+ * seconds later, so a run of fixes climbs the pyramid once.
+ *
+ * Histories exported from other devices can be merged in (see HistoryMerger). Their fixes take
+ * new IDs after every stored one, and their segments are built per device before being stored.
  */
 public class SQLDatabaseHelper extends SQLiteOpenHelper{
 
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 10;
     private static final String DATABASE_NAME = "LocationDB";
     private static final String TABLE_NAME = "Locations";
     private static final String KEY_ID = "id";
     private static final String KEY_DATETIME = "datetime";
     private static final String KEY_LATITUDE = "latitude";
     private static final String KEY_LONGITUDE = "longitude";
-    private static final String[] COLUMNS = { KEY_ID, KEY_DATETIME, KEY_LATITUDE, KEY_LONGITUDE };
+
+    private static final String SEGMENTS_TABLE_NAME = "Segments";
+    private static final String SEGMENTS_INDEX_SUFFIX = "BoundingBox";
+    private static final String LOCATIONS_INDEX_SUFFIX = "Datetime";
+    private static final String SEALED_TABLE_SUFFIX = "_sealed";
+    private static final String KEY_START_DATETIME = "start_datetime";
+    private static final String KEY_END_DATETIME = "end_datetime";
+    private static final String KEY_START_LATITUDE = "start_latitude";
+    private static final String KEY_START_LONGITUDE = "start_longitude";
+    private static final String KEY_END_LATITUDE = "end_latitude";
+    private static final String KEY_END_LONGITUDE = "end_longitude";
+    private static final String KEY_MIN_LATITUDE = "min_latitude";
+    private static final String KEY_MAX_LATITUDE = "max_latitude";
+    private static final String KEY_MIN_LONGITUDE = "min_longitude";
+    private static final String KEY_MAX_LONGITUDE = "max_longitude";
+
+    private static final String VISIT_CELLS_TABLE_NAME = "VisitCells";
+    private static final String KEY_CELL_X = "cell_x";
+    private static final String KEY_CELL_Y = "cell_y";
+    private static final String KEY_VISITS = "visits";
+    private static final String KEY_DWELL = "dwell";
+    private static final String KEY_LAST_VISIT = "last_visit";
+
+    private static final String PARTITIONS_TABLE_NAME = "Partitions";
+    private static final String KEY_PARTITION = "partition_key";
+    private static final String KEY_LOCATION_COUNT = "location_count";
+    private static final String KEY_SEGMENT_COUNT = "segment_count";
+    private static final String KEY_MAX_LOCATION_ID = "max_location_id";
+    private static final String KEY_MAX_SEGMENT_ID = "max_segment_id";
+    private static final String KEY_SEALED = "sealed";
+
+    private static final String COMPACTIONS_TABLE_NAME = "Compactions";
+    private static final String KEY_COMPACTED_DATETIME = "compacted_datetime";
+    private static final String KEY_LOCATIONS_REMOVED = "locations_removed";
+    private static final String KEY_SEGMENTS_REMOVED = "segments_removed";
+
+    private static final String COVERAGE_TILES_TABLE_NAME = "CoverageTiles";
+    private static final String KEY_TILE_X = "tile_x";
+    private static final String KEY_TILE_Y = "tile_y";
+    private static final String KEY_CELL_COUNT = "cell_count";
+    private static final String KEY_CELLS = "cells";
+
+    private static final String COVERAGE_CHECKPOINTS_TABLE_NAME = "CoverageCheckpoints";
+    private static final String KEY_WEEK = "week";
+
+    private static final String FOG_TILES_TABLE_NAME = "FogTiles";
+    private static final String FOG_PYRAMID_PENDING_TABLE_NAME = "FogPyramidPending";
+    private static final String KEY_ZOOM = "zoom";
+    private static final String KEY_ALPHA = "alpha";
+
     private static final String GTE = " >= ";
     private static final String LTE = " <= ";
     private static final String AND = " AND ";
 
-    private static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME +
-            "( " + KEY_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
-            KEY_DATETIME + " TEXT, " + KEY_LATITUDE + " REAL, " + KEY_LONGITUDE + " REAL )";
+    private static final String LOCATION_COLUMNS = KEY_ID + ", " + KEY_DATETIME + ", " +
+            KEY_LATITUDE + ", " + KEY_LONGITUDE;
+
+    private static final String SEGMENT_COLUMNS = KEY_ID + ", " +
+            KEY_START_DATETIME + ", " + KEY_END_DATETIME + ", " +
+            KEY_START_LATITUDE + ", " + KEY_START_LONGITUDE + ", " +
+            KEY_END_LATITUDE + ", " + KEY_END_LONGITUDE + ", " +
+            KEY_MIN_LATITUDE + ", " + KEY_MAX_LATITUDE + ", " +
+            KEY_MIN_LONGITUDE + ", " + KEY_MAX_LONGITUDE;
+
+    private static final String SEGMENT_COLUMN_DEFINITIONS =
+            KEY_START_DATETIME + " INTEGER, " + KEY_END_DATETIME + " INTEGER, " +
+            KEY_START_LATITUDE + " REAL, " + KEY_START_LONGITUDE + " REAL, " +
+            KEY_END_LATITUDE + " REAL, " + KEY_END_LONGITUDE + " REAL, " +
+            KEY_MIN_LATITUDE + " REAL, " + KEY_MAX_LATITUDE + " REAL, " +
+            KEY_MIN_LONGITUDE + " REAL, " + KEY_MAX_LONGITUDE + " REAL";
+
+    private static final String PARTITION_COLUMNS = KEY_PARTITION + ", " +
+            KEY_START_DATETIME + ", " + KEY_END_DATETIME + ", " +
+            KEY_MIN_LATITUDE + ", " + KEY_MAX_LATITUDE + ", " +
+            KEY_MIN_LONGITUDE + ", " + KEY_MAX_LONGITUDE + ", " +
+            KEY_LOCATION_COUNT + ", " + KEY_SEGMENT_COUNT + ", " +
+            KEY_MAX_LOCATION_ID + ", " + KEY_MAX_SEGMENT_ID + ", " + KEY_SEALED;
+
+    private static final String REPLACE_PARTITION = "INSERT OR REPLACE INTO " +
+            PARTITIONS_TABLE_NAME + " (" + PARTITION_COLUMNS + ") VALUES " +
+            "(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String QUERY_PARTITIONS = "SELECT " + PARTITION_COLUMNS +
+            " FROM " + PARTITIONS_TABLE_NAME + " ORDER BY " + KEY_PARTITION + " ASC";
+
+    private static final String CREATE_PARTITIONS_TABLE = "CREATE TABLE " +
+            PARTITIONS_TABLE_NAME + "( " + KEY_PARTITION + " INTEGER PRIMARY KEY, " +
+            KEY_START_DATETIME + " INTEGER, " + KEY_END_DATETIME + " INTEGER, " +
+            KEY_MIN_LATITUDE + " REAL, " + KEY_MAX_LATITUDE + " REAL, " +
+            KEY_MIN_LONGITUDE + " REAL, " + KEY_MAX_LONGITUDE + " REAL, " +
+            KEY_LOCATION_COUNT + " INTEGER, " + KEY_SEGMENT_COUNT + " INTEGER, " +
+            KEY_MAX_LOCATION_ID + " INTEGER, " + KEY_MAX_SEGMENT_ID + " INTEGER, " +
+            KEY_SEALED + " INTEGER )";
+
+    private static final String CREATE_COMPACTIONS_TABLE = "CREATE TABLE " +
+            COMPACTIONS_TABLE_NAME + "( " + KEY_PARTITION + " INTEGER PRIMARY KEY, " +
+            KEY_COMPACTED_DATETIME + " INTEGER, " + KEY_LOCATIONS_REMOVED + " INTEGER, " +
+            KEY_SEGMENTS_REMOVED + " INTEGER )";
+
+    private static final String INSERT_COMPACTION = "INSERT OR REPLACE INTO " +
+            COMPACTIONS_TABLE_NAME + " (" + KEY_PARTITION + ", " + KEY_COMPACTED_DATETIME + ", " +
+            KEY_LOCATIONS_REMOVED + ", " + KEY_SEGMENTS_REMOVED + ") VALUES (?, ?, ?, ?)";
+
+    // Merged months are recorded as compacted, keeping any earlier compaction's counts.
+    private static final String INSERT_MERGED_PARTITION = "INSERT OR IGNORE INTO " +
+            COMPACTIONS_TABLE_NAME + " (" + KEY_PARTITION + ", " + KEY_COMPACTED_DATETIME + ", " +
+            KEY_LOCATIONS_REMOVED + ", " + KEY_SEGMENTS_REMOVED + ") VALUES (?, ?, 0, 0)";
+
+    private static final String QUERY_COMPACTED_PARTITIONS = "SELECT " + KEY_PARTITION +
+            " FROM " + COMPACTIONS_TABLE_NAME;
+
+    // Each row holds a whole tile's cells, so it stays a rowid table to keep the blobs out of
+    // the primary key's b-tree.
+    private static final String CREATE_COVERAGE_TILES_TABLE = "CREATE TABLE " +
+            COVERAGE_TILES_TABLE_NAME + "( " + KEY_TILE_X + " INTEGER, " + KEY_TILE_Y +
+            " INTEGER, " + KEY_CELL_COUNT + " INTEGER, " + KEY_CELLS + " BLOB, " +
+            "PRIMARY KEY (" + KEY_TILE_X + ", " + KEY_TILE_Y + ") )";
+
+    private static final String REPLACE_COVERAGE_TILE = "INSERT OR REPLACE INTO " +
+            COVERAGE_TILES_TABLE_NAME + " (" + KEY_TILE_X + ", " + KEY_TILE_Y + ", " +
+            KEY_CELL_COUNT + ", " + KEY_CELLS + ") VALUES (?, ?, ?, ?)";
+
+    private static final String QUERY_COVERAGE_TILE = "SELECT " + KEY_CELLS +
+            " FROM " + COVERAGE_TILES_TABLE_NAME +
+            " WHERE " + KEY_TILE_X + " = ?" + AND + KEY_TILE_Y + " = ?";
+
+    private static final String CREATE_COVERAGE_CHECKPOINTS_TABLE = "CREATE TABLE " +
+            COVERAGE_CHECKPOINTS_TABLE_NAME + "( " + KEY_TILE_X + " INTEGER, " + KEY_TILE_Y +
+            " INTEGER, " + KEY_WEEK + " INTEGER, " + KEY_CELLS + " BLOB, " +
+            "PRIMARY KEY (" + KEY_TILE_X + ", " + KEY_TILE_Y + ", " + KEY_WEEK + ") )";
+
+    private static final String REPLACE_COVERAGE_CHECKPOINT = "INSERT OR REPLACE INTO " +
+            COVERAGE_CHECKPOINTS_TABLE_NAME + " (" + KEY_TILE_X + ", " + KEY_TILE_Y + ", " +
+            KEY_WEEK + ", " + KEY_CELLS + ") VALUES (?, ?, ?, ?)";
+
+    // The latest checkpoint of a tile up to a week, found by a seek on the primary key.
+    private static final String QUERY_COVERAGE_CHECKPOINT = "SELECT " + KEY_CELLS +
+            " FROM " + COVERAGE_CHECKPOINTS_TABLE_NAME +
+            " WHERE " + KEY_TILE_X + " = ?" + AND + KEY_TILE_Y + " = ?" + AND +
+            KEY_WEEK + LTE + "?" + " ORDER BY " + KEY_WEEK + " DESC LIMIT 1";
+
+    private static final String CREATE_FOG_TILES_TABLE = "CREATE TABLE " +
+            FOG_TILES_TABLE_NAME + "( " + KEY_ZOOM + " INTEGER, " + KEY_TILE_X + " INTEGER, " +
+            KEY_TILE_Y + " INTEGER, " + KEY_ALPHA + " BLOB, " +
+            "PRIMARY KEY (" + KEY_ZOOM + ", " + KEY_TILE_X + ", " + KEY_TILE_Y + ") )";
+
+    private static final String REPLACE_FOG_TILE = "INSERT OR REPLACE INTO " +
+            FOG_TILES_TABLE_NAME + " (" + KEY_ZOOM + ", " + KEY_TILE_X + ", " + KEY_TILE_Y +
+            ", " + KEY_ALPHA + ") VALUES (?, ?, ?, ?)";
+
+    private static final String CREATE_FOG_PYRAMID_PENDING_TABLE = "CREATE TABLE " +
+            FOG_PYRAMID_PENDING_TABLE_NAME + "( " + KEY_TILE_X + " INTEGER, " + KEY_TILE_Y +
+            " INTEGER, PRIMARY KEY (" + KEY_TILE_X + ", " + KEY_TILE_Y + ") ) WITHOUT ROWID";
+
+    private static final String INSERT_FOG_PYRAMID_PENDING = "INSERT OR IGNORE INTO " +
+            FOG_PYRAMID_PENDING_TABLE_NAME + " (" + KEY_TILE_X + ", " + KEY_TILE_Y +
+            ") VALUES (?, ?)";
+
+    private static final String QUERY_FOG_PYRAMID_PENDING = "SELECT " + KEY_TILE_X + ", " +
+            KEY_TILE_Y + " FROM " + FOG_PYRAMID_PENDING_TABLE_NAME;
+
+    private static final String QUERY_FOG_TILE = "SELECT " + KEY_ALPHA +
+            " FROM " + FOG_TILES_TABLE_NAME +
+            " WHERE " + KEY_ZOOM + " = ?" + AND + KEY_TILE_X + " = ?" + AND + KEY_TILE_Y + " = ?";
+
+    private static final String QUERY_ALL_COVERAGE_TILES = "SELECT " + KEY_TILE_X + ", " +
+            KEY_TILE_Y + ", " + KEY_CELLS + " FROM " + COVERAGE_TILES_TABLE_NAME;
+
+    // The coverage tiles the writer keeps around the track, each 8 KB and about 2.4 km across at
+    // the equator. Others are read back from the database when the track returns to them.
+    private static final int MAX_LIVE_COVERAGE_TILES = 64;
+
+    // Coverage tiles are merged into the pyramid this many at a time when it is rebuilt, so
+    // neighbouring tiles share the reads and writes of their parents.
+    private static final int FOG_PYRAMID_BATCH_SIZE = 64;
+
+    // Fixes only queue their changed coverage tiles for the fog pyramid. The queue is merged into
+    // the pyramid on the writer thread this long after the first of them, or as soon as a batch
+    // is waiting, so fixes close together share the climb up the pyramid.
+    private static final long FOG_PYRAMID_DELAY_MS = 5000;
+
+    // The pyramid tiles kept in memory for updates: the branch above the track, with room for
+    // its neighbours.
+    private static final int FOG_TILE_CACHE_BYTES = 24 * FogTile.PIXELS * FogTile.PIXELS;
+
+    private static final String QUERY_COVERAGE_CELL_COUNTS = "SELECT " + KEY_TILE_Y + ", " +
+            KEY_CELL_COUNT + " FROM " + COVERAGE_TILES_TABLE_NAME;
+
+    // Count a new visit only if the cell has not been visited recently. Bound as datetime, dwell,
+    // datetime, cell_x, cell_y.
+    private static final String UPDATE_VISIT_CELL = "UPDATE " + VISIT_CELLS_TABLE_NAME +
+            " SET " + KEY_VISITS + " = " + KEY_VISITS + " + (CASE WHEN ? - " + KEY_LAST_VISIT +
+            " > " + VisitCounter.REVISIT_GAP_MS + " THEN 1 ELSE 0 END), " +
+            KEY_DWELL + " = " + KEY_DWELL + " + ?, " +
+            KEY_LAST_VISIT + " = MAX(" + KEY_LAST_VISIT + ", ?)" +
+            " WHERE " + KEY_CELL_X + " = ?" + AND + KEY_CELL_Y + " = ?";
+
+    private static final String INSERT_VISIT_CELL = "INSERT INTO " + VISIT_CELLS_TABLE_NAME +
+            " (" + KEY_CELL_X + ", " + KEY_CELL_Y + ", " + KEY_VISITS + ", " + KEY_DWELL + ", " +
+            KEY_LAST_VISIT + ") VALUES (?, ?, 1, ?, ?)";
+
+    private static final String QUERY_VISIT_CELLS_IN_RANGE = "SELECT " + KEY_CELL_X + ", " +
+            KEY_CELL_Y + ", " + KEY_VISITS + ", " + KEY_DWELL + ", " + KEY_LAST_VISIT +
+            " FROM " + VISIT_CELLS_TABLE_NAME +
+            " WHERE " + KEY_CELL_X + GTE + "?" + AND + KEY_CELL_X + LTE + "?" + AND +
+            KEY_CELL_Y + GTE + "?" + AND + KEY_CELL_Y + LTE + "?";
+
+    // The unpartitioned Locations table of versions 1 to 3, read when upgrading.
+    private static final String QUERY_ALL_LOCATIONS = "SELECT " + LOCATION_COLUMNS +
+            " FROM " + TABLE_NAME + " ORDER BY " + KEY_ID + " ASC";
+
+    private static final String CREATE_VISIT_CELLS_TABLE = "CREATE TABLE " +
+            VISIT_CELLS_TABLE_NAME + "( " + KEY_CELL_X + " INTEGER, " + KEY_CELL_Y + " INTEGER, " +
+            KEY_VISITS + " INTEGER, " + KEY_DWELL + " INTEGER, " + KEY_LAST_VISIT + " INTEGER, " +
+            "PRIMARY KEY (" + KEY_CELL_X + ", " + KEY_CELL_Y + ") ) WITHOUT ROWID";
 
     /**
-     * Constructor for the SQLDatabaseHelper.
+     * Listener notified on the writer thread after heatmap cells have been visited.
+     */
+    public interface OnVisitCellsUpdatedListener {
+        void onVisitCellsUpdated(List<VisitEvent> visitEvents);
+    }
+
+    /**
+     * Listener notified on the writer thread after new track segments have been stored.
+     */
+    public interface OnSegmentsAddedListener {
+        void onSegmentsAdded(List<SegmentObject> segmentObjects);
+    }
+
+    /**
+     * Listener notified after a partition's segments have been replaced, e.g. by compaction, so
+     * segments read from it before are out of date.
+     */
+    public interface OnTrackRewrittenListener {
+        void onTrackRewritten(Partition partition);
+    }
+
+    private static SQLDatabaseHelper sInstance;
+
+    private final Object mWriteLock = new Object();
+    private final ScheduledExecutorService mWriteExecutor =
+            Executors.newSingleThreadScheduledExecutor();
+    private final SegmentBuilder mSegmentBuilder = new SegmentBuilder();
+    private final VisitCounter mVisitCounter = new VisitCounter();
+    private boolean mIngestionSeeded = false;
+    private long mLastLocationId;
+    private long mLastSegmentId;
+    private int mStatementsPartitionKey;
+    private SQLiteStatement mInsertStatement;
+    private SQLiteStatement mInsertSegmentStatement;
+    private SQLiteStatement mReplacePartitionStatement;
+    private SQLiteStatement mUpdateVisitCellStatement;
+    private SQLiteStatement mInsertVisitCellStatement;
+    private SQLiteStatement mReplaceCoverageTileStatement;
+    private SQLiteStatement mReplaceCoverageCheckpointStatement;
+    private SQLiteStatement mReplaceFogTileStatement;
+    private SQLiteStatement mInsertFogPyramidPendingStatement;
+    private ExploredRegion mExploredRegion;
+
+    // The coverage tiles stored in FogPyramidPending, packed by CoverageTile.getKey, and whether
+    // an update of the pyramid is queued on the writer thread. Guarded by the write lock.
+    private final Set<Long> mPendingFogTiles = new LinkedHashSet<>();
+    private boolean mFogPyramidUpdateQueued;
+    private final Runnable mUpdateFogPyramidTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mWriteLock) {
+                mFogPyramidUpdateQueued = false;
+                updatePendingFogPyramid(getWritableDatabase());
+            }
+        }
+    };
+
+    // Pyramid tiles as last stored, so an update inflates only the ones it has not used recently.
+    // Only filled and changed while holding the write lock; the CacheGovernor may trim it.
+    private final LruCache<TileKey, FogTile> mFogTileCache =
+            new LruCache<TileKey, FogTile>(FOG_TILE_CACHE_BYTES) {
+                @Override
+                protected int sizeOf(TileKey key, FogTile value) {
+                    return FogTile.PIXELS * FogTile.PIXELS;
+                }
+            };
+    private final CacheGovernor mCacheGovernor;
+    private final List<OnSegmentsAddedListener> mListeners = new CopyOnWriteArrayList<>();
+    private final List<OnVisitCellsUpdatedListener> mVisitListeners =
+            new CopyOnWriteArrayList<>();
+    private final List<OnTrackRewrittenListener> mRewriteListeners = new CopyOnWriteArrayList<>();
+
+    // The summaries of every partition ordered by month, loaded on first use. The list is
+    // replaced, never modified, so readers can use it without holding the lock.
+    private final Object mPartitionsLock = new Object();
+    private volatile List<Partition> mPartitions;
+
+    /**
+     * Get the shared SQLDatabaseHelper, creating it on first use.
+     * @param context: The Activity/Application context.
+     * @return the SQLDatabaseHelper shared by the whole application.
+     */
+    public static synchronized SQLDatabaseHelper getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SQLDatabaseHelper(context.getApplicationContext(), DATABASE_NAME);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Create a SQLDatabaseHelper on a separate database, e.g. for replaying a recorded track
+     * off-device without touching the user's data.
      * @param context: The Activity/Application context.
+     * @param databaseName: String, the name of the database file.
+     * @return a new SQLDatabaseHelper.
+     */
+    @VisibleForTesting
+    public static SQLDatabaseHelper newInstance(Context context, String databaseName) {
+        return new SQLDatabaseHelper(context.getApplicationContext(), databaseName);
+    }
+
+    /**
+     * Constructor for the SQLDatabaseHelper.
+     * @param context: The Application context.
+     * @param databaseName: String, the name of the database file.
      */
-    public SQLDatabaseHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    private SQLDatabaseHelper(Context context, String databaseName) {
+        super(context, databaseName, null, DATABASE_VERSION);
+        setWriteAheadLoggingEnabled(true);
+        mCacheGovernor = CacheGovernor.getInstance(context);
+        mCacheGovernor.register(FOG_TILES_TABLE_NAME, CacheGovernor.PRIORITY_LOW, mFogTileCache);
     }
 
     /**
-     * Create the Table in the SQLite database.
+     * Create the Tables in the SQLite database.
      * @param sqLiteDatabase: The SQLite database.
      */
     @Override
     public void onCreate(SQLiteDatabase sqLiteDatabase) {
-        sqLiteDatabase.execSQL(CREATE_TABLE);
+        // Each month's tables are created when the first location of the month is stored.
+        sqLiteDatabase.execSQL(CREATE_PARTITIONS_TABLE);
+        sqLiteDatabase.execSQL(CREATE_VISIT_CELLS_TABLE);
+        sqLiteDatabase.execSQL(CREATE_COMPACTIONS_TABLE);
+        sqLiteDatabase.execSQL(CREATE_COVERAGE_TILES_TABLE);
+        sqLiteDatabase.execSQL(CREATE_COVERAGE_CHECKPOINTS_TABLE);
+        sqLiteDatabase.execSQL(CREATE_FOG_TILES_TABLE);
+        sqLiteDatabase.execSQL(CREATE_FOG_PYRAMID_PENDING_TABLE);
     }
 
     /**
-     * Update the SQLite database.
+     * Update the SQLite database, keeping the stored locations.
      * @param sqLiteDatabase: The SQLite database.
      * @param i: int representing the old version number.
      * @param i1: int representing the new version number.
      */
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int i, int i1) {
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
-        this.onCreate(sqLiteDatabase);
+        if (i < 2) {
+            // Version 2 adds the Segments table, built from the locations recorded so far.
+            createSegmentsTable(sqLiteDatabase, SEGMENTS_TABLE_NAME);
+            backfillSegments(sqLiteDatabase);
+        }
+        if (i < 3) {
+            // Version 3 adds the heatmap's visit counters, counted from the stored locations.
+            sqLiteDatabase.execSQL(CREATE_VISIT_CELLS_TABLE);
+            backfillVisitCells(sqLiteDatabase);
+        }
+        if (i < 4) {
+            // Version 4 splits the Locations and Segments tables into monthly partitions.
+            partitionTables(sqLiteDatabase);
+        }
+        if (i < 5) {
+            // Version 5 records which partitions have been compacted.
+            sqLiteDatabase.execSQL(CREATE_COMPACTIONS_TABLE);
+        }
+        if (i < 6) {
+            // Version 6 adds the explored area, built from the stored segments.
+            sqLiteDatabase.execSQL(CREATE_COVERAGE_TILES_TABLE);
+            backfillCoverageTiles(sqLiteDatabase);
+        }
+        if (i < 7) {
+            // Version 7 adds weekly checkpoints of the explored area, built from the segments.
+            sqLiteDatabase.execSQL(CREATE_COVERAGE_CHECKPOINTS_TABLE);
+            rebuildCoverageCheckpoints(sqLiteDatabase);
+        }
+        if (i < 8) {
+            // Version 8 adds the fog pyramid, downsampled from the coverage tiles.
+            sqLiteDatabase.execSQL(CREATE_FOG_TILES_TABLE);
+        }
+        if (i < 9) {
+            // Version 9 keeps fog pyramid pixels 0 or 255 only where a block is untouched or
+            // fully explored, so it can be searched for unexplored areas.
+            rebuildFogPyramid(sqLiteDatabase);
+        }
+        if (i < 10) {
+            // Version 10 queues the coverage tiles changed by new fixes for the fog pyramid.
+            sqLiteDatabase.execSQL(CREATE_FOG_PYRAMID_PENDING_TABLE);
+        }
+    }
+
+    /**
+     * Register a listener to be told about every segment written to the database.
+     * @param listener: The OnSegmentsAddedListener to add.
+     */
+    public void addOnSegmentsAddedListener(OnSegmentsAddedListener listener) {
+        mListeners.add(listener);
+    }
+
+    /**
+     * Unregister a listener added with addOnSegmentsAddedListener.
+     * @param listener: The OnSegmentsAddedListener to remove.
+     */
+    public void removeOnSegmentsAddedListener(OnSegmentsAddedListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Register a listener to be told about every heatmap cell visit written to the database.
+     * @param listener: The OnVisitCellsUpdatedListener to add.
+     */
+    public void addOnVisitCellsUpdatedListener(OnVisitCellsUpdatedListener listener) {
+        mVisitListeners.add(listener);
+    }
+
+    /**
+     * Unregister a listener added with addOnVisitCellsUpdatedListener.
+     * @param listener: The OnVisitCellsUpdatedListener to remove.
+     */
+    public void removeOnVisitCellsUpdatedListener(OnVisitCellsUpdatedListener listener) {
+        mVisitListeners.remove(listener);
+    }
+
+    /**
+     * Register a listener to be told when a partition's segments are replaced.
+     * @param listener: The OnTrackRewrittenListener to add.
+     */
+    public void addOnTrackRewrittenListener(OnTrackRewrittenListener listener) {
+        mRewriteListeners.add(listener);
+    }
+
+    /**
+     * Unregister a listener added with addOnTrackRewrittenListener.
+     * @param listener: The OnTrackRewrittenListener to remove.
+     */
+    public void removeOnTrackRewrittenListener(OnTrackRewrittenListener listener) {
+        mRewriteListeners.remove(listener);
+    }
+
+    /**
+     * Open the database on the writer thread and prepare it for the first location, so that
+     * neither the upgrade nor the first queries run on the UI thread during startup.
+     */
+    public void warmUp() {
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mWriteLock) {
+                    seedIngestion(getWritableDatabase());
+                    getReplacePartitionStatement();
+                    getUpdateVisitCellStatement();
+                    getInsertVisitCellStatement();
+                    getReplaceCoverageTileStatement();
+                    getReplaceCoverageCheckpointStatement();
+                    getReplaceFogTileStatement();
+                    getInsertFogPyramidPendingStatement();
+                }
+            }
+        });
+    }
+
+    /**
+     * Queue a LocationObject to be added to the database on the writer thread.
+     * @param locationObject: A LocationObject representing a visited LatLng position and the time
+     *      it was visited.
+     */
+    public void enqueueLocation(final LocationObject locationObject) {
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                addLocation(locationObject);
+            }
+        });
     }
 
     /**
-     * Add a LocationObject record to the database, storing a location point.
+     * Add a LocationObject record to the database, storing a location point and the segments
+     * joining it to the previous point, and updating the visit counters of the cells visited and
+     * the explored area.
+     *
+     * The location and segments are stored in the partition of the month the location was
+     * recorded in, which is created if this is the month's first location. Older partitions are
+     * sealed when a new one is created.
+     *
+     * The connection is kept open between calls; it is owned by the helper for the lifetime of
+     * the application.
+     *
      * @param locationObject: A LocationObject representing a visited LatLng position and the time
      *      it was visited.
+     * @return the stored LocationObject, carrying the ID assigned by the database.
+     */
+    public LocationObject addLocation(LocationObject locationObject) {
+        LocationObject storedLocation;
+        List<SegmentObject> storedSegments = new ArrayList<>();
+        List<VisitEvent> visitEvents;
+
+        synchronized (mWriteLock) {
+            SQLiteDatabase sqLiteDatabase = this.getWritableDatabase();
+            seedIngestion(sqLiteDatabase);
+
+            int partitionKey = Partition.getKey(locationObject.getDatetime());
+            Partition partition = findPartition(partitionKey);
+            boolean newPartition = partition == null;
+            Set<CoverageTile> changedTiles = new LinkedHashSet<>();
+
+            sqLiteDatabase.beginTransactionNonExclusive();
+            try {
+                if (newPartition) {
+                    partition = Partition.empty(partitionKey);
+                    createPartitionTables(sqLiteDatabase, partition.getTableSuffix());
+                }
+
+                // IDs are allocated here rather than by each partition's table, so they stay
+                // unique and in recording order across partitions.
+                SQLiteStatement insertStatement = getInsertStatement(partition);
+                insertStatement.clearBindings();
+                insertStatement.bindLong(1, mLastLocationId + 1);
+                insertStatement.bindLong(2, locationObject.getDatetime());
+                insertStatement.bindDouble(3, locationObject.getLatitude());
+                insertStatement.bindDouble(4, locationObject.getLongitude());
+                long id = insertStatement.executeInsert();
+
+                storedLocation = new LocationObject((int) id, locationObject.getDatetime(),
+                        locationObject.getLatitude(), locationObject.getLongitude());
+                partition = partition.withLocation(storedLocation);
+
+                for (SegmentObject segmentObject : mSegmentBuilder.addLocation(storedLocation)) {
+                    SegmentObject storedSegment = insertSegment(getInsertSegmentStatement(partition),
+                            segmentObject.withId(mLastSegmentId + storedSegments.size() + 1));
+                    storedSegments.add(storedSegment);
+                    partition = partition.withSegment(storedSegment);
+                    changedTiles.addAll(mExploredRegion.addSegment(storedSegment));
+                }
+                // The live tiles hold everything up to this location, so they are also the
+                // checkpoints for the end of its week so far.
+                int week = CheckpointWeeks.getWeek(storedLocation.getDatetime());
+                for (CoverageTile coverageTile : changedTiles) {
+                    writeCoverageTile(getReplaceCoverageTileStatement(), coverageTile);
+                    writeCoverageCheckpoint(getReplaceCoverageCheckpointStatement(), week,
+                            coverageTile);
+                    writeFogPyramidPending(getInsertFogPyramidPendingStatement(), coverageTile);
+                }
+                mExploredRegion.trimTiles();
+
+                visitEvents = mVisitCounter.addLocation(storedLocation);
+                for (VisitEvent visitEvent : visitEvents) {
+                    applyVisitEvent(getUpdateVisitCellStatement(), getInsertVisitCellStatement(),
+                            visitEvent);
+                }
+
+                writePartition(getReplacePartitionStatement(), partition);
+                sqLiteDatabase.setTransactionSuccessful();
+            } finally {
+                sqLiteDatabase.endTransaction();
+            }
+
+            mLastLocationId = partition.getMaxLocationId();
+            mLastSegmentId = Math.max(mLastSegmentId, partition.getMaxSegmentId());
+            putPartition(partition);
+            queueFogPyramidUpdate(changedTiles);
+
+            if (newPartition) {
+                sealPartitionsBefore(sqLiteDatabase, partitionKey);
+            }
+        }
+
+        if (!storedSegments.isEmpty()) {
+            for (OnSegmentsAddedListener listener : mListeners) {
+                listener.onSegmentsAdded(storedSegments);
+            }
+        }
+        for (OnVisitCellsUpdatedListener listener : mVisitListeners) {
+            listener.onVisitCellsUpdated(visitEvents);
+        }
+        return storedLocation;
+    }
+
+    /**
+     * Store a batch of fixes merged from other devices' histories, with the segments and visits
+     * already built from each device's own fixes, in one transaction.
+     *
+     * Each fix and segment is stored in the partition of the month it was recorded in, which may
+     * be long sealed. The months written to are recorded as compacted: their fixes now interleave
+     * several devices, and compaction would rebuild them as one track. The live ExploredRegion is
+     * reloaded afterwards, since the merge has changed tiles it may hold. Call finishMerge once
+     * every batch has been stored.
+     *
+     * @param locationObjects: List of the LocationObjects to store, in time order.
+     * @param segmentObjects: List of the SegmentObjects joining the fixes to the previous fixes of
+     *      their own devices.
+     * @param visitEvents: List of the VisitEvents of the fixes.
+     */
+    public void addMergedLocations(List<LocationObject> locationObjects,
+                                   List<SegmentObject> segmentObjects,
+                                   List<VisitEvent> visitEvents) {
+        List<SegmentObject> storedSegments = new ArrayList<>(segmentObjects.size());
+
+        synchronized (mWriteLock) {
+            SQLiteDatabase sqLiteDatabase = this.getWritableDatabase();
+            seedIngestion(sqLiteDatabase);
+
+            Map<Integer, Partition> partitions = new TreeMap<>();
+            long lastLocationId = mLastLocationId;
+            long lastSegmentId = mLastSegmentId;
+
+            sqLiteDatabase.beginTransactionNonExclusive();
+            try {
+                for (LocationObject locationObject : locationObjects) {
+                    Partition partition = getMergedPartition(sqLiteDatabase, partitions,
+                            Partition.getKey(locationObject.getDatetime()));
+                    SQLiteStatement insertStatement = getInsertStatement(partition);
+                    insertStatement.clearBindings();
+                    insertStatement.bindLong(1, ++lastLocationId);
+                    insertStatement.bindLong(2, locationObject.getDatetime());
+                    insertStatement.bindDouble(3, locationObject.getLatitude());
+                    insertStatement.bindDouble(4, locationObject.getLongitude());
+                    insertStatement.executeInsert();
+                    partitions.put(partition.getKey(), partition.withLocation(new LocationObject(
+                            (int) lastLocationId, locationObject.getDatetime(),
+                            locationObject.getLatitude(), locationObject.getLongitude())));
+                }
+
+                ExploredRegion exploredRegion = createExploredRegion(sqLiteDatabase);
+                Set<CoverageTile> changedTiles = new LinkedHashSet<>();
+                for (SegmentObject segmentObject : segmentObjects) {
+                    Partition partition = getMergedPartition(sqLiteDatabase, partitions,
+                            Partition.getKey(segmentObject.getEndDatetime()));
+                    SegmentObject storedSegment = insertSegment(
+                            getInsertSegmentStatement(partition),
+                            segmentObject.withId(++lastSegmentId));
+                    storedSegments.add(storedSegment);
+                    partitions.put(partition.getKey(), partition.withSegment(storedSegment));
+                    changedTiles.addAll(exploredRegion.addSegment(storedSegment));
+                }
+                for (CoverageTile coverageTile : changedTiles) {
+                    writeCoverageTile(getReplaceCoverageTileStatement(), coverageTile);
+                }
+                updateFogPyramid(sqLiteDatabase, getReplaceFogTileStatement(), changedTiles,
+                        null);
+
+                for (VisitEvent visitEvent : visitEvents) {
+                    applyVisitEvent(getUpdateVisitCellStatement(), getInsertVisitCellStatement(),
+                            visitEvent);
+                }
+
+                SQLiteStatement insertMergedStatement =
+                        sqLiteDatabase.compileStatement(INSERT_MERGED_PARTITION);
+                for (Partition partition : partitions.values()) {
+                    writePartition(getReplacePartitionStatement(), partition);
+                    insertMergedStatement.bindLong(1, partition.getKey());
+                    insertMergedStatement.bindLong(2, System.currentTimeMillis());
+                    insertMergedStatement.executeInsert();
+                }
+                insertMergedStatement.close();
+
+                sqLiteDatabase.setTransactionSuccessful();
+            } finally {
+                sqLiteDatabase.endTransaction();
+            }
+
+            mLastLocationId = lastLocationId;
+            mLastSegmentId = lastSegmentId;
+            for (Partition partition : partitions.values()) {
+                putPartition(partition);
+            }
+            mExploredRegion = createExploredRegion(sqLiteDatabase);
+            mFogTileCache.evictAll();
+        }
+
+        if (!storedSegments.isEmpty()) {
+            for (OnSegmentsAddedListener listener : mListeners) {
+                listener.onSegmentsAdded(storedSegments);
+            }
+        }
+        for (OnVisitCellsUpdatedListener listener : mVisitListeners) {
+            listener.onVisitCellsUpdated(visitEvents);
+        }
+    }
+
+    /**
+     * Find the partition a merged row is stored in, creating it if nothing has been stored for
+     * its month. Must be called inside the merge transaction.
+     * @param partitions: Map of the partitions written by the batch so far, by key.
+     */
+    private Partition getMergedPartition(SQLiteDatabase sqLiteDatabase,
+                                         Map<Integer, Partition> partitions, int partitionKey) {
+        Partition partition = partitions.get(partitionKey);
+        if (partition == null) {
+            partition = findPartition(partitionKey);
+        }
+        if (partition == null) {
+            partition = Partition.empty(partitionKey);
+            createPartitionTables(sqLiteDatabase, partition.getTableSuffix());
+        }
+        partitions.put(partitionKey, partition);
+        return partition;
+    }
+
+    /**
+     * Finish a merge once every batch has been stored: seal the past months it created, rebuild
+     * the explored area's weekly checkpoints, which the merged segments have changed from their
+     * weeks onwards, and tell the OnTrackRewrittenListeners about the months merged into.
+     * @param partitionKeys: Set of the months the merged fixes and segments were stored in.
+     */
+    public void finishMerge(Set<Integer> partitionKeys) {
+        List<Partition> mergedPartitions = new ArrayList<>();
+
+        synchronized (mWriteLock) {
+            SQLiteDatabase sqLiteDatabase = this.getWritableDatabase();
+            seedIngestion(sqLiteDatabase);
+            sealPartitionsBefore(sqLiteDatabase, Partition.getKey(System.currentTimeMillis()));
+
+            sqLiteDatabase.beginTransactionNonExclusive();
+            try {
+                rebuildCoverageCheckpoints(sqLiteDatabase);
+                sqLiteDatabase.setTransactionSuccessful();
+            } finally {
+                sqLiteDatabase.endTransaction();
+            }
+
+            for (int partitionKey : partitionKeys) {
+                Partition partition = findPartition(partitionKey);
+                if (partition != null) {
+                    mergedPartitions.add(partition);
+                }
+            }
+        }
+
+        for (Partition partition : mergedPartitions) {
+            for (OnTrackRewrittenListener listener : mRewriteListeners) {
+                listener.onTrackRewritten(partition);
+            }
+        }
+    }
+
+    /**
+     * Continue the track from the last location stored before the app restarted. Does nothing
+     * after the first call. Must be called while holding the write lock.
+     * @param sqLiteDatabase: The writable database.
+     */
+    private void seedIngestion(SQLiteDatabase sqLiteDatabase) {
+        if (!mIngestionSeeded) {
+            for (Partition partition : getPartitions()) {
+                mLastLocationId = Math.max(mLastLocationId, partition.getMaxLocationId());
+                mLastSegmentId = Math.max(mLastSegmentId, partition.getMaxSegmentId());
+            }
+
+            LocationObject lastLocation = getLastLocation(sqLiteDatabase);
+            mSegmentBuilder.setPreviousLocation(lastLocation);
+            mVisitCounter.setPreviousLocation(lastLocation);
+            mExploredRegion = createExploredRegion(sqLiteDatabase);
+            queueFogPyramidUpdate(readFogPyramidPending(sqLiteDatabase));
+            mIngestionSeeded = true;
+
+            // Seal the months which ended while the app was not running.
+            sealPartitionsBefore(sqLiteDatabase, Partition.getKey(System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Get the compiled location insert statement for a partition, compiling it against the
+     * writable database when the partition changes. Must be called while holding the write lock.
+     * @param partition: The Partition the location is stored in.
+     * @return the cached SQLiteStatement used to insert a location.
+     */
+    private SQLiteStatement getInsertStatement(Partition partition) {
+        preparePartitionStatements(partition);
+        return mInsertStatement;
+    }
+
+    /**
+     * Get the compiled segment insert statement for a partition, compiling it when the partition
+     * changes. Must be called while holding the write lock.
+     * @param partition: The Partition the segment is stored in.
+     * @return the cached SQLiteStatement used to insert a segment.
      */
-    public void addLocation(LocationObject locationObject) {
+    private SQLiteStatement getInsertSegmentStatement(Partition partition) {
+        preparePartitionStatements(partition);
+        return mInsertSegmentStatement;
+    }
+
+    private void preparePartitionStatements(Partition partition) {
+        if (mInsertStatement != null && mStatementsPartitionKey == partition.getKey()) {
+            return;
+        }
+
+        closePartitionStatements();
         SQLiteDatabase sqLiteDatabase = this.getWritableDatabase();
-        ContentValues contentValues = new ContentValues();
-        contentValues.put(KEY_DATETIME, locationObject.getDatetime());
-        contentValues.put(KEY_LATITUDE, locationObject.getLatitude());
-        contentValues.put(KEY_LONGITUDE, locationObject.getLongitude());
+        mInsertStatement = sqLiteDatabase.compileStatement(
+                getInsertLocationSql(TABLE_NAME + partition.getTableSuffix()));
+        mInsertSegmentStatement = sqLiteDatabase.compileStatement(
+                getInsertSegmentSql(SEGMENTS_TABLE_NAME + partition.getTableSuffix()));
+        mStatementsPartitionKey = partition.getKey();
+    }
 
-        sqLiteDatabase.insert(TABLE_NAME, null, contentValues);
-        sqLiteDatabase.close();
+    private void closePartitionStatements() {
+        if (mInsertStatement != null) {
+            mInsertStatement.close();
+            mInsertSegmentStatement.close();
+            mInsertStatement = null;
+            mInsertSegmentStatement = null;
+        }
     }
 
     /**
-     * Get a list of LocationObjects that were visited within the current map view's bounds.
-     * @param mapBounds: The LatLngBounds of the map view (Containing the NE and SW LatLng points).
-     * @return a List of LocationObjects within the map view's bounds.
+     * Get the compiled partition summary statement, compiling it on first use. Must be called
+     * while holding the write lock.
      */
-    public List<LocationObject> getLocationsInWindow(LatLngBounds mapBounds) {
-        LatLng northeast = mapBounds.northeast;
-        LatLng southwest = mapBounds.southwest;
+    private SQLiteStatement getReplacePartitionStatement() {
+        if (mReplacePartitionStatement == null) {
+            mReplacePartitionStatement =
+                    this.getWritableDatabase().compileStatement(REPLACE_PARTITION);
+        }
+        return mReplacePartitionStatement;
+    }
 
-        double minLatitude = southwest.latitude;
-        double maxLatitude = northeast.latitude;
-        double minLongitude = southwest.longitude;
-        double maxLongitude = northeast.longitude;
+    /**
+     * Get the compiled visit cell update statement, compiling it on first use. Must be called
+     * while holding the write lock.
+     */
+    private SQLiteStatement getUpdateVisitCellStatement() {
+        if (mUpdateVisitCellStatement == null) {
+            mUpdateVisitCellStatement =
+                    this.getWritableDatabase().compileStatement(UPDATE_VISIT_CELL);
+        }
+        return mUpdateVisitCellStatement;
+    }
 
-        List<LocationObject> locationObjects = new ArrayList<>();
+    /**
+     * Get the compiled visit cell insert statement, compiling it on first use. Must be called
+     * while holding the write lock.
+     */
+    private SQLiteStatement getInsertVisitCellStatement() {
+        if (mInsertVisitCellStatement == null) {
+            mInsertVisitCellStatement =
+                    this.getWritableDatabase().compileStatement(INSERT_VISIT_CELL);
+        }
+        return mInsertVisitCellStatement;
+    }
 
-        String selectionString = KEY_LATITUDE + GTE + "?" + AND + KEY_LATITUDE + LTE + "?" + AND +
-                KEY_LONGITUDE + GTE + "?" + AND + KEY_LONGITUDE + LTE + "?";
+    /**
+     * Get the compiled coverage tile statement, compiling it on first use. Must be called while
+     * holding the write lock.
+     */
+    private SQLiteStatement getReplaceCoverageTileStatement() {
+        if (mReplaceCoverageTileStatement == null) {
+            mReplaceCoverageTileStatement =
+                    this.getWritableDatabase().compileStatement(REPLACE_COVERAGE_TILE);
+        }
+        return mReplaceCoverageTileStatement;
+    }
 
-        String[] selectionArgs = {
-                String.valueOf(minLatitude),
-                String.valueOf(maxLatitude),
-                String.valueOf(minLongitude),
-                String.valueOf(maxLongitude),
-        };
+    /**
+     * Get the compiled coverage checkpoint statement, compiling it on first use. Must be called
+     * while holding the write lock.
+     */
+    private SQLiteStatement getReplaceCoverageCheckpointStatement() {
+        if (mReplaceCoverageCheckpointStatement == null) {
+            mReplaceCoverageCheckpointStatement =
+                    this.getWritableDatabase().compileStatement(REPLACE_COVERAGE_CHECKPOINT);
+        }
+        return mReplaceCoverageCheckpointStatement;
+    }
 
-        String orderBy = KEY_DATETIME + " ASC";
+    /**
+     * Get the compiled fog tile statement, compiling it on first use. Must be called while
+     * holding the write lock.
+     */
+    private SQLiteStatement getReplaceFogTileStatement() {
+        if (mReplaceFogTileStatement == null) {
+            mReplaceFogTileStatement =
+                    this.getWritableDatabase().compileStatement(REPLACE_FOG_TILE);
+        }
+        return mReplaceFogTileStatement;
+    }
 
-        // Query the database.
-        SQLiteDatabase sqLiteDatabase = this.getReadableDatabase();
-        Cursor cursor = sqLiteDatabase.query(
-                TABLE_NAME,
-                COLUMNS,
-                selectionString,
-                selectionArgs,
-                null,
-                null,
-                orderBy,
-                null
-        );
+    /**
+     * Get the compiled fog pyramid queue statement, compiling it on first use. Must be called
+     * while holding the write lock.
+     */
+    private SQLiteStatement getInsertFogPyramidPendingStatement() {
+        if (mInsertFogPyramidPendingStatement == null) {
+            mInsertFogPyramidPendingStatement =
+                    this.getWritableDatabase().compileStatement(INSERT_FOG_PYRAMID_PENDING);
+        }
+        return mInsertFogPyramidPendingStatement;
+    }
+
+    /**
+     * Add a visit to a cell's counters, creating the cell on its first visit.
+     */
+    private static void applyVisitEvent(SQLiteStatement updateStatement,
+                                        SQLiteStatement insertStatement, VisitEvent visitEvent) {
+        updateStatement.clearBindings();
+        updateStatement.bindLong(1, visitEvent.getDatetime());
+        updateStatement.bindLong(2, visitEvent.getDwellMillis());
+        updateStatement.bindLong(3, visitEvent.getDatetime());
+        updateStatement.bindLong(4, visitEvent.getCellX());
+        updateStatement.bindLong(5, visitEvent.getCellY());
+        if (updateStatement.executeUpdateDelete() == 0) {
+            insertStatement.clearBindings();
+            insertStatement.bindLong(1, visitEvent.getCellX());
+            insertStatement.bindLong(2, visitEvent.getCellY());
+            insertStatement.bindLong(3, visitEvent.getDwellMillis());
+            insertStatement.bindLong(4, visitEvent.getDatetime());
+            insertStatement.executeInsert();
+        }
+    }
 
+    /**
+     * Insert a segment using a compiled segment insert statement.
+     * @param segmentObject: The SegmentObject to store, carrying its ID, or 0 to let the table
+     *      assign one. Sealed segments tables have no rowid, so they must be given the ID.
+     * @return the stored SegmentObject, carrying its ID.
+     */
+    private static SegmentObject insertSegment(SQLiteStatement insertSegmentStatement,
+                                               SegmentObject segmentObject) {
+        insertSegmentStatement.clearBindings();
+        boolean hasId = segmentObject.getId() > 0;
+        if (hasId) {
+            insertSegmentStatement.bindLong(1, segmentObject.getId());
+        } else {
+            insertSegmentStatement.bindNull(1);
+        }
+        insertSegmentStatement.bindLong(2, segmentObject.getStartDatetime());
+        insertSegmentStatement.bindLong(3, segmentObject.getEndDatetime());
+        insertSegmentStatement.bindDouble(4, segmentObject.getStartLatitude());
+        insertSegmentStatement.bindDouble(5, segmentObject.getStartLongitude());
+        insertSegmentStatement.bindDouble(6, segmentObject.getEndLatitude());
+        insertSegmentStatement.bindDouble(7, segmentObject.getEndLongitude());
+        insertSegmentStatement.bindDouble(8, segmentObject.getMinLatitude());
+        insertSegmentStatement.bindDouble(9, segmentObject.getMaxLatitude());
+        insertSegmentStatement.bindDouble(10, segmentObject.getMinLongitude());
+        insertSegmentStatement.bindDouble(11, segmentObject.getMaxLongitude());
+        long rowId = insertSegmentStatement.executeInsert();
+        // executeInsert returns the connection's last rowid, which a WITHOUT ROWID table does not
+        // set, so the bound ID is the only one to trust.
+        return hasId ? segmentObject : segmentObject.withId(rowId);
+    }
+
+    /**
+     * Build the Segments table from every stored location, used when upgrading from version 1.
+     * @param sqLiteDatabase: The SQLite database, inside the upgrade transaction.
+     */
+    private static void backfillSegments(SQLiteDatabase sqLiteDatabase) {
+        SQLiteStatement insertSegmentStatement =
+                sqLiteDatabase.compileStatement(getInsertSegmentSql(SEGMENTS_TABLE_NAME));
+        SegmentBuilder segmentBuilder = new SegmentBuilder();
+
+        Cursor cursor = sqLiteDatabase.rawQuery(QUERY_ALL_LOCATIONS, null);
         if (cursor != null) {
             if (cursor.moveToFirst()) {
                 do {
-                    // Create a temporary LocationObject and add to the list.
-                    int id = cursor.getInt(cursor.getColumnIndex(KEY_ID));
-                    long datetime = cursor.getLong(cursor.getColumnIndex(KEY_DATETIME));
-                    double latitude = cursor.getDouble(cursor.getColumnIndex(KEY_LATITUDE));
-                    double longitude = cursor.getDouble(cursor.getColumnIndex(KEY_LONGITUDE));
-
-                    LocationObject locationObject = new LocationObject(
-                            id, datetime, latitude, longitude);
-
-                    locationObjects.add(locationObject);
+                    for (SegmentObject segmentObject :
+                            segmentBuilder.addLocation(readLocation(cursor))) {
+                        insertSegment(insertSegmentStatement, segmentObject);
+                    }
                 } while (cursor.moveToNext());
             }
 
             cursor.close();
         }
+        insertSegmentStatement.close();
+    }
 
-        return locationObjects;
+    /**
+     * Count the heatmap visits of every stored location, used when upgrading from version 2.
+     * @param sqLiteDatabase: The SQLite database, inside the upgrade transaction.
+     */
+    private static void backfillVisitCells(SQLiteDatabase sqLiteDatabase) {
+        SQLiteStatement updateStatement = sqLiteDatabase.compileStatement(UPDATE_VISIT_CELL);
+        SQLiteStatement insertStatement = sqLiteDatabase.compileStatement(INSERT_VISIT_CELL);
+        VisitCounter visitCounter = new VisitCounter();
+
+        Cursor cursor = sqLiteDatabase.rawQuery(QUERY_ALL_LOCATIONS, null);
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                do {
+                    for (VisitEvent visitEvent : visitCounter.addLocation(readLocation(cursor))) {
+                        applyVisitEvent(updateStatement, insertStatement, visitEvent);
+                    }
+                } while (cursor.moveToNext());
+            }
+
+            cursor.close();
+        }
+        updateStatement.close();
+        insertStatement.close();
+    }
+
+    /**
+     * Build the explored area from every stored segment, used when upgrading from version 5.
+     * Each partition is merged and written in turn, so only the tiles it touches are held in
+     * memory.
+     * @param sqLiteDatabase: The SQLite database, inside the upgrade transaction.
+     */
+    private static void backfillCoverageTiles(SQLiteDatabase sqLiteDatabase) {
+        SQLiteStatement replaceStatement = sqLiteDatabase.compileStatement(REPLACE_COVERAGE_TILE);
+
+        for (Partition partition : readPartitions(sqLiteDatabase)) {
+            ExploredRegion exploredRegion = createExploredRegion(sqLiteDatabase);
+            Set<CoverageTile> changedTiles = new LinkedHashSet<>();
+
+            Cursor cursor = sqLiteDatabase.rawQuery(
+                    getAllSegmentsSql(SEGMENTS_TABLE_NAME + partition.getTableSuffix()), null);
+            if (cursor != null) {
+                if (cursor.moveToFirst()) {
+                    do {
+                        changedTiles.addAll(exploredRegion.addSegment(new SegmentObject(
+                                cursor.getLong(0),
+                                cursor.getLong(1), cursor.getDouble(2), cursor.getDouble(3),
+                                cursor.getLong(4), cursor.getDouble(5), cursor.getDouble(6))));
+                    } while (cursor.moveToNext());
+                }
+
+                cursor.close();
+            }
+
+            for (CoverageTile coverageTile : changedTiles) {
+                writeCoverageTile(replaceStatement, coverageTile);
+            }
+        }
+        replaceStatement.close();
+    }
+
+    /**
+     * Rebuild the weekly checkpoints of the explored area from every stored segment, in the order
+     * they were travelled. One week is merged at a time, starting from the tiles' previous
+     * checkpoints, so only the tiles it touches are held in memory.
+     * @param sqLiteDatabase: The SQLite database, inside a transaction.
+     */
+    private static void rebuildCoverageCheckpoints(final SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("DELETE FROM " + COVERAGE_CHECKPOINTS_TABLE_NAME);
+        SQLiteStatement replaceStatement =
+                sqLiteDatabase.compileStatement(REPLACE_COVERAGE_CHECKPOINT);
+
+        int week = -1;
+        ExploredRegion exploredRegion = null;
+        Set<CoverageTile> changedTiles = new LinkedHashSet<>();
+
+        for (Partition partition : readPartitions(sqLiteDatabase)) {
+            Cursor cursor = sqLiteDatabase.rawQuery(getAllSegmentsByEndSql(
+                    SEGMENTS_TABLE_NAME + partition.getTableSuffix()), null);
+            if (cursor != null) {
+                if (cursor.moveToFirst()) {
+                    do {
+                        SegmentObject segmentObject = new SegmentObject(
+                                cursor.getLong(0),
+                                cursor.getLong(1), cursor.getDouble(2), cursor.getDouble(3),
+                                cursor.getLong(4), cursor.getDouble(5), cursor.getDouble(6));
+
+                        int segmentWeek = CheckpointWeeks.getWeek(segmentObject.getEndDatetime());
+                        if (exploredRegion == null || segmentWeek != week) {
+                            for (CoverageTile coverageTile : changedTiles) {
+                                writeCoverageCheckpoint(replaceStatement, week, coverageTile);
+                            }
+                            changedTiles.clear();
+
+                            final int previousWeek = segmentWeek - 1;
+                            exploredRegion = new ExploredRegion(
+                                    ExploredRegion.REVEAL_RADIUS_METRES,
+                                    new ExploredRegion.TileLoader() {
+                                        @Override
+                                        public CoverageTile loadTile(int tileX, int tileY) {
+                                            return readCoverageCheckpoint(sqLiteDatabase,
+                                                    tileX, tileY, previousWeek);
+                                        }
+                                    });
+                            week = segmentWeek;
+                        }
+                        changedTiles.addAll(exploredRegion.addSegment(segmentObject));
+                    } while (cursor.moveToNext());
+                }
+
+                cursor.close();
+            }
+        }
+
+        for (CoverageTile coverageTile : changedTiles) {
+            writeCoverageCheckpoint(replaceStatement, week, coverageTile);
+        }
+        replaceStatement.close();
+    }
+
+    private static CoverageTile readCoverageCheckpoint(SQLiteDatabase sqLiteDatabase, int tileX,
+                                                       int tileY, int week) {
+        CoverageTile coverageTile = null;
+        Cursor cursor = sqLiteDatabase.rawQuery(QUERY_COVERAGE_CHECKPOINT, new String[] {
+                String.valueOf(tileX), String.valueOf(tileY), String.valueOf(week)});
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                coverageTile = CoverageTile.fromCompressedBytes(tileX, tileY, cursor.getBlob(0));
+            }
+
+            cursor.close();
+        }
+        return coverageTile;
+    }
+
+    /**
+     * Store a tile as its checkpoint for a week using a compiled REPLACE_COVERAGE_CHECKPOINT
+     * statement.
+     */
+    private static void writeCoverageCheckpoint(SQLiteStatement replaceStatement, int week,
+                                                CoverageTile coverageTile) {
+        replaceStatement.clearBindings();
+        replaceStatement.bindLong(1, coverageTile.getTileX());
+        replaceStatement.bindLong(2, coverageTile.getTileY());
+        replaceStatement.bindLong(3, week);
+        replaceStatement.bindBlob(4, coverageTile.toCompressedBytes());
+        replaceStatement.executeInsert();
+    }
+
+    /**
+     * Create an ExploredRegion which loads its tiles from a database as they are needed, trimmed
+     * to the MAX_LIVE_COVERAGE_TILES used most recently.
+     * @param sqLiteDatabase: The SQLite database the tiles are stored in.
+     */
+    private static ExploredRegion createExploredRegion(final SQLiteDatabase sqLiteDatabase) {
+        return new ExploredRegion(ExploredRegion.REVEAL_RADIUS_METRES,
+                new ExploredRegion.TileLoader() {
+                    @Override
+                    public CoverageTile loadTile(int tileX, int tileY) {
+                        return readCoverageTile(sqLiteDatabase, tileX, tileY);
+                    }
+                }, MAX_LIVE_COVERAGE_TILES);
+    }
+
+    private static CoverageTile readCoverageTile(SQLiteDatabase sqLiteDatabase, int tileX,
+                                                 int tileY) {
+        CoverageTile coverageTile = null;
+        Cursor cursor = sqLiteDatabase.rawQuery(QUERY_COVERAGE_TILE,
+                new String[] {String.valueOf(tileX), String.valueOf(tileY)});
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                coverageTile = CoverageTile.fromBytes(tileX, tileY, cursor.getBlob(0));
+            }
+
+            cursor.close();
+        }
+        return coverageTile;
+    }
+
+    /**
+     * Store a coverage tile using a compiled REPLACE_COVERAGE_TILE statement.
+     */
+    private static void writeCoverageTile(SQLiteStatement replaceStatement,
+                                          CoverageTile coverageTile) {
+        replaceStatement.clearBindings();
+        replaceStatement.bindLong(1, coverageTile.getTileX());
+        replaceStatement.bindLong(2, coverageTile.getTileY());
+        replaceStatement.bindLong(3, coverageTile.getCellCount());
+        replaceStatement.bindBlob(4, coverageTile.toBytes());
+        replaceStatement.executeInsert();
+    }
+
+    /**
+     * Merge changed coverage tiles into the fog pyramid. Each level's changed tiles are
+     * downsampled into the quarter of their parent they cover, so only the tiles above a change
+     * are read and written, and the climb stops at the first level whose pixels come out the
+     * same.
+     * @param sqLiteDatabase: The SQLite database, inside a transaction.
+     * @param replaceStatement: The compiled REPLACE_FOG_TILE statement.
+     * @param changedTiles: Collection of the changed CoverageTiles.
+     * @param fogTileCache: LruCache of the stored pyramid tiles to read through and update, or
+     *      null to read every tile from the database. It must be emptied if the transaction is
+     *      rolled back.
+     */
+    private static void updateFogPyramid(SQLiteDatabase sqLiteDatabase,
+                                         SQLiteStatement replaceStatement,
+                                         Collection<CoverageTile> changedTiles,
+                                         LruCache<TileKey, FogTile> fogTileCache) {
+        List<FogTile> changedFogTiles = new ArrayList<>(changedTiles.size());
+        for (CoverageTile coverageTile : changedTiles) {
+            changedFogTiles.add(FogTile.fromCoverageTile(coverageTile));
+        }
+
+        for (int zoom = CoverageTile.TILE_ZOOM - 1; zoom >= 0 && !changedFogTiles.isEmpty();
+             zoom--) {
+            Map<Long, FogTile> parents = new LinkedHashMap<>();
+            Set<Long> changedParents = new LinkedHashSet<>();
+            for (FogTile child : changedFogTiles) {
+                int parentX = child.getTileX() >> 1;
+                int parentY = child.getTileY() >> 1;
+                long key = CoverageTile.getKey(parentX, parentY);
+                FogTile parent = parents.get(key);
+                if (parent == null) {
+                    TileKey tileKey = new TileKey(zoom, parentX, parentY);
+                    if (fogTileCache != null) {
+                        parent = fogTileCache.get(tileKey);
+                    }
+                    if (parent == null) {
+                        parent = readFogTile(sqLiteDatabase, zoom, parentX, parentY);
+                        if (parent == null) {
+                            parent = new FogTile(zoom, parentX, parentY);
+                        }
+                        if (fogTileCache != null) {
+                            fogTileCache.put(tileKey, parent);
+                        }
+                    }
+                    parents.put(key, parent);
+                }
+                if (parent.putChild(child)) {
+                    changedParents.add(key);
+                }
+            }
+
+            changedFogTiles = new ArrayList<>(changedParents.size());
+            for (long key : changedParents) {
+                FogTile parent = parents.get(key);
+                writeFogTile(replaceStatement, parent);
+                changedFogTiles.add(parent);
+            }
+        }
+    }
+
+    /**
+     * Build the fog pyramid from every stored coverage tile, used when upgrading from version 7.
+     * @param sqLiteDatabase: The SQLite database, inside the upgrade transaction.
+     */
+    private static void rebuildFogPyramid(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("DELETE FROM " + FOG_TILES_TABLE_NAME);
+        SQLiteStatement replaceStatement = sqLiteDatabase.compileStatement(REPLACE_FOG_TILE);
+
+        List<CoverageTile> coverageTiles = new ArrayList<>(FOG_PYRAMID_BATCH_SIZE);
+        Cursor cursor = sqLiteDatabase.rawQuery(QUERY_ALL_COVERAGE_TILES + " ORDER BY " +
+                KEY_TILE_X + ", " + KEY_TILE_Y, null);
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                do {
+                    coverageTiles.add(CoverageTile.fromBytes(cursor.getInt(0), cursor.getInt(1),
+                            cursor.getBlob(2)));
+                    if (coverageTiles.size() == FOG_PYRAMID_BATCH_SIZE) {
+                        updateFogPyramid(sqLiteDatabase, replaceStatement, coverageTiles,
+                                null);
+                        coverageTiles.clear();
+                    }
+                } while (cursor.moveToNext());
+            }
+
+            cursor.close();
+        }
+        updateFogPyramid(sqLiteDatabase, replaceStatement, coverageTiles, null);
+        replaceStatement.close();
+    }
+
+    /**
+     * Queue stored coverage tiles to be merged into the fog pyramid on the writer thread: after
+     * FOG_PYRAMID_DELAY_MS, or straight away once FOG_PYRAMID_BATCH_SIZE tiles are waiting. Must
+     * be called while holding the write lock, once the tiles are in FogPyramidPending.
+     * @param coverageTiles: Collection of the CoverageTiles changed.
+     */
+    private void queueFogPyramidUpdate(Collection<CoverageTile> coverageTiles) {
+        int pendingBefore = mPendingFogTiles.size();
+        for (CoverageTile coverageTile : coverageTiles) {
+            mPendingFogTiles.add(
+                    CoverageTile.getKey(coverageTile.getTileX(), coverageTile.getTileY()));
+        }
+
+        if (pendingBefore < FOG_PYRAMID_BATCH_SIZE &&
+                mPendingFogTiles.size() >= FOG_PYRAMID_BATCH_SIZE) {
+            mWriteExecutor.execute(mUpdateFogPyramidTask);
+            mFogPyramidUpdateQueued = true;
+        } else if (!mFogPyramidUpdateQueued && !mPendingFogTiles.isEmpty()) {
+            mWriteExecutor.schedule(mUpdateFogPyramidTask, FOG_PYRAMID_DELAY_MS,
+                    TimeUnit.MILLISECONDS);
+            mFogPyramidUpdateQueued = true;
+        }
+    }
+
+    /**
+     * Merge the coverage tiles queued by queueFogPyramidUpdate into the fog pyramid, in one
+     * transaction, so tiles changed by several fixes are climbed once and their parents shared.
+     * Must be called while holding the write lock.
+     * @param sqLiteDatabase: The writable database.
+     */
+    private void updatePendingFogPyramid(SQLiteDatabase sqLiteDatabase) {
+        if (mPendingFogTiles.isEmpty()) {
+            return;
+        }
+
+        List<CoverageTile> coverageTiles = new ArrayList<>(mPendingFogTiles.size());
+        for (long key : mPendingFogTiles) {
+            // Unpacked as CoverageTile.getKey packs them.
+            int tileX = (int) (key >> 32);
+            int tileY = (int) key;
+            CoverageTile coverageTile = mExploredRegion.getTile(tileX, tileY);
+            if (coverageTile == null) {
+                coverageTile = readCoverageTile(sqLiteDatabase, tileX, tileY);
+            }
+            if (coverageTile != null) {
+                coverageTiles.add(coverageTile);
+            }
+        }
+
+        boolean updated = false;
+        sqLiteDatabase.beginTransactionNonExclusive();
+        try {
+            updateFogPyramid(sqLiteDatabase, getReplaceFogTileStatement(), coverageTiles,
+                    mFogTileCache);
+            sqLiteDatabase.execSQL("DELETE FROM " + FOG_PYRAMID_PENDING_TABLE_NAME);
+            sqLiteDatabase.setTransactionSuccessful();
+            updated = true;
+        } finally {
+            sqLiteDatabase.endTransaction();
+            if (!updated) {
+                // The cached tiles were changed along with the rolled back rows.
+                mFogTileCache.evictAll();
+            }
+        }
+        mPendingFogTiles.clear();
+        mCacheGovernor.onCacheGrown();
+    }
+
+    /**
+     * Read the coverage tiles left in FogPyramidPending when the app last stopped.
+     * @param sqLiteDatabase: The SQLite database.
+     * @return a List of the CoverageTiles, which hold only their position.
+     */
+    private static List<CoverageTile> readFogPyramidPending(SQLiteDatabase sqLiteDatabase) {
+        List<CoverageTile> coverageTiles = new ArrayList<>();
+        Cursor cursor = sqLiteDatabase.rawQuery(QUERY_FOG_PYRAMID_PENDING, null);
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                do {
+                    coverageTiles.add(new CoverageTile(cursor.getInt(0), cursor.getInt(1)));
+                } while (cursor.moveToNext());
+            }
+
+            cursor.close();
+        }
+        return coverageTiles;
+    }
+
+    /**
+     * Queue a coverage tile for the fog pyramid using a compiled INSERT_FOG_PYRAMID_PENDING
+     * statement.
+     */
+    private static void writeFogPyramidPending(SQLiteStatement insertStatement,
+                                               CoverageTile coverageTile) {
+        insertStatement.clearBindings();
+        insertStatement.bindLong(1, coverageTile.getTileX());
+        insertStatement.bindLong(2, coverageTile.getTileY());
+        insertStatement.executeInsert();
+    }
+
+    private static FogTile readFogTile(SQLiteDatabase sqLiteDatabase, int zoom, int tileX,
+                                       int tileY) {
+        FogTile fogTile = null;
+        Cursor cursor = sqLiteDatabase.rawQuery(QUERY_FOG_TILE, new String[] {
+                String.valueOf(zoom), String.valueOf(tileX), String.valueOf(tileY)});
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                fogTile = FogTile.fromCompressedBytes(zoom, tileX, tileY, cursor.getBlob(0));
+            }
+
+            cursor.close();
+        }
+        return fogTile;
+    }
+
+    /**
+     * Store a fog tile using a compiled REPLACE_FOG_TILE statement.
+     */
+    private static void writeFogTile(SQLiteStatement replaceStatement, FogTile fogTile) {
+        replaceStatement.clearBindings();
+        replaceStatement.bindLong(1, fogTile.getZoom());
+        replaceStatement.bindLong(2, fogTile.getTileX());
+        replaceStatement.bindLong(3, fogTile.getTileY());
+        replaceStatement.bindBlob(4, fogTile.toCompressedBytes());
+        replaceStatement.executeInsert();
+    }
+
+    /**
+     * Get the most recently stored location, from the latest partition holding any.
+     * @return a LocationObject, or null if no locations have been stored.
+     */
+    private LocationObject getLastLocation(SQLiteDatabase sqLiteDatabase) {
+        Partition lastPartition = null;
+        for (Partition partition : getPartitions()) {
+            if (partition.getLocationCount() > 0 && (lastPartition == null ||
+                    partition.getMaxLocationId() > lastPartition.getMaxLocationId())) {
+                lastPartition = partition;
+            }
+        }
+        return lastPartition == null ? null : readLastLocation(sqLiteDatabase, lastPartition);
+    }
+
+    /**
+     * Get the last location stored in the months before a partition, which its first segment may
+     * join on to.
+     * @return a LocationObject, or null if no locations were stored before the partition.
+     */
+    private LocationObject getLastLocationBefore(SQLiteDatabase sqLiteDatabase,
+                                                 Partition partition) {
+        Partition previousPartition = null;
+        for (Partition candidate : getPartitions()) {
+            if (candidate.getKey() < partition.getKey() && candidate.getLocationCount() > 0) {
+                previousPartition = candidate;
+            }
+        }
+        return previousPartition == null ? null :
+                readLastLocation(sqLiteDatabase, previousPartition);
+    }
+
+    /**
+     * Read the location with the largest ID in a partition.
+     * @return a LocationObject, or null if the partition holds no locations.
+     */
+    private static LocationObject readLastLocation(SQLiteDatabase sqLiteDatabase,
+                                                   Partition lastPartition) {
+        LocationObject locationObject = null;
+        Cursor cursor = sqLiteDatabase.rawQuery("SELECT " + LOCATION_COLUMNS + " FROM " +
+                TABLE_NAME + lastPartition.getTableSuffix() +
+                " ORDER BY " + KEY_ID + " DESC LIMIT 1", null);
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                locationObject = readLocation(cursor);
+            }
+
+            cursor.close();
+        }
+        return locationObject;
+    }
+
+    /**
+     * Read a LocationObject from the current row of a cursor with the columns id, datetime,
+     * latitude, longitude.
+     */
+    private static LocationObject readLocation(Cursor cursor) {
+        int id = cursor.getInt(0);
+        long datetime = cursor.getLong(1);
+        double latitude = cursor.getDouble(2);
+        double longitude = cursor.getDouble(3);
+        return new LocationObject(id, datetime, latitude, longitude);
+    }
+
+    /**
+     * Get a list of SegmentObjects whose bounding boxes overlap the current map view's bounds.
+     * @param mapBounds: The LatLngBounds of the map view (Containing the NE and SW LatLng points),
+     *      including any margin needed for the width of the drawn line.
+     * @return a List of SegmentObjects overlapping the map view's bounds, in the order they were
+     *      recorded.
+     */
+    public List<SegmentObject> getSegmentsInWindow(LatLngBounds mapBounds) {
+        return getSegmentsInWindow(mapBounds, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Get a list of SegmentObjects whose bounding boxes overlap the map view's bounds and which
+     * were travelled at some point in a time range. Only the partitions overlapping both are read.
+     * @param mapBounds: The LatLngBounds of the map view, including any margin needed for the
+     *      width of the drawn line.
+     * @param startDatetime: long, time in milliseconds at the start of the range, inclusive.
+     * @param endDatetime: long, time in milliseconds at the end of the range, inclusive.
+     * @return a List of SegmentObjects matching both, in the order they were recorded.
+     */
+    public List<SegmentObject> getSegmentsInWindow(LatLngBounds mapBounds, long startDatetime,
+                                                   long endDatetime) {
+        LatLng northeast = mapBounds.northeast;
+        LatLng southwest = mapBounds.southwest;
+
+        double minLatitude = southwest.latitude;
+        double maxLatitude = northeast.latitude;
+        double minLongitude = southwest.longitude;
+        double maxLongitude = northeast.longitude;
+
+        List<SegmentObject> segmentObjects = new ArrayList<>();
+
+        String[] selectionArgs = {
+                String.valueOf(minLatitude - SegmentBuilder.MAX_SEGMENT_SPAN_DEGREES),
+                String.valueOf(maxLatitude),
+                String.valueOf(minLatitude),
+                String.valueOf(maxLongitude),
+                String.valueOf(minLongitude),
+                String.valueOf(startDatetime),
+                String.valueOf(endDatetime),
+        };
+
+        // Query the database. Outside of a transaction this runs on one of the pool's reader
+        // connections, so in WAL mode it reads the last committed snapshot without blocking on
+        // the writer thread.
+        SQLiteDatabase sqLiteDatabase = this.getReadableDatabase();
+        int partitionsRead = 0;
+
+        for (Partition partition : getPartitions()) {
+            if (!partition.overlaps(minLatitude, maxLatitude, minLongitude, maxLongitude) ||
+                    !partition.overlapsTime(startDatetime, endDatetime)) {
+                continue;
+            }
+            partitionsRead++;
+
+            Cursor cursor = sqLiteDatabase.rawQuery(
+                    getSegmentsInWindowSql(SEGMENTS_TABLE_NAME + partition.getTableSuffix()),
+                    selectionArgs);
+
+            if (cursor != null) {
+                if (cursor.moveToFirst()) {
+                    // The column order is fixed by the query.
+                    do {
+                        // Create a temporary SegmentObject and add to the list.
+                        SegmentObject segmentObject = new SegmentObject(
+                                cursor.getLong(0),
+                                cursor.getLong(1), cursor.getDouble(2), cursor.getDouble(3),
+                                cursor.getLong(4), cursor.getDouble(5), cursor.getDouble(6));
+
+                        segmentObjects.add(segmentObject);
+                    } while (cursor.moveToNext());
+                }
+
+                cursor.close();
+            }
+        }
+
+        if (partitionsRead > 1) {
+            // Each partition is in recorded order, but a segment ending in one month may have
+            // been merged into the month of a later one.
+            Collections.sort(segmentObjects, SegmentObject.RECORDED_ORDER);
+        }
+        return segmentObjects;
+    }
+
+    /**
+     * Get the locations recorded in a time range. Only the partitions overlapping it are read.
+     * @param startDatetime: long, time in milliseconds at the start of the range, inclusive.
+     * @param endDatetime: long, time in milliseconds at the end of the range, inclusive.
+     * @return a List of LocationObjects in the order they were recorded.
+     */
+    public List<LocationObject> getLocationsInTimeRange(long startDatetime, long endDatetime) {
+        List<LocationObject> locationObjects = new ArrayList<>();
+
+        String[] selectionArgs = {
+                String.valueOf(startDatetime),
+                String.valueOf(endDatetime),
+        };
+
+        SQLiteDatabase sqLiteDatabase = this.getReadableDatabase();
+        for (Partition partition : getPartitions()) {
+            if (!partition.overlapsTime(startDatetime, endDatetime)) {
+                continue;
+            }
+
+            Cursor cursor = sqLiteDatabase.rawQuery(
+                    getLocationsInTimeRangeSql(TABLE_NAME + partition.getTableSuffix()),
+                    selectionArgs);
+
+            if (cursor != null) {
+                if (cursor.moveToFirst()) {
+                    do {
+                        locationObjects.add(readLocation(cursor));
+                    } while (cursor.moveToNext());
+                }
+
+                cursor.close();
+            }
+        }
+
+        return locationObjects;
+    }
+
+    /**
+     * Get the summaries of the stored partitions, loading them on first use.
+     * @return an unmodifiable List of Partitions ordered by month.
+     */
+    public List<Partition> getPartitions() {
+        List<Partition> partitions = mPartitions;
+        if (partitions == null) {
+            synchronized (mPartitionsLock) {
+                if (mPartitions == null) {
+                    mPartitions = Collections.unmodifiableList(
+                            readPartitions(this.getReadableDatabase()));
+                }
+                partitions = mPartitions;
+            }
+        }
+        return partitions;
+    }
+
+    /**
+     * Find the summary of a month's partition.
+     * @return the Partition, or null if nothing has been stored for the month.
+     */
+    private Partition findPartition(int partitionKey) {
+        for (Partition partition : getPartitions()) {
+            if (partition.getKey() == partitionKey) {
+                return partition;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Publish a new or updated partition summary to readers. Called once it has been committed.
+     */
+    private void putPartition(Partition partition) {
+        synchronized (mPartitionsLock) {
+            List<Partition> partitions = new ArrayList<>(getPartitions());
+            int index = 0;
+            while (index < partitions.size() && partitions.get(index).getKey() < partition.getKey()) {
+                index++;
+            }
+            if (index < partitions.size() && partitions.get(index).getKey() == partition.getKey()) {
+                partitions.set(index, partition);
+            } else {
+                partitions.add(index, partition);
+            }
+            mPartitions = Collections.unmodifiableList(partitions);
+        }
+    }
+
+    /**
+     * Seal every unsealed partition of a month before the given one. Must be called while
+     * holding the write lock, outside of a transaction.
+     * @param sqLiteDatabase: The writable database.
+     * @param partitionKey: int, the month as yyyyMM. Earlier months are sealed.
+     */
+    private void sealPartitionsBefore(SQLiteDatabase sqLiteDatabase, int partitionKey) {
+        for (Partition partition : getPartitions()) {
+            if (partition.getKey() < partitionKey && !partition.isSealed()) {
+                sealPartition(sqLiteDatabase, partition);
+            }
+        }
+    }
+
+    /**
+     * Seal a finished month. Its segments are rebuilt into a table clustered on min_latitude, so
+     * a viewport query reads a contiguous run of rows and the separate bounding box index is no
+     * longer needed, and both tables are analysed for the query planner. The rebuild happens in
+     * one transaction, so readers see either the old table or the new one.
+     */
+    private void sealPartition(SQLiteDatabase sqLiteDatabase, Partition partition) {
+        String locationsTable = TABLE_NAME + partition.getTableSuffix();
+        String segmentsTable = SEGMENTS_TABLE_NAME + partition.getTableSuffix();
+        String sealedSegmentsTable = segmentsTable + SEALED_TABLE_SUFFIX;
+
+        if (mStatementsPartitionKey == partition.getKey()) {
+            // The cached insert statements refer to the table being replaced.
+            closePartitionStatements();
+        }
+
+        Partition sealedPartition = partition.asSealed();
+        sqLiteDatabase.beginTransactionNonExclusive();
+        try {
+            sqLiteDatabase.execSQL("CREATE TABLE " + sealedSegmentsTable + "( " +
+                    KEY_ID + " INTEGER, " + SEGMENT_COLUMN_DEFINITIONS + ", " +
+                    "PRIMARY KEY (" + KEY_MIN_LATITUDE + ", " + KEY_ID + ") ) WITHOUT ROWID");
+            sqLiteDatabase.execSQL("INSERT INTO " + sealedSegmentsTable + " (" + SEGMENT_COLUMNS +
+                    ") SELECT " + SEGMENT_COLUMNS + " FROM " + segmentsTable);
+            sqLiteDatabase.execSQL("DROP TABLE " + segmentsTable);
+            sqLiteDatabase.execSQL("ALTER TABLE " + sealedSegmentsTable + " RENAME TO " +
+                    segmentsTable);
+            sqLiteDatabase.execSQL("ANALYZE " + segmentsTable);
+            sqLiteDatabase.execSQL("ANALYZE " + locationsTable);
+            writePartition(getReplacePartitionStatement(), sealedPartition);
+            sqLiteDatabase.setTransactionSuccessful();
+        } finally {
+            sqLiteDatabase.endTransaction();
+        }
+        putPartition(sealedPartition);
+    }
+
+    /**
+     * Get the partitions ready to be compacted: the sealed months not compacted yet.
+     * @return a List of Partitions ordered by month.
+     */
+    public List<Partition> getPartitionsToCompact() {
+        Set<Integer> compactedKeys = new HashSet<>();
+        Cursor cursor = this.getReadableDatabase().rawQuery(QUERY_COMPACTED_PARTITIONS, null);
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                do {
+                    compactedKeys.add(cursor.getInt(0));
+                } while (cursor.moveToNext());
+            }
+
+            cursor.close();
+        }
+
+        List<Partition> partitions = new ArrayList<>();
+        for (Partition partition : getPartitions()) {
+            if (partition.isSealed() && !compactedKeys.contains(partition.getKey())) {
+                partitions.add(partition);
+            }
+        }
+        return partitions;
+    }
+
+    /**
+     * Compact a sealed partition. Each run of joined fixes is simplified (see TrackSimplifier),
+     * the fixes dropped are deleted, and the segments are rebuilt between the kept fixes, so the
+     * drawn track stays within the tolerance of the one recorded. The rebuilt segments take the
+     * last of the partition's segment IDs, keeping their place in recording order.
+     *
+     * The partition is compacted in one transaction and recorded in the Compactions table, so it
+     * is either compacted completely or not at all. Partitions whose segments were not built from
+     * their own fixes alone are recorded without being changed.
+     *
+     * @param partitionKey: int, the month to compact as yyyyMM.
+     * @param toleranceMetres: double, the furthest a dropped fix may be from the kept track.
+     * @param compactionResult: The CompactionResult the removed rows are added to.
+     */
+    public void compactPartition(int partitionKey, double toleranceMetres,
+                                 CompactionResult compactionResult) {
+        Partition compactedPartition;
+
+        synchronized (mWriteLock) {
+            SQLiteDatabase sqLiteDatabase = this.getWritableDatabase();
+            seedIngestion(sqLiteDatabase);
+
+            Partition partition = findPartition(partitionKey);
+            if (partition == null || !partition.isSealed()) {
+                return;
+            }
+            String locationsTable = TABLE_NAME + partition.getTableSuffix();
+            String segmentsTable = SEGMENTS_TABLE_NAME + partition.getTableSuffix();
+
+            // Rebuild the track from the fixes as it was recorded, continuing from the last fix of
+            // the months before, simplifying each run as it ends.
+            List<Long> segmentIds = readIds(sqLiteDatabase, segmentsTable);
+            List<SegmentObject> segmentObjects = new ArrayList<>();
+            List<Integer> removedIds = new ArrayList<>();
+            List<LocationObject> run = new ArrayList<>();
+            int recordedSegmentCount = 0;
+
+            SegmentBuilder segmentBuilder = new SegmentBuilder();
+            segmentBuilder.setPreviousLocation(getLastLocationBefore(sqLiteDatabase, partition));
+            Cursor cursor = sqLiteDatabase.rawQuery("SELECT " + LOCATION_COLUMNS + " FROM " +
+                    locationsTable + " ORDER BY " + KEY_ID + " ASC", null);
+            if (cursor != null) {
+                if (cursor.moveToFirst()) {
+                    do {
+                        LocationObject locationObject = readLocation(cursor);
+                        LocationObject previousLocation = segmentBuilder.getPreviousLocation();
+                        int joiningSegmentCount = segmentBuilder.addLocation(locationObject).size();
+                        recordedSegmentCount += joiningSegmentCount;
+
+                        if (joiningSegmentCount == 0) {
+                            simplifyRun(run, toleranceMetres, segmentObjects, removedIds);
+                            run.clear();
+                        } else if (run.isEmpty()) {
+                            run.add(previousLocation);
+                        }
+                        run.add(locationObject);
+                    } while (cursor.moveToNext());
+                }
+
+                cursor.close();
+            }
+            simplifyRun(run, toleranceMetres, segmentObjects, removedIds);
+
+            boolean rewrite = recordedSegmentCount == segmentIds.size() &&
+                    segmentObjects.size() <= segmentIds.size() && !removedIds.isEmpty();
+            long segmentsRemoved = rewrite ? segmentIds.size() - segmentObjects.size() : 0;
+            long locationsRemoved = rewrite ? removedIds.size() : 0;
+            compactedPartition = partition;
+
+            sqLiteDatabase.beginTransactionNonExclusive();
+            try {
+                if (rewrite) {
+                    SQLiteStatement deleteLocationStatement = sqLiteDatabase.compileStatement(
+                            "DELETE FROM " + locationsTable + " WHERE " + KEY_ID + " = ?");
+                    for (int id : removedIds) {
+                        deleteLocationStatement.bindLong(1, id);
+                        deleteLocationStatement.executeUpdateDelete();
+                    }
+                    deleteLocationStatement.close();
+
+                    sqLiteDatabase.execSQL("DELETE FROM " + segmentsTable);
+                    SQLiteStatement insertSegmentStatement =
+                            sqLiteDatabase.compileStatement(getInsertSegmentSql(segmentsTable));
+                    int firstId = segmentIds.size() - segmentObjects.size();
+                    for (int i = 0; i < segmentObjects.size(); i++) {
+                        insertSegment(insertSegmentStatement,
+                                segmentObjects.get(i).withId(segmentIds.get(firstId + i)));
+                    }
+                    insertSegmentStatement.close();
+
+                    // The segments table was refilled by the inserts, but the deletes leave the
+                    // locations index sparse.
+                    sqLiteDatabase.execSQL("REINDEX " + locationsTable);
+                    sqLiteDatabase.execSQL("ANALYZE " + locationsTable);
+                    sqLiteDatabase.execSQL("ANALYZE " + segmentsTable);
+
+                    compactedPartition = summarisePartition(sqLiteDatabase, partitionKey).asSealed();
+                    writePartition(getReplacePartitionStatement(), compactedPartition);
+                }
+
+                SQLiteStatement insertCompactionStatement =
+                        sqLiteDatabase.compileStatement(INSERT_COMPACTION);
+                insertCompactionStatement.bindLong(1, partitionKey);
+                insertCompactionStatement.bindLong(2, System.currentTimeMillis());
+                insertCompactionStatement.bindLong(3, locationsRemoved);
+                insertCompactionStatement.bindLong(4, segmentsRemoved);
+                insertCompactionStatement.executeInsert();
+                insertCompactionStatement.close();
+
+                sqLiteDatabase.setTransactionSuccessful();
+            } finally {
+                sqLiteDatabase.endTransaction();
+            }
+
+            compactionResult.addPartition(locationsRemoved, segmentsRemoved);
+            if (!rewrite) {
+                return;
+            }
+            putPartition(compactedPartition);
+        }
+
+        for (OnTrackRewrittenListener listener : mRewriteListeners) {
+            listener.onTrackRewritten(compactedPartition);
+        }
+    }
+
+    /**
+     * Simplify one run of joined fixes, adding the segments between the kept fixes and the IDs of
+     * the dropped fixes to the lists.
+     */
+    private static void simplifyRun(List<LocationObject> run, double toleranceMetres,
+                                    List<SegmentObject> segmentObjects, List<Integer> removedIds) {
+        if (run.size() < 2) {
+            return;
+        }
+
+        List<LocationObject> keptLocations = TrackSimplifier.simplify(run, toleranceMetres);
+        for (int i = 1; i < keptLocations.size(); i++) {
+            segmentObjects.addAll(SegmentBuilder.split(keptLocations.get(i - 1),
+                    keptLocations.get(i)));
+        }
+
+        // The kept fixes are a subsequence of the run. Its first fix, which may belong to the
+        // month before, is always kept.
+        int kept = 0;
+        for (LocationObject locationObject : run) {
+            if (kept < keptLocations.size() && keptLocations.get(kept) == locationObject) {
+                kept++;
+            } else {
+                removedIds.add(locationObject.getId());
+            }
+        }
+    }
+
+    /**
+     * Return the space freed by deleted rows to the file system by rebuilding the database file.
+     * Must be called off the UI thread; writes wait until it finishes.
+     * @return the number of bytes the database shrank by.
+     */
+    public long reclaimSpace() {
+        synchronized (mWriteLock) {
+            SQLiteDatabase sqLiteDatabase = this.getWritableDatabase();
+            long sizeBefore = getDatabaseSize(sqLiteDatabase);
+
+            sqLiteDatabase.execSQL("VACUUM");
+            // In WAL mode the rebuilt pages are written to the log; copy them back so the main
+            // file is truncated and the log emptied.
+            Cursor cursor = sqLiteDatabase.rawQuery("PRAGMA wal_checkpoint(TRUNCATE)", null);
+            if (cursor != null) {
+                cursor.moveToFirst();
+                cursor.close();
+            }
+
+            return Math.max(0, sizeBefore - getDatabaseSize(sqLiteDatabase));
+        }
+    }
+
+    /**
+     * Get the space in the database file left unused by deleted rows, which reclaimSpace would
+     * return to the file system.
+     * @return the number of free bytes.
+     */
+    public long getReclaimableBytes() {
+        SQLiteDatabase sqLiteDatabase = this.getReadableDatabase();
+        SQLiteStatement freelistStatement =
+                sqLiteDatabase.compileStatement("PRAGMA freelist_count");
+        long freePages = freelistStatement.simpleQueryForLong();
+        freelistStatement.close();
+        return freePages * sqLiteDatabase.getPageSize();
+    }
+
+    /**
+     * Get the size of the database in bytes, from its page count.
+     */
+    private static long getDatabaseSize(SQLiteDatabase sqLiteDatabase) {
+        SQLiteStatement pageCountStatement = sqLiteDatabase.compileStatement("PRAGMA page_count");
+        long pageCount = pageCountStatement.simpleQueryForLong();
+        pageCountStatement.close();
+        return pageCount * sqLiteDatabase.getPageSize();
+    }
+
+    /**
+     * Read the IDs of every row of a table in ascending order.
+     */
+    private static List<Long> readIds(SQLiteDatabase sqLiteDatabase, String tableName) {
+        List<Long> ids = new ArrayList<>();
+        Cursor cursor = sqLiteDatabase.rawQuery("SELECT " + KEY_ID + " FROM " + tableName +
+                " ORDER BY " + KEY_ID + " ASC", null);
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                do {
+                    ids.add(cursor.getLong(0));
+                } while (cursor.moveToNext());
+            }
+
+            cursor.close();
+        }
+        return ids;
+    }
+
+    /**
+     * Split the unpartitioned Locations and Segments tables into monthly partitions, keeping
+     * their IDs, used when upgrading from version 3. The partitions are sealed on first write.
+     * @param sqLiteDatabase: The SQLite database, inside the upgrade transaction.
+     */
+    private static void partitionTables(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL(CREATE_PARTITIONS_TABLE);
+
+        List<Integer> partitionKeys = new ArrayList<>();
+        Cursor cursor = sqLiteDatabase.rawQuery("SELECT " + getMonthSql(KEY_DATETIME) +
+                " FROM " + TABLE_NAME + " UNION SELECT " + getMonthSql(KEY_END_DATETIME) +
+                " FROM " + SEGMENTS_TABLE_NAME, null);
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                do {
+                    partitionKeys.add(cursor.getInt(0));
+                } while (cursor.moveToNext());
+            }
+
+            cursor.close();
+        }
+
+        SQLiteStatement replacePartitionStatement =
+                sqLiteDatabase.compileStatement(REPLACE_PARTITION);
+        for (int partitionKey : partitionKeys) {
+            Partition partition = Partition.empty(partitionKey);
+            String locationsTable = TABLE_NAME + partition.getTableSuffix();
+            String segmentsTable = SEGMENTS_TABLE_NAME + partition.getTableSuffix();
+            createPartitionTables(sqLiteDatabase, partition.getTableSuffix());
+
+            // Version 1 stored the datetime as TEXT.
+            sqLiteDatabase.execSQL("INSERT INTO " + locationsTable + " (" + LOCATION_COLUMNS +
+                    ") SELECT " + KEY_ID + ", CAST(" + KEY_DATETIME + " AS INTEGER), " +
+                    KEY_LATITUDE + ", " + KEY_LONGITUDE + " FROM " + TABLE_NAME +
+                    " WHERE " + getMonthSql(KEY_DATETIME) + " = " + partitionKey);
+            sqLiteDatabase.execSQL("INSERT INTO " + segmentsTable + " (" + SEGMENT_COLUMNS +
+                    ") SELECT " + SEGMENT_COLUMNS + " FROM " + SEGMENTS_TABLE_NAME +
+                    " WHERE " + getMonthSql(KEY_END_DATETIME) + " = " + partitionKey);
+
+            writePartition(replacePartitionStatement,
+                    summarisePartition(sqLiteDatabase, partitionKey));
+        }
+        replacePartitionStatement.close();
+
+        sqLiteDatabase.execSQL("DROP TABLE " + SEGMENTS_TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE " + TABLE_NAME);
+    }
+
+    /**
+     * Compute the summary of a partition from the rows in its tables.
+     */
+    private static Partition summarisePartition(SQLiteDatabase sqLiteDatabase, int partitionKey) {
+        String suffix = Partition.empty(partitionKey).getTableSuffix();
+        Partition locations = summariseRows(sqLiteDatabase, partitionKey, "SELECT COUNT(*), " +
+                "MAX(" + KEY_ID + "), MIN(" + KEY_DATETIME + "), MAX(" + KEY_DATETIME + "), " +
+                "MIN(" + KEY_LATITUDE + "), MAX(" + KEY_LATITUDE + "), " +
+                "MIN(" + KEY_LONGITUDE + "), MAX(" + KEY_LONGITUDE + ") " +
+                "FROM " + TABLE_NAME + suffix, false);
+        Partition segments = summariseRows(sqLiteDatabase, partitionKey, "SELECT COUNT(*), " +
+                "MAX(" + KEY_ID + "), MIN(" + KEY_START_DATETIME + "), MAX(" + KEY_END_DATETIME +
+                "), MIN(" + KEY_MIN_LATITUDE + "), MAX(" + KEY_MAX_LATITUDE + "), " +
+                "MIN(" + KEY_MIN_LONGITUDE + "), MAX(" + KEY_MAX_LONGITUDE + ") " +
+                "FROM " + SEGMENTS_TABLE_NAME + suffix, true);
+        return locations.union(segments);
+    }
+
+    /**
+     * Summarise the rows of one table of a partition.
+     * @param query: String, an aggregate query returning the row count, the largest ID, then the
+     *      ranges of time, latitude and longitude.
+     * @param segments: boolean, true if the rows are segments rather than locations.
+     */
+    private static Partition summariseRows(SQLiteDatabase sqLiteDatabase, int partitionKey,
+                                           String query, boolean segments) {
+        Partition partition = Partition.empty(partitionKey);
+        Cursor cursor = sqLiteDatabase.rawQuery(query, null);
+        if (cursor != null) {
+            // Aggregates over no rows are NULL, so the empty summary is kept.
+            if (cursor.moveToFirst() && cursor.getInt(0) > 0) {
+                int count = cursor.getInt(0);
+                long maxId = cursor.getLong(1);
+                partition = new Partition(partitionKey, cursor.getLong(2), cursor.getLong(3),
+                        cursor.getDouble(4), cursor.getDouble(5),
+                        cursor.getDouble(6), cursor.getDouble(7),
+                        segments ? 0 : count, segments ? count : 0,
+                        segments ? 0 : maxId, segments ? maxId : 0, false);
+            }
+
+            cursor.close();
+        }
+        return partition;
+    }
+
+    /**
+     * Read the summaries of every partition.
+     * @return a List of Partitions ordered by month.
+     */
+    private static List<Partition> readPartitions(SQLiteDatabase sqLiteDatabase) {
+        List<Partition> partitions = new ArrayList<>();
+        Cursor cursor = sqLiteDatabase.rawQuery(QUERY_PARTITIONS, null);
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                do {
+                    partitions.add(new Partition(cursor.getInt(0),
+                            cursor.getLong(1), cursor.getLong(2),
+                            cursor.getDouble(3), cursor.getDouble(4),
+                            cursor.getDouble(5), cursor.getDouble(6),
+                            cursor.getInt(7), cursor.getInt(8),
+                            cursor.getLong(9), cursor.getLong(10), cursor.getInt(11) != 0));
+                } while (cursor.moveToNext());
+            }
+
+            cursor.close();
+        }
+        return partitions;
+    }
+
+    /**
+     * Store a partition summary using a compiled REPLACE_PARTITION statement.
+     */
+    private static void writePartition(SQLiteStatement replacePartitionStatement,
+                                       Partition partition) {
+        replacePartitionStatement.clearBindings();
+        replacePartitionStatement.bindLong(1, partition.getKey());
+        replacePartitionStatement.bindLong(2, partition.getStartDatetime());
+        replacePartitionStatement.bindLong(3, partition.getEndDatetime());
+        replacePartitionStatement.bindDouble(4, partition.getMinLatitude());
+        replacePartitionStatement.bindDouble(5, partition.getMaxLatitude());
+        replacePartitionStatement.bindDouble(6, partition.getMinLongitude());
+        replacePartitionStatement.bindDouble(7, partition.getMaxLongitude());
+        replacePartitionStatement.bindLong(8, partition.getLocationCount());
+        replacePartitionStatement.bindLong(9, partition.getSegmentCount());
+        replacePartitionStatement.bindLong(10, partition.getMaxLocationId());
+        replacePartitionStatement.bindLong(11, partition.getMaxSegmentId());
+        replacePartitionStatement.bindLong(12, partition.isSealed() ? 1 : 0);
+        replacePartitionStatement.execute();
+    }
+
+    /**
+     * Create the Locations and Segments tables of a new partition.
+     * @param suffix: String, the partition's table suffix.
+     */
+    private static void createPartitionTables(SQLiteDatabase sqLiteDatabase, String suffix) {
+        String locationsTable = TABLE_NAME + suffix;
+        sqLiteDatabase.execSQL("CREATE TABLE " + locationsTable + "( " +
+                KEY_ID + " INTEGER PRIMARY KEY, " + KEY_DATETIME + " INTEGER, " +
+                KEY_LATITUDE + " REAL, " + KEY_LONGITUDE + " REAL )");
+        sqLiteDatabase.execSQL("CREATE INDEX " + locationsTable + LOCATIONS_INDEX_SUFFIX +
+                " ON " + locationsTable + " (" + KEY_DATETIME + ")");
+        createSegmentsTable(sqLiteDatabase, SEGMENTS_TABLE_NAME + suffix);
+    }
+
+    /**
+     * Create a Segments table and its bounding box index.
+     * @param tableName: String, the name of the table.
+     */
+    private static void createSegmentsTable(SQLiteDatabase sqLiteDatabase, String tableName) {
+        sqLiteDatabase.execSQL("CREATE TABLE " + tableName + "( " +
+                KEY_ID + " INTEGER PRIMARY KEY, " + SEGMENT_COLUMN_DEFINITIONS + " )");
+        sqLiteDatabase.execSQL("CREATE INDEX " + tableName + SEGMENTS_INDEX_SUFFIX +
+                " ON " + tableName + " (" + KEY_MIN_LATITUDE + ", " + KEY_MAX_LATITUDE +
+                ", " + KEY_MIN_LONGITUDE + ", " + KEY_MAX_LONGITUDE + ")");
+    }
+
+    private static String getInsertLocationSql(String tableName) {
+        return "INSERT INTO " + tableName + " (" + LOCATION_COLUMNS + ") VALUES (?, ?, ?, ?)";
+    }
+
+    private static String getInsertSegmentSql(String tableName) {
+        return "INSERT INTO " + tableName + " (" + SEGMENT_COLUMNS + ") VALUES " +
+                "(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    }
+
+    /**
+     * Get the viewport query for a Segments table.
+     *
+     * Segments overlap the window when their bounding boxes intersect it. Segments are never
+     * taller than MAX_SEGMENT_SPAN_DEGREES, so the first argument bounds min_latitude from below
+     * and the index on (min_latitude, ...), or a sealed table's primary key, only has to scan a
+     * narrow band of rows. The last two arguments are the time range.
+     * The SQL string is the same on every call for a table, so the compiled statement is reused
+     * from each connection's prepared statement cache rather than being parsed on every camera
+     * move.
+     */
+    private static String getSegmentsInWindowSql(String tableName) {
+        return "SELECT " + KEY_ID + ", " +
+                KEY_START_DATETIME + ", " + KEY_START_LATITUDE + ", " + KEY_START_LONGITUDE + ", " +
+                KEY_END_DATETIME + ", " + KEY_END_LATITUDE + ", " + KEY_END_LONGITUDE +
+                " FROM " + tableName +
+                " WHERE " + KEY_MIN_LATITUDE + GTE + "?" + AND + KEY_MIN_LATITUDE + LTE + "?" + AND +
+                KEY_MAX_LATITUDE + GTE + "?" + AND +
+                KEY_MIN_LONGITUDE + LTE + "?" + AND + KEY_MAX_LONGITUDE + GTE + "?" + AND +
+                KEY_END_DATETIME + GTE + "?" + AND + KEY_START_DATETIME + LTE + "?" +
+                " ORDER BY " + KEY_END_DATETIME + " ASC, " + KEY_ID + " ASC";
+    }
+
+    private static String getAllSegmentsSql(String tableName) {
+        return "SELECT " + KEY_ID + ", " +
+                KEY_START_DATETIME + ", " + KEY_START_LATITUDE + ", " + KEY_START_LONGITUDE + ", " +
+                KEY_END_DATETIME + ", " + KEY_END_LATITUDE + ", " + KEY_END_LONGITUDE +
+                " FROM " + tableName + " ORDER BY " + KEY_ID + " ASC";
+    }
+
+    private static String getAllSegmentsByEndSql(String tableName) {
+        return "SELECT " + KEY_ID + ", " +
+                KEY_START_DATETIME + ", " + KEY_START_LATITUDE + ", " + KEY_START_LONGITUDE + ", " +
+                KEY_END_DATETIME + ", " + KEY_END_LATITUDE + ", " + KEY_END_LONGITUDE +
+                " FROM " + tableName + " ORDER BY " + KEY_END_DATETIME + " ASC";
+    }
+
+    private static String getLocationsInTimeRangeSql(String tableName) {
+        return "SELECT " + LOCATION_COLUMNS + " FROM " + tableName +
+                " WHERE " + KEY_DATETIME + GTE + "?" + AND + KEY_DATETIME + LTE + "?" +
+                " ORDER BY " + KEY_ID + " ASC";
+    }
+
+    /**
+     * Get an expression for the month (UTC) of a datetime column as yyyyMM, matching
+     * Partition.getKey.
+     */
+    private static String getMonthSql(String column) {
+        return "CAST(strftime('%Y%m', " + column + " / 1000, 'unixepoch') AS INTEGER)";
+    }
+
+    /**
+     * Get the visit counters of the heatmap cells in a range of cells, inclusive.
+     * @return a List of VisitCells in the range.
+     */
+    public List<VisitCell> getVisitCellsInRange(int minCellX, int minCellY,
+                                                int maxCellX, int maxCellY) {
+        List<VisitCell> visitCells = new ArrayList<>();
+
+        String[] selectionArgs = {
+                String.valueOf(minCellX),
+                String.valueOf(maxCellX),
+                String.valueOf(minCellY),
+                String.valueOf(maxCellY),
+        };
+
+        SQLiteDatabase sqLiteDatabase = this.getReadableDatabase();
+        Cursor cursor = sqLiteDatabase.rawQuery(QUERY_VISIT_CELLS_IN_RANGE, selectionArgs);
+
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                do {
+                    visitCells.add(new VisitCell(cursor.getInt(0), cursor.getInt(1),
+                            cursor.getInt(2), cursor.getLong(3), cursor.getLong(4)));
+                } while (cursor.moveToNext());
+            }
+
+            cursor.close();
+        }
+
+        return visitCells;
+    }
+
+    /**
+     * Read the whole explored area, e.g. to export it.
+     * @return an ExploredRegion holding every stored tile.
+     */
+    public ExploredRegion getExploredRegion() {
+        ExploredRegion exploredRegion = new ExploredRegion(ExploredRegion.REVEAL_RADIUS_METRES,
+                null);
+
+        SQLiteDatabase sqLiteDatabase = this.getReadableDatabase();
+        Cursor cursor = sqLiteDatabase.rawQuery(QUERY_ALL_COVERAGE_TILES, null);
+
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                do {
+                    exploredRegion.putTile(CoverageTile.fromBytes(cursor.getInt(0),
+                            cursor.getInt(1), cursor.getBlob(2)));
+                } while (cursor.moveToNext());
+            }
+
+            cursor.close();
+        }
+
+        return exploredRegion;
+    }
+
+    /**
+     * Get the explored area from the tiles' cell counts, without reading their cells.
+     * @return the area in square metres.
+     */
+    public double getExploredArea() {
+        double area = 0;
+
+        SQLiteDatabase sqLiteDatabase = this.getReadableDatabase();
+        Cursor cursor = sqLiteDatabase.rawQuery(QUERY_COVERAGE_CELL_COUNTS, null);
+
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                do {
+                    area += CoverageTile.getArea(cursor.getInt(0), cursor.getInt(1));
+                } while (cursor.moveToNext());
+            }
+
+            cursor.close();
+        }
+
+        return area;
+    }
+
+    /**
+     * Read a tile of the fog pyramid. Tiles at CoverageTile.TILE_ZOOM are drawn from the coverage
+     * tile itself.
+     * @param zoom: int, the zoom level, from 0 to CoverageTile.TILE_ZOOM.
+     * @param tileX: int, the tile column at the zoom level.
+     * @param tileY: int, the tile row at the zoom level.
+     * @return the FogTile, or null if none of it has been explored.
+     */
+    public FogTile getFogTile(int zoom, int tileX, int tileY) {
+        SQLiteDatabase sqLiteDatabase = this.getReadableDatabase();
+        if (zoom == CoverageTile.TILE_ZOOM) {
+            CoverageTile coverageTile = readCoverageTile(sqLiteDatabase, tileX, tileY);
+            return coverageTile == null ? null : FogTile.fromCoverageTile(coverageTile);
+        }
+        return readFogTile(sqLiteDatabase, zoom, tileX, tileY);
+    }
+
+    /**
+     * Read the checkpoint of a tile, as it was explored by the end of a week.
+     * @param tileX: int, the tile column at CoverageTile.TILE_ZOOM.
+     * @param tileY: int, the tile row at CoverageTile.TILE_ZOOM.
+     * @param week: int, the week, as numbered by CheckpointWeeks.
+     * @return the CoverageTile at the end of the week, or null if none of it had been explored.
+     */
+    public CoverageTile getCoverageCheckpoint(int tileX, int tileY, int week) {
+        return readCoverageCheckpoint(this.getReadableDatabase(), tileX, tileY, week);
     }
 }
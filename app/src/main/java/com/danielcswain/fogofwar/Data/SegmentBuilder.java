@@ -0,0 +1,103 @@
+package com.danielcswain.fogofwar.Data;
+
+import com.danielcswain.fogofwar.Geometry.GeoMath;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Turns a stream of location fixes into track segments.
+ *
+ * Consecutive fixes are joined when it was possible to travel between them in the time between
+ * they were recorded. Long segments are split so that no stored segment spans more than
+ * MAX_SEGMENT_SPAN_DEGREES, which bounds the index range a viewport query has to scan.
+ */
+public class SegmentBuilder {
+
+    // The limit on travel speed is 31 m/s, or roughly 110 km/h.
+    public static final double MAX_SPEED_METRES_PER_SECOND = 31;
+
+    // Roughly 1.1 km of latitude.
+    public static final double MAX_SEGMENT_SPAN_DEGREES = 0.01;
+
+    private LocationObject mPreviousLocation;
+
+    /**
+     * Set the last fix seen, e.g. the newest stored location when the app restarts.
+     * @param previousLocation: A LocationObject, or null to start a new track.
+     */
+    public void setPreviousLocation(LocationObject previousLocation) {
+        mPreviousLocation = previousLocation;
+    }
+
+    public LocationObject getPreviousLocation() {
+        return mPreviousLocation;
+    }
+
+    /**
+     * Add the next fix and get the segments joining it to the previous fix.
+     * @param nextLocation: A LocationObject, the newest fix.
+     * @return a List of SegmentObjects, empty if the fixes could not be joined.
+     */
+    public List<SegmentObject> addLocation(LocationObject nextLocation) {
+        LocationObject previousLocation = mPreviousLocation;
+        mPreviousLocation = nextLocation;
+
+        if (previousLocation == null ||
+                !isPossibleToTravelBetweenPoints(previousLocation, nextLocation)) {
+            return Collections.emptyList();
+        }
+        return split(previousLocation, nextLocation);
+    }
+
+    /**
+     * Determine if it is possible to travel between the two points in the time between they were
+     * recorded.
+     *
+     * @param originalLocation: A LocationObject, the original or previous location.
+     * @param nextLocation: A LocationObject, the current or next location.
+     * @return a boolean, True if it is possible, else false.
+     */
+    public static boolean isPossibleToTravelBetweenPoints(
+            LocationObject originalLocation, LocationObject nextLocation) {
+
+        long startTime = originalLocation.getDatetime();
+        long endTime = nextLocation.getDatetime();
+
+        double distanceBetweenPoints = GeoMath.distanceMetres(
+                originalLocation.getLatitude(), originalLocation.getLongitude(),
+                nextLocation.getLatitude(), nextLocation.getLongitude());
+
+        double timeInSeconds = (endTime - startTime) / 1000.0;
+
+        return distanceBetweenPoints != 0.0 &&
+                MAX_SPEED_METRES_PER_SECOND >= distanceBetweenPoints / timeInSeconds;
+    }
+
+    /**
+     * Split the line between two fixes into equal pieces no larger than MAX_SEGMENT_SPAN_DEGREES
+     * on either axis.
+     */
+    static List<SegmentObject> split(LocationObject start, LocationObject end) {
+        double deltaLatitude = end.getLatitude() - start.getLatitude();
+        double deltaLongitude = end.getLongitude() - start.getLongitude();
+        long deltaTime = end.getDatetime() - start.getDatetime();
+        double span = Math.max(Math.abs(deltaLatitude), Math.abs(deltaLongitude));
+        int pieces = Math.max(1, (int) Math.ceil(span / MAX_SEGMENT_SPAN_DEGREES));
+
+        List<SegmentObject> segments = new ArrayList<>(pieces);
+        for (int i = 0; i < pieces; i++) {
+            double from = (double) i / pieces;
+            double to = (double) (i + 1) / pieces;
+            segments.add(new SegmentObject(0,
+                    start.getDatetime() + (long) (deltaTime * from),
+                    start.getLatitude() + deltaLatitude * from,
+                    start.getLongitude() + deltaLongitude * from,
+                    start.getDatetime() + (long) (deltaTime * to),
+                    i == pieces - 1 ? end.getLatitude() : start.getLatitude() + deltaLatitude * to,
+                    i == pieces - 1 ? end.getLongitude() : start.getLongitude() + deltaLongitude * to));
+        }
+        return segments;
+    }
+}
@@ -0,0 +1,125 @@
+package com.danielcswain.fogofwar.Data;
+
+import java.util.Comparator;
+
+/**
+ * Object for a stored track segment: a straight line travelled between two consecutive location
+ * fixes, with the bounding box used to find it in viewport queries.
+ */
+public class SegmentObject {
+
+    /**
+     * Segments in the order they were travelled: by the time they end, then by ID for the pieces
+     * of a split segment. IDs alone are not enough, as merged history takes IDs after every row
+     * stored before it, whenever it was recorded.
+     */
+    public static final Comparator<SegmentObject> RECORDED_ORDER =
+            new Comparator<SegmentObject>() {
+                @Override
+                public int compare(SegmentObject a, SegmentObject b) {
+                    if (a.getEndDatetime() != b.getEndDatetime()) {
+                        return a.getEndDatetime() < b.getEndDatetime() ? -1 : 1;
+                    }
+                    return a.getId() < b.getId() ? -1 : (a.getId() == b.getId() ? 0 : 1);
+                }
+            };
+
+    private long id;
+    private long startDatetime;
+    private long endDatetime;
+    private double startLatitude;
+    private double startLongitude;
+    private double endLatitude;
+    private double endLongitude;
+
+    /**
+     * Constructor for a new SegmentObject.
+     * @param id: long, the ID of the segment in the database (0 if not yet stored).
+     * @param startDatetime: long, time in milliseconds at the start of the segment.
+     * @param startLatitude: double, Latitude at the start of the segment.
+     * @param startLongitude: double, Longitude at the start of the segment.
+     * @param endDatetime: long, time in milliseconds at the end of the segment.
+     * @param endLatitude: double, Latitude at the end of the segment.
+     * @param endLongitude: double, Longitude at the end of the segment.
+     */
+    public SegmentObject(long id, long startDatetime, double startLatitude, double startLongitude,
+                         long endDatetime, double endLatitude, double endLongitude) {
+        this.id = id;
+        this.startDatetime = startDatetime;
+        this.startLatitude = startLatitude;
+        this.startLongitude = startLongitude;
+        this.endDatetime = endDatetime;
+        this.endLatitude = endLatitude;
+        this.endLongitude = endLongitude;
+    }
+
+    /**
+     * Get a copy of this segment carrying the ID assigned by the database.
+     * @param id: long, the ID of the stored segment.
+     * @return a new SegmentObject.
+     */
+    public SegmentObject withId(long id) {
+        return new SegmentObject(id, startDatetime, startLatitude, startLongitude,
+                endDatetime, endLatitude, endLongitude);
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getStartDatetime() {
+        return startDatetime;
+    }
+
+    public long getEndDatetime() {
+        return endDatetime;
+    }
+
+    public double getStartLatitude() {
+        return startLatitude;
+    }
+
+    public double getStartLongitude() {
+        return startLongitude;
+    }
+
+    public double getEndLatitude() {
+        return endLatitude;
+    }
+
+    public double getEndLongitude() {
+        return endLongitude;
+    }
+
+    public double getMinLatitude() {
+        return Math.min(startLatitude, endLatitude);
+    }
+
+    public double getMaxLatitude() {
+        return Math.max(startLatitude, endLatitude);
+    }
+
+    public double getMinLongitude() {
+        return Math.min(startLongitude, endLongitude);
+    }
+
+    public double getMaxLongitude() {
+        return Math.max(startLongitude, endLongitude);
+    }
+
+    /**
+     * Check if the segment's bounding box overlaps a latitude/longitude box.
+     * @return true if the boxes overlap.
+     */
+    public boolean overlaps(double minLatitude, double minLongitude,
+                            double maxLatitude, double maxLongitude) {
+        return getMinLatitude() <= maxLatitude && getMaxLatitude() >= minLatitude &&
+                getMinLongitude() <= maxLongitude && getMaxLongitude() >= minLongitude;
+    }
+
+    @Override
+    public String toString() {
+        return startDatetime + "-" + endDatetime + ": (Lat: " + startLatitude + ", Long: " +
+                startLongitude + ") -> (Lat: " + endLatitude + ", Long: " + endLongitude + ")";
+    }
+}
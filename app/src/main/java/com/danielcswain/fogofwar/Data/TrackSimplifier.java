@@ -0,0 +1,103 @@
+package com.danielcswain.fogofwar.Data;
+
+import com.danielcswain.fogofwar.Geometry.GeoMath;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Simplifies a run of joined location fixes with the Douglas-Peucker algorithm.
+ *
+ * Only fixes within the tolerance of the simplified line are dropped, so the line drawn through
+ * the kept fixes stays within the tolerance of the recorded track everywhere. The first and last
+ * fixes of the run are always kept, so the run still joins the fixes before and after it.
+ */
+public final class TrackSimplifier {
+
+    private static final double METRES_PER_DEGREE = Math.toRadians(GeoMath.EARTH_RADIUS_METRES);
+
+    private TrackSimplifier() {
+    }
+
+    /**
+     * Simplify a run of fixes.
+     * @param run: A List of LocationObjects in recording order, each joined to the next.
+     * @param toleranceMetres: double, the furthest a dropped fix may be from the simplified line.
+     * @return a List of the kept LocationObjects, in recording order.
+     */
+    public static List<LocationObject> simplify(List<LocationObject> run, double toleranceMetres) {
+        int count = run.size();
+        if (count <= 2) {
+            return new ArrayList<>(run);
+        }
+
+        // Runs are short enough for an equirectangular projection around the first fix to measure
+        // offsets in metres.
+        double[] x = new double[count];
+        double[] y = new double[count];
+        double longitudeScale = METRES_PER_DEGREE * Math.cos(Math.toRadians(run.get(0).getLatitude()));
+        for (int i = 0; i < count; i++) {
+            LocationObject locationObject = run.get(i);
+            x[i] = locationObject.getLongitude() * longitudeScale;
+            y[i] = locationObject.getLatitude() * METRES_PER_DEGREE;
+        }
+
+        boolean[] kept = new boolean[count];
+        kept[0] = true;
+        kept[count - 1] = true;
+
+        // A month of fixes is too long a run to recurse over, so pending ranges are kept on a stack.
+        int[] stack = new int[2 * count];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = count - 1;
+        double toleranceSquared = toleranceMetres * toleranceMetres;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+
+            int furthest = -1;
+            double furthestDistanceSquared = toleranceSquared;
+            for (int i = first + 1; i < last; i++) {
+                double distanceSquared = distanceToSegmentSquared(x[i], y[i],
+                        x[first], y[first], x[last], y[last]);
+                if (distanceSquared > furthestDistanceSquared) {
+                    furthest = i;
+                    furthestDistanceSquared = distanceSquared;
+                }
+            }
+
+            if (furthest != -1) {
+                kept[furthest] = true;
+                stack[top++] = first;
+                stack[top++] = furthest;
+                stack[top++] = furthest;
+                stack[top++] = last;
+            }
+        }
+
+        List<LocationObject> simplified = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            if (kept[i]) {
+                simplified.add(run.get(i));
+            }
+        }
+        return simplified;
+    }
+
+    /**
+     * Get the squared distance from a point to the closest point of a line segment.
+     */
+    private static double distanceToSegmentSquared(double x, double y, double startX, double startY,
+                                                   double endX, double endY) {
+        double deltaX = endX - startX;
+        double deltaY = endY - startY;
+        double lengthSquared = deltaX * deltaX + deltaY * deltaY;
+        double t = lengthSquared == 0 ? 0 :
+                ((x - startX) * deltaX + (y - startY) * deltaY) / lengthSquared;
+        t = Math.max(0, Math.min(1, t));
+        double offsetX = x - (startX + t * deltaX);
+        double offsetY = y - (startY + t * deltaY);
+        return offsetX * offsetX + offsetY * offsetY;
+    }
+}
@@ -0,0 +1,38 @@
+package com.danielcswain.fogofwar.Explored;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The weeks the explored area is checkpointed by. Weeks run from Monday 00:00 UTC.
+ *
+ * The checkpoint of a tile for a week is the tile as it was explored by the end of that week, so
+ * the tile at any time is its latest checkpoint before that time's week plus the segments
+ * travelled since the week began.
+ */
+public final class CheckpointWeeks {
+
+    public static final long WEEK_MS = TimeUnit.DAYS.toMillis(7);
+
+    // 1 January 1970 was a Thursday.
+    private static final long EPOCH_OFFSET_MS = TimeUnit.DAYS.toMillis(3);
+
+    private CheckpointWeeks() {}
+
+    /**
+     * Get the week a time falls in.
+     * @param datetime: long, time in milliseconds.
+     * @return the number of the week, counted from the week of 1 January 1970.
+     */
+    public static int getWeek(long datetime) {
+        return (int) ((datetime + EPOCH_OFFSET_MS) / WEEK_MS);
+    }
+
+    /**
+     * Get the start of a week.
+     * @param week: int, the number of the week.
+     * @return the time in milliseconds at which the week begins.
+     */
+    public static long getWeekStart(int week) {
+        return week * WEEK_MS - EPOCH_OFFSET_MS;
+    }
+}
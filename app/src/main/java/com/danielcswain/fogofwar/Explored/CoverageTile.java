@@ -0,0 +1,204 @@
+package com.danielcswain.fogofwar.Explored;
+
+import com.danielcswain.fogofwar.Geometry.GeoMath;
+import com.danielcswain.fogofwar.Geometry.WebMercator;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * One zoom 14 Web Mercator tile of the explored area, as a grid of CELLS_PER_TILE by
+ * CELLS_PER_TILE cells which are either explored or not.
+ *
+ * Cells are roughly 9.5 m across at the equator and shrink towards the poles along with the
+ * tiles. A tile is only created once part of it is explored, so the model grows with the area
+ * explored rather than the number of fixes.
+ */
+public class CoverageTile {
+
+    public static final int TILE_ZOOM = 14;
+
+    public static final int CELLS_PER_TILE = 256;
+
+    // The number of cells across the whole world.
+    public static final int WORLD_CELLS = CELLS_PER_TILE << TILE_ZOOM;
+
+    private static final int WORDS = CELLS_PER_TILE * CELLS_PER_TILE / 64;
+
+    private final int tileX;
+    private final int tileY;
+    private final long[] cells;
+    private int cellCount;
+
+    /**
+     * Constructor for an unexplored CoverageTile.
+     * @param tileX: int, the tile column at TILE_ZOOM.
+     * @param tileY: int, the tile row at TILE_ZOOM.
+     */
+    public CoverageTile(int tileX, int tileY) {
+        this(tileX, tileY, new long[WORDS], 0);
+    }
+
+    private CoverageTile(int tileX, int tileY, long[] cells, int cellCount) {
+        this.tileX = tileX;
+        this.tileY = tileY;
+        this.cells = cells;
+        this.cellCount = cellCount;
+    }
+
+    /**
+     * Read a tile stored with toBytes.
+     * @param tileX: int, the tile column at TILE_ZOOM.
+     * @param tileY: int, the tile row at TILE_ZOOM.
+     * @param bytes: byte[], the stored cells.
+     * @return the CoverageTile.
+     */
+    public static CoverageTile fromBytes(int tileX, int tileY, byte[] bytes) {
+        long[] cells = new long[WORDS];
+        ByteBuffer.wrap(bytes).asLongBuffer().get(cells);
+        int cellCount = 0;
+        for (long word : cells) {
+            cellCount += Long.bitCount(word);
+        }
+        return new CoverageTile(tileX, tileY, cells, cellCount);
+    }
+
+    /**
+     * @return the cells packed into bytes, to be stored.
+     */
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(WORDS * 8);
+        LongBuffer longBuffer = buffer.asLongBuffer();
+        longBuffer.put(cells);
+        return buffer.array();
+    }
+
+    /**
+     * Read a tile stored with toCompressedBytes.
+     * @param tileX: int, the tile column at TILE_ZOOM.
+     * @param tileY: int, the tile row at TILE_ZOOM.
+     * @param compressedBytes: byte[], the stored cells.
+     * @return the CoverageTile.
+     */
+    public static CoverageTile fromCompressedBytes(int tileX, int tileY, byte[] compressedBytes) {
+        Inflater inflater = new Inflater();
+        inflater.setInput(compressedBytes);
+        byte[] bytes = new byte[WORDS * 8];
+        try {
+            int length = 0;
+            while (length < bytes.length && !inflater.finished()) {
+                int read = inflater.inflate(bytes, length, bytes.length - length);
+                if (read == 0 && inflater.needsInput()) {
+                    break;
+                }
+                length += read;
+            }
+            if (length != bytes.length) {
+                throw new IllegalArgumentException("Truncated tile " + tileX + ", " + tileY);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt tile " + tileX + ", " + tileY, e);
+        } finally {
+            inflater.end();
+        }
+        return fromBytes(tileX, tileY, bytes);
+    }
+
+    /**
+     * Pack the cells into deflated bytes. Explored cells come in runs along the track, so this
+     * is usually a small fraction of toBytes, for checkpoints which keep many copies of a tile.
+     * @return the compressed cells, to be stored.
+     */
+    public byte[] toCompressedBytes() {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(toBytes());
+        deflater.finish();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        while (!deflater.finished()) {
+            outputStream.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * @return a copy of the tile which can be explored further without changing this one.
+     */
+    public CoverageTile copy() {
+        return new CoverageTile(tileX, tileY, cells.clone(), cellCount);
+    }
+
+    /**
+     * Check whether a cell is explored.
+     * @param cellX: int, the cell column within the tile.
+     * @param cellY: int, the cell row within the tile.
+     */
+    public boolean isCovered(int cellX, int cellY) {
+        int index = cellY * CELLS_PER_TILE + cellX;
+        return (cells[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * Mark a cell as explored.
+     * @param cellX: int, the cell column within the tile.
+     * @param cellY: int, the cell row within the tile.
+     * @return true if the cell was not explored before.
+     */
+    public boolean cover(int cellX, int cellY) {
+        int index = cellY * CELLS_PER_TILE + cellX;
+        long bit = 1L << index;
+        if ((cells[index >>> 6] & bit) != 0) {
+            return false;
+        }
+        cells[index >>> 6] |= bit;
+        cellCount++;
+        return true;
+    }
+
+    /**
+     * Get the explored area of the tile. The cells of a tile are treated as having the area of a
+     * cell at its centre, which is accurate to a fraction of a percent at a tile's size.
+     * @return the area in square metres.
+     */
+    public double getArea() {
+        return getArea(tileY, cellCount);
+    }
+
+    /**
+     * Get the area of a number of cells of a tile row.
+     * @param tileY: int, the tile row at TILE_ZOOM.
+     * @param cellCount: int, the number of cells.
+     * @return the area in square metres.
+     */
+    public static double getArea(int tileY, int cellCount) {
+        double latitude = WebMercator.toLatitude((tileY + 0.5) / (1 << TILE_ZOOM));
+        double cellSize = 2 * Math.PI * GeoMath.EARTH_RADIUS_METRES *
+                Math.cos(Math.toRadians(latitude)) / WORLD_CELLS;
+        return cellCount * cellSize * cellSize;
+    }
+
+    public int getTileX() {
+        return tileX;
+    }
+
+    public int getTileY() {
+        return tileY;
+    }
+
+    public int getCellCount() {
+        return cellCount;
+    }
+
+    /**
+     * Get a key identifying a tile, for use in maps.
+     * @return the tile column and row packed into a long.
+     */
+    public static long getKey(int tileX, int tileY) {
+        return ((long) tileX << 32) | (tileY & 0xFFFFFFFFL);
+    }
+}
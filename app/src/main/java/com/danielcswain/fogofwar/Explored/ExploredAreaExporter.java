@@ -0,0 +1,112 @@
+package com.danielcswain.fogofwar.Explored;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.danielcswain.fogofwar.Data.SQLDatabaseHelper;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Exports the explored area as GeoJSON to the app's external files directory, where it can be
+ * copied off the device, or its internal files directory if there is no external storage.
+ *
+ * The tiles are read and the file written off the UI thread. The file is written under a
+ * temporary name and renamed once complete, so a failed export never leaves a partial file.
+ */
+public class ExploredAreaExporter {
+
+    private static final String TAG = ExploredAreaExporter.class.getSimpleName();
+
+    private static final String EXPORT_FILE_NAME = "explored-area.geojson";
+
+    // Shared by all instances so exports run one at a time.
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    private final SQLDatabaseHelper mSqlDatabaseHelper;
+    private final File mExportFile;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Listener told on the UI thread when an export has finished.
+     */
+    public interface OnExportFinishedListener {
+        /**
+         * @param exportFile: The File written, or null if the export failed.
+         * @param areaSquareMetres: double, the explored area exported.
+         */
+        void onExportFinished(File exportFile, double areaSquareMetres);
+    }
+
+    /**
+     * Constructor for the ExploredAreaExporter.
+     * @param context: The Activity/Application context.
+     * @param sqlDatabaseHelper: The SQLDatabaseHelper holding the explored area.
+     */
+    public ExploredAreaExporter(Context context, SQLDatabaseHelper sqlDatabaseHelper) {
+        mSqlDatabaseHelper = sqlDatabaseHelper;
+        File directory = context.getExternalFilesDir(null);
+        if (directory == null) {
+            directory = context.getFilesDir();
+        }
+        mExportFile = new File(directory, EXPORT_FILE_NAME);
+    }
+
+    /**
+     * Export the explored area in the background.
+     * @param listener: The OnExportFinishedListener to tell when it is done.
+     */
+    public void export(final OnExportFinishedListener listener) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ExploredRegion exploredRegion = mSqlDatabaseHelper.getExploredRegion();
+                final double area = exploredRegion.getArea();
+                final boolean written = write(exploredRegion);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onExportFinished(written ? mExportFile : null, area);
+                    }
+                });
+            }
+        });
+    }
+
+    private boolean write(ExploredRegion exploredRegion) {
+        File temporaryFile = new File(mExportFile.getPath() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(temporaryFile), "UTF-8"));
+            GeoJsonWriter.write(exploredRegion, ExploredRegion.REVEAL_RADIUS_METRES, writer);
+            writer.close();
+            writer = null;
+            if (!temporaryFile.renameTo(mExportFile)) {
+                throw new IOException("Could not rename " + temporaryFile);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not export the explored area", e);
+            temporaryFile.delete();
+            return false;
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // The export has already failed.
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package com.danielcswain.fogofwar.Explored;
+
+import com.danielcswain.fogofwar.Data.SegmentObject;
+import com.danielcswain.fogofwar.Geometry.GeoMath;
+import com.danielcswain.fogofwar.Geometry.WebMercator;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The explored area as a set of polygons: the track buffered by the reveal radius.
+ *
+ * The area is held as CoverageTiles. Each new segment only marks the cells within the reveal
+ * radius of it, in the one or few tiles it crosses, so merging it into the explored area costs
+ * the same however much has been explored. Polygon outlines are traced from the cells when they
+ * are needed, for the whole area or just the tiles around the viewport.
+ *
+ * With a TileLoader the tiles held can be trimmed to the ones used most recently, which are all
+ * a moving track needs; the others are read back from storage if the track returns to them.
+ */
+public class ExploredRegion {
+
+    // The distance either side of the track cleared from the fog, at every zoom.
+    public static final double REVEAL_RADIUS_METRES = 25;
+
+    private static final double METRES_PER_WORLD = 2 * Math.PI * GeoMath.EARTH_RADIUS_METRES;
+
+    /**
+     * Loads stored tiles the first time they are needed.
+     */
+    public interface TileLoader {
+        /**
+         * @param tileX: int, the tile column at CoverageTile.TILE_ZOOM.
+         * @param tileY: int, the tile row at CoverageTile.TILE_ZOOM.
+         * @return the stored CoverageTile, or null if nothing in it has been explored.
+         */
+        CoverageTile loadTile(int tileX, int tileY);
+    }
+
+    private final double mRevealRadiusMetres;
+    private final TileLoader mTileLoader;
+    private final int mMaxTiles;
+    // In the order they were last used, so the least recently used are trimmed first.
+    private final Map<Long, CoverageTile> mTiles = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Constructor for an ExploredRegion holding every tile it reads or is given.
+     * @param revealRadiusMetres: double, how far either side of the track is explored.
+     * @param tileLoader: The TileLoader to read stored tiles with, or null if every tile is added
+     *      with putTile.
+     */
+    public ExploredRegion(double revealRadiusMetres, TileLoader tileLoader) {
+        this(revealRadiusMetres, tileLoader, 0);
+    }
+
+    /**
+     * Constructor for the ExploredRegion.
+     * @param revealRadiusMetres: double, how far either side of the track is explored.
+     * @param tileLoader: The TileLoader to read stored tiles with, or null if every tile is added
+     *      with putTile.
+     * @param maxTiles: int, the most tiles kept by trimTiles, or 0 to hold every tile. Only used
+     *      with a TileLoader, as a trimmed tile must be read back from storage.
+     */
+    public ExploredRegion(double revealRadiusMetres, TileLoader tileLoader, int maxTiles) {
+        mRevealRadiusMetres = revealRadiusMetres;
+        mTileLoader = tileLoader;
+        mMaxTiles = tileLoader == null ? 0 : maxTiles;
+    }
+
+    /**
+     * Add a stored tile.
+     * @param coverageTile: The CoverageTile.
+     */
+    public void putTile(CoverageTile coverageTile) {
+        mTiles.put(CoverageTile.getKey(coverageTile.getTileX(), coverageTile.getTileY()),
+                coverageTile);
+    }
+
+    /**
+     * Get a tile held in memory.
+     * @param tileX: int, the tile column at CoverageTile.TILE_ZOOM.
+     * @param tileY: int, the tile row at CoverageTile.TILE_ZOOM.
+     * @return the CoverageTile, or null if it has not been loaded or explored.
+     */
+    public CoverageTile getTile(int tileX, int tileY) {
+        return mTiles.get(CoverageTile.getKey(tileX, tileY));
+    }
+
+    /**
+     * @return the tiles held in memory.
+     */
+    public Collection<CoverageTile> getTiles() {
+        return Collections.unmodifiableCollection(mTiles.values());
+    }
+
+    /**
+     * Drop the least recently used tiles held beyond the limit given to the constructor. Only
+     * call once the tiles changed have been stored, so the TileLoader reads back every change.
+     */
+    public void trimTiles() {
+        if (mMaxTiles <= 0) {
+            return;
+        }
+        Iterator<CoverageTile> iterator = mTiles.values().iterator();
+        for (int excess = mTiles.size() - mMaxTiles; excess > 0; excess--) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Merge a segment of track into the explored area.
+     * @param segmentObject: The SegmentObject travelled.
+     * @return a List of the tiles with newly explored cells, to be stored.
+     */
+    public List<CoverageTile> addSegment(SegmentObject segmentObject) {
+        double startX = WebMercator.toNormalisedX(segmentObject.getStartLongitude()) *
+                CoverageTile.WORLD_CELLS;
+        double startY = WebMercator.toNormalisedY(segmentObject.getStartLatitude()) *
+                CoverageTile.WORLD_CELLS;
+        double endX = WebMercator.toNormalisedX(segmentObject.getEndLongitude()) *
+                CoverageTile.WORLD_CELLS;
+        double endY = WebMercator.toNormalisedY(segmentObject.getEndLatitude()) *
+                CoverageTile.WORLD_CELLS;
+
+        // Segments are short enough for the Mercator scale to be taken as constant along them.
+        double latitude = (segmentObject.getStartLatitude() + segmentObject.getEndLatitude()) / 2;
+        double cellSize = METRES_PER_WORLD * Math.cos(Math.toRadians(latitude)) /
+                CoverageTile.WORLD_CELLS;
+        double radius = mRevealRadiusMetres / cellSize;
+        double radiusSquared = radius * radius;
+
+        int minCellX = Math.max(0, (int) Math.floor(Math.min(startX, endX) - radius));
+        int maxCellX = Math.min(CoverageTile.WORLD_CELLS - 1,
+                (int) Math.floor(Math.max(startX, endX) + radius));
+        int minCellY = Math.max(0, (int) Math.floor(Math.min(startY, endY) - radius));
+        int maxCellY = Math.min(CoverageTile.WORLD_CELLS - 1,
+                (int) Math.floor(Math.max(startY, endY) + radius));
+
+        // A cell is explored when its centre is within the radius of the segment.
+        Set<CoverageTile> changedTiles = new LinkedHashSet<>();
+        for (int cellY = minCellY; cellY <= maxCellY; cellY++) {
+            for (int cellX = minCellX; cellX <= maxCellX; cellX++) {
+                if (distanceToSegmentSquared(cellX + 0.5, cellY + 0.5,
+                        startX, startY, endX, endY) > radiusSquared) {
+                    continue;
+                }
+
+                int tileX = cellX / CoverageTile.CELLS_PER_TILE;
+                int tileY = cellY / CoverageTile.CELLS_PER_TILE;
+                CoverageTile coverageTile = getOrCreateTile(tileX, tileY);
+                if (coverageTile.cover(cellX % CoverageTile.CELLS_PER_TILE,
+                        cellY % CoverageTile.CELLS_PER_TILE)) {
+                    changedTiles.add(coverageTile);
+                }
+            }
+        }
+        return new ArrayList<>(changedTiles);
+    }
+
+    /**
+     * Get the explored area of the tiles held in memory.
+     * @return the area in square metres.
+     */
+    public double getArea() {
+        double area = 0;
+        for (CoverageTile coverageTile : mTiles.values()) {
+            area += coverageTile.getArea();
+        }
+        return area;
+    }
+
+    /**
+     * Trace the outlines of every tile held in memory.
+     * @return a List of rings as described by traceRings(int, int, int, int).
+     */
+    public List<int[]> traceRings() {
+        return traceRings(0, 0, CoverageTile.WORLD_CELLS - 1, CoverageTile.WORLD_CELLS - 1);
+    }
+
+    /**
+     * Trace the outlines of the explored area within a range of cells, e.g. around the viewport.
+     * The outlines are cut off at the edge of the range. Only tiles held in memory are traced.
+     * @param minCellX: int, the first cell column across the world.
+     * @param minCellY: int, the first cell row.
+     * @param maxCellX: int, the last cell column, inclusive.
+     * @param maxCellY: int, the last cell row, inclusive.
+     * @return a List of rings, each the x, y coordinates of its vertices in cells across the
+     *      world. Outer rings run clockwise with y down, holes anticlockwise.
+     */
+    public List<int[]> traceRings(int minCellX, int minCellY, int maxCellX, int maxCellY) {
+        RingTracer ringTracer = new RingTracer();
+        // Copied, as looking up the neighbouring cells reorders the most recently used tiles.
+        for (CoverageTile coverageTile : new ArrayList<>(mTiles.values())) {
+            int tileCellX = coverageTile.getTileX() * CoverageTile.CELLS_PER_TILE;
+            int tileCellY = coverageTile.getTileY() * CoverageTile.CELLS_PER_TILE;
+            int fromX = Math.max(minCellX, tileCellX);
+            int toX = Math.min(maxCellX, tileCellX + CoverageTile.CELLS_PER_TILE - 1);
+            int fromY = Math.max(minCellY, tileCellY);
+            int toY = Math.min(maxCellY, tileCellY + CoverageTile.CELLS_PER_TILE - 1);
+
+            for (int cellY = fromY; cellY <= toY; cellY++) {
+                for (int cellX = fromX; cellX <= toX; cellX++) {
+                    if (!coverageTile.isCovered(cellX - tileCellX, cellY - tileCellY)) {
+                        continue;
+                    }
+                    ringTracer.addCell(cellX, cellY,
+                            cellY > minCellY && isCovered(cellX, cellY - 1),
+                            cellX < maxCellX && isCovered(cellX + 1, cellY),
+                            cellY < maxCellY && isCovered(cellX, cellY + 1),
+                            cellX > minCellX && isCovered(cellX - 1, cellY));
+                }
+            }
+        }
+        return ringTracer.trace();
+    }
+
+    /**
+     * Check whether a cell is explored, looking only at tiles held in memory.
+     * @param cellX: int, the cell column across the world.
+     * @param cellY: int, the cell row across the world.
+     */
+    public boolean isCovered(int cellX, int cellY) {
+        if (cellX < 0 || cellY < 0 ||
+                cellX >= CoverageTile.WORLD_CELLS || cellY >= CoverageTile.WORLD_CELLS) {
+            return false;
+        }
+        CoverageTile coverageTile = mTiles.get(CoverageTile.getKey(
+                cellX / CoverageTile.CELLS_PER_TILE, cellY / CoverageTile.CELLS_PER_TILE));
+        return coverageTile != null && coverageTile.isCovered(
+                cellX % CoverageTile.CELLS_PER_TILE, cellY % CoverageTile.CELLS_PER_TILE);
+    }
+
+    private CoverageTile getOrCreateTile(int tileX, int tileY) {
+        long key = CoverageTile.getKey(tileX, tileY);
+        CoverageTile coverageTile = mTiles.get(key);
+        if (coverageTile == null) {
+            if (mTileLoader != null) {
+                coverageTile = mTileLoader.loadTile(tileX, tileY);
+            }
+            if (coverageTile == null) {
+                coverageTile = new CoverageTile(tileX, tileY);
+            }
+            mTiles.put(key, coverageTile);
+        }
+        return coverageTile;
+    }
+
+    private static double distanceToSegmentSquared(double x, double y, double startX,
+                                                   double startY, double endX, double endY) {
+        double deltaX = endX - startX;
+        double deltaY = endY - startY;
+        double lengthSquared = deltaX * deltaX + deltaY * deltaY;
+        double t = lengthSquared == 0 ? 0 :
+                ((x - startX) * deltaX + (y - startY) * deltaY) / lengthSquared;
+        t = Math.max(0, Math.min(1, t));
+        double offsetX = x - (startX + t * deltaX);
+        double offsetY = y - (startY + t * deltaY);
+        return offsetX * offsetX + offsetY * offsetY;
+    }
+}
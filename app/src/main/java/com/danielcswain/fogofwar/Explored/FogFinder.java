@@ -0,0 +1,284 @@
+package com.danielcswain.fogofwar.Explored;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.danielcswain.fogofwar.Cache.TileKey;
+import com.danielcswain.fogofwar.Data.SQLDatabaseHelper;
+import com.danielcswain.fogofwar.Geometry.GeoMath;
+import com.danielcswain.fogofwar.Geometry.WebMercator;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Finds unexplored areas around a location, using the fog pyramid as a multi-resolution
+ * occupancy grid: a pixel is 255 if every cell under it is explored, 0 if none is, and in
+ * between otherwise.
+ *
+ * The nearest unexplored cell is found best-first, from one block covering the world down to
+ * single cells, skipping every block which is fully explored without reading what is under it.
+ * Only the blocks closer than the answer are opened, so a query reads a few pyramid tiles
+ * however much has been explored. The largest nearby unexplored area is the nearest untouched
+ * block within LARGEST_SEARCH_RADIUS_METRES, trying the biggest blocks first.
+ *
+ * Distances are measured in Web Mercator cells, which is conformal so the nearest cell is also
+ * the nearest on the ground at the scales searched. Searches do not wrap around the antimeridian.
+ */
+public class FogFinder {
+
+    // How far from the location the largest unexplored area is looked for.
+    public static final double LARGEST_SEARCH_RADIUS_METRES = 5000;
+
+    // The smallest block the largest unexplored area can be, 8 by 8 cells or about 75 metres.
+    private static final int MAX_LARGEST_LEVEL = CoverageTile.TILE_ZOOM - 3;
+
+    // The level of the single block covering the world, PIXELS times coarser than zoom 0.
+    private static final int ROOT_LEVEL = -Integer.numberOfTrailingZeros(FogTile.PIXELS);
+
+    // Stops a nearest search in a fully explored world; far more blocks than a search opens.
+    private static final int MAX_BLOCKS_OPENED = 1 << 20;
+
+    private static final double METRES_PER_WORLD = 2 * Math.PI * GeoMath.EARTH_RADIUS_METRES;
+
+    // Shared by all instances so queries run one at a time, off the UI thread.
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    private final TileLoader mTileLoader;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Loads stored pyramid tiles the first time a query needs them.
+     */
+    public interface TileLoader {
+        /**
+         * @param zoom: int, the zoom level, at most CoverageTile.TILE_ZOOM.
+         * @param tileX: int, the tile column at the zoom level.
+         * @param tileY: int, the tile row at the zoom level.
+         * @return the stored FogTile, or null if nothing in it has been explored.
+         */
+        FogTile loadTile(int zoom, int tileX, int tileY);
+    }
+
+    /**
+     * Listener told on the UI thread when a query has finished.
+     */
+    public interface OnFogFoundListener {
+        /**
+         * @param fogTarget: The FogTarget found, or null if there is none.
+         */
+        void onFogFound(FogTarget fogTarget);
+    }
+
+    /**
+     * Constructor for a FogFinder reading the stored fog pyramid.
+     * @param sqlDatabaseHelper: The SQLDatabaseHelper holding the fog pyramid.
+     */
+    public FogFinder(final SQLDatabaseHelper sqlDatabaseHelper) {
+        this(new TileLoader() {
+            @Override
+            public FogTile loadTile(int zoom, int tileX, int tileY) {
+                return sqlDatabaseHelper.getFogTile(zoom, tileX, tileY);
+            }
+        });
+    }
+
+    /**
+     * Constructor for the FogFinder.
+     * @param tileLoader: The TileLoader to read pyramid tiles with.
+     */
+    public FogFinder(TileLoader tileLoader) {
+        mTileLoader = tileLoader;
+    }
+
+    /**
+     * Find the nearest unexplored cell in the background.
+     * @param latitude: double, the latitude to search from.
+     * @param longitude: double, the longitude to search from.
+     * @param listener: The OnFogFoundListener to tell when it is done.
+     */
+    public void findNearestFog(final double latitude, final double longitude,
+                               final OnFogFoundListener listener) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                post(listener, getNearestFog(latitude, longitude));
+            }
+        });
+    }
+
+    /**
+     * Find the largest nearby unexplored area in the background.
+     * @param latitude: double, the latitude to search from.
+     * @param longitude: double, the longitude to search from.
+     * @param listener: The OnFogFoundListener to tell when it is done.
+     */
+    public void findLargestFog(final double latitude, final double longitude,
+                               final OnFogFoundListener listener) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                post(listener, getLargestFog(latitude, longitude));
+            }
+        });
+    }
+
+    private void post(final OnFogFoundListener listener, final FogTarget fogTarget) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onFogFound(fogTarget);
+            }
+        });
+    }
+
+    /**
+     * Find the nearest unexplored cell.
+     * @param latitude: double, the latitude to search from.
+     * @param longitude: double, the longitude to search from.
+     * @return the FogTarget of the cell, or null if there is no unexplored cell.
+     */
+    public FogTarget getNearestFog(double latitude, double longitude) {
+        double cellX = WebMercator.toNormalisedX(longitude) * CoverageTile.WORLD_CELLS;
+        double cellY = WebMercator.toNormalisedY(latitude) * CoverageTile.WORLD_CELLS;
+        Map<TileKey, FogTile> tiles = new HashMap<>();
+
+        PriorityQueue<Block> queue = new PriorityQueue<>();
+        queue.add(new Block(ROOT_LEVEL, 0, 0, cellX, cellY));
+        int opened = 0;
+        while (!queue.isEmpty() && opened < MAX_BLOCKS_OPENED) {
+            Block block = queue.poll();
+            if (block.level >= 0 && getAlpha(tiles, block.level, block.x, block.y) == 0xFF) {
+                continue;
+            }
+            if (block.level == CoverageTile.TILE_ZOOM) {
+                return toFogTarget(block.level, block.x, block.y, latitude, longitude);
+            }
+
+            opened++;
+            for (int i = 0; i < 4; i++) {
+                queue.add(new Block(block.level + 1, 2 * block.x + (i & 1),
+                        2 * block.y + (i >> 1), cellX, cellY));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find the largest nearby unexplored area: the nearest block within
+     * LARGEST_SEARCH_RADIUS_METRES of which nothing has been explored, as big as there is.
+     * @param latitude: double, the latitude to search from.
+     * @param longitude: double, the longitude to search from.
+     * @return the FogTarget of the block, or null if every block nearby has been explored in
+     *      part.
+     */
+    public FogTarget getLargestFog(double latitude, double longitude) {
+        double cellX = WebMercator.toNormalisedX(longitude) * CoverageTile.WORLD_CELLS;
+        double cellY = WebMercator.toNormalisedY(latitude) * CoverageTile.WORLD_CELLS;
+        double radiusCells = LARGEST_SEARCH_RADIUS_METRES / getCellMetres(latitude);
+        Map<TileKey, FogTile> tiles = new HashMap<>();
+
+        for (int level = 0; level <= MAX_LARGEST_LEVEL; level++) {
+            int blockCells = getBlockCells(level);
+            if (blockCells > radiusCells) {
+                continue;
+            }
+
+            int lastBlock = CoverageTile.WORLD_CELLS / blockCells - 1;
+            int minX = Math.max(0, (int) Math.floor((cellX - radiusCells) / blockCells));
+            int maxX = Math.min(lastBlock, (int) Math.floor((cellX + radiusCells) / blockCells));
+            int minY = Math.max(0, (int) Math.floor((cellY - radiusCells) / blockCells));
+            int maxY = Math.min(lastBlock, (int) Math.floor((cellY + radiusCells) / blockCells));
+            int nearestX = -1;
+            int nearestY = -1;
+            double nearestDistance = radiusCells;
+            for (int y = minY; y <= maxY; y++) {
+                for (int x = minX; x <= maxX; x++) {
+                    double distance = Math.hypot((x + 0.5) * blockCells - cellX,
+                            (y + 0.5) * blockCells - cellY);
+                    if (distance < nearestDistance && getAlpha(tiles, level, x, y) == 0) {
+                        nearestX = x;
+                        nearestY = y;
+                        nearestDistance = distance;
+                    }
+                }
+            }
+            if (nearestX >= 0) {
+                return toFogTarget(level, nearestX, nearestY, latitude, longitude);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the alpha value of a pyramid pixel, loading its tile the first time it is needed.
+     */
+    private int getAlpha(Map<TileKey, FogTile> tiles, int level, int x, int y) {
+        TileKey tileKey = new TileKey(level, x / FogTile.PIXELS, y / FogTile.PIXELS);
+        FogTile fogTile;
+        if (tiles.containsKey(tileKey)) {
+            fogTile = tiles.get(tileKey);
+        } else {
+            fogTile = mTileLoader.loadTile(tileKey.zoom, tileKey.x, tileKey.y);
+            tiles.put(tileKey, fogTile);
+        }
+        return fogTile == null ? 0 : fogTile.getAlpha(x % FogTile.PIXELS, y % FogTile.PIXELS);
+    }
+
+    private static FogTarget toFogTarget(int level, int x, int y,
+                                         double latitude, double longitude) {
+        int blockCells = getBlockCells(level);
+        double centreLatitude = WebMercator.toLatitude(
+                (y + 0.5) * blockCells / CoverageTile.WORLD_CELLS);
+        double centreLongitude = WebMercator.toLongitude(
+                (x + 0.5) * blockCells / CoverageTile.WORLD_CELLS);
+        return new FogTarget(centreLatitude, centreLongitude,
+                GeoMath.distanceMetres(latitude, longitude, centreLatitude, centreLongitude),
+                blockCells * getCellMetres(centreLatitude));
+    }
+
+    /**
+     * @return the width of a pyramid pixel at a level, in cells at CoverageTile.TILE_ZOOM.
+     */
+    private static int getBlockCells(int level) {
+        return 1 << (CoverageTile.TILE_ZOOM - level);
+    }
+
+    /**
+     * @return the width of a cell at a latitude, in metres.
+     */
+    private static double getCellMetres(double latitude) {
+        return METRES_PER_WORLD * Math.cos(Math.toRadians(latitude)) / CoverageTile.WORLD_CELLS;
+    }
+
+    /**
+     * A pyramid pixel waiting to be opened, ordered by how close any cell in it can be.
+     */
+    private static class Block implements Comparable<Block> {
+
+        final int level;
+        final int x;
+        final int y;
+        final double distance;
+
+        Block(int level, int x, int y, double cellX, double cellY) {
+            this.level = level;
+            this.x = x;
+            this.y = y;
+            int blockCells = getBlockCells(level);
+            double dx = Math.max(0,
+                    Math.max(x * blockCells - cellX, cellX - (x + 1) * blockCells));
+            double dy = Math.max(0,
+                    Math.max(y * blockCells - cellY, cellY - (y + 1) * blockCells));
+            this.distance = Math.hypot(dx, dy);
+        }
+
+        @Override
+        public int compareTo(Block other) {
+            return Double.compare(distance, other.distance);
+        }
+    }
+}
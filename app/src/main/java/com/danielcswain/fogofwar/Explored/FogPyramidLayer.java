@@ -0,0 +1,291 @@
+package com.danielcswain.fogofwar.Explored;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Point;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.LruCache;
+import android.view.View;
+
+import com.danielcswain.fogofwar.Cache.CacheGovernor;
+import com.danielcswain.fogofwar.Cache.TileKey;
+import com.danielcswain.fogofwar.Cache.TrackTileCache;
+import com.danielcswain.fogofwar.Data.Partition;
+import com.danielcswain.fogofwar.Data.SQLDatabaseHelper;
+import com.danielcswain.fogofwar.Data.SegmentObject;
+import com.danielcswain.fogofwar.Geometry.GeoMath;
+import com.danielcswain.fogofwar.Geometry.WebMercator;
+import com.google.android.gms.maps.Projection;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Erases the explored area from the fog when the map is zoomed out, from the tiles of the fog
+ * pyramid (see FogTile) rather than the track.
+ *
+ * The pyramid level is picked so its pixels are about the size of the screen's, so a viewport
+ * at any zoom costs about the same handful of tiles however much of the track it covers. Tiles
+ * are read on a background thread and cached as bitmaps. When new segments are stored only the
+ * cached tiles they reach are read again, and the old bitmaps are drawn until then.
+ */
+public class FogPyramidLayer implements SQLDatabaseHelper.OnSegmentsAddedListener,
+        SQLDatabaseHelper.OnTrackRewrittenListener {
+
+    private static final String TAG = FogPyramidLayer.class.getSimpleName();
+
+    // Closer in, the track itself is drawn, which follows it more closely than the cells.
+    public static final float MAX_ZOOM = CoverageTile.TILE_ZOOM;
+
+    private static final int PIXELS = FogTile.PIXELS;
+
+    // 256 x 256 alpha tiles are 64 KB each, enough for a full viewport of tiles.
+    private static final int MAX_CACHED_BYTES =
+            TrackTileCache.MAX_TILES_PER_VIEWPORT * PIXELS * PIXELS;
+
+    // Unexplored tiles are cached without a bitmap, counted at this size.
+    private static final int EMPTY_TILE_BYTES = 64;
+
+    /**
+     * A pyramid tile drawn as a bitmap, or none if nothing in it has been explored.
+     */
+    private static class PyramidTile {
+        final Bitmap bitmap;
+        final boolean current;
+
+        PyramidTile(Bitmap bitmap, boolean current) {
+            this.bitmap = bitmap;
+            this.current = current;
+        }
+    }
+
+    private final SQLDatabaseHelper mSqlDatabaseHelper;
+    private final CacheGovernor mCacheGovernor;
+    private final View mView;
+    private final float mDensity;
+    private final LruCache<TileKey, PyramidTile> mTiles;
+
+    // Counts the changes to the stored tiles, so a tile read while one was being made is read
+    // again.
+    private final AtomicLong mChanges = new AtomicLong();
+
+    // Tiles queued for reading, so each is only queued once however often it is drawn.
+    private final Set<TileKey> mQueuedTiles = Collections.synchronizedSet(new HashSet<TileKey>());
+
+    private final HandlerThread mHandlerThread;
+    private final Handler mHandler;
+
+    private final Paint mTilePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect mSource = new Rect(0, 0, PIXELS, PIXELS);
+    private final Rect mDestination = new Rect();
+
+    /**
+     * Constructor for the FogPyramidLayer.
+     * @param sqlDatabaseHelper: The database helper the pyramid's tiles are read from.
+     * @param cacheGovernor: The CacheGovernor owning the memory budget.
+     * @param view: The View the fog is drawn in, invalidated when tiles are ready.
+     */
+    public FogPyramidLayer(SQLDatabaseHelper sqlDatabaseHelper, CacheGovernor cacheGovernor,
+                           View view) {
+        mSqlDatabaseHelper = sqlDatabaseHelper;
+        mCacheGovernor = cacheGovernor;
+        mView = view;
+        mDensity = view.getResources().getDisplayMetrics().density;
+        mTiles = new LruCache<TileKey, PyramidTile>(MAX_CACHED_BYTES) {
+            @Override
+            protected int sizeOf(TileKey key, PyramidTile value) {
+                return value.bitmap != null ? value.bitmap.getByteCount() : EMPTY_TILE_BYTES;
+            }
+        };
+
+        mHandlerThread = new HandlerThread(
+                FogPyramidLayer.class.getSimpleName(), Process.THREAD_PRIORITY_BACKGROUND);
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+
+        // Erase the explored pixels from the fog already drawn, partly explored ones partly.
+        mTilePaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_OUT));
+
+        sqlDatabaseHelper.addOnSegmentsAddedListener(this);
+        sqlDatabaseHelper.addOnTrackRewrittenListener(this);
+        cacheGovernor.register(TAG, CacheGovernor.PRIORITY_NORMAL, mTiles);
+    }
+
+    /**
+     * Check whether the fog is drawn from the pyramid at a zoom level.
+     * @param zoom: float, the map's zoom level.
+     * @return true if the map is zoomed out beyond MAX_ZOOM.
+     */
+    public static boolean isShownAt(float zoom) {
+        return zoom < MAX_ZOOM;
+    }
+
+    /**
+     * Erase the explored area covering the map bounds from the fog, queueing any tiles which are
+     * missing or out of date.
+     * @param canvas: The Canvas the fog has been drawn on.
+     * @param projection: The Projection of the map.
+     * @param mapBounds: The LatLngBounds of the map view.
+     * @param zoom: float, the map's zoom level.
+     */
+    public void draw(Canvas canvas, Projection projection, LatLngBounds mapBounds, float zoom) {
+        // Google Maps tiles are 256 density-independent pixels, so pyramid tiles match the
+        // screen's pixels this many levels in.
+        double pixelZoom = zoom + Math.log(mDensity) / Math.log(2);
+        int level = Math.max(0, Math.min(CoverageTile.TILE_ZOOM, (int) Math.floor(pixelZoom)));
+        List<TileKey> tileKeys = getTilesInBounds(mapBounds, level);
+        while (tileKeys.size() > TrackTileCache.MAX_TILES_PER_VIEWPORT && level > 0) {
+            tileKeys = getTilesInBounds(mapBounds, --level);
+        }
+
+        for (TileKey tileKey : tileKeys) {
+            PyramidTile tile = mTiles.get(tileKey);
+            if (tile == null || !tile.current) {
+                queueTile(tileKey);
+            }
+            if (tile == null || tile.bitmap == null) {
+                continue;
+            }
+
+            LatLngBounds tileBounds = tileKey.getBounds();
+            Point northwest = projection.toScreenLocation(
+                    new LatLng(tileBounds.northeast.latitude, tileBounds.southwest.longitude));
+            Point southeast = projection.toScreenLocation(
+                    new LatLng(tileBounds.southwest.latitude, tileBounds.northeast.longitude));
+            mDestination.set(northwest.x, northwest.y, southeast.x, southeast.y);
+            canvas.drawBitmap(tile.bitmap, mSource, mDestination, mTilePaint);
+        }
+    }
+
+    /**
+     * Read again the cached tiles reached by the new segments once they are stored. The old
+     * tiles keep being drawn until then.
+     */
+    @Override
+    public void onSegmentsAdded(List<SegmentObject> segmentObjects) {
+        mChanges.incrementAndGet();
+
+        // Cells up to the reveal radius beyond a segment's bounding box may have been explored.
+        double margin = ExploredRegion.REVEAL_RADIUS_METRES /
+                (2 * Math.PI * GeoMath.EARTH_RADIUS_METRES);
+        List<double[]> boxes = new ArrayList<>(segmentObjects.size());
+        for (SegmentObject segmentObject : segmentObjects) {
+            // Mercator stretches distances by 1 / cos(latitude) away from the equator.
+            double stretchedMargin = margin / Math.cos(Math.toRadians(Math.max(
+                    Math.abs(segmentObject.getMinLatitude()),
+                    Math.abs(segmentObject.getMaxLatitude()))));
+            boxes.add(new double[] {
+                    WebMercator.toNormalisedX(segmentObject.getMinLongitude()) - stretchedMargin,
+                    WebMercator.toNormalisedY(segmentObject.getMaxLatitude()) - stretchedMargin,
+                    WebMercator.toNormalisedX(segmentObject.getMaxLongitude()) + stretchedMargin,
+                    WebMercator.toNormalisedY(segmentObject.getMinLatitude()) + stretchedMargin});
+        }
+
+        boolean changed = false;
+        for (Map.Entry<TileKey, PyramidTile> entry : mTiles.snapshot().entrySet()) {
+            TileKey tileKey = entry.getKey();
+            double scale = 1 << tileKey.zoom;
+            for (double[] box : boxes) {
+                if (box[2] * scale >= tileKey.x && box[0] * scale < tileKey.x + 1 &&
+                        box[3] * scale >= tileKey.y && box[1] * scale < tileKey.y + 1) {
+                    mTiles.put(tileKey, new PyramidTile(entry.getValue().bitmap, false));
+                    changed = true;
+                    break;
+                }
+            }
+        }
+        if (changed) {
+            mView.postInvalidate();
+        }
+    }
+
+    /**
+     * Read every tile again once merged histories have been stored.
+     */
+    @Override
+    public void onTrackRewritten(Partition partition) {
+        mChanges.incrementAndGet();
+        for (Map.Entry<TileKey, PyramidTile> entry : mTiles.snapshot().entrySet()) {
+            mTiles.put(entry.getKey(), new PyramidTile(entry.getValue().bitmap, false));
+        }
+        mView.postInvalidate();
+    }
+
+    /**
+     * Stop the background thread and release the tiles. The layer cannot be used afterwards.
+     */
+    public void quit() {
+        mSqlDatabaseHelper.removeOnSegmentsAddedListener(this);
+        mSqlDatabaseHelper.removeOnTrackRewrittenListener(this);
+        mHandler.removeCallbacksAndMessages(null);
+        mHandlerThread.quit();
+        mCacheGovernor.unregister(mTiles);
+        mTiles.evictAll();
+    }
+
+    private void queueTile(final TileKey tileKey) {
+        if (!mQueuedTiles.add(tileKey)) {
+            return;
+        }
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mQueuedTiles.remove(tileKey);
+                PyramidTile oldTile = mTiles.get(tileKey);
+                if (oldTile != null && oldTile.current) {
+                    return;
+                }
+
+                long changes = mChanges.get();
+                FogTile fogTile = mSqlDatabaseHelper.getFogTile(tileKey.zoom, tileKey.x,
+                        tileKey.y);
+                Bitmap bitmap = null;
+                if (fogTile != null) {
+                    bitmap = Bitmap.createBitmap(PIXELS, PIXELS, Bitmap.Config.ALPHA_8);
+                    bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(fogTile.getPixels()));
+                }
+                mTiles.put(tileKey, new PyramidTile(bitmap, changes == mChanges.get()));
+                mCacheGovernor.onCacheGrown();
+                mView.postInvalidate();
+            }
+        });
+    }
+
+    /**
+     * Get the tiles of a pyramid level covering the map bounds.
+     */
+    private static List<TileKey> getTilesInBounds(LatLngBounds bounds, int zoom) {
+        int scale = 1 << zoom;
+        int minTileX = clampTile(WebMercator.toNormalisedX(bounds.southwest.longitude), scale);
+        int maxTileX = clampTile(WebMercator.toNormalisedX(bounds.northeast.longitude), scale);
+        int minTileY = clampTile(WebMercator.toNormalisedY(bounds.northeast.latitude), scale);
+        int maxTileY = clampTile(WebMercator.toNormalisedY(bounds.southwest.latitude), scale);
+
+        List<TileKey> tileKeys = new ArrayList<>();
+        for (int tileY = minTileY; tileY <= maxTileY; tileY++) {
+            for (int tileX = minTileX; tileX <= maxTileX; tileX++) {
+                tileKeys.add(new TileKey(zoom, tileX, tileY));
+            }
+        }
+        return tileKeys;
+    }
+
+    private static int clampTile(double normalised, int scale) {
+        return Math.max(0, Math.min(scale - 1, (int) Math.floor(normalised * scale)));
+    }
+}
@@ -0,0 +1,43 @@
+package com.danielcswain.fogofwar.Explored;
+
+/**
+ * An unexplored block found by FogFinder, to be shown as a target on the map.
+ */
+public class FogTarget {
+
+    private final double latitude;
+    private final double longitude;
+    private final double distanceMetres;
+    private final double sizeMetres;
+
+    /**
+     * Constructor for the FogTarget.
+     * @param latitude: double, the latitude of the block's centre.
+     * @param longitude: double, the longitude of the block's centre.
+     * @param distanceMetres: double, the distance from the query location to the centre.
+     * @param sizeMetres: double, the width of the block, which is square.
+     */
+    public FogTarget(double latitude, double longitude, double distanceMetres,
+                     double sizeMetres) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.distanceMetres = distanceMetres;
+        this.sizeMetres = sizeMetres;
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    public double getDistanceMetres() {
+        return distanceMetres;
+    }
+
+    public double getSizeMetres() {
+        return sizeMetres;
+    }
+}
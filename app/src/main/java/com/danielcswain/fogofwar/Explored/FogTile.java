@@ -0,0 +1,198 @@
+package com.danielcswain.fogofwar.Explored;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * One Web Mercator tile of the fog pyramid, as PIXELS by PIXELS alpha values giving how much of
+ * each pixel has been explored, from 0 for none to 255 for all of it.
+ *
+ * At CoverageTile.TILE_ZOOM each pixel is one coverage cell, so it is either 0 or 255. Each
+ * level above is built by downsampling its four children, each pixel the mean of the two by two
+ * pixels below it, so a tile at any zoom costs four quarter-size merges rather than rasterising
+ * the track inside it again.
+ *
+ * A pixel is only 255 if every cell under it is explored and only 0 if none is, so the pyramid
+ * is also an occupancy grid which tells fully explored and untouched blocks apart at any size
+ * (see FogFinder).
+ */
+public class FogTile {
+
+    public static final int PIXELS = CoverageTile.CELLS_PER_TILE;
+
+    private static final int HALF = PIXELS / 2;
+
+    private final int zoom;
+    private final int tileX;
+    private final int tileY;
+    private final byte[] alpha;
+
+    /**
+     * Constructor for an unexplored FogTile.
+     * @param zoom: int, the zoom level, at most CoverageTile.TILE_ZOOM.
+     * @param tileX: int, the tile column at the zoom level.
+     * @param tileY: int, the tile row at the zoom level.
+     */
+    public FogTile(int zoom, int tileX, int tileY) {
+        this(zoom, tileX, tileY, new byte[PIXELS * PIXELS]);
+    }
+
+    private FogTile(int zoom, int tileX, int tileY, byte[] alpha) {
+        this.zoom = zoom;
+        this.tileX = tileX;
+        this.tileY = tileY;
+        this.alpha = alpha;
+    }
+
+    /**
+     * Build the bottom level tile of a coverage tile, one opaque pixel per explored cell.
+     * @param coverageTile: The CoverageTile.
+     * @return the FogTile at CoverageTile.TILE_ZOOM.
+     */
+    public static FogTile fromCoverageTile(CoverageTile coverageTile) {
+        FogTile fogTile = new FogTile(CoverageTile.TILE_ZOOM, coverageTile.getTileX(),
+                coverageTile.getTileY());
+        for (int y = 0; y < PIXELS; y++) {
+            for (int x = 0; x < PIXELS; x++) {
+                if (coverageTile.isCovered(x, y)) {
+                    fogTile.alpha[y * PIXELS + x] = (byte) 0xFF;
+                }
+            }
+        }
+        return fogTile;
+    }
+
+    /**
+     * Read a tile stored with toCompressedBytes.
+     * @param zoom: int, the zoom level.
+     * @param tileX: int, the tile column at the zoom level.
+     * @param tileY: int, the tile row at the zoom level.
+     * @param compressedBytes: byte[], the stored alpha values.
+     * @return the FogTile.
+     */
+    public static FogTile fromCompressedBytes(int zoom, int tileX, int tileY,
+                                              byte[] compressedBytes) {
+        Inflater inflater = new Inflater();
+        inflater.setInput(compressedBytes);
+        byte[] alpha = new byte[PIXELS * PIXELS];
+        try {
+            int length = 0;
+            while (length < alpha.length && !inflater.finished()) {
+                int read = inflater.inflate(alpha, length, alpha.length - length);
+                if (read == 0 && inflater.needsInput()) {
+                    break;
+                }
+                length += read;
+            }
+            if (length != alpha.length) {
+                throw new IllegalArgumentException(
+                        "Truncated fog tile " + zoom + "/" + tileX + "/" + tileY);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException(
+                    "Corrupt fog tile " + zoom + "/" + tileX + "/" + tileY, e);
+        } finally {
+            inflater.end();
+        }
+        return new FogTile(zoom, tileX, tileY, alpha);
+    }
+
+    /**
+     * Pack the alpha values into deflated bytes. Most of a tile is usually unexplored, so this is
+     * a small fraction of its PIXELS * PIXELS bytes.
+     * @return the compressed alpha values, to be stored.
+     */
+    public byte[] toCompressedBytes() {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(alpha);
+        deflater.finish();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        while (!deflater.finished()) {
+            outputStream.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Downsample one of the tile's four children into the quarter of the tile it covers.
+     * @param child: The FogTile one zoom level below, inside this tile.
+     * @return true if any of the tile's alpha values changed.
+     */
+    public boolean putChild(FogTile child) {
+        if (child.zoom != zoom + 1 || child.tileX >> 1 != tileX || child.tileY >> 1 != tileY) {
+            throw new IllegalArgumentException(child + " is not a child of " + this);
+        }
+
+        int offsetX = (child.tileX & 1) * HALF;
+        int offsetY = (child.tileY & 1) * HALF;
+        byte[] childAlpha = child.alpha;
+        boolean changed = false;
+        for (int y = 0; y < HALF; y++) {
+            int top = 2 * y * PIXELS;
+            int bottom = top + PIXELS;
+            int index = (offsetY + y) * PIXELS + offsetX;
+            for (int x = 0; x < HALF; x++, index++) {
+                int sum = (childAlpha[top + 2 * x] & 0xFF) +
+                        (childAlpha[top + 2 * x + 1] & 0xFF) +
+                        (childAlpha[bottom + 2 * x] & 0xFF) +
+                        (childAlpha[bottom + 2 * x + 1] & 0xFF);
+                byte value = (byte) getMean(sum);
+                if (alpha[index] != value) {
+                    alpha[index] = value;
+                    changed = true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Round the sum of four alpha values to their mean, keeping 0 and 255 for blocks which are
+     * explored not at all or completely.
+     */
+    private static int getMean(int sum) {
+        if (sum == 0 || sum == 4 * 255) {
+            return sum / 4;
+        }
+        return Math.max(1, Math.min(254, (sum + 2) / 4));
+    }
+
+    /**
+     * Get a pixel's alpha value.
+     * @param x: int, the pixel column within the tile.
+     * @param y: int, the pixel row within the tile.
+     * @return the alpha value, 0 to 255.
+     */
+    public int getAlpha(int x, int y) {
+        return alpha[y * PIXELS + x] & 0xFF;
+    }
+
+    /**
+     * @return a copy of the alpha values, row by row, e.g. to fill an ALPHA_8 Bitmap.
+     */
+    public byte[] getPixels() {
+        return Arrays.copyOf(alpha, alpha.length);
+    }
+
+    public int getZoom() {
+        return zoom;
+    }
+
+    public int getTileX() {
+        return tileX;
+    }
+
+    public int getTileY() {
+        return tileY;
+    }
+
+    @Override
+    public String toString() {
+        return "FogTile " + zoom + "/" + tileX + "/" + tileY;
+    }
+}
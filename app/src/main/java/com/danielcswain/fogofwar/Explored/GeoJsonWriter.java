@@ -0,0 +1,131 @@
+package com.danielcswain.fogofwar.Explored;
+
+import com.danielcswain.fogofwar.Geometry.WebMercator;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Writes the explored area as a GeoJSON FeatureCollection holding one MultiPolygon feature.
+ *
+ * Rings are traced from the coverage cells, so their vertices lie on cell corners and only where
+ * the outline turns. Traced outer rings run clockwise with y down, which is anticlockwise in
+ * longitude and latitude as RFC 7946 asks for, and holes the other way round.
+ */
+public final class GeoJsonWriter {
+
+    private GeoJsonWriter() {}
+
+    /**
+     * Write the explored area.
+     * @param exploredRegion: The ExploredRegion, with every tile to be written held in memory.
+     * @param revealRadiusMetres: double, the reveal radius the region was built with.
+     * @param writer: The Writer to write the GeoJSON to. It is not closed.
+     * @throws IOException if writing fails.
+     */
+    public static void write(ExploredRegion exploredRegion, double revealRadiusMetres,
+                             Writer writer) throws IOException {
+        List<List<int[]>> polygons = groupRings(exploredRegion.traceRings());
+
+        writer.write("{\"type\":\"FeatureCollection\",\"features\":[{\"type\":\"Feature\",");
+        writer.write(String.format(Locale.US,
+                "\"properties\":{\"area_m2\":%.0f,\"reveal_radius_m\":%.1f},",
+                exploredRegion.getArea(), revealRadiusMetres));
+        writer.write("\"geometry\":{\"type\":\"MultiPolygon\",\"coordinates\":[");
+        for (int i = 0; i < polygons.size(); i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writer.write('[');
+            List<int[]> polygon = polygons.get(i);
+            for (int j = 0; j < polygon.size(); j++) {
+                if (j > 0) {
+                    writer.write(',');
+                }
+                writeRing(polygon.get(j), writer);
+            }
+            writer.write(']');
+        }
+        writer.write("]}}]}");
+    }
+
+    /**
+     * Group traced rings into polygons, each an outer ring followed by the holes inside it.
+     */
+    static List<List<int[]>> groupRings(List<int[]> rings) {
+        List<int[]> outerRings = new ArrayList<>();
+        List<Long> outerAreas = new ArrayList<>();
+        List<List<int[]>> polygons = new ArrayList<>();
+        List<int[]> holes = new ArrayList<>();
+        for (int[] ring : rings) {
+            long area = RingTracer.getSignedArea(ring);
+            if (area > 0) {
+                outerRings.add(ring);
+                outerAreas.add(area);
+                List<int[]> polygon = new ArrayList<>();
+                polygon.add(ring);
+                polygons.add(polygon);
+            } else {
+                holes.add(ring);
+            }
+        }
+
+        for (int[] hole : holes) {
+            // The cell on the left of a hole's first edge is unexplored and inside the hole, so
+            // whichever outer ring contains its centre, the smallest if several do, is the one
+            // the hole belongs to.
+            int deltaX = Integer.signum(hole[2] - hole[0]);
+            int deltaY = Integer.signum(hole[3] - hole[1]);
+            double x = hole[0] + (deltaX + deltaY) * 0.5;
+            double y = hole[1] + (deltaY - deltaX) * 0.5;
+
+            int best = -1;
+            for (int i = 0; i < outerRings.size(); i++) {
+                if (contains(outerRings.get(i), x, y) &&
+                        (best < 0 || outerAreas.get(i) < outerAreas.get(best))) {
+                    best = i;
+                }
+            }
+            if (best >= 0) {
+                polygons.get(best).add(hole);
+            }
+        }
+        return polygons;
+    }
+
+    private static boolean contains(int[] ring, double x, double y) {
+        boolean inside = false;
+        int count = ring.length / 2;
+        for (int i = 0, j = count - 1; i < count; j = i++) {
+            double xi = ring[2 * i];
+            double yi = ring[2 * i + 1];
+            double xj = ring[2 * j];
+            double yj = ring[2 * j + 1];
+            if ((yi > y) != (yj > y) && x < (xj - xi) * (y - yi) / (yj - yi) + xi) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+    private static void writeRing(int[] ring, Writer writer) throws IOException {
+        writer.write('[');
+        int count = ring.length / 2;
+        // GeoJSON rings repeat their first position at the end.
+        for (int i = 0; i <= count; i++) {
+            int index = i % count;
+            if (i > 0) {
+                writer.write(',');
+            }
+            double longitude = WebMercator.toLongitude(
+                    (double) ring[2 * index] / CoverageTile.WORLD_CELLS);
+            double latitude = WebMercator.toLatitude(
+                    (double) ring[2 * index + 1] / CoverageTile.WORLD_CELLS);
+            writer.write(String.format(Locale.US, "[%.7f,%.7f]", longitude, latitude));
+        }
+        writer.write(']');
+    }
+}
@@ -0,0 +1,165 @@
+package com.danielcswain.fogofwar.Explored;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Traces the outlines of the explored cells into polygon rings.
+ *
+ * Every side of an explored cell facing an unexplored cell is a boundary edge, directed clockwise
+ * around the cell on screen (x to the right, y down), so explored cells are always on the right of
+ * an edge. Linking the edges end to end gives clockwise outer rings and anticlockwise holes.
+ * Where two explored cells only touch at a corner the tracer keeps turning right, so the rings
+ * touch at that vertex but never cross. Vertices are only kept where a ring turns.
+ */
+final class RingTracer {
+
+    // Directions of travel along an edge, in clockwise order.
+    private static final int RIGHT = 0;
+    private static final int DOWN = 1;
+    private static final int LEFT = 2;
+    private static final int UP = 3;
+
+    private static final int[] DELTA_X = {1, 0, -1, 0};
+    private static final int[] DELTA_Y = {0, 1, 0, -1};
+
+    // The outgoing edge directions at each vertex, as bit masks.
+    private final Map<Long, Integer> mEdges = new HashMap<>();
+
+    /**
+     * Add the boundary edges of an explored cell.
+     * @param cellX: int, the cell's column across the world.
+     * @param cellY: int, the cell's row across the world.
+     * @param coveredAbove: boolean, true if the cell above is explored and in the traced range.
+     * @param coveredRight: boolean, true if the cell to the right is.
+     * @param coveredBelow: boolean, true if the cell below is.
+     * @param coveredLeft: boolean, true if the cell to the left is.
+     */
+    void addCell(int cellX, int cellY, boolean coveredAbove, boolean coveredRight,
+                 boolean coveredBelow, boolean coveredLeft) {
+        if (!coveredAbove) {
+            addEdge(cellX, cellY, RIGHT);
+        }
+        if (!coveredRight) {
+            addEdge(cellX + 1, cellY, DOWN);
+        }
+        if (!coveredBelow) {
+            addEdge(cellX + 1, cellY + 1, LEFT);
+        }
+        if (!coveredLeft) {
+            addEdge(cellX, cellY + 1, UP);
+        }
+    }
+
+    /**
+     * Link the added edges into rings.
+     * @return a List of rings, each the x, y cell corner coordinates of its vertices in order,
+     *      without repeating the first vertex.
+     */
+    List<int[]> trace() {
+        List<int[]> rings = new ArrayList<>();
+        while (!mEdges.isEmpty()) {
+            long startVertex = mEdges.keySet().iterator().next();
+            int startDirection = Integer.numberOfTrailingZeros(mEdges.get(startVertex));
+            removeEdge(startVertex, startDirection);
+
+            List<Integer> coordinates = new ArrayList<>();
+            long vertex = startVertex;
+            int direction = startDirection;
+            while (true) {
+                vertex = move(vertex, direction);
+                Integer outgoing = mEdges.get(vertex);
+                int mask = outgoing == null ? 0 : outgoing;
+                if (vertex == startVertex) {
+                    mask |= 1 << startDirection;
+                }
+
+                int nextDirection = chooseDirection(mask, direction);
+                if (nextDirection != direction) {
+                    coordinates.add(getX(vertex));
+                    coordinates.add(getY(vertex));
+                }
+                if (vertex == startVertex && nextDirection == startDirection) {
+                    break;
+                }
+                removeEdge(vertex, nextDirection);
+                direction = nextDirection;
+            }
+
+            int[] ring = new int[coordinates.size()];
+            for (int i = 0; i < ring.length; i++) {
+                ring[i] = coordinates.get(i);
+            }
+            rings.add(ring);
+        }
+        return rings;
+    }
+
+    /**
+     * Get the signed area of a ring in cells, positive for outer rings and negative for holes.
+     * @param ring: int[], the ring's vertices as returned by trace.
+     * @return the area in cells.
+     */
+    static long getSignedArea(int[] ring) {
+        long twiceArea = 0;
+        int count = ring.length / 2;
+        for (int i = 0; i < count; i++) {
+            int j = (i + 1) % count;
+            twiceArea += (long) ring[2 * i] * ring[2 * j + 1] -
+                    (long) ring[2 * j] * ring[2 * i + 1];
+        }
+        return twiceArea / 2;
+    }
+
+    /**
+     * Choose the edge to leave a vertex by, turning right where there is a choice.
+     */
+    private static int chooseDirection(int mask, int incomingDirection) {
+        int right = (incomingDirection + 1) % 4;
+        int left = (incomingDirection + 3) % 4;
+        if ((mask & (1 << right)) != 0) {
+            return right;
+        }
+        if ((mask & (1 << incomingDirection)) != 0) {
+            return incomingDirection;
+        }
+        if ((mask & (1 << left)) != 0) {
+            return left;
+        }
+        // Every vertex has as many edges leaving it as arriving, so this cannot happen.
+        throw new IllegalStateException("Boundary is not closed");
+    }
+
+    private void addEdge(int x, int y, int direction) {
+        long vertex = getVertex(x, y);
+        Integer mask = mEdges.get(vertex);
+        mEdges.put(vertex, (mask == null ? 0 : mask) | (1 << direction));
+    }
+
+    private void removeEdge(long vertex, int direction) {
+        int mask = mEdges.get(vertex) & ~(1 << direction);
+        if (mask == 0) {
+            mEdges.remove(vertex);
+        } else {
+            mEdges.put(vertex, mask);
+        }
+    }
+
+    private static long move(long vertex, int direction) {
+        return getVertex(getX(vertex) + DELTA_X[direction], getY(vertex) + DELTA_Y[direction]);
+    }
+
+    private static long getVertex(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    private static int getX(long vertex) {
+        return (int) (vertex >> 32);
+    }
+
+    private static int getY(long vertex) {
+        return (int) vertex;
+    }
+}
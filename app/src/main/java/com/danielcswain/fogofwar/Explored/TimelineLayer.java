@@ -0,0 +1,337 @@
+package com.danielcswain.fogofwar.Explored;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Point;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.LruCache;
+import android.view.View;
+
+import com.danielcswain.fogofwar.Cache.CacheGovernor;
+import com.danielcswain.fogofwar.Cache.TileKey;
+import com.danielcswain.fogofwar.Cache.TrackTileCache;
+import com.danielcswain.fogofwar.Data.Partition;
+import com.danielcswain.fogofwar.Data.SQLDatabaseHelper;
+import com.danielcswain.fogofwar.Data.SegmentObject;
+import com.danielcswain.fogofwar.Geometry.GeoMath;
+import com.google.android.gms.maps.Projection;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Erases the explored area as it was at a past date from the fog, for scrubbing through time.
+ *
+ * Each visible tile is rebuilt from its checkpoint at the end of the previous week (see
+ * CheckpointWeeks) plus the segments travelled since, so any date costs at most a week of
+ * segments per tile however long the history is. The checkpoint and that week's segments are
+ * cached per tile, so scrubbing within a week only replays the cached segments, and a tile whose
+ * explored cells have not changed keeps its bitmap. Tiles are rebuilt on a background thread and
+ * the previous date's tiles are drawn until they are ready.
+ */
+public class TimelineLayer implements SQLDatabaseHelper.OnSegmentsAddedListener,
+        SQLDatabaseHelper.OnTrackRewrittenListener {
+
+    private static final String TAG = TimelineLayer.class.getSimpleName();
+
+    private static final int CELLS = CoverageTile.CELLS_PER_TILE;
+
+    // 256 x 256 alpha tiles are 64 KB each, enough for a full viewport of tiles.
+    private static final int MAX_CACHED_BYTES =
+            TrackTileCache.MAX_TILES_PER_VIEWPORT * CELLS * CELLS;
+
+    // Checkpoints are 8 KB each plus a week of segments.
+    private static final int MAX_CACHED_WEEK_BYTES = 2 * 1024 * 1024;
+
+    private static final int SEGMENT_BYTES = 64;
+
+    /**
+     * A tile's explored cells drawn as a bitmap, for a date.
+     */
+    private static class TimelineTile {
+        final Bitmap bitmap;
+        final int cellCount;
+        final long datetime;
+
+        TimelineTile(Bitmap bitmap, int cellCount, long datetime) {
+            this.bitmap = bitmap;
+            this.cellCount = cellCount;
+            this.datetime = datetime;
+        }
+    }
+
+    /**
+     * A tile's checkpoint before a week and the segments which may reach it during the week.
+     */
+    private static class TileWeek {
+        final int week;
+        final CoverageTile checkpoint;
+        final List<SegmentObject> segmentObjects;
+
+        TileWeek(int week, CoverageTile checkpoint, List<SegmentObject> segmentObjects) {
+            this.week = week;
+            this.checkpoint = checkpoint;
+            this.segmentObjects = segmentObjects;
+        }
+    }
+
+    private final SQLDatabaseHelper mSqlDatabaseHelper;
+    private final CacheGovernor mCacheGovernor;
+    private final View mView;
+    private final LruCache<TileKey, TimelineTile> mTiles;
+    private final LruCache<TileKey, TileWeek> mTileWeeks;
+    private volatile long mDatetime = System.currentTimeMillis();
+
+    // Tiles queued for rebuilding, so each is only queued once however fast the date changes.
+    private final Set<TileKey> mQueuedTiles = Collections.synchronizedSet(new HashSet<TileKey>());
+
+    private final HandlerThread mHandlerThread;
+    private final Handler mHandler;
+
+    private final Paint mTilePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect mSource = new Rect(0, 0, CELLS, CELLS);
+    private final Rect mDestination = new Rect();
+
+    /**
+     * Constructor for the TimelineLayer.
+     * @param sqlDatabaseHelper: The database helper the checkpoints and segments are read from.
+     * @param cacheGovernor: The CacheGovernor owning the memory budget.
+     * @param view: The View the fog is drawn in, invalidated when tiles are ready.
+     */
+    public TimelineLayer(SQLDatabaseHelper sqlDatabaseHelper, CacheGovernor cacheGovernor,
+                         View view) {
+        mSqlDatabaseHelper = sqlDatabaseHelper;
+        mCacheGovernor = cacheGovernor;
+        mView = view;
+        mTiles = new LruCache<TileKey, TimelineTile>(MAX_CACHED_BYTES) {
+            @Override
+            protected int sizeOf(TileKey key, TimelineTile value) {
+                return value.bitmap.getByteCount();
+            }
+        };
+        mTileWeeks = new LruCache<TileKey, TileWeek>(MAX_CACHED_WEEK_BYTES) {
+            @Override
+            protected int sizeOf(TileKey key, TileWeek value) {
+                return CELLS * CELLS / 8 + value.segmentObjects.size() * SEGMENT_BYTES;
+            }
+        };
+
+        mHandlerThread = new HandlerThread(
+                TimelineLayer.class.getSimpleName(), Process.THREAD_PRIORITY_BACKGROUND);
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+
+        // Erase the explored cells from the fog already drawn.
+        mTilePaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_OUT));
+
+        sqlDatabaseHelper.addOnSegmentsAddedListener(this);
+        sqlDatabaseHelper.addOnTrackRewrittenListener(this);
+        // Both are only used while scrubbing and are rebuilt from the database when needed.
+        cacheGovernor.register(TAG, CacheGovernor.PRIORITY_LOW, mTiles);
+        cacheGovernor.register(TAG + " weeks", CacheGovernor.PRIORITY_LOW, mTileWeeks);
+    }
+
+    /**
+     * Set the date the explored area is shown for.
+     * @param datetime: long, time in milliseconds.
+     */
+    public void setDatetime(long datetime) {
+        mDatetime = datetime;
+        mView.invalidate();
+    }
+
+    public long getDatetime() {
+        return mDatetime;
+    }
+
+    /**
+     * Erase the explored area covering the map bounds from the fog, queueing any tiles which are
+     * missing or drawn for another date.
+     * @param canvas: The Canvas the fog has been drawn on.
+     * @param projection: The Projection of the map.
+     * @param mapBounds: The LatLngBounds of the map view.
+     */
+    public void draw(Canvas canvas, Projection projection, LatLngBounds mapBounds) {
+        List<TileKey> tileKeys = TrackTileCache.getTilesInBounds(mapBounds);
+        if (tileKeys == null) {
+            // Zoomed too far out for the cells to be visible.
+            return;
+        }
+
+        long datetime = mDatetime;
+        for (TileKey tileKey : tileKeys) {
+            TimelineTile tile = mTiles.get(tileKey);
+            if (tile == null || tile.datetime != datetime) {
+                queueTile(tileKey);
+            }
+            if (tile == null) {
+                continue;
+            }
+
+            LatLngBounds tileBounds = tileKey.getBounds();
+            Point northwest = projection.toScreenLocation(
+                    new LatLng(tileBounds.northeast.latitude, tileBounds.southwest.longitude));
+            Point southeast = projection.toScreenLocation(
+                    new LatLng(tileBounds.southwest.latitude, tileBounds.northeast.longitude));
+            mDestination.set(northwest.x, northwest.y, southeast.x, southeast.y);
+            canvas.drawBitmap(tile.bitmap, mSource, mDestination, mTilePaint);
+        }
+    }
+
+    /**
+     * Rebuild the tiles once segments travelled before the shown date are stored, e.g. while
+     * showing the present. The old tiles keep being drawn until then.
+     */
+    @Override
+    public void onSegmentsAdded(List<SegmentObject> segmentObjects) {
+        boolean shown = false;
+        for (SegmentObject segmentObject : segmentObjects) {
+            shown |= segmentObject.getEndDatetime() <= mDatetime;
+        }
+        if (shown) {
+            invalidateTiles();
+        }
+    }
+
+    /**
+     * Rebuild the tiles once the checkpoints have been rebuilt, e.g. after merging another
+     * device's history. The old tiles keep being drawn until then.
+     */
+    @Override
+    public void onTrackRewritten(Partition partition) {
+        invalidateTiles();
+    }
+
+    private void invalidateTiles() {
+        mTileWeeks.evictAll();
+        for (Map.Entry<TileKey, TimelineTile> entry : mTiles.snapshot().entrySet()) {
+            TimelineTile tile = entry.getValue();
+            mTiles.put(entry.getKey(),
+                    new TimelineTile(tile.bitmap, tile.cellCount, Long.MIN_VALUE));
+        }
+        mView.postInvalidate();
+    }
+
+    /**
+     * Stop the background thread and release the tiles. The layer cannot be used afterwards.
+     */
+    public void quit() {
+        mSqlDatabaseHelper.removeOnSegmentsAddedListener(this);
+        mSqlDatabaseHelper.removeOnTrackRewrittenListener(this);
+        mHandler.removeCallbacksAndMessages(null);
+        mHandlerThread.quit();
+        mCacheGovernor.unregister(mTiles);
+        mCacheGovernor.unregister(mTileWeeks);
+        mTiles.evictAll();
+        mTileWeeks.evictAll();
+    }
+
+    private void queueTile(final TileKey tileKey) {
+        if (!mQueuedTiles.add(tileKey)) {
+            return;
+        }
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mQueuedTiles.remove(tileKey);
+                // Build the tile for the date shown now, which may have moved on since queueing.
+                long datetime = mDatetime;
+                TimelineTile oldTile = mTiles.get(tileKey);
+                if (oldTile != null && oldTile.datetime == datetime) {
+                    return;
+                }
+
+                CoverageTile coverageTile = buildTile(tileKey, datetime);
+                // The explored area only ever grows, so the same count means the same cells.
+                Bitmap bitmap = oldTile != null &&
+                        oldTile.cellCount == coverageTile.getCellCount() ?
+                        oldTile.bitmap : renderTile(coverageTile);
+                mTiles.put(tileKey,
+                        new TimelineTile(bitmap, coverageTile.getCellCount(), datetime));
+                mCacheGovernor.onCacheGrown();
+                mView.postInvalidate();
+            }
+        });
+    }
+
+    /**
+     * Rebuild a tile as it was explored at a date. Runs on the background thread.
+     */
+    private CoverageTile buildTile(TileKey tileKey, long datetime) {
+        int week = CheckpointWeeks.getWeek(datetime);
+        long weekStart = CheckpointWeeks.getWeekStart(week);
+
+        TileWeek tileWeek = mTileWeeks.get(tileKey);
+        if (tileWeek == null || tileWeek.week != week) {
+            CoverageTile checkpoint =
+                    mSqlDatabaseHelper.getCoverageCheckpoint(tileKey.x, tileKey.y, week - 1);
+            if (checkpoint == null) {
+                checkpoint = new CoverageTile(tileKey.x, tileKey.y);
+            }
+            List<SegmentObject> segmentObjects = mSqlDatabaseHelper.getSegmentsInWindow(
+                    getBoundsWithRevealRadius(tileKey.getBounds()),
+                    weekStart, weekStart + CheckpointWeeks.WEEK_MS - 1);
+            tileWeek = new TileWeek(week, checkpoint, segmentObjects);
+            mTileWeeks.put(tileKey, tileWeek);
+            mCacheGovernor.onCacheGrown();
+        }
+
+        ExploredRegion exploredRegion =
+                new ExploredRegion(ExploredRegion.REVEAL_RADIUS_METRES, null);
+        exploredRegion.putTile(tileWeek.checkpoint.copy());
+        for (SegmentObject segmentObject : tileWeek.segmentObjects) {
+            // The week's checkpoint holds the segments ending in it, so replay the same ones.
+            if (segmentObject.getEndDatetime() >= weekStart &&
+                    segmentObject.getEndDatetime() <= datetime) {
+                exploredRegion.addSegment(segmentObject);
+            }
+        }
+        return exploredRegion.getTile(tileKey.x, tileKey.y);
+    }
+
+    /**
+     * Draw a tile's explored cells as an opaque alpha bitmap, one pixel per cell.
+     */
+    private static Bitmap renderTile(CoverageTile coverageTile) {
+        byte[] alpha = new byte[CELLS * CELLS];
+        for (int y = 0; y < CELLS; y++) {
+            for (int x = 0; x < CELLS; x++) {
+                if (coverageTile.isCovered(x, y)) {
+                    alpha[y * CELLS + x] = (byte) 0xFF;
+                }
+            }
+        }
+        Bitmap bitmap = Bitmap.createBitmap(CELLS, CELLS, Bitmap.Config.ALPHA_8);
+        bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(alpha));
+        return bitmap;
+    }
+
+    /**
+     * Expand a tile's bounds by the reveal radius, so segments just outside it which explore
+     * cells inside it are read too.
+     */
+    private static LatLngBounds getBoundsWithRevealRadius(LatLngBounds bounds) {
+        double latitudeMargin = Math.toDegrees(
+                ExploredRegion.REVEAL_RADIUS_METRES / GeoMath.EARTH_RADIUS_METRES);
+        double longitudeMargin = latitudeMargin / Math.cos(Math.toRadians(
+                Math.max(Math.abs(bounds.southwest.latitude), Math.abs(bounds.northeast.latitude))));
+        return new LatLngBounds(
+                new LatLng(bounds.southwest.latitude - latitudeMargin,
+                        bounds.southwest.longitude - longitudeMargin),
+                new LatLng(bounds.northeast.latitude + latitudeMargin,
+                        bounds.northeast.longitude + longitudeMargin));
+    }
+}
@@ -0,0 +1,28 @@
+package com.danielcswain.fogofwar.Geometry;
+
+/**
+ * Distance calculations on the Earth's surface, independent of android.location so they can be
+ * used off-device.
+ */
+public final class GeoMath {
+
+    public static final double EARTH_RADIUS_METRES = 6371008.8;
+
+    private GeoMath() {
+    }
+
+    /**
+     * Get the great circle distance between two points using the haversine formula.
+     * @return the distance in metres.
+     */
+    public static double distanceMetres(double latitude1, double longitude1,
+                                        double latitude2, double longitude2) {
+        double phi1 = Math.toRadians(latitude1);
+        double phi2 = Math.toRadians(latitude2);
+        double sinHalfDeltaPhi = Math.sin((phi2 - phi1) / 2);
+        double sinHalfDeltaLambda = Math.sin(Math.toRadians(longitude2 - longitude1) / 2);
+        double a = sinHalfDeltaPhi * sinHalfDeltaPhi +
+                Math.cos(phi1) * Math.cos(phi2) * sinHalfDeltaLambda * sinHalfDeltaLambda;
+        return 2 * EARTH_RADIUS_METRES * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+}
@@ -0,0 +1,64 @@
+package com.danielcswain.fogofwar.Geometry;
+
+/**
+ * Clips line segments to an axis aligned rectangle using the Liang-Barsky algorithm.
+ */
+public final class SegmentClipper {
+
+    private SegmentClipper() {
+    }
+
+    /**
+     * Clip the segment (x0, y0) -> (x1, y1) to the rectangle.
+     * @param segment: float[4] holding x0, y0, x1, y1; overwritten with the clipped segment.
+     * @return true if any part of the segment lies inside the rectangle.
+     */
+    public static boolean clip(float[] segment, float left, float top, float right, float bottom) {
+        float x0 = segment[0];
+        float y0 = segment[1];
+        float dx = segment[2] - x0;
+        float dy = segment[3] - y0;
+
+        float[] t = {0f, 1f};
+        if (!clipTest(-dx, x0 - left, t) || !clipTest(dx, right - x0, t) ||
+                !clipTest(-dy, y0 - top, t) || !clipTest(dy, bottom - y0, t)) {
+            return false;
+        }
+
+        if (t[1] < 1f) {
+            segment[2] = x0 + t[1] * dx;
+            segment[3] = y0 + t[1] * dy;
+        }
+        if (t[0] > 0f) {
+            segment[0] = x0 + t[0] * dx;
+            segment[1] = y0 + t[0] * dy;
+        }
+        return true;
+    }
+
+    /**
+     * Narrow the parametric range t[0]..t[1] against one edge of the rectangle.
+     */
+    private static boolean clipTest(float p, float q, float[] t) {
+        if (p == 0) {
+            return q >= 0;
+        }
+        float r = q / p;
+        if (p < 0) {
+            if (r > t[1]) {
+                return false;
+            }
+            if (r > t[0]) {
+                t[0] = r;
+            }
+        } else {
+            if (r < t[0]) {
+                return false;
+            }
+            if (r < t[1]) {
+                t[1] = r;
+            }
+        }
+        return true;
+    }
+}
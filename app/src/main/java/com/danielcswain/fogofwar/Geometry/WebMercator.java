@@ -0,0 +1,64 @@
+package com.danielcswain.fogofwar.Geometry;
+
+/**
+ * Web Mercator projection helpers, matching the projection used by Google Maps.
+ *
+ * Coordinates are normalised so the whole world spans [0, 1) on both axes, with x increasing east
+ * and y increasing south. Multiply by 2^zoom to get tile coordinates, or by 256 * 2^zoom to get
+ * world pixel coordinates at that zoom.
+ */
+public final class WebMercator {
+
+    public static final int TILE_SIZE = 256;
+    public static final double MAX_LATITUDE = 85.0511287798;
+
+    private WebMercator() {
+    }
+
+    /**
+     * Convert a longitude to a normalised x coordinate.
+     * @param longitude: double, longitude in degrees.
+     * @return the normalised x coordinate in [0, 1].
+     */
+    public static double toNormalisedX(double longitude) {
+        return (longitude + 180.0) / 360.0;
+    }
+
+    /**
+     * Convert a latitude to a normalised y coordinate.
+     * @param latitude: double, latitude in degrees (clamped to the Mercator limits).
+     * @return the normalised y coordinate in [0, 1].
+     */
+    public static double toNormalisedY(double latitude) {
+        double clamped = Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude));
+        double sinLatitude = Math.sin(Math.toRadians(clamped));
+        return 0.5 - Math.log((1 + sinLatitude) / (1 - sinLatitude)) / (4 * Math.PI);
+    }
+
+    /**
+     * Convert a normalised x coordinate back to a longitude.
+     * @param x: double, normalised x coordinate.
+     * @return the longitude in degrees.
+     */
+    public static double toLongitude(double x) {
+        return x * 360.0 - 180.0;
+    }
+
+    /**
+     * Convert a normalised y coordinate back to a latitude.
+     * @param y: double, normalised y coordinate.
+     * @return the latitude in degrees.
+     */
+    public static double toLatitude(double y) {
+        return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * y))));
+    }
+
+    /**
+     * Get the number of tiles along each axis at a zoom level.
+     * @param zoom: double, the zoom level (fractional zoom levels are allowed).
+     * @return 2^zoom.
+     */
+    public static double scale(double zoom) {
+        return Math.pow(2, zoom);
+    }
+}
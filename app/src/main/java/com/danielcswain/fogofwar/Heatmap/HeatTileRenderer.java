@@ -0,0 +1,79 @@
+package com.danielcswain.fogofwar.Heatmap;
+
+import java.util.List;
+
+/**
+ * Renders the visit counters of a map tile into a small image with one pixel per cell. Scaled up
+ * with filtering on screen, this gives a smooth heatmap for the cost of one bitmap per tile.
+ */
+public final class HeatTileRenderer {
+
+    // Visit counts at or above this use the hottest colour.
+    private static final int MAX_VISITS = 100;
+
+    private static final int PALETTE_SIZE = 64;
+
+    private HeatTileRenderer() {
+    }
+
+    /**
+     * Get the number of cells along each side of a tile.
+     * @param tileZoom: int, the zoom level of the tile.
+     * @return the width and height of the tile image in cells.
+     */
+    public static int getCellsPerSide(int tileZoom) {
+        return 1 << (VisitCounter.CELL_ZOOM - tileZoom);
+    }
+
+    /**
+     * Render a tile.
+     * @param tileZoom: int, the zoom level of the tile.
+     * @param tileX: int, the tile column.
+     * @param tileY: int, the tile row.
+     * @param visitCells: The VisitCells inside the tile.
+     * @param palette: int[] of ARGB colours from buildPalette.
+     * @return ARGB pixels of the tile image, row major, getCellsPerSide pixels square.
+     */
+    public static int[] render(int tileZoom, int tileX, int tileY, List<VisitCell> visitCells,
+                               int[] palette) {
+        int cellsPerSide = getCellsPerSide(tileZoom);
+        int originX = tileX * cellsPerSide;
+        int originY = tileY * cellsPerSide;
+
+        int[] pixels = new int[cellsPerSide * cellsPerSide];
+        double logMax = Math.log(MAX_VISITS + 1);
+        for (VisitCell visitCell : visitCells) {
+            int x = visitCell.getCellX() - originX;
+            int y = visitCell.getCellY() - originY;
+            if (x < 0 || y < 0 || x >= cellsPerSide || y >= cellsPerSide ||
+                    visitCell.getVisits() <= 0) {
+                continue;
+            }
+
+            // Visit counts are heavily skewed towards home and work, so use a log scale.
+            double heat = Math.min(1, Math.log(visitCell.getVisits() + 1) / logMax);
+            pixels[y * cellsPerSide + x] = palette[(int) Math.round(heat * (palette.length - 1))];
+        }
+        return pixels;
+    }
+
+    /**
+     * Build a colour ramp between two ARGB colours.
+     * @return int[] of ARGB colours from coolest to hottest.
+     */
+    public static int[] buildPalette(int lowColor, int highColor) {
+        int[] palette = new int[PALETTE_SIZE];
+        for (int i = 0; i < PALETTE_SIZE; i++) {
+            double t = (double) i / (PALETTE_SIZE - 1);
+            palette[i] = (lerp(lowColor >>> 24, highColor >>> 24, t) << 24) |
+                    (lerp((lowColor >> 16) & 0xff, (highColor >> 16) & 0xff, t) << 16) |
+                    (lerp((lowColor >> 8) & 0xff, (highColor >> 8) & 0xff, t) << 8) |
+                    lerp(lowColor & 0xff, highColor & 0xff, t);
+        }
+        return palette;
+    }
+
+    private static int lerp(int from, int to, double t) {
+        return (int) Math.round(from + (to - from) * t);
+    }
+}
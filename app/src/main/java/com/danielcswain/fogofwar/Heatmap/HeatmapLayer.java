@@ -0,0 +1,186 @@
+package com.danielcswain.fogofwar.Heatmap;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.support.v4.content.ContextCompat;
+import android.util.LruCache;
+import android.view.View;
+
+import com.danielcswain.fogofwar.Cache.CacheGovernor;
+import com.danielcswain.fogofwar.Cache.TileKey;
+import com.danielcswain.fogofwar.Cache.TrackTileCache;
+import com.danielcswain.fogofwar.Data.SQLDatabaseHelper;
+import com.danielcswain.fogofwar.R;
+import com.google.android.gms.maps.Projection;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Draws the visit-frequency heatmap as an alternative to the fog.
+ *
+ * Each map tile is rendered once from the VisitCells table into a small bitmap with one pixel per
+ * cell, and cached. Drawing a frame is then one filtered drawBitmap per visible tile, and never
+ * touches the database; missing or changed tiles are rendered on a background thread and the view
+ * is invalidated when they are ready.
+ */
+public class HeatmapLayer implements SQLDatabaseHelper.OnVisitCellsUpdatedListener {
+
+    private static final String TAG = HeatmapLayer.class.getSimpleName();
+
+    private static final int TILE_ZOOM = TrackTileCache.TILE_ZOOM;
+
+    // 32 x 32 ARGB tiles are 4 KB each.
+    private static final int MAX_CACHED_BYTES = 2 * 1024 * 1024;
+
+    private final SQLDatabaseHelper mSqlDatabaseHelper;
+    private final CacheGovernor mCacheGovernor;
+    private final View mView;
+    private final int[] mPalette;
+    private final LruCache<TileKey, Bitmap> mTiles;
+
+    // Tiles queued for rendering, so each is only queued once.
+    private final Set<TileKey> mQueuedTiles = Collections.synchronizedSet(new HashSet<TileKey>());
+
+    private final HandlerThread mHandlerThread;
+    private final Handler mHandler;
+
+    private final Paint mTilePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect mSource = new Rect();
+    private final Rect mDestination = new Rect();
+
+    /**
+     * Constructor for the HeatmapLayer.
+     * @param context: The Activity/Application context.
+     * @param sqlDatabaseHelper: The database helper the visit counters are read from.
+     * @param cacheGovernor: The CacheGovernor owning the memory budget.
+     * @param view: The View the heatmap is drawn in, invalidated when tiles are ready.
+     */
+    public HeatmapLayer(Context context, SQLDatabaseHelper sqlDatabaseHelper,
+                        CacheGovernor cacheGovernor, View view) {
+        mSqlDatabaseHelper = sqlDatabaseHelper;
+        mCacheGovernor = cacheGovernor;
+        mView = view;
+        mPalette = HeatTileRenderer.buildPalette(
+                ContextCompat.getColor(context, R.color.heatmap_low),
+                ContextCompat.getColor(context, R.color.heatmap_high));
+        mTiles = new LruCache<TileKey, Bitmap>(MAX_CACHED_BYTES) {
+            @Override
+            protected int sizeOf(TileKey key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+
+        mHandlerThread = new HandlerThread(
+                HeatmapLayer.class.getSimpleName(), Process.THREAD_PRIORITY_BACKGROUND);
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+
+        int cellsPerSide = HeatTileRenderer.getCellsPerSide(TILE_ZOOM);
+        mSource.set(0, 0, cellsPerSide, cellsPerSide);
+
+        sqlDatabaseHelper.addOnVisitCellsUpdatedListener(this);
+        // Heat tiles are cheap to re-render and only drawn while the heatmap is shown.
+        cacheGovernor.register(TAG, CacheGovernor.PRIORITY_LOW, mTiles);
+    }
+
+    /**
+     * Draw the cached heatmap tiles covering the map bounds, queueing any that are missing.
+     * @param canvas: The Canvas to draw on.
+     * @param projection: The Projection of the map.
+     * @param mapBounds: The LatLngBounds of the map view.
+     */
+    public void draw(Canvas canvas, Projection projection, LatLngBounds mapBounds) {
+        List<TileKey> tileKeys = TrackTileCache.getTilesInBounds(mapBounds);
+        if (tileKeys == null) {
+            // Zoomed too far out for the cells to be visible.
+            return;
+        }
+
+        for (TileKey tileKey : tileKeys) {
+            Bitmap tile = mTiles.get(tileKey);
+            if (tile == null) {
+                queueTile(tileKey);
+                continue;
+            }
+
+            LatLngBounds tileBounds = tileKey.getBounds();
+            Point northwest = projection.toScreenLocation(
+                    new LatLng(tileBounds.northeast.latitude, tileBounds.southwest.longitude));
+            Point southeast = projection.toScreenLocation(
+                    new LatLng(tileBounds.southwest.latitude, tileBounds.northeast.longitude));
+            mDestination.set(northwest.x, northwest.y, southeast.x, southeast.y);
+            canvas.drawBitmap(tile, mSource, mDestination, mTilePaint);
+        }
+    }
+
+    /**
+     * Re-render the tiles containing visited cells. The old tile keeps being drawn until the new
+     * one is ready.
+     */
+    @Override
+    public void onVisitCellsUpdated(List<VisitEvent> visitEvents) {
+        int shift = VisitCounter.CELL_ZOOM - TILE_ZOOM;
+        TileKey lastTileKey = null;
+        for (VisitEvent visitEvent : visitEvents) {
+            TileKey tileKey = new TileKey(TILE_ZOOM,
+                    visitEvent.getCellX() >> shift, visitEvent.getCellY() >> shift);
+            if (!tileKey.equals(lastTileKey) && mTiles.get(tileKey) != null) {
+                queueTile(tileKey);
+            }
+            lastTileKey = tileKey;
+        }
+    }
+
+    /**
+     * Stop the background thread and release the tiles. The layer cannot be used afterwards.
+     */
+    public void quit() {
+        mSqlDatabaseHelper.removeOnVisitCellsUpdatedListener(this);
+        mHandler.removeCallbacksAndMessages(null);
+        mHandlerThread.quit();
+        mCacheGovernor.unregister(mTiles);
+        mTiles.evictAll();
+    }
+
+    private void queueTile(final TileKey tileKey) {
+        if (!mQueuedTiles.add(tileKey)) {
+            return;
+        }
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mQueuedTiles.remove(tileKey);
+                mTiles.put(tileKey, renderTile(tileKey));
+                mCacheGovernor.onCacheGrown();
+                mView.postInvalidate();
+            }
+        });
+    }
+
+    /**
+     * Render a tile from the stored visit counters. Runs on the background thread.
+     */
+    private Bitmap renderTile(TileKey tileKey) {
+        int cellsPerSide = HeatTileRenderer.getCellsPerSide(TILE_ZOOM);
+        int minCellX = tileKey.x * cellsPerSide;
+        int minCellY = tileKey.y * cellsPerSide;
+        List<VisitCell> visitCells = mSqlDatabaseHelper.getVisitCellsInRange(minCellX, minCellY,
+                minCellX + cellsPerSide - 1, minCellY + cellsPerSide - 1);
+
+        int[] pixels = HeatTileRenderer.render(TILE_ZOOM, tileKey.x, tileKey.y, visitCells, mPalette);
+        return Bitmap.createBitmap(pixels, cellsPerSide, cellsPerSide, Bitmap.Config.ARGB_8888);
+    }
+}
@@ -0,0 +1,41 @@
+package com.danielcswain.fogofwar.Heatmap;
+
+/**
+ * The stored visit counters of one heatmap cell.
+ */
+public class VisitCell {
+
+    private final int cellX;
+    private final int cellY;
+    private final int visits;
+    private final long dwellMillis;
+    private final long lastVisit;
+
+    public VisitCell(int cellX, int cellY, int visits, long dwellMillis, long lastVisit) {
+        this.cellX = cellX;
+        this.cellY = cellY;
+        this.visits = visits;
+        this.dwellMillis = dwellMillis;
+        this.lastVisit = lastVisit;
+    }
+
+    public int getCellX() {
+        return cellX;
+    }
+
+    public int getCellY() {
+        return cellY;
+    }
+
+    public int getVisits() {
+        return visits;
+    }
+
+    public long getDwellMillis() {
+        return dwellMillis;
+    }
+
+    public long getLastVisit() {
+        return lastVisit;
+    }
+}
@@ -0,0 +1,114 @@
+package com.danielcswain.fogofwar.Heatmap;
+
+import com.danielcswain.fogofwar.Data.LocationObject;
+import com.danielcswain.fogofwar.Data.SegmentBuilder;
+import com.danielcswain.fogofwar.Geometry.WebMercator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Detects visits to heatmap cells as fixes arrive, so the per-cell counters can be updated
+ * incrementally instead of being recomputed from every stored location.
+ *
+ * Cells are zoom 19 Web Mercator tiles, roughly 75 m across at the equator. Time spent between
+ * two fixes in the same cell is dwell time. Every cell crossed on the way to a new cell is
+ * visited; the database only counts it as a new visit if the cell was last visited more than
+ * REVISIT_GAP_MS earlier, so staying in or bouncing around a cell is one visit.
+ *
+ * Cells are only walked between fixes SegmentBuilder would join, so a GPS jump visits the cell
+ * it lands in rather than drawing a streak of heat to it.
+ */
+public class VisitCounter {
+
+    public static final int CELL_ZOOM = 19;
+
+    // A cell left and re-entered within this time is the same visit.
+    public static final long REVISIT_GAP_MS = 30 * 60 * 1000;
+
+    // Longer gaps between fixes are not counted as dwell time.
+    private static final long MAX_DWELL_GAP_MS = 10 * 60 * 1000;
+
+    private LocationObject mPreviousLocation;
+
+    /**
+     * Set the last fix seen, e.g. the newest stored location when the app restarts.
+     * @param previousLocation: A LocationObject, or null to start afresh.
+     */
+    public void setPreviousLocation(LocationObject previousLocation) {
+        mPreviousLocation = previousLocation;
+    }
+
+    /**
+     * Add the next fix and get the cell visits it implies.
+     * @param nextLocation: A LocationObject, the newest fix.
+     * @return a List of VisitEvents in time order.
+     */
+    public List<VisitEvent> addLocation(LocationObject nextLocation) {
+        LocationObject previousLocation = mPreviousLocation;
+        mPreviousLocation = nextLocation;
+
+        int cellX = getCellX(nextLocation.getLongitude());
+        int cellY = getCellY(nextLocation.getLatitude());
+        long datetime = nextLocation.getDatetime();
+
+        if (previousLocation == null ||
+                datetime - previousLocation.getDatetime() > MAX_DWELL_GAP_MS ||
+                datetime < previousLocation.getDatetime()) {
+            return Collections.singletonList(new VisitEvent(cellX, cellY, datetime, 0));
+        }
+
+        int previousCellX = getCellX(previousLocation.getLongitude());
+        int previousCellY = getCellY(previousLocation.getLatitude());
+        if (previousCellX == cellX && previousCellY == cellY) {
+            return Collections.singletonList(new VisitEvent(
+                    cellX, cellY, datetime, datetime - previousLocation.getDatetime()));
+        }
+
+        if (!SegmentBuilder.isPossibleToTravelBetweenPoints(previousLocation, nextLocation)) {
+            return Collections.singletonList(new VisitEvent(cellX, cellY, datetime, 0));
+        }
+        return getCellsCrossed(previousLocation, nextLocation);
+    }
+
+    /**
+     * Walk the cells along the line between two fixes, visiting each cell entered after the
+     * first at the time the line reaches it.
+     */
+    private static List<VisitEvent> getCellsCrossed(LocationObject start, LocationObject end) {
+        double scale = WebMercator.scale(CELL_ZOOM);
+        double x0 = WebMercator.toNormalisedX(start.getLongitude()) * scale;
+        double y0 = WebMercator.toNormalisedY(start.getLatitude()) * scale;
+        double x1 = WebMercator.toNormalisedX(end.getLongitude()) * scale;
+        double y1 = WebMercator.toNormalisedY(end.getLatitude()) * scale;
+
+        // Sample at quarter cell steps, which cannot skip over a cell the line passes through
+        // by more than a corner.
+        int steps = Math.max(1, (int) Math.ceil(Math.max(Math.abs(x1 - x0), Math.abs(y1 - y0)) * 4));
+        long duration = end.getDatetime() - start.getDatetime();
+
+        List<VisitEvent> visitEvents = new ArrayList<>();
+        int lastX = (int) Math.floor(x0);
+        int lastY = (int) Math.floor(y0);
+        for (int i = 1; i <= steps; i++) {
+            double t = (double) i / steps;
+            int x = (int) Math.floor(x0 + (x1 - x0) * t);
+            int y = (int) Math.floor(y0 + (y1 - y0) * t);
+            if (x != lastX || y != lastY) {
+                visitEvents.add(new VisitEvent(x, y, start.getDatetime() + (long) (duration * t), 0));
+                lastX = x;
+                lastY = y;
+            }
+        }
+        return visitEvents;
+    }
+
+    public static int getCellX(double longitude) {
+        return (int) Math.floor(WebMercator.toNormalisedX(longitude) * WebMercator.scale(CELL_ZOOM));
+    }
+
+    public static int getCellY(double latitude) {
+        return (int) Math.floor(WebMercator.toNormalisedY(latitude) * WebMercator.scale(CELL_ZOOM));
+    }
+}
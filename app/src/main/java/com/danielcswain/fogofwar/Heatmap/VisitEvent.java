@@ -0,0 +1,36 @@
+package com.danielcswain.fogofwar.Heatmap;
+
+/**
+ * A visit to a heatmap cell detected at ingestion: the cell was entered or stayed in at the given
+ * time, adding dwell time to it.
+ */
+public class VisitEvent {
+
+    private final int cellX;
+    private final int cellY;
+    private final long datetime;
+    private final long dwellMillis;
+
+    public VisitEvent(int cellX, int cellY, long datetime, long dwellMillis) {
+        this.cellX = cellX;
+        this.cellY = cellY;
+        this.datetime = datetime;
+        this.dwellMillis = dwellMillis;
+    }
+
+    public int getCellX() {
+        return cellX;
+    }
+
+    public int getCellY() {
+        return cellY;
+    }
+
+    public long getDatetime() {
+        return datetime;
+    }
+
+    public long getDwellMillis() {
+        return dwellMillis;
+    }
+}
@@ -2,10 +2,14 @@ package com.danielcswain.fogofwar;
 
 import android.Manifest;
 import android.app.Activity;
+import android.content.ClipData;
+import android.content.ContentResolver;
 import android.content.Intent;
 import android.content.IntentSender;
 import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
 import android.location.Location;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Looper;
 import android.support.annotation.NonNull;
@@ -15,11 +19,36 @@ import android.support.v4.content.ContextCompat;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
 import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.view.TextureView;
+import android.view.View;
+import android.widget.SeekBar;
+import android.widget.TextView;
 import android.widget.Toast;
 
+import com.danielcswain.fogofwar.Cache.CacheGovernor;
+import com.danielcswain.fogofwar.Cache.TrackTileCache;
+import com.danielcswain.fogofwar.Cache.ViewportPrefetcher;
+import com.danielcswain.fogofwar.Compaction.CompactionJobService;
 import com.danielcswain.fogofwar.Data.LocationObject;
+import com.danielcswain.fogofwar.Data.Partition;
 import com.danielcswain.fogofwar.Data.SQLDatabaseHelper;
+import com.danielcswain.fogofwar.Data.SegmentObject;
+import com.danielcswain.fogofwar.Explored.ExploredAreaExporter;
+import com.danielcswain.fogofwar.Explored.FogFinder;
+import com.danielcswain.fogofwar.Explored.FogPyramidLayer;
+import com.danielcswain.fogofwar.Explored.FogTarget;
+import com.danielcswain.fogofwar.Explored.TimelineLayer;
+import com.danielcswain.fogofwar.Heatmap.HeatmapLayer;
+import com.danielcswain.fogofwar.Merge.HistoryMerger;
+import com.danielcswain.fogofwar.Merge.MergeResult;
 import com.danielcswain.fogofwar.OpenSourcePackages.PermissionUtils;
+import com.danielcswain.fogofwar.Rendering.FrameStats;
+import com.danielcswain.fogofwar.Rendering.GlFogRenderer;
+import com.danielcswain.fogofwar.Rendering.TrackPathBuilder;
+import com.danielcswain.fogofwar.Startup.FogSnapshotStore;
+import com.danielcswain.fogofwar.Startup.StartupMetrics;
 import com.google.android.gms.common.api.ApiException;
 import com.google.android.gms.common.api.ResolvableApiException;
 import com.google.android.gms.location.FusedLocationProviderClient;
@@ -39,17 +68,33 @@ import com.google.android.gms.maps.OnMapReadyCallback;
 import com.google.android.gms.maps.Projection;
 import com.google.android.gms.maps.SupportMapFragment;
 import com.google.android.gms.maps.UiSettings;
+import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+import com.google.android.gms.maps.model.CameraPosition;
 import com.google.android.gms.maps.model.LatLng;
 import com.google.android.gms.maps.model.LatLngBounds;
+import com.google.android.gms.maps.model.Marker;
+import com.google.android.gms.maps.model.MarkerOptions;
 import com.google.android.gms.tasks.OnFailureListener;
 import com.google.android.gms.tasks.OnSuccessListener;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import static com.danielcswain.fogofwar.R.id.map;
 
 public class MainActivity extends AppCompatActivity
         implements
+        GoogleMap.OnCameraIdleListener,
         GoogleMap.OnCameraMoveListener,
         OnMyLocationButtonClickListener,
         OnMapReadyCallback,
@@ -60,10 +105,14 @@ public class MainActivity extends AppCompatActivity
     private static final int FASTEST_UPDATE_INTERVAL_IN_MILLISECONDS = 5000;
     private static final int LOCATION_PERMISSION_REQUEST_CODE = 1;
     private static final int REQUEST_CHECK_SETTINGS = 2;
+    private static final int REQUEST_MERGE_HISTORIES = 3;
     private static final int UPDATE_INTERVAL_IN_MILLISECONDS = 10000;
 
     private final static String KEY_LOCATION = "location";
 
+    // The timeline scrubs through the history a day at a time.
+    private static final long TIMELINE_STEP_MS = TimeUnit.DAYS.toMillis(1);
+
     private boolean mPermissionDenied = false;
 
     private FusedLocationProviderClient mFusedLocationClient;
@@ -76,6 +125,24 @@ public class MainActivity extends AppCompatActivity
     private float mCurrentZoom = -1;
 
     private SQLDatabaseHelper mSqlDatabaseHelper;
+    private CacheGovernor mCacheGovernor;
+    private TrackTileCache mTrackTileCache;
+    private ViewportPrefetcher mViewportPrefetcher;
+    private HeatmapLayer mHeatmapLayer;
+    private FogSnapshotStore mFogSnapshotStore;
+    private StartupMetrics mStartupMetrics;
+    private GlFogRenderer mGlFogRenderer;
+    private TextureView mFogTextureView;
+    private boolean mSoftwareFog = false;
+    private TimelineLayer mTimelineLayer;
+    private FogPyramidLayer mFogPyramidLayer;
+    private FogFinder mFogFinder;
+    private Marker mFogTargetMarker;
+    private View mTimelinePanel;
+    private SeekBar mTimelineSeekBar;
+    private TextView mTimelineLabel;
+    private long mTimelineStart;
+    private final FrameStats mUiFrameStats = new FrameStats("MainActivity UI thread");
     private OverlayView overlayView;
 
     /**
@@ -84,11 +151,85 @@ public class MainActivity extends AppCompatActivity
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mStartupMetrics = new StartupMetrics();
         setContentView(R.layout.activity_main);
 
         // Get the database helper and overlay view.
-        mSqlDatabaseHelper = new SQLDatabaseHelper(this);
+        mSqlDatabaseHelper = SQLDatabaseHelper.getInstance(this);
+        mCacheGovernor = CacheGovernor.getInstance(this);
+        mTrackTileCache = new TrackTileCache(mSqlDatabaseHelper, mCacheGovernor);
+        mViewportPrefetcher = new ViewportPrefetcher(mTrackTileCache);
         overlayView = findViewById(R.id.overlay);
+        mHeatmapLayer = new HeatmapLayer(this, mSqlDatabaseHelper, mCacheGovernor,
+                overlayView);
+        overlayView.setHeatmapLayer(mHeatmapLayer);
+        overlayView.setOnFogDrawnListener(mStartupMetrics);
+        mTimelineLayer = new TimelineLayer(mSqlDatabaseHelper, mCacheGovernor, overlayView);
+        overlayView.setTimelineLayer(mTimelineLayer);
+        mFogPyramidLayer = new FogPyramidLayer(mSqlDatabaseHelper, mCacheGovernor, overlayView);
+        overlayView.setFogPyramidLayer(mFogPyramidLayer);
+        mFogFinder = new FogFinder(mSqlDatabaseHelper);
+        mTimelinePanel = findViewById(R.id.timeline_panel);
+        mTimelineLabel = findViewById(R.id.timeline_label);
+        mTimelineSeekBar = findViewById(R.id.timeline_seekbar);
+        mTimelineSeekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                showTimelineDate(progress);
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+            }
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+            }
+        });
+
+        // The fog is drawn on the GPU behind the overlay view, which keeps drawing the snapshot
+        // and the heatmap, unless the software fog is selected or the GPU renderer fails.
+        mFogTextureView = findViewById(R.id.fog_texture);
+        mFogTextureView.setOpaque(false);
+        mGlFogRenderer = new GlFogRenderer(mTrackTileCache, mSqlDatabaseHelper,
+                ContextCompat.getColor(this, R.color.overlay));
+        mFogTextureView.setSurfaceTextureListener(mGlFogRenderer);
+        mGlFogRenderer.setOnRendererStateListener(new GlFogRenderer.OnRendererStateListener() {
+            @Override
+            public void onFirstFrameRendered() {
+                if (!mSoftwareFog) {
+                    overlayView.dismissSnapshot();
+                    mStartupMetrics.onFogDrawn(false);
+                }
+            }
+
+            @Override
+            public void onRendererFailed() {
+                Log.w(TAG, "GPU fog unavailable, drawing the fog in software");
+                setSoftwareFog(true);
+                invalidateOptionsMenu();
+            }
+        });
+        // Only choose the renderer here; onMapReady draws the first frame once the map and the
+        // overlay are laid out.
+        overlayView.setSoftwareFogEnabled(mSoftwareFog);
+        updateFogTextureVisibility();
+
+        // Show the fog saved on the last exit straight away, and open the database and load the
+        // track around the saved viewport in the background while the map starts.
+        mFogSnapshotStore = new FogSnapshotStore(this);
+        mFogSnapshotStore.loadSnapshot(new FogSnapshotStore.OnSnapshotLoadedListener() {
+            @Override
+            public void onSnapshotLoaded(Bitmap snapshot, int viewWidth, int viewHeight) {
+                overlayView.setSnapshot(snapshot, viewWidth, viewHeight);
+            }
+        });
+        mSqlDatabaseHelper.warmUp();
+        CompactionJobService.schedule(this);
+        LatLngBounds savedBounds = mFogSnapshotStore.getBounds();
+        if (savedBounds != null) {
+            mViewportPrefetcher.onCameraIdle(savedBounds);
+        }
 
         // Set up the ActionBar.
         Toolbar myToolbar = findViewById(R.id.my_toolbar);
@@ -111,6 +252,275 @@ public class MainActivity extends AppCompatActivity
         buildLocationSettingsRequest();
     }
 
+    /**
+     * Add the map layer options to the toolbar.
+     */
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_main, menu);
+        menu.findItem(R.id.action_software_fog).setChecked(mSoftwareFog);
+        return true;
+    }
+
+    /**
+     * Handle the toolbar options.
+     * @param item: The MenuItem selected.
+     * @return true if the item was handled.
+     */
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case R.id.action_heatmap:
+                item.setChecked(!item.isChecked());
+                overlayView.setHeatmapEnabled(item.isChecked());
+                updateFogTextureVisibility();
+                if (mMap != null && !item.isChecked()) {
+                    drawPathInMapBounds();
+                }
+                return true;
+            case R.id.action_software_fog:
+                item.setChecked(!item.isChecked());
+                setSoftwareFog(item.isChecked());
+                return true;
+            case R.id.action_timeline:
+                item.setChecked(!item.isChecked());
+                setTimelineEnabled(item.isChecked());
+                return true;
+            case R.id.action_export:
+                exportExploredArea();
+                return true;
+            case R.id.action_merge:
+                chooseHistoriesToMerge();
+                return true;
+            case R.id.action_nearest_fog:
+                findFog(false);
+                return true;
+            case R.id.action_largest_fog:
+                findFog(true);
+                return true;
+            default:
+                return super.onOptionsItemSelected(item);
+        }
+    }
+
+    /**
+     * Show or hide the timeline. It opens on the present and reaches back to the first stored
+     * location.
+     * @param timelineEnabled: boolean, true to show the fog for the timeline's date.
+     */
+    private void setTimelineEnabled(boolean timelineEnabled) {
+        if (timelineEnabled) {
+            long now = System.currentTimeMillis();
+            mTimelineStart = now;
+            for (Partition partition : mSqlDatabaseHelper.getPartitions()) {
+                if (partition.getLocationCount() > 0) {
+                    mTimelineStart = Math.min(mTimelineStart, partition.getStartDatetime());
+                }
+            }
+            int steps = (int) ((now - mTimelineStart) / TIMELINE_STEP_MS) + 1;
+            mTimelineSeekBar.setMax(steps);
+            mTimelineSeekBar.setProgress(steps);
+            showTimelineDate(steps);
+        }
+
+        mTimelinePanel.setVisibility(timelineEnabled ? View.VISIBLE : View.GONE);
+        overlayView.setTimelineEnabled(timelineEnabled);
+        updateFogTextureVisibility();
+        if (mMap != null && !timelineEnabled) {
+            drawPathInMapBounds();
+        }
+    }
+
+    /**
+     * Show the fog at the end of a day of the timeline, or now at its end.
+     * @param progress: int, the number of days from the start of the timeline.
+     */
+    private void showTimelineDate(int progress) {
+        long datetime = progress >= mTimelineSeekBar.getMax() ? System.currentTimeMillis() :
+                mTimelineStart + (progress + 1) * TIMELINE_STEP_MS - 1;
+        mTimelineLabel.setText(DateFormat.getDateInstance().format(new Date(datetime)));
+        mTimelineLayer.setDatetime(datetime);
+    }
+
+    /**
+     * Export the explored area as GeoJSON and tell the user where it was written.
+     */
+    private void exportExploredArea() {
+        new ExploredAreaExporter(this, mSqlDatabaseHelper).export(
+                new ExploredAreaExporter.OnExportFinishedListener() {
+                    @Override
+                    public void onExportFinished(File exportFile, double areaSquareMetres) {
+                        if (exportFile == null) {
+                            Toast.makeText(MainActivity.this, R.string.export_failed,
+                                    Toast.LENGTH_LONG).show();
+                            return;
+                        }
+                        Toast.makeText(MainActivity.this, getString(R.string.export_finished,
+                                areaSquareMetres / 1e6, exportFile.getPath()),
+                                Toast.LENGTH_LONG).show();
+                    }
+                });
+    }
+
+    /**
+     * Find unexplored area around the current location and show it as a target on the map.
+     * @param largest: boolean, true for the largest unexplored area nearby, false for the
+     *      nearest unexplored cell.
+     */
+    private void findFog(final boolean largest) {
+        if (mCurrentLocation == null) {
+            Toast.makeText(this, R.string.fog_no_location, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        FogFinder.OnFogFoundListener listener = new FogFinder.OnFogFoundListener() {
+            @Override
+            public void onFogFound(FogTarget fogTarget) {
+                if (isDestroyed()) {
+                    return;
+                }
+                if (fogTarget == null) {
+                    Toast.makeText(MainActivity.this, largest ? R.string.fog_largest_not_found :
+                            R.string.fog_nearest_not_found, Toast.LENGTH_LONG).show();
+                    return;
+                }
+                showFogTarget(fogTarget, largest);
+            }
+        };
+        double latitude = mCurrentLocation.getLatitude();
+        double longitude = mCurrentLocation.getLongitude();
+        if (largest) {
+            mFogFinder.findLargestFog(latitude, longitude, listener);
+        } else {
+            mFogFinder.findNearestFog(latitude, longitude, listener);
+        }
+    }
+
+    /**
+     * Mark a found unexplored area on the map, replacing the last one, and move the camera to it.
+     * @param fogTarget: The FogTarget found.
+     * @param largest: boolean, true if it is the largest unexplored area nearby.
+     */
+    private void showFogTarget(FogTarget fogTarget, boolean largest) {
+        if (mMap == null) {
+            return;
+        }
+        if (mFogTargetMarker != null) {
+            mFogTargetMarker.remove();
+        }
+
+        String title = largest ?
+                getString(R.string.fog_largest_target, Math.round(fogTarget.getSizeMetres()),
+                        Math.round(fogTarget.getDistanceMetres())) :
+                getString(R.string.fog_nearest_target, Math.round(fogTarget.getDistanceMetres()));
+        LatLng latLng = new LatLng(fogTarget.getLatitude(), fogTarget.getLongitude());
+        mFogTargetMarker = mMap.addMarker(new MarkerOptions()
+                .position(latLng)
+                .title(title)
+                .icon(BitmapDescriptorFactory.defaultMarker(BitmapDescriptorFactory.HUE_AZURE)));
+        mFogTargetMarker.showInfoWindow();
+
+        mMap.animateCamera(CameraUpdateFactory.newLatLng(latLng),
+                new GoogleMap.CancelableCallback() {
+                    @Override
+                    public void onFinish() {
+                        drawPathInMapBounds();
+                    }
+
+                    @Override
+                    public void onCancel() {
+                        drawPathInMapBounds();
+                    }
+                });
+    }
+
+    /**
+     * Ask the user to pick the histories exported from their other devices.
+     */
+    private void chooseHistoriesToMerge() {
+        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType("text/*");
+        intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
+        startActivityForResult(intent, REQUEST_MERGE_HISTORIES);
+    }
+
+    /**
+     * Merge the picked histories into the database and tell the user what was merged.
+     * @param data: Intent returned by the document picker, holding one Uri or several as ClipData.
+     */
+    private void mergeHistories(Intent data) {
+        List<Uri> uris = new ArrayList<>();
+        ClipData clipData = data.getClipData();
+        if (clipData != null) {
+            for (int i = 0; i < clipData.getItemCount(); i++) {
+                uris.add(clipData.getItemAt(i).getUri());
+            }
+        } else if (data.getData() != null) {
+            uris.add(data.getData());
+        }
+        if (uris.isEmpty()) {
+            return;
+        }
+
+        final ContentResolver contentResolver = getContentResolver();
+        List<HistoryMerger.HistorySource> historySources = new ArrayList<>();
+        for (final Uri uri : uris) {
+            historySources.add(new HistoryMerger.HistorySource() {
+                @Override
+                public InputStream open() throws IOException {
+                    InputStream inputStream = contentResolver.openInputStream(uri);
+                    if (inputStream == null) {
+                        throw new FileNotFoundException("Could not open " + uri);
+                    }
+                    return inputStream;
+                }
+            });
+        }
+
+        new HistoryMerger(this, mSqlDatabaseHelper).merge(historySources,
+                new HistoryMerger.OnMergeFinishedListener() {
+                    @Override
+                    public void onMergeFinished(MergeResult mergeResult) {
+                        if (mergeResult == null) {
+                            Toast.makeText(MainActivity.this, R.string.merge_failed,
+                                    Toast.LENGTH_LONG).show();
+                            return;
+                        }
+                        Toast.makeText(MainActivity.this, getString(R.string.merge_finished,
+                                mergeResult.getFixesStored(), mergeResult.getSources(),
+                                mergeResult.getDuplicatesRemoved()),
+                                Toast.LENGTH_LONG).show();
+                        if (mMap != null && !isDestroyed()) {
+                            drawPathInMapBounds();
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Choose whether the fog is drawn in software by the overlay view or on the GPU by the
+     * GlFogRenderer.
+     * @param softwareFog: boolean, true to draw the fog in software.
+     */
+    private void setSoftwareFog(boolean softwareFog) {
+        mSoftwareFog = softwareFog;
+        overlayView.setSoftwareFogEnabled(softwareFog);
+        updateFogTextureVisibility();
+        if (mMap != null) {
+            drawPathInMapBounds();
+        }
+    }
+
+    /**
+     * Only show the GPU fog while it is the fog being drawn.
+     */
+    private void updateFogTextureVisibility() {
+        boolean visible = !mSoftwareFog && !overlayView.isHeatmapEnabled() &&
+                !overlayView.isTimelineEnabled() && !overlayView.isFogPyramidEnabled();
+        mFogTextureView.setVisibility(visible ? View.VISIBLE : View.INVISIBLE);
+    }
+
     /**
      * Updates the location based on data stored in the bundle.
      *
@@ -235,13 +645,51 @@ public class MainActivity extends AppCompatActivity
     }
 
     /**
-     * Stop location updates when the activity is exited.
+     * Stop location updates when the activity is exited, and save the camera and fog for the
+     * next launch.
      */
     @Override
     protected void onPause() {
         super.onPause();
 
         stopLocationUpdates();
+
+        if (mMap != null) {
+            // The GPU fog cannot be read back cheaply, so the snapshot is drawn from a software
+            // path built for the final camera.
+            boolean pathShown = !overlayView.isHeatmapEnabled() &&
+                    !overlayView.isTimelineEnabled();
+            if (!mSoftwareFog && pathShown && !overlayView.isFogPyramidEnabled()) {
+                drawSoftwarePath();
+            }
+
+            // The heatmap and timeline do not keep the fog's path up to date, so no snapshot is
+            // saved.
+            Bitmap snapshot = !pathShown ? null :
+                    overlayView.createSnapshot(FogSnapshotStore.SNAPSHOT_SCALE);
+            mFogSnapshotStore.save(mMap.getCameraPosition(),
+                    mMap.getProjection().getVisibleRegion().latLngBounds, snapshot,
+                    overlayView.getWidth(), overlayView.getHeight());
+        }
+    }
+
+    /**
+     * Stop the background threads when the activity is destroyed.
+     */
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        mViewportPrefetcher.quit();
+        mHeatmapLayer.quit();
+        mTimelineLayer.quit();
+        mFogPyramidLayer.quit();
+        mGlFogRenderer.quit();
+        mTrackTileCache.release();
+
+        // The map is destroyed with the activity; a recreated activity waits for its own.
+        mMap = null;
+        mFogTargetMarker = null;
     }
 
     /**
@@ -278,6 +726,16 @@ public class MainActivity extends AppCompatActivity
 
         // The CameraMoveListener redraws the path when the user pans the camera.
         mMap.setOnCameraMoveListener(this);
+        // The CameraIdleListener prefetches the area around the camera once it stops.
+        mMap.setOnCameraIdleListener(this);
+
+        // Return to where the map was left rather than waiting for the first location.
+        CameraPosition savedCameraPosition = mFogSnapshotStore.getCameraPosition();
+        if (savedCameraPosition != null && mCurrentZoom == -1) {
+            mMap.moveCamera(CameraUpdateFactory.newCameraPosition(savedCameraPosition));
+            mCurrentZoom = savedCameraPosition.zoom;
+        }
+        drawPathInMapBounds();
     }
 
     /**
@@ -291,6 +749,11 @@ public class MainActivity extends AppCompatActivity
             LatLng latLng = new LatLng(latitude, longitude);
             saveCurrentLocation(latLng);
 
+            // The camera is moved once the map is ready.
+            if (mMap == null) {
+                return;
+            }
+
             // Default zoom is 17 unless the user has changed the maps zoom.
             if (mCurrentZoom == -1) {
                 mCurrentZoom = 17;
@@ -319,20 +782,93 @@ public class MainActivity extends AppCompatActivity
      */
     private void saveCurrentLocation(LatLng latLng) {
         LocationObject locationObject = new LocationObject(latLng);
-        mSqlDatabaseHelper.addLocation(locationObject);
+        mSqlDatabaseHelper.enqueueLocation(locationObject);
     }
 
     /**
      * Draw the visited locations that are in the map's bounds.
      */
     private void drawPathInMapBounds() {
-        // Get the map bounds and the LocationObjects in the bounds.
+        drawPathInMapBounds(false);
+    }
+
+    /**
+     * Draw the visited locations that are in the map's bounds.
+     * @param cameraMoving: boolean, true while the camera is moving, when the software path is
+     *      moved with it where possible rather than rebuilt.
+     */
+    private void drawPathInMapBounds(boolean cameraMoving) {
+        if (overlayView.isHeatmapEnabled() || overlayView.isTimelineEnabled()) {
+            // The heatmap and timeline are drawn from cached tiles for the current camera in
+            // onDraw.
+            overlayView.invalidate();
+            return;
+        }
+
+        // Zoomed out, the fog is drawn from the pyramid's tiles in onDraw, whichever renderer
+        // draws it closer in.
+        boolean zoomedOut = FogPyramidLayer.isShownAt(mMap.getCameraPosition().zoom);
+        overlayView.setFogPyramidEnabled(zoomedOut);
+        updateFogTextureVisibility();
+        if (zoomedOut) {
+            overlayView.invalidate();
+            return;
+        }
+
+        long start = System.nanoTime();
+        if (mSoftwareFog) {
+            if (!cameraMoving || !moveSoftwarePath()) {
+                drawSoftwarePath();
+            }
+        } else {
+            // Only the camera is captured here; the track is drawn on the render thread.
+            Projection mapProjection = mMap.getProjection();
+            mGlFogRenderer.requestRender(GlFogRenderer.createFrame(mapProjection,
+                    overlayView.getWidth(), overlayView.getHeight(),
+                    OverlayView.getStrokeMargin(mapProjection)));
+        }
+        mUiFrameStats.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Build the overlay view's software path from the segments in the map's bounds.
+     */
+    private void drawSoftwarePath() {
+        // Get the map bounds and the SegmentObjects overlapping the bounds.
         Projection mapProjection = mMap.getProjection();
         LatLngBounds mapBounds = mapProjection.getVisibleRegion().latLngBounds;
 
-        List<LocationObject> locationObjects = mSqlDatabaseHelper.getLocationsInWindow(mapBounds);
+        List<SegmentObject> segmentObjects =
+                mTrackTileCache.getSegmentsInWindow(TrackPathBuilder.getBoundsWithStrokeMargin(
+                        mapBounds, OverlayView.getStrokeMargin(mapProjection),
+                        overlayView.getWidth(), overlayView.getHeight()));
+
+        overlayView.drawPathInMapBounds(segmentObjects);
+    }
+
+    /**
+     * Move the overlay view's software path with the camera, fetching only the segments in the
+     * areas newly exposed at the edges of the screen.
+     * @return false if the path could not be moved and must be rebuilt.
+     */
+    private boolean moveSoftwarePath() {
+        List<LatLngBounds> exposedBounds =
+                overlayView.movePath(mMap.getProjection(), mMap.getCameraPosition());
+        if (exposedBounds == null) {
+            return false;
+        }
 
-        overlayView.drawPathInMapBounds(locationObjects);
+        // The areas' windows share tiles, so a segment is often returned for several of them.
+        Map<Long, SegmentObject> exposedSegments = new HashMap<>();
+        for (LatLngBounds bounds : exposedBounds) {
+            for (SegmentObject segmentObject : mTrackTileCache.getSegmentsInWindow(bounds)) {
+                exposedSegments.put(segmentObject.getId(), segmentObject);
+            }
+        }
+        List<SegmentObject> segmentObjects = new ArrayList<>(exposedSegments.values());
+        Collections.sort(segmentObjects, SegmentObject.RECORDED_ORDER);
+        overlayView.addExposedSegments(segmentObjects);
+        return true;
     }
 
     /**
@@ -359,7 +895,27 @@ public class MainActivity extends AppCompatActivity
      */
     @Override
     public void onCameraMove() {
+        drawPathInMapBounds(true);
+
+        LatLngBounds mapBounds = mMap.getProjection().getVisibleRegion().latLngBounds;
+        mViewportPrefetcher.onCameraMove(mMap.getCameraPosition(), mapBounds);
+    }
+
+    /**
+     * When the map camera stops, rebuild the path the camera move has only moved, prefetch the
+     * area around it and log the cache counters.
+     */
+    @Override
+    public void onCameraIdle() {
         drawPathInMapBounds();
+
+        LatLngBounds mapBounds = mMap.getProjection().getVisibleRegion().latLngBounds;
+        mViewportPrefetcher.onCameraIdle(mapBounds);
+        mTrackTileCache.logStats();
+        mCacheGovernor.logStats();
+        Log.d(TAG, mUiFrameStats.getStatsAndReset());
+        Log.d(TAG, mSoftwareFog ? overlayView.getStatsAndReset() :
+                mGlFogRenderer.getStatsAndReset());
     }
 
     /**
@@ -417,6 +973,11 @@ public class MainActivity extends AppCompatActivity
                         break;
                 }
                 break;
+            case REQUEST_MERGE_HISTORIES:
+                if (resultCode == Activity.RESULT_OK && data != null) {
+                    mergeHistories(data);
+                }
+                break;
         }
     }
 
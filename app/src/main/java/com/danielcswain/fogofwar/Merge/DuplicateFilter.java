@@ -0,0 +1,109 @@
+package com.danielcswain.fogofwar.Merge;
+
+import com.danielcswain.fogofwar.Data.LocationObject;
+import com.danielcswain.fogofwar.Geometry.GeoMath;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Drops fixes which repeat one already kept: the same fix exported twice, or two phones carried
+ * together recording the same walk.
+ *
+ * A fix is a duplicate of another from a different history if they were recorded within
+ * MAX_TIME_DIFFERENCE_MS and MAX_DISTANCE_METRES of each other. Fixes from the same history are
+ * only duplicates if recorded at the same moment, since a history's own fixes may legitimately be
+ * close together. Fixes must be passed in time order; only the kept fixes of the last
+ * MAX_TIME_DIFFERENCE_MS are held.
+ */
+final class DuplicateFilter {
+
+    static final long MAX_TIME_DIFFERENCE_MS = 2000;
+
+    static final double MAX_DISTANCE_METRES = 10;
+
+    private static final Comparator<LocationObject> TIME_ORDER =
+            new Comparator<LocationObject>() {
+                @Override
+                public int compare(LocationObject a, LocationObject b) {
+                    return a.getDatetime() < b.getDatetime() ? -1 :
+                            (a.getDatetime() == b.getDatetime() ? 0 : 1);
+                }
+            };
+
+    private final ArrayDeque<SourcedFix> mRecentFixes = new ArrayDeque<>();
+
+    /**
+     * Check a fix against the fixes kept before it, keeping it if it is not a duplicate.
+     * @param sourcedFix: The SourcedFix, no earlier than the fixes passed before it.
+     * @return true if the fix is a duplicate and should be dropped.
+     */
+    boolean isDuplicate(SourcedFix sourcedFix) {
+        while (!mRecentFixes.isEmpty() && mRecentFixes.peekFirst().getDatetime() <
+                sourcedFix.getDatetime() - MAX_TIME_DIFFERENCE_MS) {
+            mRecentFixes.removeFirst();
+        }
+
+        Iterator<SourcedFix> iterator = mRecentFixes.descendingIterator();
+        while (iterator.hasNext()) {
+            SourcedFix recentFix = iterator.next();
+            boolean sameSource = recentFix.getSource() == sourcedFix.getSource();
+            if ((!sameSource || recentFix.getDatetime() == sourcedFix.getDatetime()) &&
+                    isNear(recentFix.getLatitude(), recentFix.getLongitude(), sourcedFix)) {
+                return true;
+            }
+        }
+
+        mRecentFixes.addLast(sourcedFix);
+        return false;
+    }
+
+    /**
+     * Sort stored fixes into time order for isStored.
+     * @param storedFixes: List of LocationObjects, sorted in place.
+     */
+    static void sortByTime(List<LocationObject> storedFixes) {
+        Collections.sort(storedFixes, TIME_ORDER);
+    }
+
+    /**
+     * Check whether a fix duplicates one already stored in the database.
+     * @param sourcedFix: The SourcedFix.
+     * @param storedFixes: List of the stored LocationObjects around the fix, sorted by time.
+     * @return true if the fix is a duplicate of a stored fix.
+     */
+    static boolean isStored(SourcedFix sourcedFix, List<LocationObject> storedFixes) {
+        // Find the first stored fix within the time window.
+        long earliest = sourcedFix.getDatetime() - MAX_TIME_DIFFERENCE_MS;
+        int low = 0;
+        int high = storedFixes.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (storedFixes.get(middle).getDatetime() < earliest) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        long latest = sourcedFix.getDatetime() + MAX_TIME_DIFFERENCE_MS;
+        for (int i = low; i < storedFixes.size(); i++) {
+            LocationObject storedFix = storedFixes.get(i);
+            if (storedFix.getDatetime() > latest) {
+                break;
+            }
+            if (isNear(storedFix.getLatitude(), storedFix.getLongitude(), sourcedFix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isNear(double latitude, double longitude, SourcedFix sourcedFix) {
+        return GeoMath.distanceMetres(latitude, longitude,
+                sourcedFix.getLatitude(), sourcedFix.getLongitude()) <= MAX_DISTANCE_METRES;
+    }
+}
@@ -0,0 +1,283 @@
+package com.danielcswain.fogofwar.Merge;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts any number of fixes into time order in bounded memory.
+ *
+ * Fixes are buffered up to a run size, sorted and spilled to a run file in the temporary
+ * directory. Once every fix has been added the runs are merged back k ways through a priority
+ * queue, so at most one run of fixes plus one read buffer per run is held at a time. When there
+ * are more runs than MAX_FAN_IN they are first merged in groups into longer runs. A history that
+ * fits in one run is sorted in memory without touching the disk.
+ *
+ * Usage: add every fix, call finish, then read the fixes back with next until it returns null.
+ * close deletes the run files.
+ */
+final class ExternalFixSorter implements Closeable {
+
+    static final int MAX_FAN_IN = 32;
+
+    private static final int BUFFER_BYTES = 16 * 1024;
+
+    // Each fix is written as an int, a long and two doubles.
+    private static final int FIX_BYTES = 4 + 8 + 8 + 8;
+
+    // Ties are broken by source and position so the order never depends on the run layout.
+    static final Comparator<SourcedFix> TIME_ORDER = new Comparator<SourcedFix>() {
+        @Override
+        public int compare(SourcedFix a, SourcedFix b) {
+            if (a.getDatetime() != b.getDatetime()) {
+                return a.getDatetime() < b.getDatetime() ? -1 : 1;
+            }
+            if (a.getSource() != b.getSource()) {
+                return a.getSource() < b.getSource() ? -1 : 1;
+            }
+            int latitude = Double.compare(a.getLatitude(), b.getLatitude());
+            return latitude != 0 ? latitude : Double.compare(a.getLongitude(), b.getLongitude());
+        }
+    };
+
+    private final File mDirectory;
+    private final int mRunSize;
+    private final List<SourcedFix> mBuffer = new ArrayList<>();
+    private final List<File> mRuns = new ArrayList<>();
+    // Every run file created, so close deletes them even if a merge pass failed part way.
+    private final List<File> mRunFiles = new ArrayList<>();
+    private boolean mFinished;
+
+    // Reading back: either the in-memory buffer, or the heads of the open runs.
+    private int mBufferPosition;
+    private PriorityQueue<RunReader> mReaders;
+
+    /**
+     * Constructor for the ExternalFixSorter.
+     * @param directory: File, the directory the run files are written to.
+     * @param runSize: int, the most fixes held in memory before a run is spilled.
+     */
+    ExternalFixSorter(File directory, int runSize) {
+        mDirectory = directory;
+        mRunSize = runSize;
+    }
+
+    /**
+     * Add a fix to be sorted.
+     * @param sourcedFix: The SourcedFix.
+     * @throws IOException if a run could not be written.
+     */
+    void add(SourcedFix sourcedFix) throws IOException {
+        if (mFinished) {
+            throw new IllegalStateException("Fixes added after finish");
+        }
+        mBuffer.add(sourcedFix);
+        if (mBuffer.size() >= mRunSize) {
+            spillBuffer();
+        }
+    }
+
+    /**
+     * Stop adding fixes and prepare to read them back in order.
+     * @throws IOException if the runs could not be written or merged.
+     */
+    void finish() throws IOException {
+        mFinished = true;
+        Collections.sort(mBuffer, TIME_ORDER);
+        if (mRuns.isEmpty()) {
+            return;
+        }
+
+        spillBuffer();
+        while (mRuns.size() > MAX_FAN_IN) {
+            List<File> runs = new ArrayList<>(mRuns);
+            mRuns.clear();
+            for (int i = 0; i < runs.size(); i += MAX_FAN_IN) {
+                List<File> group = runs.subList(i, Math.min(i + MAX_FAN_IN, runs.size()));
+                if (group.size() == 1) {
+                    mRuns.add(group.get(0));
+                    continue;
+                }
+
+                File run = newRunFile();
+                DataOutputStream output = openRun(run);
+                try {
+                    PriorityQueue<RunReader> readers = openReaders(group);
+                    SourcedFix sourcedFix;
+                    while ((sourcedFix = poll(readers)) != null) {
+                        writeFix(output, sourcedFix);
+                    }
+                } finally {
+                    output.close();
+                }
+                for (File merged : group) {
+                    merged.delete();
+                }
+                mRuns.add(run);
+            }
+        }
+        mReaders = openReaders(mRuns);
+    }
+
+    /**
+     * Get the next fix in time order.
+     * @return a SourcedFix, or null once every fix has been read.
+     * @throws IOException if a run could not be read.
+     */
+    SourcedFix next() throws IOException {
+        if (!mFinished) {
+            throw new IllegalStateException("Fixes read before finish");
+        }
+        if (mReaders != null) {
+            return poll(mReaders);
+        }
+        return mBufferPosition < mBuffer.size() ? mBuffer.get(mBufferPosition++) : null;
+    }
+
+    /**
+     * Get the number of run files spilled so far, including those written by merging.
+     */
+    int getRunsWritten() {
+        return mRunFiles.size();
+    }
+
+    /**
+     * Close the open runs and delete every run file.
+     */
+    @Override
+    public void close() {
+        if (mReaders != null) {
+            for (RunReader reader : mReaders) {
+                reader.close();
+            }
+            mReaders = null;
+        }
+        for (File run : mRunFiles) {
+            run.delete();
+        }
+        mRuns.clear();
+        mRunFiles.clear();
+        mBuffer.clear();
+    }
+
+    private void spillBuffer() throws IOException {
+        if (mBuffer.isEmpty()) {
+            return;
+        }
+
+        Collections.sort(mBuffer, TIME_ORDER);
+        File run = newRunFile();
+        DataOutputStream output = openRun(run);
+        try {
+            for (SourcedFix sourcedFix : mBuffer) {
+                writeFix(output, sourcedFix);
+            }
+        } finally {
+            output.close();
+        }
+        mRuns.add(run);
+        mBuffer.clear();
+    }
+
+    private File newRunFile() {
+        File run = new File(mDirectory, "merge-run-" + mRunFiles.size() + ".bin");
+        mRunFiles.add(run);
+        return run;
+    }
+
+    private static DataOutputStream openRun(File run) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(run), BUFFER_BYTES));
+    }
+
+    private static void writeFix(DataOutputStream output, SourcedFix sourcedFix)
+            throws IOException {
+        output.writeInt(sourcedFix.getSource());
+        output.writeLong(sourcedFix.getDatetime());
+        output.writeDouble(sourcedFix.getLatitude());
+        output.writeDouble(sourcedFix.getLongitude());
+    }
+
+    private static PriorityQueue<RunReader> openReaders(List<File> runs) throws IOException {
+        PriorityQueue<RunReader> readers = new PriorityQueue<>(runs.size(),
+                new Comparator<RunReader>() {
+                    @Override
+                    public int compare(RunReader a, RunReader b) {
+                        return TIME_ORDER.compare(a.head, b.head);
+                    }
+                });
+        for (File run : runs) {
+            RunReader reader = new RunReader(run);
+            if (reader.advance()) {
+                readers.add(reader);
+            } else {
+                reader.close();
+            }
+        }
+        return readers;
+    }
+
+    /**
+     * Take the earliest fix from the heads of the runs, closing each run as it is used up.
+     */
+    private static SourcedFix poll(PriorityQueue<RunReader> readers) throws IOException {
+        RunReader reader = readers.poll();
+        if (reader == null) {
+            return null;
+        }
+
+        SourcedFix sourcedFix = reader.head;
+        if (reader.advance()) {
+            readers.add(reader);
+        } else {
+            reader.close();
+        }
+        return sourcedFix;
+    }
+
+    /**
+     * Reads one run file a fix at a time, holding the next fix to be merged.
+     */
+    private static class RunReader {
+
+        private final DataInputStream input;
+        private long remaining;
+        private SourcedFix head;
+
+        RunReader(File run) throws IOException {
+            remaining = run.length() / FIX_BYTES;
+            input = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(run), BUFFER_BYTES));
+        }
+
+        boolean advance() throws IOException {
+            if (remaining == 0) {
+                head = null;
+                return false;
+            }
+            remaining--;
+            head = new SourcedFix(input.readInt(), input.readLong(), input.readDouble(),
+                    input.readDouble());
+            return true;
+        }
+
+        void close() {
+            try {
+                input.close();
+            } catch (IOException e) {
+                // The run has been read; it is deleted when the sorter closes.
+            }
+        }
+    }
+}
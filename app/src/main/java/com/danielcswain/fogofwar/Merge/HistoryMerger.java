@@ -0,0 +1,279 @@
+package com.danielcswain.fogofwar.Merge;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.danielcswain.fogofwar.Data.LocationCsv;
+import com.danielcswain.fogofwar.Data.LocationObject;
+import com.danielcswain.fogofwar.Data.Partition;
+import com.danielcswain.fogofwar.Data.SQLDatabaseHelper;
+import com.danielcswain.fogofwar.Data.SegmentBuilder;
+import com.danielcswain.fogofwar.Data.SegmentObject;
+import com.danielcswain.fogofwar.Heatmap.VisitCounter;
+import com.danielcswain.fogofwar.Heatmap.VisitEvent;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges location histories exported from other devices (see LocationCsv) into the database, so
+ * one fog covers everywhere any of the user's phones has been.
+ *
+ * The histories are read into an ExternalFixSorter, which puts every fix in time order without
+ * holding them all in memory. The sorted fixes are streamed through a DuplicateFilter, which drops
+ * fixes repeated between histories, and checked against the fixes already stored around them.
+ * Each history keeps its own SegmentBuilder and VisitCounter, so the track is only joined between
+ * fixes from the same device and two phones recording at once never zigzag between each other.
+ * The kept fixes are stored in batches of at most BATCH_SIZE fixes and MAX_BATCH_SPAN_MS, each in
+ * one transaction, so live fixes keep being stored between batches.
+ */
+public class HistoryMerger {
+
+    private static final String TAG = HistoryMerger.class.getSimpleName();
+
+    private static final String TEMPORARY_DIRECTORY_NAME = "merge";
+
+    // About 2 MB of fixes are held in memory before a run is spilled to disk.
+    static final int RUN_SIZE = 50000;
+
+    static final int BATCH_SIZE = 2000;
+
+    // Keeps the stored fixes read back to check each batch for duplicates small.
+    static final long MAX_BATCH_SPAN_MS = TimeUnit.HOURS.toMillis(1);
+
+    // Shared by all instances so merges run one at a time.
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    private final SQLDatabaseHelper mSqlDatabaseHelper;
+    private final File mTemporaryDirectory;
+
+    /**
+     * A history to be merged, opened when it is read.
+     */
+    public interface HistorySource {
+        /**
+         * @return an InputStream of the history as LocationCsv lines. It is closed once read.
+         * @throws IOException if the history could not be opened.
+         */
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * Listener told on the UI thread when a merge has finished.
+     */
+    public interface OnMergeFinishedListener {
+        /**
+         * @param mergeResult: The MergeResult of the merge, or null if it failed.
+         */
+        void onMergeFinished(MergeResult mergeResult);
+    }
+
+    /**
+     * Constructor for the HistoryMerger.
+     * @param context: The Activity/Application context.
+     * @param sqlDatabaseHelper: The SQLDatabaseHelper the histories are merged into.
+     */
+    public HistoryMerger(Context context, SQLDatabaseHelper sqlDatabaseHelper) {
+        this(new File(context.getCacheDir(), TEMPORARY_DIRECTORY_NAME), sqlDatabaseHelper);
+    }
+
+    /**
+     * Constructor for the HistoryMerger.
+     * @param temporaryDirectory: File, the directory the sort's run files are written to.
+     * @param sqlDatabaseHelper: The SQLDatabaseHelper the histories are merged into.
+     */
+    public HistoryMerger(File temporaryDirectory, SQLDatabaseHelper sqlDatabaseHelper) {
+        mSqlDatabaseHelper = sqlDatabaseHelper;
+        mTemporaryDirectory = temporaryDirectory;
+    }
+
+    /**
+     * Merge histories in the background.
+     * @param historySources: List of the HistorySources to merge.
+     * @param listener: The OnMergeFinishedListener to tell when it is done.
+     */
+    public void merge(final List<HistorySource> historySources,
+                      final OnMergeFinishedListener listener) {
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                MergeResult mergeResult = null;
+                try {
+                    mergeResult = merge(historySources);
+                    Log.i(TAG, "Merged histories: " + mergeResult);
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not merge the histories", e);
+                }
+
+                final MergeResult finishedResult = mergeResult;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onMergeFinished(finishedResult);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Merge histories on the calling thread.
+     * @param historySources: List of the HistorySources to merge.
+     * @return the MergeResult of the merge.
+     * @throws IOException if a history could not be read or the sort's runs written.
+     */
+    public MergeResult merge(List<HistorySource> historySources) throws IOException {
+        MergeResult mergeResult = new MergeResult();
+        Set<Integer> partitionKeys = new HashSet<>();
+
+        // Fixes stored by earlier batches of this merge have already been through the
+        // DuplicateFilter, so only those stored before it are checked against.
+        long lastStoredId = 0;
+        for (Partition partition : mSqlDatabaseHelper.getPartitions()) {
+            lastStoredId = Math.max(lastStoredId, partition.getMaxLocationId());
+        }
+
+        if (!mTemporaryDirectory.isDirectory() && !mTemporaryDirectory.mkdirs()) {
+            throw new IOException("Could not create " + mTemporaryDirectory);
+        }
+        ExternalFixSorter sorter = new ExternalFixSorter(mTemporaryDirectory, RUN_SIZE);
+        try {
+            List<SegmentBuilder> segmentBuilders = new ArrayList<>();
+            List<VisitCounter> visitCounters = new ArrayList<>();
+            for (int source = 0; source < historySources.size(); source++) {
+                readSource(historySources.get(source), source, sorter, mergeResult);
+                segmentBuilders.add(new SegmentBuilder());
+                visitCounters.add(new VisitCounter());
+            }
+            sorter.finish();
+
+            DuplicateFilter duplicateFilter = new DuplicateFilter();
+            List<SourcedFix> batch = new ArrayList<>();
+            SourcedFix sourcedFix;
+            while ((sourcedFix = sorter.next()) != null) {
+                if (duplicateFilter.isDuplicate(sourcedFix)) {
+                    mergeResult.addDuplicate();
+                    continue;
+                }
+
+                if (!batch.isEmpty() && (batch.size() >= BATCH_SIZE || sourcedFix.getDatetime() -
+                        batch.get(0).getDatetime() > MAX_BATCH_SPAN_MS)) {
+                    storeBatch(batch, lastStoredId, segmentBuilders, visitCounters,
+                            partitionKeys, mergeResult);
+                    batch.clear();
+                }
+                batch.add(sourcedFix);
+            }
+            storeBatch(batch, lastStoredId, segmentBuilders, visitCounters, partitionKeys,
+                    mergeResult);
+        } finally {
+            sorter.close();
+        }
+
+        if (!partitionKeys.isEmpty()) {
+            mSqlDatabaseHelper.finishMerge(partitionKeys);
+        }
+        return mergeResult;
+    }
+
+    /**
+     * Read one history into the sorter, skipping and counting lines which are not valid fixes.
+     */
+    private static void readSource(HistorySource historySource, int source,
+                                   ExternalFixSorter sorter, MergeResult mergeResult)
+            throws IOException {
+        InputStream inputStream = historySource.open();
+        try {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(inputStream, "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                LocationObject locationObject;
+                try {
+                    locationObject = LocationCsv.parse(line);
+                } catch (IllegalArgumentException e) {
+                    mergeResult.addMalformedLine();
+                    continue;
+                }
+                if (locationObject == null) {
+                    continue;
+                }
+                if (Math.abs(locationObject.getLatitude()) > 90 ||
+                        Math.abs(locationObject.getLongitude()) > 180) {
+                    mergeResult.addMalformedLine();
+                    continue;
+                }
+
+                sorter.add(new SourcedFix(source, locationObject.getDatetime(),
+                        locationObject.getLatitude(), locationObject.getLongitude()));
+                mergeResult.addFixRead();
+            }
+        } finally {
+            inputStream.close();
+        }
+        mergeResult.addSource();
+    }
+
+    /**
+     * Drop the fixes of a batch already stored before the merge, build the track and visits of
+     * the rest from each fix's own history, and store them.
+     */
+    private void storeBatch(List<SourcedFix> batch, long lastStoredId,
+                            List<SegmentBuilder> segmentBuilders, List<VisitCounter> visitCounters,
+                            Set<Integer> partitionKeys, MergeResult mergeResult) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        long startDatetime = batch.get(0).getDatetime() - DuplicateFilter.MAX_TIME_DIFFERENCE_MS;
+        long endDatetime = batch.get(batch.size() - 1).getDatetime() +
+                DuplicateFilter.MAX_TIME_DIFFERENCE_MS;
+        List<LocationObject> storedFixes = new ArrayList<>();
+        for (LocationObject locationObject :
+                mSqlDatabaseHelper.getLocationsInTimeRange(startDatetime, endDatetime)) {
+            if (locationObject.getId() <= lastStoredId) {
+                storedFixes.add(locationObject);
+            }
+        }
+        DuplicateFilter.sortByTime(storedFixes);
+
+        List<LocationObject> locationObjects = new ArrayList<>();
+        List<SegmentObject> segmentObjects = new ArrayList<>();
+        List<VisitEvent> visitEvents = new ArrayList<>();
+        for (SourcedFix sourcedFix : batch) {
+            if (DuplicateFilter.isStored(sourcedFix, storedFixes)) {
+                mergeResult.addDuplicate();
+                continue;
+            }
+
+            LocationObject locationObject = sourcedFix.toLocationObject();
+            locationObjects.add(locationObject);
+            partitionKeys.add(Partition.getKey(locationObject.getDatetime()));
+            for (SegmentObject segmentObject :
+                    segmentBuilders.get(sourcedFix.getSource()).addLocation(locationObject)) {
+                segmentObjects.add(segmentObject);
+                partitionKeys.add(Partition.getKey(segmentObject.getEndDatetime()));
+            }
+            visitEvents.addAll(
+                    visitCounters.get(sourcedFix.getSource()).addLocation(locationObject));
+        }
+
+        if (!locationObjects.isEmpty()) {
+            mSqlDatabaseHelper.addMergedLocations(locationObjects, segmentObjects, visitEvents);
+            mergeResult.addStored(locationObjects.size(), segmentObjects.size());
+        }
+    }
+}
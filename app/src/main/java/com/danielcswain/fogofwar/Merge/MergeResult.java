@@ -0,0 +1,74 @@
+package com.danielcswain.fogofwar.Merge;
+
+import java.util.Locale;
+
+/**
+ * What a merge of other devices' histories read and stored, reported once it finishes.
+ */
+public class MergeResult {
+
+    private int sources;
+    private long fixesRead;
+    private long malformedLines;
+    private long duplicatesRemoved;
+    private long fixesStored;
+    private long segmentsStored;
+
+    void addSource() {
+        this.sources++;
+    }
+
+    void addFixRead() {
+        this.fixesRead++;
+    }
+
+    void addMalformedLine() {
+        this.malformedLines++;
+    }
+
+    void addDuplicate() {
+        this.duplicatesRemoved++;
+    }
+
+    /**
+     * Add a batch stored in the database.
+     * @param fixesStored: long, the number of location fixes stored.
+     * @param segmentsStored: long, the number of track segments built between them.
+     */
+    void addStored(long fixesStored, long segmentsStored) {
+        this.fixesStored += fixesStored;
+        this.segmentsStored += segmentsStored;
+    }
+
+    public int getSources() {
+        return sources;
+    }
+
+    public long getFixesRead() {
+        return fixesRead;
+    }
+
+    public long getMalformedLines() {
+        return malformedLines;
+    }
+
+    public long getDuplicatesRemoved() {
+        return duplicatesRemoved;
+    }
+
+    public long getFixesStored() {
+        return fixesStored;
+    }
+
+    public long getSegmentsStored() {
+        return segmentsStored;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "sources=%d fixesRead=%d malformed=%d duplicates=%d stored=%d segments=%d",
+                sources, fixesRead, malformedLines, duplicatesRemoved, fixesStored,
+                segmentsStored);
+    }
+}
@@ -0,0 +1,52 @@
+package com.danielcswain.fogofwar.Merge;
+
+import com.danielcswain.fogofwar.Data.LocationObject;
+
+/**
+ * A location fix read from one of the histories being merged, tagged with the history it came
+ * from so its track can be rebuilt separately from the others.
+ */
+public class SourcedFix {
+
+    private final int source;
+    private final long datetime;
+    private final double latitude;
+    private final double longitude;
+
+    /**
+     * Constructor for a SourcedFix.
+     * @param source: int, the index of the history the fix was read from.
+     * @param datetime: long, time in milliseconds.
+     * @param latitude: double, Latitude of the fix.
+     * @param longitude: double, Longitude of the fix.
+     */
+    public SourcedFix(int source, long datetime, double latitude, double longitude) {
+        this.source = source;
+        this.datetime = datetime;
+        this.latitude = latitude;
+        this.longitude = longitude;
+    }
+
+    public int getSource() {
+        return source;
+    }
+
+    public long getDatetime() {
+        return datetime;
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    /**
+     * Get the fix as a LocationObject not yet stored in the database.
+     */
+    public LocationObject toLocationObject() {
+        return new LocationObject(0, datetime, latitude, longitude);
+    }
+}
@@ -1,22 +1,35 @@
 package com.danielcswain.fogofwar;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.Point;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
 import android.support.v4.content.ContextCompat;
 import android.util.AttributeSet;
 import android.view.View;
 
-import com.danielcswain.fogofwar.Data.LocationObject;
+import com.danielcswain.fogofwar.Cache.CacheGovernor;
+import com.danielcswain.fogofwar.Data.SegmentObject;
+import com.danielcswain.fogofwar.Explored.FogPyramidLayer;
+import com.danielcswain.fogofwar.Explored.TimelineLayer;
+import com.danielcswain.fogofwar.Heatmap.HeatmapLayer;
+import com.danielcswain.fogofwar.Rendering.FrameStats;
+import com.danielcswain.fogofwar.Rendering.PathSink;
+import com.danielcswain.fogofwar.Rendering.ScreenProjection;
+import com.danielcswain.fogofwar.Rendering.TrackPathBuilder;
 import com.google.android.gms.maps.Projection;
+import com.google.android.gms.maps.model.CameraPosition;
 import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
 
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
 
 import static com.danielcswain.fogofwar.R.color.overlay;
@@ -24,13 +37,98 @@ import static com.danielcswain.fogofwar.R.color.overlay;
 /**
  * OverlayView to draw fog overlay on map using canvas. The users path is erased from the drawing
  * based upon the places they have visited.
+ *
+ * Alternatively the view can draw the visit-frequency heatmap instead of the fog, or the fog as
+ * it was at a past date from the TimelineLayer.
+ *
+ * Until the path has first been drawn, a snapshot of the fog saved on the last exit can be shown
+ * in its place.
+ *
+ * While the camera pans and zooms without rotating or tilting, the path built for an earlier
+ * camera is moved with it by a matrix, and only the segments in the areas newly exposed at the
+ * edges are projected, clipped to those areas and added (see movePath). Once as many segments
+ * have been added as the path was built with, it is rebuilt, so it cannot grow without bound.
+ *
+ * The path is stroked the reveal radius either side of the track, so its width in pixels follows
+ * the zoom. Zoomed out beyond FogPyramidLayer.MAX_ZOOM, the explored area is erased from the
+ * tiles of the fog pyramid instead, whichever renderer draws the fog closer in.
+ *
+ * When the fog is drawn by the GlFogRenderer instead, the software fog is disabled and the view
+ * only shows the snapshot, the heatmap or the zoomed out fog.
  */
 public class OverlayView extends View {
 
+    private static final String LAYER_RESERVATION = "OverlayView layer";
+
+    // Beyond these scales from the camera the path was built for, the path is rebuilt: zoomed
+    // further out most of the screen is newly exposed, and further in little of it is shown.
+    private static final float MIN_PATH_SCALE = 0.5f;
+    private static final float MAX_PATH_SCALE = 4;
+
     private Paint overlayPaint;
     private Paint pathPaint;
     private Path path;
 
+    private HeatmapLayer heatmapLayer;
+    private boolean heatmapEnabled = false;
+    private boolean softwareFogEnabled = true;
+    private TimelineLayer timelineLayer;
+    private boolean timelineEnabled = false;
+    private FogPyramidLayer fogPyramidLayer;
+    private boolean fogPyramidEnabled = false;
+    private final FrameStats frameStats = new FrameStats("OverlayView");
+
+    private boolean hasPath = false;
+
+    // The camera the path was built for, the screen corners it projected to, the area it was
+    // built for and the number of segments it was built with. The Projection is a snapshot, so
+    // it keeps projecting for that camera.
+    private Projection pathProjection;
+    private boolean pathUpright;
+    private LatLng pathNorthwest;
+    private LatLng pathSoutheast;
+    private LatLngBounds pathBounds;
+    private int pathSegmentCount;
+    // The last view completed by addExposedSegments, and the segment pieces added since the path
+    // was built.
+    private LatLngBounds completedViewBounds;
+    private int addedSegmentCount;
+    // The view and its exposed areas returned by movePath, until addExposedSegments fills them.
+    private LatLngBounds movedViewBounds;
+    private List<LatLngBounds> movedExposedBounds;
+    // Moves the path from the camera it was built for to the map's current camera.
+    private final Matrix pathMatrix = new Matrix();
+    private boolean snapshotDismissed = false;
+    private Bitmap snapshot;
+    private int snapshotViewWidth;
+    private int snapshotViewHeight;
+    private Paint snapshotPaint;
+    private final Rect snapshotDestination = new Rect();
+    private OnFogDrawnListener onFogDrawnListener;
+
+    /**
+     * Listener told each time the fog is drawn, used to measure startup.
+     */
+    public interface OnFogDrawnListener {
+        /**
+         * @param fromSnapshot: boolean, true if the saved snapshot was drawn rather than the path.
+         */
+        void onFogDrawn(boolean fromSnapshot);
+    }
+
+    // Adds the lines built by the TrackPathBuilder to the path.
+    private final PathSink pathSink = new PathSink() {
+        @Override
+        public void moveTo(float x, float y) {
+            path.moveTo(x, y);
+        }
+
+        @Override
+        public void lineTo(float x, float y) {
+            path.lineTo(x, y);
+        }
+    };
+
     public OverlayView(Context context) {
         super(context);
         init();
@@ -62,103 +160,403 @@ public class OverlayView extends View {
         pathPaint.setColor(Color.TRANSPARENT);
         pathPaint.setStyle(Paint.Style.STROKE);
         pathPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
-        pathPaint.setStrokeWidth(50);
 
         // Set up the overlay.
         overlayPaint = new Paint();
         overlayPaint.setColor(ContextCompat.getColor(getContext(), overlay));
         overlayPaint.setStyle(Paint.Style.FILL);
+
+        // The snapshot is stored at a reduced size and scaled up to fill the view.
+        snapshotPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    }
+
+    /**
+     * Reserve the software layer's bitmap from the cache budget, since it is held for as long as
+     * the view is shown.
+     */
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        updateLayerReservation();
+    }
+
+    /**
+     * Switch between drawing the fog here in software and leaving it to the GlFogRenderer.
+     * @param softwareFogEnabled: boolean, true to draw the fog in this view.
+     */
+    public void setSoftwareFogEnabled(boolean softwareFogEnabled) {
+        this.softwareFogEnabled = softwareFogEnabled;
+        updateLayerType();
+        this.invalidate();
+    }
+
+    public boolean isSoftwareFogEnabled() {
+        return softwareFogEnabled;
+    }
+
+    /**
+     * The software layer is only needed while the fog is drawn here, for the path or the
+     * timeline's or pyramid's tiles to erase it.
+     */
+    private void updateLayerType() {
+        setLayerType(isFogDrawnHere() ? View.LAYER_TYPE_SOFTWARE : View.LAYER_TYPE_NONE, null);
+        updateLayerReservation();
+    }
+
+    private boolean isFogDrawnHere() {
+        return softwareFogEnabled || isTimelineEnabled() || isFogPyramidEnabled();
+    }
+
+    private void updateLayerReservation() {
+        long layerBytes = isFogDrawnHere() ? 4L * getWidth() * getHeight() : 0;
+        CacheGovernor.getInstance(getContext()).setReservedBytes(LAYER_RESERVATION, layerBytes);
+    }
+
+    /**
+     * Set the HeatmapLayer drawn when the heatmap is enabled.
+     * @param heatmapLayer: The HeatmapLayer.
+     */
+    public void setHeatmapLayer(HeatmapLayer heatmapLayer) {
+        this.heatmapLayer = heatmapLayer;
+    }
+
+    /**
+     * Switch between drawing the fog and the visit-frequency heatmap.
+     * @param heatmapEnabled: boolean, true to draw the heatmap.
+     */
+    public void setHeatmapEnabled(boolean heatmapEnabled) {
+        this.heatmapEnabled = heatmapEnabled;
+        this.invalidate();
+    }
+
+    public boolean isHeatmapEnabled() {
+        return heatmapEnabled && heatmapLayer != null;
+    }
+
+    /**
+     * Set the TimelineLayer drawn when the timeline is enabled.
+     * @param timelineLayer: The TimelineLayer.
+     */
+    public void setTimelineLayer(TimelineLayer timelineLayer) {
+        this.timelineLayer = timelineLayer;
+    }
+
+    /**
+     * Switch between drawing the fog for the current path and for the timeline's date.
+     * @param timelineEnabled: boolean, true to draw the timeline's fog.
+     */
+    public void setTimelineEnabled(boolean timelineEnabled) {
+        this.timelineEnabled = timelineEnabled;
+        updateLayerType();
+        this.invalidate();
+    }
+
+    public boolean isTimelineEnabled() {
+        return timelineEnabled && timelineLayer != null;
+    }
+
+    /**
+     * Set the FogPyramidLayer drawn when the map is zoomed out.
+     * @param fogPyramidLayer: The FogPyramidLayer.
+     */
+    public void setFogPyramidLayer(FogPyramidLayer fogPyramidLayer) {
+        this.fogPyramidLayer = fogPyramidLayer;
+    }
+
+    /**
+     * Switch between erasing the fog along the path and from the fog pyramid's tiles, e.g. as the
+     * map zooms past FogPyramidLayer.MAX_ZOOM. Does nothing if it is unchanged.
+     * @param fogPyramidEnabled: boolean, true to draw the fog from the pyramid.
+     */
+    public void setFogPyramidEnabled(boolean fogPyramidEnabled) {
+        if (this.fogPyramidEnabled == fogPyramidEnabled) {
+            return;
+        }
+        this.fogPyramidEnabled = fogPyramidEnabled;
+        updateLayerType();
+        this.invalidate();
+    }
+
+    public boolean isFogPyramidEnabled() {
+        return fogPyramidEnabled && fogPyramidLayer != null;
+    }
+
+    public void setOnFogDrawnListener(OnFogDrawnListener onFogDrawnListener) {
+        this.onFogDrawnListener = onFogDrawnListener;
+    }
+
+    /**
+     * Show a saved snapshot of the fog until the path is first drawn. Ignored once the path has
+     * been drawn, and not shown if the view's size differs from the one it was taken from.
+     * @param snapshot: The fog Bitmap.
+     * @param viewWidth: int, the width of the view the snapshot was taken from.
+     * @param viewHeight: int, the height of the view the snapshot was taken from.
+     */
+    public void setSnapshot(Bitmap snapshot, int viewWidth, int viewHeight) {
+        if (hasPath || snapshotDismissed) {
+            return;
+        }
+        this.snapshot = snapshot;
+        this.snapshotViewWidth = viewWidth;
+        this.snapshotViewHeight = viewHeight;
+        this.invalidate();
+    }
+
+    /**
+     * Stop showing the snapshot because the fog is being drawn elsewhere, by the GlFogRenderer.
+     */
+    public void dismissSnapshot() {
+        snapshotDismissed = true;
+        snapshot = null;
+        this.invalidate();
+    }
+
+    /**
+     * Draw the fog for the current path into a new Bitmap, to be saved as the next launch's
+     * snapshot.
+     * @param scale: int, the Bitmap is 1 / scale of the view's size in each direction.
+     * @return the fog Bitmap, or null if neither the path nor the pyramid has been drawn.
+     */
+    public Bitmap createSnapshot(int scale) {
+        int width = getWidth() / scale;
+        int height = getHeight() / scale;
+        if (!(hasPath || isFogPyramidEnabled()) || width == 0 || height == 0) {
+            return null;
+        }
+
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        canvas.scale(1f / scale, 1f / scale);
+        drawFog(canvas);
+        return bitmap;
     }
 
     /**
-     * Draw the users path on the canvas when the View is drawn.
+     * Draw the users path on the canvas when the View is drawn, or the heatmap if it is enabled.
      */
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
 
+        if (isHeatmapEnabled()) {
+            Projection mapProjection = MainActivity.mMap.getProjection();
+            heatmapLayer.draw(canvas, mapProjection,
+                    mapProjection.getVisibleRegion().latLngBounds);
+            return;
+        }
+
+        if (isTimelineEnabled()) {
+            Projection mapProjection = MainActivity.mMap.getProjection();
+            canvas.drawRect(0, 0, getWidth(), getHeight(), overlayPaint);
+            timelineLayer.draw(canvas, mapProjection,
+                    mapProjection.getVisibleRegion().latLngBounds);
+            return;
+        }
+
+        if (isFogPyramidEnabled()) {
+            long start = System.nanoTime();
+            drawFog(canvas);
+            frameStats.record(System.nanoTime() - start);
+            notifyFogDrawn(false);
+            return;
+        }
+
+        if (!hasPath && snapshot != null
+                && getWidth() == snapshotViewWidth && getHeight() == snapshotViewHeight) {
+            snapshotDestination.set(0, 0, getWidth(), getHeight());
+            canvas.drawBitmap(snapshot, null, snapshotDestination, snapshotPaint);
+            notifyFogDrawn(true);
+            return;
+        }
+
+        if (!softwareFogEnabled) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        drawFog(canvas);
+        frameStats.record(System.nanoTime() - start);
+        if (hasPath) {
+            notifyFogDrawn(false);
+        }
+    }
+
+    /**
+     * Fill the canvas with the overlay and erase the path, or the pyramid's tiles, from it.
+     */
+    private void drawFog(Canvas canvas) {
         // Fill canvas with the overlay.
         float canvasWidth = getWidth();
         float canvasHeight = getHeight();
         canvas.drawRect(0, 0, canvasWidth, canvasHeight, overlayPaint);
 
-        // Draw the path.
+        if (isFogPyramidEnabled()) {
+            Projection mapProjection = MainActivity.mMap.getProjection();
+            fogPyramidLayer.draw(canvas, mapProjection,
+                    mapProjection.getVisibleRegion().latLngBounds,
+                    MainActivity.mMap.getCameraPosition().zoom);
+            return;
+        }
+
+        // Draw the path, moved to the current camera. The matrix also scales the stroke, which
+        // keeps it the reveal radius wide.
+        canvas.save();
+        canvas.concat(pathMatrix);
         canvas.drawPath(path, pathPaint);
+        canvas.restore();
     }
 
     /**
-     * Draw the user's path from a list of location objects within the bounds of the view.
-     * @param locationObjects: A List of LocationObject objects within the maps boundary.
+     * Get the software fog's draw times since the last call.
+     * @return a String describing the frame times.
      */
-    public void drawPathInMapBounds(List<LocationObject> locationObjects) {
-        // Reset the path.
-        path.reset();
+    public String getStatsAndReset() {
+        return frameStats.getStatsAndReset();
+    }
 
-        // Iterate between all location objects in the boundary.
-        Iterator<LocationObject> locationObjectIterator = locationObjects.iterator();
-        if (locationObjectIterator.hasNext()) {
-            // Add the first point to the path as the origin.
-            LocationObject originalLocation = locationObjectIterator.next();
-
-            Point startingPoint = convertToPointCoordinate(originalLocation);
-            path.moveTo(startingPoint.x, startingPoint.y);
-
-            while (locationObjectIterator.hasNext()) {
-                // Either add the next location to the path, or start from there if it was not
-                // possible to travel between the two points.
-                LocationObject nextLocation = locationObjectIterator.next();
-                Point nextPoint = convertToPointCoordinate(nextLocation);
-
-                if (nextLocation.getId() - originalLocation.getId() == 1 &&
-                        isPossibleToTravelBetweenPoints(originalLocation, nextLocation)) {
-                    path.lineTo(nextPoint.x, nextPoint.y);
-                } else {
-                    path.moveTo(nextPoint.x, nextPoint.y);
-                }
-
-                originalLocation = nextLocation;
-            }
+    private void notifyFogDrawn(boolean fromSnapshot) {
+        if (onFogDrawnListener != null) {
+            onFogDrawnListener.onFogDrawn(fromSnapshot);
         }
-        // Invalidate the view to get onDraw to be called with the updated path.
-        this.invalidate();
     }
 
     /**
-     * Convert the LocationObject's LatLng coordinates to a Point object (a point on the screen).
-     * @param locationObject: The LocationObject being converted.
-     * @return A Point object.
+     * Get the distance the drawn line extends beyond the track, so segments just off screen whose
+     * stroke is still visible can be included. This is the reveal radius, measured at the centre
+     * of the map.
+     * @param mapProjection: The Projection of the map.
+     * @return the stroke margin in pixels.
      */
-    private Point convertToPointCoordinate(LocationObject locationObject) {
-        // Get the Projection of the map to convert the LatLng object to a Point on the screen.
+    public static float getStrokeMargin(Projection mapProjection) {
+        LatLng centre = mapProjection.getVisibleRegion().latLngBounds.getCenter();
+        return TrackPathBuilder.getStrokeWidth(toScreenProjection(mapProjection),
+                centre.latitude, centre.longitude) / 2;
+    }
+
+    private static boolean isUpright(CameraPosition cameraPosition) {
+        return cameraPosition.bearing == 0 && cameraPosition.tilt == 0;
+    }
+
+    private static ScreenProjection toScreenProjection(final Projection mapProjection) {
+        return new ScreenProjection() {
+            @Override
+            public void toScreenLocation(double latitude, double longitude, float[] point) {
+                Point screenLocation = mapProjection.toScreenLocation(
+                        new LatLng(latitude, longitude));
+                point[0] = screenLocation.x;
+                point[1] = screenLocation.y;
+            }
+        };
+    }
+
+    /**
+     * Draw the user's path from a list of segments overlapping the bounds of the view. Each
+     * segment is clipped to the view plus the stroke margin, so segments crossing the screen with
+     * both ends outside it are still drawn.
+     * @param segmentObjects: A List of SegmentObject objects overlapping the maps boundary, in the
+     *      order they were recorded.
+     */
+    public void drawPathInMapBounds(List<SegmentObject> segmentObjects) {
+        // Reset the path.
+        path.reset();
+
+        // Get the Projection of the map to convert the LatLng objects to Points on the screen.
         Projection mapProjection = MainActivity.mMap.getProjection();
+        float strokeMargin = getStrokeMargin(mapProjection);
+        pathPaint.setStrokeWidth(2 * strokeMargin);
+
+        pathSegmentCount = TrackPathBuilder.buildPath(segmentObjects,
+                toScreenProjection(mapProjection), getWidth(), getHeight(), strokeMargin,
+                pathSink);
+
+        // Remember the camera, so the path can be moved with it.
+        pathProjection = mapProjection;
+        pathUpright = isUpright(MainActivity.mMap.getCameraPosition());
+        pathNorthwest = mapProjection.fromScreenLocation(new Point(0, 0));
+        pathSoutheast = mapProjection.fromScreenLocation(new Point(getWidth(), getHeight()));
+        pathBounds = TrackPathBuilder.getBoundsWithStrokeMargin(
+                mapProjection.getVisibleRegion().latLngBounds, strokeMargin,
+                getWidth(), getHeight());
+        completedViewBounds = pathBounds;
+        addedSegmentCount = 0;
+        movedViewBounds = null;
+        movedExposedBounds = null;
+        pathMatrix.reset();
 
-        LatLng latLng = locationObject.getLatLng();
+        // The live path replaces the snapshot from now on.
+        hasPath = true;
+        snapshot = null;
 
-        return mapProjection.toScreenLocation(latLng);
+        // Invalidate the view to get onDraw to be called with the updated path.
+        this.invalidate();
     }
 
     /**
-     * Determine if it is possible to travel between the two points in the time between they were
-     * recorded.
-     *
-     * The limit on travel time is 31 m/s, or roughly 110 km/h.
-     *
-     * @param originalLocation: A LocationObject, the original or previous location.
-     * @param nextLocation: A LocationObject, the current or next location.
-     * @return a boolean, True if it is possible, else false.
+     * Move the path with the camera rather than rebuilding it, while it only pans and zooms.
+     * Call addExposedSegments with the segments in the returned bounds to complete the path.
+     * @param mapProjection: The Projection of the map.
+     * @param cameraPosition: The CameraPosition of the map.
+     * @return a List of the LatLngBounds exposed at the edges of the screen, outside both the
+     *      area the path was built for and the last view completed, possibly empty. Null if the
+     *      camera has rotated, tilted or moved too far, or as many segments have been added as
+     *      the path was built with, and the path must be rebuilt with drawPathInMapBounds.
      */
-    private boolean isPossibleToTravelBetweenPoints(
-            LocationObject originalLocation, LocationObject nextLocation) {
+    public List<LatLngBounds> movePath(Projection mapProjection, CameraPosition cameraPosition) {
+        if (!hasPath || pathProjection == null || !pathUpright || !isUpright(cameraPosition) ||
+                getWidth() == 0 || getHeight() == 0 || addedSegmentCount > pathSegmentCount) {
+            return null;
+        }
 
-        long startTime = originalLocation.getDatetime();
-        long endTime = nextLocation.getDatetime();
+        // Without rotation or tilt, the path's screen corners give the whole transform.
+        Point northwest = mapProjection.toScreenLocation(pathNorthwest);
+        Point southeast = mapProjection.toScreenLocation(pathSoutheast);
+        float scaleX = (southeast.x - northwest.x) / (float) getWidth();
+        float scaleY = (southeast.y - northwest.y) / (float) getHeight();
+        if (scaleX < MIN_PATH_SCALE || scaleX > MAX_PATH_SCALE ||
+                scaleY < MIN_PATH_SCALE || scaleY > MAX_PATH_SCALE) {
+            return null;
+        }
 
-        float distanceBetweenPoints = originalLocation.getLocation().distanceTo(
-                nextLocation.getLocation());
+        float strokeMargin = getStrokeMargin(mapProjection);
+        LatLngBounds viewBounds = TrackPathBuilder.getBoundsWithStrokeMargin(
+                mapProjection.getVisibleRegion().latLngBounds, strokeMargin,
+                getWidth(), getHeight());
+        // The view must still overlap the area the path was built for.
+        if (TrackPathBuilder.getExposedBounds(pathBounds, viewBounds) == null) {
+            return null;
+        }
+        List<LatLngBounds> exposedBounds = TrackPathBuilder.getExposedBounds(
+                Arrays.asList(completedViewBounds, pathBounds), viewBounds);
+        if (exposedBounds == null) {
+            return null;
+        }
 
-        double timeInSeconds = (endTime - startTime) / 1000.0;
-        double maxSpeedMpS = 31;
+        pathMatrix.setScale(scaleX, scaleY);
+        pathMatrix.postTranslate(northwest.x, northwest.y);
+        movedViewBounds = viewBounds;
+        movedExposedBounds = exposedBounds;
+        this.invalidate();
+        return exposedBounds;
+    }
+
+    /**
+     * Add the segments in the areas exposed by movePath to the path, projected for the camera the
+     * path was built for and clipped to each area.
+     * @param segmentObjects: A List of SegmentObjects overlapping the exposed bounds, each once,
+     *      in the order they were recorded.
+     */
+    public void addExposedSegments(List<SegmentObject> segmentObjects) {
+        if (movedViewBounds == null) {
+            return;
+        }
 
-        return distanceBetweenPoints != 0.0 && maxSpeedMpS >= distanceBetweenPoints / timeInSeconds;
+        addedSegmentCount += TrackPathBuilder.buildExposedPath(segmentObjects,
+                movedExposedBounds, toScreenProjection(pathProjection), pathSink);
+
+        // The path is now complete for the current view, as well as the area it was built for.
+        completedViewBounds = movedViewBounds;
+        movedViewBounds = null;
+        movedExposedBounds = null;
+        this.invalidate();
     }
 }
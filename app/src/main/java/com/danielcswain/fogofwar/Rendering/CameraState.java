@@ -0,0 +1,88 @@
+package com.danielcswain.fogofwar.Rendering;
+
+import com.danielcswain.fogofwar.Geometry.WebMercator;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+
+/**
+ * A north-up, untilted map camera over a viewport of a given size, with the Web Mercator
+ * projection Google Maps uses. Lets the fog be projected and rendered without a GoogleMap.
+ */
+public class CameraState implements ScreenProjection {
+
+    private final double latitude;
+    private final double longitude;
+    private final double zoom;
+    private final int width;
+    private final int height;
+    private final double worldSize;
+    private final double centreX;
+    private final double centreY;
+
+    /**
+     * Constructor for a new CameraState.
+     * @param latitude: double, latitude of the camera target.
+     * @param longitude: double, longitude of the camera target.
+     * @param zoom: double, the map zoom level.
+     * @param width: int, viewport width in pixels.
+     * @param height: int, viewport height in pixels.
+     * @param density: float, screen density; Google Maps tiles are 256 density-independent pixels.
+     */
+    public CameraState(double latitude, double longitude, double zoom, int width, int height,
+                       float density) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.zoom = zoom;
+        this.width = width;
+        this.height = height;
+        this.worldSize = WebMercator.TILE_SIZE * density * WebMercator.scale(zoom);
+        this.centreX = WebMercator.toNormalisedX(longitude);
+        this.centreY = WebMercator.toNormalisedY(latitude);
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    public double getZoom() {
+        return zoom;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void toScreenLocation(double latitude, double longitude, float[] point) {
+        point[0] = (float) ((WebMercator.toNormalisedX(longitude) - centreX) * worldSize + width / 2.0);
+        point[1] = (float) ((WebMercator.toNormalisedY(latitude) - centreY) * worldSize + height / 2.0);
+    }
+
+    /**
+     * Get the geographic bounds of the viewport.
+     * @return the LatLngBounds visible through this camera.
+     */
+    public LatLngBounds getBounds() {
+        double halfWidth = width / 2.0 / worldSize;
+        double halfHeight = height / 2.0 / worldSize;
+        return new LatLngBounds(
+                new LatLng(WebMercator.toLatitude(centreY + halfHeight),
+                        WebMercator.toLongitude(centreX - halfWidth)),
+                new LatLng(WebMercator.toLatitude(centreY - halfHeight),
+                        WebMercator.toLongitude(centreX + halfWidth)));
+    }
+
+    @Override
+    public String toString() {
+        return "(Lat: " + latitude + ", Long: " + longitude + ", Zoom: " + zoom + ", " +
+                width + "x" + height + ")";
+    }
+}
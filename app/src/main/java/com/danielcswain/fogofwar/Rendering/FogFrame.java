@@ -0,0 +1,72 @@
+package com.danielcswain.fogofwar.Rendering;
+
+import com.google.android.gms.maps.model.LatLngBounds;
+
+/**
+ * Everything the GPU fog renderer needs to draw one frame, captured on the UI thread: the
+ * viewport, the area of track to draw, and four points of the Mercator plane with the screen
+ * positions the map projects them to.
+ */
+public class FogFrame {
+
+    private final int width;
+    private final int height;
+    private final LatLngBounds bounds;
+    private final float strokeMargin;
+    private final double[] mercatorPoints;
+    private final double[] screenPoints;
+
+    /**
+     * Constructor for a FogFrame.
+     * @param width: int, viewport width in pixels.
+     * @param height: int, viewport height in pixels.
+     * @param bounds: The LatLngBounds of the track to draw, including the stroke margin.
+     * @param strokeMargin: float, the distance in pixels the stroke extends beyond the track.
+     * @param mercatorPoints: double[8], four points as normalised Mercator x0, y0, x1, y1, ...
+     * @param screenPoints: double[8], the screen positions of the points in pixels.
+     */
+    public FogFrame(int width, int height, LatLngBounds bounds, float strokeMargin,
+                    double[] mercatorPoints, double[] screenPoints) {
+        this.width = width;
+        this.height = height;
+        this.bounds = bounds;
+        this.strokeMargin = strokeMargin;
+        this.mercatorPoints = mercatorPoints;
+        this.screenPoints = screenPoints;
+    }
+
+    /**
+     * Fit the homography from vertex space to the screen for this frame.
+     * @param originX: double, normalised Mercator x of the vertex origin.
+     * @param originY: double, normalised Mercator y of the vertex origin.
+     * @return the row-major matrix, or null if the points are degenerate.
+     */
+    public double[] getVertexToScreen(double originX, double originY) {
+        double[] vertexPoints = new double[8];
+        double[] point = new double[2];
+        for (int i = 0; i < 4; i++) {
+            point[0] = mercatorPoints[2 * i];
+            point[1] = mercatorPoints[2 * i + 1];
+            FogVertexBuilder.toVertexSpace(originX, originY, point);
+            vertexPoints[2 * i] = point[0];
+            vertexPoints[2 * i + 1] = point[1];
+        }
+        return Homography.fromPoints(vertexPoints, screenPoints);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public LatLngBounds getBounds() {
+        return bounds;
+    }
+
+    public float getStrokeMargin() {
+        return strokeMargin;
+    }
+}
@@ -0,0 +1,141 @@
+package com.danielcswain.fogofwar.Rendering;
+
+import com.danielcswain.fogofwar.Data.SegmentObject;
+import com.danielcswain.fogofwar.Geometry.WebMercator;
+
+import java.util.List;
+
+/**
+ * Builds the vertex data the GPU fog renderer erases the fog with.
+ *
+ * Positions are in the Web Mercator plane relative to an origin near the data and scaled up, so
+ * they keep their precision as floats at every zoom level. The stroke is widened to its screen
+ * width in the vertex shader, so the same vertices are drawn at every camera position.
+ */
+public final class FogVertexBuilder {
+
+    // One Mercator unit is 2^-16 of the world, roughly 600 m at the equator.
+    public static final double VERTEX_SCALE = 1 << 16;
+
+    // Each segment is a quad of two triangles. Each vertex holds its own end of the segment, the
+    // other end, and which side of the line it is offset to.
+    public static final int LINE_VERTEX_FLOATS = 5;
+    public static final int LINE_VERTICES_PER_SEGMENT = 6;
+
+    // Each segment end is also capped with a round dot, filling the joins between segments. A
+    // dot is a square of two triangles around the end, cut round in the fragment shader. Each
+    // vertex holds the end and which corner of the square it is, from -1 to 1 on each axis.
+    public static final int CAP_VERTEX_FLOATS = 4;
+    public static final int CAP_VERTICES_PER_END = 6;
+
+    // The corners of the square, as two triangles.
+    private static final float[] CAP_CORNERS = {-1, -1, 1, -1, 1, 1, -1, -1, 1, 1, -1, 1};
+
+    private FogVertexBuilder() {
+    }
+
+    /**
+     * Get the position of a coordinate in the vertex space of an origin.
+     * @param originX: double, normalised Mercator x of the origin.
+     * @param originY: double, normalised Mercator y of the origin.
+     * @param point: double[2], normalised Mercator x, y, replaced by the vertex position.
+     */
+    public static void toVertexSpace(double originX, double originY, double[] point) {
+        point[0] = (point[0] - originX) * VERTEX_SCALE;
+        point[1] = (point[1] - originY) * VERTEX_SCALE;
+    }
+
+    /**
+     * Build the triangles erasing each segment.
+     * @param segmentObjects: A List of SegmentObjects.
+     * @param originX: double, normalised Mercator x of the origin.
+     * @param originY: double, normalised Mercator y of the origin.
+     * @return the vertices, LINE_VERTEX_FLOATS floats each.
+     */
+    public static float[] buildLineVertices(List<SegmentObject> segmentObjects,
+                                            double originX, double originY) {
+        float[] vertices = new float[segmentObjects.size() * LINE_VERTICES_PER_SEGMENT *
+                LINE_VERTEX_FLOATS];
+        int offset = 0;
+        for (SegmentObject segmentObject : segmentObjects) {
+            float startX = toVertexX(segmentObject.getStartLongitude(), originX);
+            float startY = toVertexY(segmentObject.getStartLatitude(), originY);
+            float endX = toVertexX(segmentObject.getEndLongitude(), originX);
+            float endY = toVertexY(segmentObject.getEndLatitude(), originY);
+
+            // The shader offsets along the normal of (other - position), which flips at the far
+            // end, so the side is flipped there too to keep each corner on the same side.
+            offset = putLineVertex(vertices, offset, startX, startY, endX, endY, 1);
+            offset = putLineVertex(vertices, offset, startX, startY, endX, endY, -1);
+            offset = putLineVertex(vertices, offset, endX, endY, startX, startY, -1);
+            offset = putLineVertex(vertices, offset, startX, startY, endX, endY, -1);
+            offset = putLineVertex(vertices, offset, endX, endY, startX, startY, 1);
+            offset = putLineVertex(vertices, offset, endX, endY, startX, startY, -1);
+        }
+        return vertices;
+    }
+
+    /**
+     * Build the dots capping the ends of each segment. An end shared with the previous segment
+     * is only capped once.
+     * @param segmentObjects: A List of SegmentObjects, in the order they were recorded.
+     * @param originX: double, normalised Mercator x of the origin.
+     * @param originY: double, normalised Mercator y of the origin.
+     * @return the triangles, CAP_VERTICES_PER_END vertices of CAP_VERTEX_FLOATS floats per end.
+     */
+    public static float[] buildCapVertices(List<SegmentObject> segmentObjects,
+                                           double originX, double originY) {
+        float[] vertices = new float[segmentObjects.size() * 2 * CAP_VERTICES_PER_END *
+                CAP_VERTEX_FLOATS];
+        int offset = 0;
+        SegmentObject previous = null;
+        for (SegmentObject segmentObject : segmentObjects) {
+            if (previous == null ||
+                    previous.getEndLatitude() != segmentObject.getStartLatitude() ||
+                    previous.getEndLongitude() != segmentObject.getStartLongitude()) {
+                offset = putCap(vertices, offset,
+                        toVertexX(segmentObject.getStartLongitude(), originX),
+                        toVertexY(segmentObject.getStartLatitude(), originY));
+            }
+            offset = putCap(vertices, offset,
+                    toVertexX(segmentObject.getEndLongitude(), originX),
+                    toVertexY(segmentObject.getEndLatitude(), originY));
+            previous = segmentObject;
+        }
+
+        if (offset == vertices.length) {
+            return vertices;
+        }
+        float[] trimmed = new float[offset];
+        System.arraycopy(vertices, 0, trimmed, 0, offset);
+        return trimmed;
+    }
+
+    private static int putLineVertex(float[] vertices, int offset, float x, float y,
+                                     float otherX, float otherY, float side) {
+        vertices[offset++] = x;
+        vertices[offset++] = y;
+        vertices[offset++] = otherX;
+        vertices[offset++] = otherY;
+        vertices[offset++] = side;
+        return offset;
+    }
+
+    private static int putCap(float[] vertices, int offset, float x, float y) {
+        for (int i = 0; i < CAP_CORNERS.length; i += 2) {
+            vertices[offset++] = x;
+            vertices[offset++] = y;
+            vertices[offset++] = CAP_CORNERS[i];
+            vertices[offset++] = CAP_CORNERS[i + 1];
+        }
+        return offset;
+    }
+
+    private static float toVertexX(double longitude, double originX) {
+        return (float) ((WebMercator.toNormalisedX(longitude) - originX) * VERTEX_SCALE);
+    }
+
+    private static float toVertexY(double latitude, double originY) {
+        return (float) ((WebMercator.toNormalisedY(latitude) - originY) * VERTEX_SCALE);
+    }
+}
@@ -0,0 +1,46 @@
+package com.danielcswain.fogofwar.Rendering;
+
+import java.util.Locale;
+
+/**
+ * Running frame time counters for one stage of fog rendering, used to compare the rendering
+ * backends.
+ */
+public class FrameStats {
+
+    private final String name;
+    private long frames;
+    private long totalNanos;
+    private long maxNanos;
+
+    /**
+     * Constructor for FrameStats.
+     * @param name: String, the name the stage is reported under.
+     */
+    public FrameStats(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Record the time one frame spent in the stage.
+     * @param nanos: long, the time in nanoseconds.
+     */
+    public synchronized void record(long nanos) {
+        frames++;
+        totalNanos += nanos;
+        maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    /**
+     * Get a summary of the frames recorded since the last call, and start counting again.
+     * @return a String describing the frame count, mean and maximum times.
+     */
+    public synchronized String getStatsAndReset() {
+        String stats = String.format(Locale.US, "%s frames=%d meanMs=%.2f maxMs=%.2f", name,
+                frames, frames == 0 ? 0 : totalNanos / 1e6 / frames, maxNanos / 1e6);
+        frames = 0;
+        totalNanos = 0;
+        maxNanos = 0;
+        return stats;
+    }
+}
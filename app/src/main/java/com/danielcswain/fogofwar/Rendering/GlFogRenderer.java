@@ -0,0 +1,618 @@
+package com.danielcswain.fogofwar.Rendering;
+
+import android.graphics.Color;
+import android.graphics.Point;
+import android.graphics.SurfaceTexture;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.view.TextureView;
+
+import com.danielcswain.fogofwar.Cache.TrackTileCache;
+import com.danielcswain.fogofwar.Data.SQLDatabaseHelper;
+import com.danielcswain.fogofwar.Data.SegmentObject;
+import com.danielcswain.fogofwar.Geometry.WebMercator;
+import com.google.android.gms.maps.Projection;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Draws the fog with OpenGL ES 2.0 into a TextureView, on its own render thread.
+ *
+ * The track around the viewport is uploaded once as vertex buffers (see FogVertexBuilder) and
+ * reused while the camera stays inside it, so a camera move only costs the UI thread four
+ * projected points. Each frame clears the surface to the fog colour and draws the track over it
+ * with blending disabled, writing transparent pixels where the user has been.
+ */
+public class GlFogRenderer implements TextureView.SurfaceTextureListener,
+        SQLDatabaseHelper.OnSegmentsAddedListener {
+
+    private static final String TAG = GlFogRenderer.class.getSimpleName();
+
+    // The track is loaded for the viewport grown by this fraction of its size on each side, so
+    // the camera can pan a little before the vertex buffers are rebuilt.
+    private static final double WINDOW_EXPANSION = 0.5;
+
+    // Rebuild when the loaded track covers this many times the viewport, e.g. after zooming in.
+    private static final double MAX_WINDOW_AREA_RATIO = 16;
+
+    private static final int EGL_OPENGL_ES2_BIT = 4;
+
+    private static final String PROJECT = "" +
+            "uniform mat3 uVertexToScreen;\n" +
+            "uniform vec2 uViewport;\n" +
+            "vec2 project(vec2 position) {\n" +
+            "    vec3 screen = uVertexToScreen * vec3(position, 1.0);\n" +
+            "    return screen.xy / max(screen.z, 1e-6);\n" +
+            "}\n" +
+            "vec4 toClip(vec2 screen) {\n" +
+            "    return vec4(screen.x / uViewport.x * 2.0 - 1.0,\n" +
+            "            1.0 - screen.y / uViewport.y * 2.0, 0.0, 1.0);\n" +
+            "}\n";
+
+    private static final String LINE_VERTEX_SHADER = PROJECT +
+            "uniform float uHalfWidth;\n" +
+            "attribute vec2 aPosition;\n" +
+            "attribute vec2 aOther;\n" +
+            "attribute float aSide;\n" +
+            "void main() {\n" +
+            "    vec2 position = project(aPosition);\n" +
+            "    vec2 direction = project(aOther) - position;\n" +
+            "    float length = length(direction);\n" +
+            "    vec2 normal = length > 0.0 ? vec2(-direction.y, direction.x) / length : vec2(0.0);\n" +
+            "    gl_Position = toClip(position + normal * uHalfWidth * aSide);\n" +
+            "}\n";
+
+    // Caps are squares around each end rather than points, as point sizes are limited by
+    // GL_ALIASED_POINT_SIZE_RANGE and points whose centre is off screen are not drawn at all.
+    private static final String CAP_VERTEX_SHADER = PROJECT +
+            "uniform float uHalfWidth;\n" +
+            "attribute vec2 aPosition;\n" +
+            "attribute vec2 aCorner;\n" +
+            "varying vec2 vCorner;\n" +
+            "void main() {\n" +
+            "    vCorner = aCorner;\n" +
+            "    gl_Position = toClip(project(aPosition) + aCorner * uHalfWidth);\n" +
+            "}\n";
+
+    private static final String LINE_FRAGMENT_SHADER = "" +
+            "precision mediump float;\n" +
+            "void main() {\n" +
+            "    gl_FragColor = vec4(0.0);\n" +
+            "}\n";
+
+    private static final String CAP_FRAGMENT_SHADER = "" +
+            "precision mediump float;\n" +
+            "varying vec2 vCorner;\n" +
+            "void main() {\n" +
+            "    if (length(vCorner) > 1.0) {\n" +
+            "        discard;\n" +
+            "    }\n" +
+            "    gl_FragColor = vec4(0.0);\n" +
+            "}\n";
+
+    /**
+     * Listener told on the UI thread about the renderer's state.
+     */
+    public interface OnRendererStateListener {
+        /**
+         * Called once, when the first frame has been drawn.
+         */
+        void onFirstFrameRendered();
+
+        /**
+         * Called if OpenGL ES 2.0 could not be set up, so another renderer should be used.
+         */
+        void onRendererFailed();
+    }
+
+    private final TrackTileCache mTrackTileCache;
+    private final SQLDatabaseHelper mSqlDatabaseHelper;
+    private final float[] mFogColour;
+    private final FrameStats mFrameStats = new FrameStats("GlFogRenderer");
+
+    private final HandlerThread mRenderThread;
+    private final Handler mHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicReference<FogFrame> mPendingFrame = new AtomicReference<>();
+    private volatile FogFrame mLastFrame;
+    private volatile boolean mGeometryStale = true;
+    private OnRendererStateListener mListener;
+
+    // Owned by the render thread.
+    private EGLDisplay mEglDisplay = EGL14.EGL_NO_DISPLAY;
+    private EGLContext mEglContext = EGL14.EGL_NO_CONTEXT;
+    private EGLSurface mEglSurface = EGL14.EGL_NO_SURFACE;
+    private SurfaceTexture mSurfaceTexture;
+    private int mLineProgram;
+    private int mCapProgram;
+    private final int[] mBuffers = new int[2];
+    private int mLineVertexCount;
+    private int mCapVertexCount;
+    private LatLngBounds mGeometryBounds;
+    private double mOriginX;
+    private double mOriginY;
+    private boolean mFirstFrameRendered = false;
+    private final float[] mVertexToScreen = new float[9];
+
+    private final Runnable mRenderRunnable = new Runnable() {
+        @Override
+        public void run() {
+            FogFrame fogFrame = mPendingFrame.getAndSet(null);
+            if (fogFrame != null) {
+                long start = System.nanoTime();
+                if (render(fogFrame)) {
+                    mFrameStats.record(System.nanoTime() - start);
+                }
+            }
+        }
+    };
+
+    /**
+     * Constructor for the GlFogRenderer.
+     * @param trackTileCache: The TrackTileCache the track is read from.
+     * @param sqlDatabaseHelper: The database helper, told to report new segments.
+     * @param fogColour: int, the ARGB colour of the fog.
+     */
+    public GlFogRenderer(TrackTileCache trackTileCache, SQLDatabaseHelper sqlDatabaseHelper,
+                         int fogColour) {
+        mTrackTileCache = trackTileCache;
+        mSqlDatabaseHelper = sqlDatabaseHelper;
+
+        // The surface is composited with premultiplied alpha.
+        float alpha = Color.alpha(fogColour) / 255f;
+        mFogColour = new float[] {
+                Color.red(fogColour) / 255f * alpha,
+                Color.green(fogColour) / 255f * alpha,
+                Color.blue(fogColour) / 255f * alpha,
+                alpha};
+
+        mRenderThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_DISPLAY);
+        mRenderThread.start();
+        mHandler = new Handler(mRenderThread.getLooper());
+
+        mSqlDatabaseHelper.addOnSegmentsAddedListener(this);
+    }
+
+    public void setOnRendererStateListener(OnRendererStateListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Capture the current camera of the map. Must be called on the UI thread.
+     * @param projection: The Projection of the map.
+     * @param width: int, viewport width in pixels.
+     * @param height: int, viewport height in pixels.
+     * @param strokeMargin: float, the distance in pixels the stroke extends beyond the track.
+     * @return a FogFrame to pass to requestRender.
+     */
+    public static FogFrame createFrame(Projection projection, int width, int height,
+                                       float strokeMargin) {
+        double[] screenPoints = {0, 0, width, 0, width, height, 0, height};
+        double[] mercatorPoints = new double[8];
+        Point point = new Point();
+        for (int i = 0; i < 4; i++) {
+            point.set((int) screenPoints[2 * i], (int) screenPoints[2 * i + 1]);
+            LatLng latLng = projection.fromScreenLocation(point);
+            mercatorPoints[2 * i] = WebMercator.toNormalisedX(latLng.longitude);
+            mercatorPoints[2 * i + 1] = WebMercator.toNormalisedY(latLng.latitude);
+        }
+
+        LatLngBounds bounds = TrackPathBuilder.getBoundsWithStrokeMargin(
+                projection.getVisibleRegion().latLngBounds, strokeMargin, width, height);
+        return new FogFrame(width, height, bounds, strokeMargin, mercatorPoints, screenPoints);
+    }
+
+    /**
+     * Draw a frame on the render thread. Frames requested faster than they can be drawn are
+     * dropped, keeping only the latest.
+     * @param fogFrame: The FogFrame to draw.
+     */
+    public void requestRender(FogFrame fogFrame) {
+        mLastFrame = fogFrame;
+        if (mPendingFrame.getAndSet(fogFrame) == null) {
+            mHandler.post(mRenderRunnable);
+        }
+    }
+
+    /**
+     * Redraw the last frame with the new segments once they are stored.
+     */
+    @Override
+    public void onSegmentsAdded(List<SegmentObject> segmentObjects) {
+        mGeometryStale = true;
+        FogFrame lastFrame = mLastFrame;
+        if (lastFrame != null) {
+            requestRender(lastFrame);
+        }
+    }
+
+    /**
+     * Get the render thread's frame times since the last call.
+     * @return a String describing the frame times.
+     */
+    public String getStatsAndReset() {
+        return mFrameStats.getStatsAndReset();
+    }
+
+    /**
+     * Stop the render thread, releasing the GL context. The renderer cannot be used afterwards.
+     */
+    public void quit() {
+        mSqlDatabaseHelper.removeOnSegmentsAddedListener(this);
+        mHandler.removeCallbacksAndMessages(null);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                releaseSurface();
+                releaseContext();
+            }
+        });
+        mRenderThread.quitSafely();
+    }
+
+    @Override
+    public void onSurfaceTextureAvailable(final SurfaceTexture surfaceTexture, int width,
+                                          int height) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!createSurface(surfaceTexture)) {
+                    releaseSurface();
+                    releaseContext();
+                    notifyFailed();
+                    return;
+                }
+                FogFrame lastFrame = mLastFrame;
+                if (lastFrame != null) {
+                    requestRender(lastFrame);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onSurfaceTextureSizeChanged(SurfaceTexture surfaceTexture, int width, int height) {
+        // The viewport is set from each frame.
+    }
+
+    /**
+     * Release the surface on the render thread, which then releases the SurfaceTexture, so it is
+     * never released while a frame is being drawn into it.
+     * @return false, as the SurfaceTexture is released by the render thread.
+     */
+    @Override
+    public boolean onSurfaceTextureDestroyed(SurfaceTexture surfaceTexture) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                releaseSurface();
+            }
+        });
+        return false;
+    }
+
+    @Override
+    public void onSurfaceTextureUpdated(SurfaceTexture surfaceTexture) {
+    }
+
+    /**
+     * Draw a frame. Runs on the render thread.
+     * @return true if the frame was drawn.
+     */
+    private boolean render(FogFrame fogFrame) {
+        if (mEglSurface == EGL14.EGL_NO_SURFACE) {
+            return false;
+        }
+
+        updateGeometry(fogFrame.getBounds());
+        double[] vertexToScreen = fogFrame.getVertexToScreen(mOriginX, mOriginY);
+
+        GLES20.glViewport(0, 0, fogFrame.getWidth(), fogFrame.getHeight());
+        GLES20.glClearColor(mFogColour[0], mFogColour[1], mFogColour[2], mFogColour[3]);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+
+        if (vertexToScreen != null) {
+            Homography.toColumnMajor(vertexToScreen, mVertexToScreen);
+            drawTrack(fogFrame);
+        }
+
+        if (!EGL14.eglSwapBuffers(mEglDisplay, mEglSurface)) {
+            Log.w(TAG, "eglSwapBuffers failed: " + EGL14.eglGetError());
+            return false;
+        }
+
+        if (!mFirstFrameRendered) {
+            mFirstFrameRendered = true;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mListener != null) {
+                        mListener.onFirstFrameRendered();
+                    }
+                }
+            });
+        }
+        return true;
+    }
+
+    /**
+     * Draw the segments and their caps in the fog colour's place.
+     */
+    private void drawTrack(FogFrame fogFrame) {
+        // Writing transparent pixels without blending erases the fog.
+        GLES20.glDisable(GLES20.GL_BLEND);
+
+        if (mLineVertexCount > 0) {
+            GLES20.glUseProgram(mLineProgram);
+            setFrameUniforms(mLineProgram, fogFrame);
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBuffers[0]);
+            int stride = FogVertexBuilder.LINE_VERTEX_FLOATS * 4;
+            int position = GLES20.glGetAttribLocation(mLineProgram, "aPosition");
+            int other = GLES20.glGetAttribLocation(mLineProgram, "aOther");
+            int side = GLES20.glGetAttribLocation(mLineProgram, "aSide");
+            GLES20.glEnableVertexAttribArray(position);
+            GLES20.glEnableVertexAttribArray(other);
+            GLES20.glEnableVertexAttribArray(side);
+            GLES20.glVertexAttribPointer(position, 2, GLES20.GL_FLOAT, false, stride, 0);
+            GLES20.glVertexAttribPointer(other, 2, GLES20.GL_FLOAT, false, stride, 8);
+            GLES20.glVertexAttribPointer(side, 1, GLES20.GL_FLOAT, false, stride, 16);
+            GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, mLineVertexCount);
+            GLES20.glDisableVertexAttribArray(position);
+            GLES20.glDisableVertexAttribArray(other);
+            GLES20.glDisableVertexAttribArray(side);
+        }
+
+        if (mCapVertexCount > 0) {
+            GLES20.glUseProgram(mCapProgram);
+            setFrameUniforms(mCapProgram, fogFrame);
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBuffers[1]);
+            int stride = FogVertexBuilder.CAP_VERTEX_FLOATS * 4;
+            int position = GLES20.glGetAttribLocation(mCapProgram, "aPosition");
+            int corner = GLES20.glGetAttribLocation(mCapProgram, "aCorner");
+            GLES20.glEnableVertexAttribArray(position);
+            GLES20.glEnableVertexAttribArray(corner);
+            GLES20.glVertexAttribPointer(position, 2, GLES20.GL_FLOAT, false, stride, 0);
+            GLES20.glVertexAttribPointer(corner, 2, GLES20.GL_FLOAT, false, stride, 8);
+            GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, mCapVertexCount);
+            GLES20.glDisableVertexAttribArray(position);
+            GLES20.glDisableVertexAttribArray(corner);
+        }
+
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    }
+
+    private void setFrameUniforms(int program, FogFrame fogFrame) {
+        GLES20.glUniformMatrix3fv(GLES20.glGetUniformLocation(program, "uVertexToScreen"), 1,
+                false, mVertexToScreen, 0);
+        GLES20.glUniform2f(GLES20.glGetUniformLocation(program, "uViewport"),
+                fogFrame.getWidth(), fogFrame.getHeight());
+        GLES20.glUniform1f(GLES20.glGetUniformLocation(program, "uHalfWidth"),
+                fogFrame.getStrokeMargin());
+    }
+
+    /**
+     * Reload the track into the vertex buffers if new segments have been stored, or the frame's
+     * bounds have left the loaded area or become much smaller than it.
+     */
+    private void updateGeometry(LatLngBounds bounds) {
+        if (!mGeometryStale && mGeometryBounds != null &&
+                mGeometryBounds.contains(bounds.southwest) &&
+                mGeometryBounds.contains(bounds.northeast) &&
+                getArea(mGeometryBounds) < getArea(bounds) * MAX_WINDOW_AREA_RATIO) {
+            return;
+        }
+        mGeometryStale = false;
+
+        double latitudeMargin = (bounds.northeast.latitude - bounds.southwest.latitude) *
+                WINDOW_EXPANSION;
+        double longitudeMargin = (bounds.northeast.longitude - bounds.southwest.longitude) *
+                WINDOW_EXPANSION;
+        LatLngBounds window = new LatLngBounds(
+                new LatLng(Math.max(-85, bounds.southwest.latitude - latitudeMargin),
+                        Math.max(-180, bounds.southwest.longitude - longitudeMargin)),
+                new LatLng(Math.min(85, bounds.northeast.latitude + latitudeMargin),
+                        Math.min(180, bounds.northeast.longitude + longitudeMargin)));
+
+        List<SegmentObject> segmentObjects = mTrackTileCache.getSegmentsInWindow(window);
+        LatLng centre = window.getCenter();
+        mOriginX = WebMercator.toNormalisedX(centre.longitude);
+        mOriginY = WebMercator.toNormalisedY(centre.latitude);
+
+        float[] lineVertices = FogVertexBuilder.buildLineVertices(segmentObjects,
+                mOriginX, mOriginY);
+        float[] capVertices = FogVertexBuilder.buildCapVertices(segmentObjects,
+                mOriginX, mOriginY);
+        upload(mBuffers[0], lineVertices);
+        upload(mBuffers[1], capVertices);
+        mLineVertexCount = lineVertices.length / FogVertexBuilder.LINE_VERTEX_FLOATS;
+        mCapVertexCount = capVertices.length / FogVertexBuilder.CAP_VERTEX_FLOATS;
+        mGeometryBounds = window;
+    }
+
+    private static void upload(int buffer, float[] vertices) {
+        FloatBuffer floatBuffer = ByteBuffer.allocateDirect(vertices.length * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        floatBuffer.put(vertices).position(0);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffer);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, vertices.length * 4, floatBuffer,
+                GLES20.GL_STATIC_DRAW);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    }
+
+    private static double getArea(LatLngBounds bounds) {
+        return (bounds.northeast.latitude - bounds.southwest.latitude) *
+                (bounds.northeast.longitude - bounds.southwest.longitude);
+    }
+
+    /**
+     * Create the GL context if needed and a window surface on the SurfaceTexture.
+     * @return true if the surface is ready to draw into.
+     */
+    private boolean createSurface(SurfaceTexture surfaceTexture) {
+        mSurfaceTexture = surfaceTexture;
+        if (mEglContext == EGL14.EGL_NO_CONTEXT && !createContext()) {
+            return false;
+        }
+
+        EGLConfig eglConfig = chooseConfig();
+        mEglSurface = EGL14.eglCreateWindowSurface(mEglDisplay, eglConfig, surfaceTexture,
+                new int[] {EGL14.EGL_NONE}, 0);
+        if (mEglSurface == null || mEglSurface == EGL14.EGL_NO_SURFACE) {
+            Log.w(TAG, "eglCreateWindowSurface failed: " + EGL14.eglGetError());
+            mEglSurface = EGL14.EGL_NO_SURFACE;
+            return false;
+        }
+        if (!EGL14.eglMakeCurrent(mEglDisplay, mEglSurface, mEglSurface, mEglContext)) {
+            Log.w(TAG, "eglMakeCurrent failed: " + EGL14.eglGetError());
+            return false;
+        }
+
+        if (mLineProgram == 0) {
+            mLineProgram = createProgram(LINE_VERTEX_SHADER, LINE_FRAGMENT_SHADER);
+            mCapProgram = createProgram(CAP_VERTEX_SHADER, CAP_FRAGMENT_SHADER);
+            if (mLineProgram == 0 || mCapProgram == 0) {
+                return false;
+            }
+            GLES20.glGenBuffers(2, mBuffers, 0);
+            mGeometryStale = true;
+        }
+        return true;
+    }
+
+    private boolean createContext() {
+        mEglDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        int[] version = new int[2];
+        if (mEglDisplay == EGL14.EGL_NO_DISPLAY ||
+                !EGL14.eglInitialize(mEglDisplay, version, 0, version, 1)) {
+            Log.w(TAG, "eglInitialize failed: " + EGL14.eglGetError());
+            return false;
+        }
+
+        EGLConfig eglConfig = chooseConfig();
+        if (eglConfig == null) {
+            Log.w(TAG, "No RGBA8888 OpenGL ES 2.0 config");
+            return false;
+        }
+        mEglContext = EGL14.eglCreateContext(mEglDisplay, eglConfig, EGL14.EGL_NO_CONTEXT,
+                new int[] {EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE}, 0);
+        if (mEglContext == null || mEglContext == EGL14.EGL_NO_CONTEXT) {
+            Log.w(TAG, "eglCreateContext failed: " + EGL14.eglGetError());
+            mEglContext = EGL14.EGL_NO_CONTEXT;
+            return false;
+        }
+        return true;
+    }
+
+    private EGLConfig chooseConfig() {
+        int[] attributes = {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_ALPHA_SIZE, 8,
+                EGL14.EGL_RENDERABLE_TYPE, EGL_OPENGL_ES2_BIT,
+                EGL14.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] configCount = new int[1];
+        if (!EGL14.eglChooseConfig(mEglDisplay, attributes, 0, configs, 0, 1, configCount, 0) ||
+                configCount[0] == 0) {
+            return null;
+        }
+        return configs[0];
+    }
+
+    private static int createProgram(String vertexSource, String fragmentSource) {
+        int vertexShader = compileShader(GLES20.GL_VERTEX_SHADER, vertexSource);
+        int fragmentShader = compileShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
+        if (vertexShader == 0 || fragmentShader == 0) {
+            return 0;
+        }
+
+        int program = GLES20.glCreateProgram();
+        GLES20.glAttachShader(program, vertexShader);
+        GLES20.glAttachShader(program, fragmentShader);
+        GLES20.glLinkProgram(program);
+        GLES20.glDeleteShader(vertexShader);
+        GLES20.glDeleteShader(fragmentShader);
+
+        int[] linked = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linked, 0);
+        if (linked[0] == 0) {
+            Log.w(TAG, "Program link failed: " + GLES20.glGetProgramInfoLog(program));
+            GLES20.glDeleteProgram(program);
+            return 0;
+        }
+        return program;
+    }
+
+    private static int compileShader(int type, String source) {
+        int shader = GLES20.glCreateShader(type);
+        GLES20.glShaderSource(shader, source);
+        GLES20.glCompileShader(shader);
+
+        int[] compiled = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
+        if (compiled[0] == 0) {
+            Log.w(TAG, "Shader compile failed: " + GLES20.glGetShaderInfoLog(shader));
+            GLES20.glDeleteShader(shader);
+            return 0;
+        }
+        return shader;
+    }
+
+    private void releaseSurface() {
+        if (mEglSurface != EGL14.EGL_NO_SURFACE) {
+            EGL14.eglMakeCurrent(mEglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
+                    mEglContext);
+            EGL14.eglDestroySurface(mEglDisplay, mEglSurface);
+            mEglSurface = EGL14.EGL_NO_SURFACE;
+        }
+        if (mSurfaceTexture != null) {
+            mSurfaceTexture.release();
+            mSurfaceTexture = null;
+        }
+    }
+
+    private void releaseContext() {
+        if (mEglDisplay != EGL14.EGL_NO_DISPLAY) {
+            // Destroying the context frees its programs and buffers.
+            EGL14.eglMakeCurrent(mEglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
+                    EGL14.EGL_NO_CONTEXT);
+            if (mEglContext != EGL14.EGL_NO_CONTEXT) {
+                EGL14.eglDestroyContext(mEglDisplay, mEglContext);
+            }
+            EGL14.eglReleaseThread();
+            EGL14.eglTerminate(mEglDisplay);
+        }
+        mEglDisplay = EGL14.EGL_NO_DISPLAY;
+        mEglContext = EGL14.EGL_NO_CONTEXT;
+        mLineProgram = 0;
+        mCapProgram = 0;
+    }
+
+    private void notifyFailed() {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mListener != null) {
+                    mListener.onRendererFailed();
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,122 @@
+package com.danielcswain.fogofwar.Rendering;
+
+/**
+ * The projective transform between two planes, fitted from four point correspondences.
+ *
+ * The map camera projects the Web Mercator plane onto the screen with a perspective projection
+ * once the map is tilted, and with a similarity transform otherwise; both are homographies, so
+ * four points projected by the map are enough to project any other point exactly.
+ */
+public final class Homography {
+
+    private Homography() {
+    }
+
+    /**
+     * Fit the homography mapping four source points onto four destination points.
+     * @param source: double[8], the source points as x0, y0, x1, y1, ...
+     * @param destination: double[8], the destination points in the same order.
+     * @return the 3x3 matrix in row-major order, or null if three of the points are collinear.
+     */
+    public static double[] fromPoints(double[] source, double[] destination) {
+        // Each correspondence gives two linear equations in the eight unknown entries, h8 = 1:
+        // h0 x + h1 y + h2 - h6 x X - h7 y X = X and h3 x + h4 y + h5 - h6 x Y - h7 y Y = Y.
+        double[][] system = new double[8][9];
+        for (int i = 0; i < 4; i++) {
+            double x = source[2 * i];
+            double y = source[2 * i + 1];
+            double mappedX = destination[2 * i];
+            double mappedY = destination[2 * i + 1];
+
+            double[] rowX = system[2 * i];
+            rowX[0] = x;
+            rowX[1] = y;
+            rowX[2] = 1;
+            rowX[6] = -x * mappedX;
+            rowX[7] = -y * mappedX;
+            rowX[8] = mappedX;
+
+            double[] rowY = system[2 * i + 1];
+            rowY[3] = x;
+            rowY[4] = y;
+            rowY[5] = 1;
+            rowY[6] = -x * mappedY;
+            rowY[7] = -y * mappedY;
+            rowY[8] = mappedY;
+        }
+
+        double[] solution = solve(system);
+        if (solution == null) {
+            return null;
+        }
+        double[] matrix = new double[9];
+        System.arraycopy(solution, 0, matrix, 0, 8);
+        matrix[8] = 1;
+        return matrix;
+    }
+
+    /**
+     * Map a point through a homography.
+     * @param matrix: double[9], the row-major matrix.
+     * @param point: double[2], the point, replaced by the mapped point.
+     */
+    public static void map(double[] matrix, double[] point) {
+        double x = point[0];
+        double y = point[1];
+        double w = matrix[6] * x + matrix[7] * y + matrix[8];
+        point[0] = (matrix[0] * x + matrix[1] * y + matrix[2]) / w;
+        point[1] = (matrix[3] * x + matrix[4] * y + matrix[5]) / w;
+    }
+
+    /**
+     * Convert a row-major matrix to the column-major float layout OpenGL expects.
+     * @param matrix: double[9], the row-major matrix.
+     * @param columnMajor: float[9], receives the matrix.
+     */
+    public static void toColumnMajor(double[] matrix, float[] columnMajor) {
+        for (int row = 0; row < 3; row++) {
+            for (int column = 0; column < 3; column++) {
+                columnMajor[column * 3 + row] = (float) matrix[row * 3 + column];
+            }
+        }
+    }
+
+    /**
+     * Solve an augmented linear system by Gaussian elimination with partial pivoting.
+     * @return the solution, or null if the system is singular.
+     */
+    private static double[] solve(double[][] system) {
+        int size = system.length;
+        for (int pivot = 0; pivot < size; pivot++) {
+            int best = pivot;
+            for (int row = pivot + 1; row < size; row++) {
+                if (Math.abs(system[row][pivot]) > Math.abs(system[best][pivot])) {
+                    best = row;
+                }
+            }
+            if (Math.abs(system[best][pivot]) < 1e-12) {
+                return null;
+            }
+            double[] swap = system[pivot];
+            system[pivot] = system[best];
+            system[best] = swap;
+
+            for (int row = pivot + 1; row < size; row++) {
+                double factor = system[row][pivot] / system[pivot][pivot];
+                for (int column = pivot; column <= size; column++) {
+                    system[row][column] -= factor * system[pivot][column];
+                }
+            }
+        }
+
+        double[] solution = new double[size];
+        for (int row = size - 1; row >= 0; row--) {
+            double sum = system[row][size];
+            for (int column = row + 1; column < size; column++) {
+                sum -= system[row][column] * solution[column];
+            }
+            solution[row] = sum / system[row][row];
+        }
+        return solution;
+    }
+}
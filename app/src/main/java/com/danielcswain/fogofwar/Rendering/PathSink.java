@@ -0,0 +1,12 @@
+package com.danielcswain.fogofwar.Rendering;
+
+/**
+ * Receives the outline of a path being built, e.g. an android.graphics.Path on the device or a
+ * java.awt.geom.Path2D when rendering off-device.
+ */
+public interface PathSink {
+
+    void moveTo(float x, float y);
+
+    void lineTo(float x, float y);
+}
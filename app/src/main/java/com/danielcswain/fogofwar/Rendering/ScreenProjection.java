@@ -0,0 +1,15 @@
+package com.danielcswain.fogofwar.Rendering;
+
+/**
+ * Converts geographic coordinates to screen pixels for the current camera.
+ */
+public interface ScreenProjection {
+
+    /**
+     * Project a point onto the screen.
+     * @param latitude: double, latitude in degrees.
+     * @param longitude: double, longitude in degrees.
+     * @param point: float[2] receiving the screen x and y in pixels.
+     */
+    void toScreenLocation(double latitude, double longitude, float[] point);
+}
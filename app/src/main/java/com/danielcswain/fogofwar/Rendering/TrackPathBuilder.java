@@ -0,0 +1,290 @@
+package com.danielcswain.fogofwar.Rendering;
+
+import com.danielcswain.fogofwar.Data.SegmentObject;
+import com.danielcswain.fogofwar.Explored.ExploredRegion;
+import com.danielcswain.fogofwar.Geometry.GeoMath;
+import com.danielcswain.fogofwar.Geometry.SegmentClipper;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the screen-space path of the user's track from stored segments. Shared by OverlayView
+ * and the off-device renderer so both draw exactly the same geometry.
+ */
+public final class TrackPathBuilder {
+
+    // Keeps the path visible however far the map is zoomed out.
+    private static final float MIN_STROKE_WIDTH = 1;
+
+    // Exposed areas are clipped this many pixels beyond their edges, so rounding where they meet
+    // the path built before cannot leave a seam of fog across the track.
+    private static final float EXPOSED_OVERLAP = 1;
+
+    private TrackPathBuilder() {
+    }
+
+    /**
+     * Project the segments and add them to the path, clipping each to the viewport plus the
+     * stroke margin so segments crossing the screen with both ends outside it are still drawn.
+     * @param segmentObjects: A List of SegmentObjects overlapping the viewport, in the order they
+     *      were recorded.
+     * @param projection: The ScreenProjection of the current camera.
+     * @param width: int, viewport width in pixels.
+     * @param height: int, viewport height in pixels.
+     * @param margin: float, the stroke margin in pixels.
+     * @param pathSink: The PathSink receiving the path.
+     * @return the number of segments added to the path.
+     */
+    public static int buildPath(List<SegmentObject> segmentObjects, ScreenProjection projection,
+                                int width, int height, float margin, PathSink pathSink) {
+        return buildPath(segmentObjects, projection, -margin, -margin, width + margin,
+                height + margin, pathSink);
+    }
+
+    /**
+     * Project the segments and add them to the path, clipping each to a rectangle of the screen,
+     * e.g. an area newly exposed around a path built for an earlier camera.
+     * @param segmentObjects: A List of SegmentObjects overlapping the rectangle, in the order they
+     *      were recorded.
+     * @param projection: The ScreenProjection the path is built in.
+     * @param left: float, the left edge of the clip rectangle in pixels.
+     * @param top: float, the top edge of the clip rectangle in pixels.
+     * @param right: float, the right edge of the clip rectangle in pixels.
+     * @param bottom: float, the bottom edge of the clip rectangle in pixels.
+     * @param pathSink: The PathSink receiving the path.
+     * @return the number of segments added to the path.
+     */
+    public static int buildPath(List<SegmentObject> segmentObjects, ScreenProjection projection,
+                                float left, float top, float right, float bottom,
+                                PathSink pathSink) {
+        float[] startPoint = new float[2];
+        float[] endPoint = new float[2];
+        float[] clippedSegment = new float[4];
+
+        int drawn = 0;
+        boolean connected = false;
+        SegmentObject previousSegment = null;
+
+        for (SegmentObject segmentObject : segmentObjects) {
+            // Consecutive segments share a point, so reuse its projection where possible.
+            if (previousSegment != null &&
+                    previousSegment.getEndLatitude() == segmentObject.getStartLatitude() &&
+                    previousSegment.getEndLongitude() == segmentObject.getStartLongitude()) {
+                startPoint[0] = endPoint[0];
+                startPoint[1] = endPoint[1];
+            } else {
+                projection.toScreenLocation(segmentObject.getStartLatitude(),
+                        segmentObject.getStartLongitude(), startPoint);
+                connected = false;
+            }
+            projection.toScreenLocation(segmentObject.getEndLatitude(),
+                    segmentObject.getEndLongitude(), endPoint);
+
+            clippedSegment[0] = startPoint[0];
+            clippedSegment[1] = startPoint[1];
+            clippedSegment[2] = endPoint[0];
+            clippedSegment[3] = endPoint[1];
+
+            if (SegmentClipper.clip(clippedSegment, left, top, right, bottom)) {
+                // Continue the line if this segment starts where the last one ended on screen.
+                if (!connected || clippedSegment[0] != startPoint[0] ||
+                        clippedSegment[1] != startPoint[1]) {
+                    pathSink.moveTo(clippedSegment[0], clippedSegment[1]);
+                }
+                pathSink.lineTo(clippedSegment[2], clippedSegment[3]);
+                connected = clippedSegment[2] == endPoint[0] && clippedSegment[3] == endPoint[1];
+                drawn++;
+            } else {
+                connected = false;
+            }
+
+            previousSegment = segmentObject;
+        }
+        return drawn;
+    }
+
+    /**
+     * Expand the map bounds by the stroke margin, so segments just off screen whose line is still
+     * visible are fetched.
+     * @param mapBounds: The LatLngBounds of the map view.
+     * @param margin: float, the stroke margin in pixels.
+     * @param width: int, viewport width in pixels.
+     * @param height: int, viewport height in pixels.
+     * @return the expanded LatLngBounds.
+     */
+    public static LatLngBounds getBoundsWithStrokeMargin(LatLngBounds mapBounds, float margin,
+                                                         int width, int height) {
+        if (width == 0 || height == 0) {
+            return mapBounds;
+        }
+
+        double latitudeMargin =
+                (mapBounds.northeast.latitude - mapBounds.southwest.latitude) * margin / height;
+        double longitudeMargin =
+                (mapBounds.northeast.longitude - mapBounds.southwest.longitude) * margin / width;
+
+        return new LatLngBounds(
+                new LatLng(mapBounds.southwest.latitude - latitudeMargin,
+                        mapBounds.southwest.longitude - longitudeMargin),
+                new LatLng(mapBounds.northeast.latitude + latitudeMargin,
+                        mapBounds.northeast.longitude + longitudeMargin));
+    }
+
+    /**
+     * Get the parts of a viewport outside the area a path has already been built for, as up to
+     * four strips: the full height of the viewport left and right of the area, and above and
+     * below it between those.
+     * @param coveredBounds: The LatLngBounds the path has been built for.
+     * @param viewBounds: The LatLngBounds of the viewport, including the stroke margin.
+     * @return a List of the exposed LatLngBounds, empty if the viewport is inside the covered
+     *      area, or null if the two do not overlap or either crosses the antimeridian.
+     */
+    public static List<LatLngBounds> getExposedBounds(LatLngBounds coveredBounds,
+                                                      LatLngBounds viewBounds) {
+        double coveredWest = coveredBounds.southwest.longitude;
+        double coveredEast = coveredBounds.northeast.longitude;
+        double coveredSouth = coveredBounds.southwest.latitude;
+        double coveredNorth = coveredBounds.northeast.latitude;
+        double viewWest = viewBounds.southwest.longitude;
+        double viewEast = viewBounds.northeast.longitude;
+        double viewSouth = viewBounds.southwest.latitude;
+        double viewNorth = viewBounds.northeast.latitude;
+
+        if (coveredWest > coveredEast || viewWest > viewEast) {
+            return null;
+        }
+        double west = Math.max(coveredWest, viewWest);
+        double east = Math.min(coveredEast, viewEast);
+        double south = Math.max(coveredSouth, viewSouth);
+        double north = Math.min(coveredNorth, viewNorth);
+        if (west >= east || south >= north) {
+            return null;
+        }
+
+        List<LatLngBounds> exposedBounds = new ArrayList<>(4);
+        if (viewWest < west) {
+            exposedBounds.add(new LatLngBounds(new LatLng(viewSouth, viewWest),
+                    new LatLng(viewNorth, west)));
+        }
+        if (viewEast > east) {
+            exposedBounds.add(new LatLngBounds(new LatLng(viewSouth, east),
+                    new LatLng(viewNorth, viewEast)));
+        }
+        if (viewSouth < south) {
+            exposedBounds.add(new LatLngBounds(new LatLng(viewSouth, west),
+                    new LatLng(south, east)));
+        }
+        if (viewNorth > north) {
+            exposedBounds.add(new LatLngBounds(new LatLng(north, west),
+                    new LatLng(viewNorth, east)));
+        }
+        return exposedBounds;
+    }
+
+    /**
+     * Get the parts of a viewport outside every area a path has already been built for.
+     * @param coveredBounds: A List of the LatLngBounds the path has been built for.
+     * @param viewBounds: The LatLngBounds of the viewport, including the stroke margin.
+     * @return a List of the exposed LatLngBounds, which do not overlap each other, empty if the
+     *      viewport is covered, or null if any of the bounds cross the antimeridian.
+     */
+    public static List<LatLngBounds> getExposedBounds(List<LatLngBounds> coveredBounds,
+                                                      LatLngBounds viewBounds) {
+        if (viewBounds.southwest.longitude > viewBounds.northeast.longitude) {
+            return null;
+        }
+
+        List<LatLngBounds> exposedBounds = new ArrayList<>(4);
+        exposedBounds.add(viewBounds);
+        for (LatLngBounds covered : coveredBounds) {
+            if (covered.southwest.longitude > covered.northeast.longitude) {
+                return null;
+            }
+
+            List<LatLngBounds> remainingBounds = new ArrayList<>(exposedBounds.size());
+            for (LatLngBounds bounds : exposedBounds) {
+                List<LatLngBounds> outsideBounds = getExposedBounds(covered, bounds);
+                if (outsideBounds == null) {
+                    // The area does not overlap this covered area at all.
+                    remainingBounds.add(bounds);
+                } else {
+                    remainingBounds.addAll(outsideBounds);
+                }
+            }
+            exposedBounds = remainingBounds;
+        }
+        return exposedBounds;
+    }
+
+    /**
+     * Add the segments in areas exposed around a path built for an earlier camera. Each area's
+     * segments are clipped to that area, so the parts already in the path are not added again.
+     * @param segmentObjects: A List of SegmentObjects overlapping the exposed areas, each once, in
+     *      the order they were recorded.
+     * @param exposedBounds: A List of the exposed LatLngBounds, which must not overlap, e.g. from
+     *      getExposedBounds.
+     * @param projection: The ScreenProjection the path is built in, which must be upright so
+     *      each area projects to a rectangle.
+     * @param pathSink: The PathSink receiving the path.
+     * @return the number of segment pieces added to the path.
+     */
+    public static int buildExposedPath(List<SegmentObject> segmentObjects,
+                                       List<LatLngBounds> exposedBounds,
+                                       ScreenProjection projection, PathSink pathSink) {
+        float[] northwest = new float[2];
+        float[] southeast = new float[2];
+        List<SegmentObject> areaSegments = new ArrayList<>();
+
+        int drawn = 0;
+        for (LatLngBounds bounds : exposedBounds) {
+            // Only the segments whose box overlaps the area are projected.
+            areaSegments.clear();
+            for (SegmentObject segmentObject : segmentObjects) {
+                if (segmentObject.overlaps(bounds.southwest.latitude, bounds.southwest.longitude,
+                        bounds.northeast.latitude, bounds.northeast.longitude)) {
+                    areaSegments.add(segmentObject);
+                }
+            }
+            if (areaSegments.isEmpty()) {
+                continue;
+            }
+
+            projection.toScreenLocation(bounds.northeast.latitude, bounds.southwest.longitude,
+                    northwest);
+            projection.toScreenLocation(bounds.southwest.latitude, bounds.northeast.longitude,
+                    southeast);
+            drawn += buildPath(areaSegments, projection,
+                    Math.min(northwest[0], southeast[0]) - EXPOSED_OVERLAP,
+                    Math.min(northwest[1], southeast[1]) - EXPOSED_OVERLAP,
+                    Math.max(northwest[0], southeast[0]) + EXPOSED_OVERLAP,
+                    Math.max(northwest[1], southeast[1]) + EXPOSED_OVERLAP, pathSink);
+        }
+        return drawn;
+    }
+
+    /**
+     * Get the width of the path cleared through the fog, the reveal radius either side of the
+     * track, so the fog reveals the same ground as the explored area at every zoom.
+     * @param projection: The ScreenProjection of the current camera.
+     * @param latitude: double, latitude of the point the width is measured at, e.g. the camera
+     *      target.
+     * @param longitude: double, longitude of the point.
+     * @return the stroke width in pixels.
+     */
+    public static float getStrokeWidth(ScreenProjection projection, double latitude,
+                                       double longitude) {
+        // Mercator scales north-south and east-west distances alike, so measure along the
+        // meridian, where degrees are the same length everywhere.
+        double latitudeDelta = Math.toDegrees(
+                2 * ExploredRegion.REVEAL_RADIUS_METRES / GeoMath.EARTH_RADIUS_METRES);
+        float[] point = new float[2];
+        projection.toScreenLocation(latitude, longitude, point);
+        float x = point[0];
+        float y = point[1];
+        projection.toScreenLocation(latitude + latitudeDelta, longitude, point);
+        return Math.max(MIN_STROKE_WIDTH, (float) Math.hypot(point[0] - x, point[1] - y));
+    }
+}
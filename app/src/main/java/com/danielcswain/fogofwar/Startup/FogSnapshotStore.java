@@ -0,0 +1,209 @@
+package com.danielcswain.fogofwar.Startup;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.android.gms.maps.model.CameraPosition;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Persists the last camera position and a picture of the fog drawn for it, so that the next
+ * launch can show the fog straight away while the map, the database and the caches start up.
+ *
+ * The camera position is kept in SharedPreferences. The picture is stored at a reduced resolution
+ * as a PNG in the cache directory, and is encoded and decoded off the UI thread.
+ */
+public class FogSnapshotStore {
+
+    private static final String TAG = FogSnapshotStore.class.getSimpleName();
+
+    // The snapshot is stored at 1 / SNAPSHOT_SCALE of the view's size in each direction.
+    public static final int SNAPSHOT_SCALE = 2;
+
+    private static final String PREFERENCES_NAME = "fog_snapshot";
+    private static final String SNAPSHOT_FILE_NAME = "fog_snapshot.png";
+
+    private static final String KEY_LATITUDE = "latitude";
+    private static final String KEY_LONGITUDE = "longitude";
+    private static final String KEY_ZOOM = "zoom";
+    private static final String KEY_BEARING = "bearing";
+    private static final String KEY_TILT = "tilt";
+    private static final String KEY_NORTH = "north";
+    private static final String KEY_SOUTH = "south";
+    private static final String KEY_EAST = "east";
+    private static final String KEY_WEST = "west";
+    private static final String KEY_VIEW_WIDTH = "view_width";
+    private static final String KEY_VIEW_HEIGHT = "view_height";
+
+    // Shared by all instances so snapshots are written one at a time, in order.
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    private final SharedPreferences mPreferences;
+    private final File mSnapshotFile;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Listener told on the UI thread when the stored snapshot has been decoded.
+     */
+    public interface OnSnapshotLoadedListener {
+        /**
+         * @param snapshot: The stored fog Bitmap.
+         * @param viewWidth: int, the width of the view the snapshot was taken from.
+         * @param viewHeight: int, the height of the view the snapshot was taken from.
+         */
+        void onSnapshotLoaded(Bitmap snapshot, int viewWidth, int viewHeight);
+    }
+
+    /**
+     * Constructor for the FogSnapshotStore.
+     * @param context: The Activity/Application context.
+     */
+    public FogSnapshotStore(Context context) {
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        mSnapshotFile = new File(context.getCacheDir(), SNAPSHOT_FILE_NAME);
+    }
+
+    /**
+     * Get the camera position saved on the last exit.
+     * @return a CameraPosition, or null if none has been saved.
+     */
+    public CameraPosition getCameraPosition() {
+        if (!mPreferences.contains(KEY_LATITUDE)) {
+            return null;
+        }
+        return new CameraPosition(
+                new LatLng(getDouble(KEY_LATITUDE), getDouble(KEY_LONGITUDE)),
+                mPreferences.getFloat(KEY_ZOOM, 0),
+                mPreferences.getFloat(KEY_TILT, 0),
+                mPreferences.getFloat(KEY_BEARING, 0));
+    }
+
+    /**
+     * Get the visible bounds of the map saved on the last exit.
+     * @return a LatLngBounds, or null if none have been saved.
+     */
+    public LatLngBounds getBounds() {
+        if (!mPreferences.contains(KEY_NORTH)) {
+            return null;
+        }
+        return new LatLngBounds(
+                new LatLng(getDouble(KEY_SOUTH), getDouble(KEY_WEST)),
+                new LatLng(getDouble(KEY_NORTH), getDouble(KEY_EAST)));
+    }
+
+    /**
+     * Save the camera position and the fog drawn for it. The snapshot is written in the
+     * background; the Bitmap must not be modified afterwards.
+     * @param cameraPosition: The CameraPosition of the map.
+     * @param bounds: The visible LatLngBounds of the map.
+     * @param snapshot: The fog Bitmap at 1 / SNAPSHOT_SCALE of the view's size, or null to only
+     *      save the camera and discard any stored snapshot.
+     * @param viewWidth: int, the width of the view the snapshot was taken from.
+     * @param viewHeight: int, the height of the view the snapshot was taken from.
+     */
+    public void save(CameraPosition cameraPosition, LatLngBounds bounds, final Bitmap snapshot,
+                     int viewWidth, int viewHeight) {
+        SharedPreferences.Editor editor = mPreferences.edit();
+        putDouble(editor, KEY_LATITUDE, cameraPosition.target.latitude);
+        putDouble(editor, KEY_LONGITUDE, cameraPosition.target.longitude);
+        editor.putFloat(KEY_ZOOM, cameraPosition.zoom);
+        editor.putFloat(KEY_BEARING, cameraPosition.bearing);
+        editor.putFloat(KEY_TILT, cameraPosition.tilt);
+        putDouble(editor, KEY_NORTH, bounds.northeast.latitude);
+        putDouble(editor, KEY_SOUTH, bounds.southwest.latitude);
+        putDouble(editor, KEY_EAST, bounds.northeast.longitude);
+        putDouble(editor, KEY_WEST, bounds.southwest.longitude);
+        editor.putInt(KEY_VIEW_WIDTH, viewWidth);
+        editor.putInt(KEY_VIEW_HEIGHT, viewHeight);
+        editor.apply();
+
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (snapshot == null) {
+                    mSnapshotFile.delete();
+                } else {
+                    writeSnapshot(snapshot);
+                }
+            }
+        });
+    }
+
+    /**
+     * Decode the stored snapshot in the background. The listener is not called if there is no
+     * snapshot or it cannot be read.
+     * @param listener: The OnSnapshotLoadedListener to give the snapshot to.
+     */
+    public void loadSnapshot(final OnSnapshotLoadedListener listener) {
+        final int viewWidth = mPreferences.getInt(KEY_VIEW_WIDTH, 0);
+        final int viewHeight = mPreferences.getInt(KEY_VIEW_HEIGHT, 0);
+
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!mSnapshotFile.exists()) {
+                    return;
+                }
+
+                final Bitmap snapshot = BitmapFactory.decodeFile(mSnapshotFile.getPath());
+                if (snapshot == null) {
+                    return;
+                }
+
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onSnapshotLoaded(snapshot, viewWidth, viewHeight);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Write the snapshot to a temporary file and rename it over the stored one, so a snapshot
+     * interrupted part way through is never read.
+     */
+    private void writeSnapshot(Bitmap snapshot) {
+        File temporaryFile = new File(mSnapshotFile.getPath() + ".tmp");
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(temporaryFile);
+            snapshot.compress(Bitmap.CompressFormat.PNG, 100, outputStream);
+            outputStream.close();
+            outputStream = null;
+            if (!temporaryFile.renameTo(mSnapshotFile)) {
+                Log.w(TAG, "Unable to replace the fog snapshot");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write the fog snapshot", e);
+        } finally {
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private double getDouble(String key) {
+        return Double.longBitsToDouble(mPreferences.getLong(key, 0));
+    }
+
+    private static void putDouble(SharedPreferences.Editor editor, String key, double value) {
+        editor.putLong(key, Double.doubleToRawLongBits(value));
+    }
+}
@@ -0,0 +1,80 @@
+package com.danielcswain.fogofwar.Startup;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.danielcswain.fogofwar.OverlayView;
+
+/**
+ * Measures time-to-first-fog: how long after launch the fog is first drawn, both from the saved
+ * snapshot and from the live track.
+ *
+ * On a cold start the time is measured from the start of the process where the platform reports
+ * it, otherwise from the creation of the activity.
+ */
+public class StartupMetrics implements OverlayView.OnFogDrawnListener {
+
+    private static final String TAG = StartupMetrics.class.getSimpleName();
+
+    // Whether an activity has already been started in this process.
+    private static boolean sProcessStarted = false;
+
+    private final long mStartTime;
+    private final boolean mColdStart;
+    private long mTimeToSnapshotFog = -1;
+    private long mTimeToLiveFog = -1;
+
+    /**
+     * Constructor for the StartupMetrics. Must be created in the activity's onCreate.
+     */
+    public StartupMetrics() {
+        mColdStart = !sProcessStarted;
+        sProcessStarted = true;
+        if (mColdStart && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            mStartTime = Process.getStartElapsedRealtime();
+        } else {
+            mStartTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Record the first snapshot and the first live fog drawn, and report them.
+     */
+    @Override
+    public void onFogDrawn(boolean fromSnapshot) {
+        if (mTimeToLiveFog >= 0) {
+            return;
+        }
+
+        long elapsed = SystemClock.elapsedRealtime() - mStartTime;
+        if (fromSnapshot) {
+            if (mTimeToSnapshotFog < 0) {
+                mTimeToSnapshotFog = elapsed;
+                Log.i(TAG, "Time to first fog (snapshot): " + elapsed + " ms, " + getStartType());
+            }
+        } else {
+            mTimeToLiveFog = elapsed;
+            Log.i(TAG, "Time to first fog (live): " + elapsed + " ms, " + getStartType());
+        }
+    }
+
+    /**
+     * @return the milliseconds from launch until the snapshot was drawn, or -1 if it was not.
+     */
+    public long getTimeToSnapshotFog() {
+        return mTimeToSnapshotFog;
+    }
+
+    /**
+     * @return the milliseconds from launch until the live fog was drawn, or -1 if it has not been.
+     */
+    public long getTimeToLiveFog() {
+        return mTimeToLiveFog;
+    }
+
+    private String getStartType() {
+        return mColdStart ? "cold start" : "warm start";
+    }
+}
@@ -0,0 +1,138 @@
+package com.danielcswain.fogofwar.Cache;
+
+import android.content.ComponentCallbacks2;
+import android.util.LruCache;
+
+import com.danielcswain.fogofwar.BuildConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for evicting from the registered caches in priority order to keep within the budget.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 25)
+public class CacheGovernorTest {
+
+    private static final int BUDGET = 1000;
+    private static final int ENTRY_BYTES = 100;
+
+    private CacheGovernor mCacheGovernor;
+    private LruCache<Integer, byte[]> mLowCache;
+    private LruCache<Integer, byte[]> mHighCache;
+
+    @Before
+    public void setUp() throws Exception {
+        mCacheGovernor = CacheGovernor.newInstance(BUDGET);
+        mLowCache = newCache();
+        mHighCache = newCache();
+        // The high priority cache is registered first, so it is the priority and not the order
+        // of registration which protects it.
+        mCacheGovernor.register("high", CacheGovernor.PRIORITY_HIGH, mHighCache);
+        mCacheGovernor.register("low", CacheGovernor.PRIORITY_LOW, mLowCache);
+        fill(mLowCache, 4);
+        fill(mHighCache, 4);
+    }
+
+    @Test
+    public void caches_withinBudget_areNotTrimmed() throws Exception {
+        mCacheGovernor.onCacheGrown();
+
+        assertEquals(800, mCacheGovernor.getResidentBytes());
+        assertEquals(0, mCacheGovernor.getTrims(mLowCache));
+        assertEquals(0, mCacheGovernor.getTrims(mHighCache));
+    }
+
+    @Test
+    public void onTrimMemory_evictsLowPriorityFirst() throws Exception {
+        // In the background the caches are halved to 500 bytes, all taken from the low cache.
+        mCacheGovernor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        assertEquals(100, mLowCache.size());
+        assertEquals(400, mHighCache.size());
+        assertEquals(1, mCacheGovernor.getTrims(mLowCache));
+        assertEquals(300, mCacheGovernor.getTrimmedBytes(mLowCache));
+        assertEquals(0, mCacheGovernor.getTrims(mHighCache));
+
+        // Under moderate pressure they are quartered to 250 bytes: the low cache is emptied
+        // before the high one gives up whole entries.
+        mCacheGovernor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_MODERATE);
+        assertEquals(0, mLowCache.size());
+        assertEquals(200, mHighCache.size());
+        assertEquals(2, mCacheGovernor.getTrims(mLowCache));
+        assertEquals(400, mCacheGovernor.getTrimmedBytes(mLowCache));
+        assertEquals(1, mCacheGovernor.getTrims(mHighCache));
+        assertEquals(200, mCacheGovernor.getTrimmedBytes(mHighCache));
+
+        // When the app is about to be killed the caches are emptied. The low cache is already
+        // empty, so it is not counted as trimmed again.
+        mCacheGovernor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertEquals(0, mCacheGovernor.getResidentBytes());
+        assertEquals(2, mCacheGovernor.getTrims(mLowCache));
+        assertEquals(2, mCacheGovernor.getTrims(mHighCache));
+        assertEquals(400, mCacheGovernor.getTrimmedBytes(mHighCache));
+    }
+
+    @Test
+    public void setReservedBytes_shrinksCachesToMakeRoom() throws Exception {
+        mCacheGovernor.setReservedBytes("layer", 700);
+        assertEquals(0, mLowCache.size());
+        assertEquals(300, mHighCache.size());
+        assertEquals(1, mCacheGovernor.getTrims(mLowCache));
+        assertEquals(1, mCacheGovernor.getTrims(mHighCache));
+        assertEquals(100, mCacheGovernor.getTrimmedBytes(mHighCache));
+        assertEquals(BUDGET, mCacheGovernor.getResidentBytes());
+
+        // Releasing the reservation lets the caches grow again without further trims.
+        mCacheGovernor.setReservedBytes("layer", 0);
+        fill(mLowCache, 5);
+        mCacheGovernor.onCacheGrown();
+        assertEquals(500, mLowCache.size());
+        assertEquals(1, mCacheGovernor.getTrims(mLowCache));
+        assertEquals(1, mCacheGovernor.getTrims(mHighCache));
+    }
+
+    @Test
+    public void trim_removingNothing_isNotCounted() throws Exception {
+        // A cache which keeps its entries however it is asked to trim.
+        LruCache<Integer, byte[]> pinnedCache = new LruCache<Integer, byte[]>(BUDGET) {
+            @Override
+            protected int sizeOf(Integer key, byte[] value) {
+                return value.length;
+            }
+
+            @Override
+            public void trimToSize(int maxSize) {
+            }
+        };
+        mCacheGovernor.register("pinned", CacheGovernor.PRIORITY_LOW, pinnedCache);
+        fill(pinnedCache, 2);
+
+        mCacheGovernor.onLowMemory();
+        assertEquals(200, mCacheGovernor.getResidentBytes());
+        assertEquals(0, mCacheGovernor.getTrims(pinnedCache));
+        assertEquals(0, mCacheGovernor.getTrimmedBytes(pinnedCache));
+        assertEquals(1, mCacheGovernor.getTrims(mLowCache));
+        assertEquals(1, mCacheGovernor.getTrims(mHighCache));
+    }
+
+    private static LruCache<Integer, byte[]> newCache() {
+        return new LruCache<Integer, byte[]>(BUDGET) {
+            @Override
+            protected int sizeOf(Integer key, byte[] value) {
+                return value.length;
+            }
+        };
+    }
+
+    private static void fill(LruCache<Integer, byte[]> cache, int entries) {
+        for (int i = 0; i < entries; i++) {
+            cache.put(i, new byte[ENTRY_BYTES]);
+        }
+    }
+}
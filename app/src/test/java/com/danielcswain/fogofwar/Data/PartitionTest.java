@@ -0,0 +1,40 @@
+package com.danielcswain.fogofwar.Data;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the monthly partition summaries queries are pruned with.
+ */
+public class PartitionTest {
+
+    @Test
+    public void key_isTheUtcMonth() throws Exception {
+        // 2017-12-31T23:59:59.999Z and 2018-01-01T00:00:00Z.
+        assertEquals(201712, Partition.getKey(1514764799999L));
+        assertEquals(201801, Partition.getKey(1514764800000L));
+        // 2016-02-29T12:00:00Z, a leap day.
+        assertEquals(201602, Partition.getKey(1456747200000L));
+    }
+
+    @Test
+    public void summary_coversItsRowsOnly() throws Exception {
+        Partition partition = Partition.empty(201801)
+                .withLocation(new LocationObject(1, 1515574800000L, -33.87, 151.20))
+                .withSegment(new SegmentObject(1, 1515574800000L, -33.87, 151.20,
+                        1515574860000L, -33.86, 151.21));
+        assertEquals(1, partition.getMaxLocationId());
+        assertEquals(1, partition.getMaxSegmentId());
+        assertFalse(partition.isSealed());
+        assertTrue(partition.asSealed().isSealed());
+
+        assertTrue(partition.overlaps(-33.9, -33.865, 151.0, 151.205));
+        assertFalse(partition.overlaps(-33.85, -33.80, 151.20, 151.21));
+        assertFalse(partition.overlaps(-33.87, -33.86, 151.22, 151.30));
+
+        assertTrue(partition.overlapsTime(1515574860000L, Long.MAX_VALUE));
+        assertFalse(partition.overlapsTime(Long.MIN_VALUE, 1515574799999L));
+        assertFalse(partition.overlapsTime(1515574860001L, Long.MAX_VALUE));
+    }
+}
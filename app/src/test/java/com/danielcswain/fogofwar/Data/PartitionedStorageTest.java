@@ -0,0 +1,119 @@
+package com.danielcswain.fogofwar.Data;
+
+import com.danielcswain.fogofwar.BuildConfig;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for storing the track in monthly partitions, sealing finished months and reading only
+ * the partitions a query can match.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 25)
+public class PartitionedStorageTest {
+
+    private static final double LATITUDE = -33.8688;
+    private static final double LONGITUDE = 151.2093;
+
+    // 2018-01-31T23:58:00Z and 2018-02-01T00:00:00Z.
+    private static final long JANUARY_END = 1517443080000L;
+    private static final long FEBRUARY_START = 1517443200000L;
+
+    private static final LatLngBounds TRACK_BOUNDS = new LatLngBounds(
+            new LatLng(LATITUDE - 0.01, LONGITUDE - 0.01),
+            new LatLng(LATITUDE + 0.01, LONGITUDE + 0.01));
+
+    private SQLDatabaseHelper mSqlDatabaseHelper;
+    private final List<SegmentObject> mAddedSegments = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        mSqlDatabaseHelper = SQLDatabaseHelper.newInstance(
+                RuntimeEnvironment.application, "partitions-" + System.nanoTime() + ".db");
+        mSqlDatabaseHelper.addOnSegmentsAddedListener(
+                new SQLDatabaseHelper.OnSegmentsAddedListener() {
+                    @Override
+                    public void onSegmentsAdded(List<SegmentObject> segmentObjects) {
+                        mAddedSegments.addAll(segmentObjects);
+                    }
+                });
+
+        // Two fixes at the end of January, about 55 m apart, then one a minute into February.
+        mSqlDatabaseHelper.addLocation(
+                new LocationObject(0, JANUARY_END, LATITUDE, LONGITUDE));
+        mSqlDatabaseHelper.addLocation(
+                new LocationObject(0, JANUARY_END + 60000, LATITUDE + 0.0005, LONGITUDE));
+        mSqlDatabaseHelper.addLocation(
+                new LocationObject(0, FEBRUARY_START + 60000, LATITUDE + 0.001, LONGITUDE));
+    }
+
+    private Partition getPartition(int key) {
+        for (Partition partition : mSqlDatabaseHelper.getPartitions()) {
+            if (partition.getKey() == key) {
+                return partition;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void newMonth_sealsTheMonthBefore() throws Exception {
+        Partition january = getPartition(201801);
+        Partition february = getPartition(201802);
+        assertNotNull(january);
+        assertNotNull(february);
+        assertTrue(january.isSealed());
+        assertFalse(february.isSealed());
+        assertEquals(2, january.getLocationCount());
+        assertEquals(1, january.getSegmentCount());
+        assertEquals(1, february.getLocationCount());
+        assertEquals(1, february.getSegmentCount());
+
+        // The sealed table is still read like the live one.
+        assertEquals(2, mSqlDatabaseHelper.getSegmentsInWindow(TRACK_BOUNDS).size());
+    }
+
+    @Test
+    public void queries_readOnlyTheMatchingPartitions() throws Exception {
+        List<SegmentObject> februarySegments = mSqlDatabaseHelper.getSegmentsInWindow(
+                TRACK_BOUNDS, FEBRUARY_START, Long.MAX_VALUE);
+        assertEquals(1, februarySegments.size());
+        assertEquals(2, februarySegments.get(0).getId());
+
+        LatLngBounds elsewhere = new LatLngBounds(new LatLng(51.5, -0.2), new LatLng(51.6, 0));
+        assertTrue(mSqlDatabaseHelper.getSegmentsInWindow(elsewhere).isEmpty());
+
+        List<LocationObject> januaryLocations =
+                mSqlDatabaseHelper.getLocationsInTimeRange(0, FEBRUARY_START - 1);
+        assertEquals(2, januaryLocations.size());
+        assertEquals(1, januaryLocations.get(0).getId());
+        assertEquals(2, januaryLocations.get(1).getId());
+    }
+
+    @Test
+    public void lateFixInASealedMonth_getsTheNextSegmentId() throws Exception {
+        // Dated back in January, so its segment is written to the sealed table, which has no
+        // rowid to read the ID back from.
+        mAddedSegments.clear();
+        LocationObject storedLocation = mSqlDatabaseHelper.addLocation(new LocationObject(
+                0, JANUARY_END + 90000, LATITUDE + 0.0007, LONGITUDE));
+        assertEquals(4, storedLocation.getId());
+
+        assertEquals(1, mAddedSegments.size());
+        assertEquals(3, mAddedSegments.get(0).getId());
+        assertEquals(3, getPartition(201801).getMaxSegmentId());
+        assertTrue(getPartition(201801).isSealed());
+    }
+}
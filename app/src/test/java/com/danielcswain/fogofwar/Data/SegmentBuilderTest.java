@@ -0,0 +1,66 @@
+package com.danielcswain.fogofwar.Data;
+
+import com.danielcswain.fogofwar.Geometry.SegmentClipper;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for building track segments from fixes and clipping them to the viewport.
+ */
+public class SegmentBuilderTest {
+
+    @Test
+    public void consecutiveFixes_areJoined() throws Exception {
+        SegmentBuilder segmentBuilder = new SegmentBuilder();
+        assertTrue(segmentBuilder.addLocation(new LocationObject(1, 0, -33.8688, 151.2093)).isEmpty());
+
+        // About 110 m in 10 s.
+        List<SegmentObject> segments =
+                segmentBuilder.addLocation(new LocationObject(2, 10000, -33.8678, 151.2093));
+        assertEquals(1, segments.size());
+        assertEquals(-33.8688, segments.get(0).getStartLatitude(), 0);
+        assertEquals(-33.8678, segments.get(0).getEndLatitude(), 0);
+    }
+
+    @Test
+    public void impossibleTravel_breaksTheTrack() throws Exception {
+        SegmentBuilder segmentBuilder = new SegmentBuilder();
+        segmentBuilder.addLocation(new LocationObject(1, 0, -33.8688, 151.2093));
+
+        // About 11 km in 10 s.
+        assertTrue(segmentBuilder.addLocation(
+                new LocationObject(2, 10000, -33.7688, 151.2093)).isEmpty());
+    }
+
+    @Test
+    public void longSegments_areSplitToTheMaximumSpan() throws Exception {
+        SegmentBuilder segmentBuilder = new SegmentBuilder();
+        segmentBuilder.addLocation(new LocationObject(1, 0, 0, 0));
+
+        // About 3.3 km in 10 minutes.
+        List<SegmentObject> segments =
+                segmentBuilder.addLocation(new LocationObject(2, 600000, 0.03, 0));
+        assertEquals(3, segments.size());
+        for (SegmentObject segment : segments) {
+            assertTrue(segment.getMaxLatitude() - segment.getMinLatitude()
+                    <= SegmentBuilder.MAX_SEGMENT_SPAN_DEGREES + 1e-9);
+        }
+        assertEquals(0.03, segments.get(2).getEndLatitude(), 0);
+        assertEquals(600000, segments.get(2).getEndDatetime());
+    }
+
+    @Test
+    public void segmentCrossingTheViewport_isClippedToIt() throws Exception {
+        float[] segment = {-100, 50, 300, 50};
+        assertTrue(SegmentClipper.clip(segment, 0, 0, 200, 100));
+        assertEquals(0, segment[0], 1e-4);
+        assertEquals(200, segment[2], 1e-4);
+
+        float[] outside = {-100, -50, 300, -50};
+        assertFalse(SegmentClipper.clip(outside, 0, 0, 200, 100));
+    }
+}
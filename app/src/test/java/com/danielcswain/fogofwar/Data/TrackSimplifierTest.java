@@ -0,0 +1,59 @@
+package com.danielcswain.fogofwar.Data;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for simplifying runs of fixes when compacting the location history.
+ */
+public class TrackSimplifierTest {
+
+    @Test
+    public void straightWalk_keepsOnlyItsEnds() throws Exception {
+        // A 1 km walk north with a fix every 10 m and up to 1 m of jitter.
+        List<LocationObject> run = new ArrayList<>();
+        for (int i = 0; i <= 100; i++) {
+            double jitter = (i % 2 == 0 ? 1 : -1) * 0.000009;
+            run.add(new LocationObject(i + 1, i * 10000L, -33.8688 + i * 0.00009,
+                    151.2093 + jitter));
+        }
+
+        List<LocationObject> simplified = TrackSimplifier.simplify(run, 5);
+        assertEquals(2, simplified.size());
+        assertSame(run.get(0), simplified.get(0));
+        assertSame(run.get(100), simplified.get(1));
+    }
+
+    @Test
+    public void corner_isKept() throws Exception {
+        // About 500 m north then 500 m east.
+        List<LocationObject> run = new ArrayList<>();
+        for (int i = 0; i <= 10; i++) {
+            run.add(new LocationObject(i + 1, i * 10000L, -33.8688 + i * 0.00045, 151.2093));
+        }
+        for (int i = 1; i <= 10; i++) {
+            run.add(new LocationObject(i + 11, (i + 10) * 10000L, -33.8643,
+                    151.2093 + i * 0.00054));
+        }
+
+        List<LocationObject> simplified = TrackSimplifier.simplify(run, 5);
+        assertEquals(3, simplified.size());
+        assertSame(run.get(10), simplified.get(1));
+    }
+
+    @Test
+    public void detour_beyondTheTolerance_isKept() throws Exception {
+        List<LocationObject> run = new ArrayList<>();
+        run.add(new LocationObject(1, 0, -33.8688, 151.2093));
+        // About 20 m east of the line.
+        run.add(new LocationObject(2, 10000, -33.8683, 151.20952));
+        run.add(new LocationObject(3, 20000, -33.8678, 151.2093));
+
+        assertEquals(3, TrackSimplifier.simplify(run, 5).size());
+        assertEquals(2, TrackSimplifier.simplify(run, 25).size());
+    }
+}
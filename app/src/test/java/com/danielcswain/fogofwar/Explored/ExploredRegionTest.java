@@ -0,0 +1,151 @@
+package com.danielcswain.fogofwar.Explored;
+
+import com.danielcswain.fogofwar.Data.SegmentObject;
+import com.danielcswain.fogofwar.Geometry.WebMercator;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for merging the track into the explored area and tracing its outline.
+ */
+public class ExploredRegionTest {
+
+    @Test
+    public void square_tracesOneRingOfFourCorners() throws Exception {
+        ExploredRegion exploredRegion = new ExploredRegion(25, null);
+        CoverageTile coverageTile = new CoverageTile(0, 0);
+        for (int y = 2; y < 5; y++) {
+            for (int x = 2; x < 5; x++) {
+                coverageTile.cover(x, y);
+            }
+        }
+        exploredRegion.putTile(coverageTile);
+
+        List<int[]> rings = exploredRegion.traceRings();
+        assertEquals(1, rings.size());
+        assertEquals(8, rings.get(0).length);
+        assertEquals(9, RingTracer.getSignedArea(rings.get(0)));
+    }
+
+    @Test
+    public void squareWithHole_tracesOuterRingAndHole() throws Exception {
+        ExploredRegion exploredRegion = new ExploredRegion(25, null);
+        CoverageTile coverageTile = new CoverageTile(0, 0);
+        for (int y = 0; y < 3; y++) {
+            for (int x = 0; x < 3; x++) {
+                if (x != 1 || y != 1) {
+                    coverageTile.cover(x, y);
+                }
+            }
+        }
+        exploredRegion.putTile(coverageTile);
+
+        List<int[]> rings = exploredRegion.traceRings();
+        assertEquals(2, rings.size());
+        long total = 0;
+        for (int[] ring : rings) {
+            total += RingTracer.getSignedArea(ring);
+        }
+        assertEquals(8, total);
+
+        List<List<int[]>> polygons = GeoJsonWriter.groupRings(rings);
+        assertEquals(1, polygons.size());
+        assertEquals(2, polygons.get(0).size());
+    }
+
+    @Test
+    public void diagonalCells_traceSeparateRings() throws Exception {
+        ExploredRegion exploredRegion = new ExploredRegion(25, null);
+        CoverageTile coverageTile = new CoverageTile(0, 0);
+        coverageTile.cover(0, 0);
+        coverageTile.cover(1, 1);
+        exploredRegion.putTile(coverageTile);
+
+        List<int[]> rings = exploredRegion.traceRings();
+        assertEquals(2, rings.size());
+        assertEquals(1, RingTracer.getSignedArea(rings.get(0)));
+        assertEquals(1, RingTracer.getSignedArea(rings.get(1)));
+    }
+
+    @Test
+    public void segment_coversItsBuffer_andMergesWithItsNeighbours() throws Exception {
+        // About 1 km east along the equator, where cells are about 9.5 m across.
+        ExploredRegion exploredRegion = new ExploredRegion(25, null);
+        SegmentObject first = new SegmentObject(1, 0, 0.001, 0.001, 10000, 0.001, 0.01);
+        assertFalse(exploredRegion.addSegment(first).isEmpty());
+        double area = exploredRegion.getArea();
+        // 1 km by 50 m, plus the round ends.
+        assertEquals(1000 * 50 + Math.PI * 25 * 25, area, 0.1 * area);
+
+        // Travelling the same segment again explores nothing new.
+        assertTrue(exploredRegion.addSegment(first).isEmpty());
+
+        // Walking back just alongside it merges into one outline.
+        exploredRegion.addSegment(new SegmentObject(2, 20000, 0.0012, 0.01, 30000, 0.0012, 0.001));
+        assertEquals(1, exploredRegion.traceRings().size());
+        assertTrue(exploredRegion.isCovered(
+                (int) (WebMercator.toNormalisedX(0.005) * CoverageTile.WORLD_CELLS),
+                (int) (WebMercator.toNormalisedY(0.0011) * CoverageTile.WORLD_CELLS)));
+    }
+
+    @Test
+    public void trimTiles_keepsRecentTiles_andReadsBackTheRest() throws Exception {
+        final Map<Long, CoverageTile> stored = new HashMap<>();
+        final int[] loads = {0};
+        ExploredRegion exploredRegion = new ExploredRegion(25, new ExploredRegion.TileLoader() {
+            @Override
+            public CoverageTile loadTile(int tileX, int tileY) {
+                loads[0]++;
+                CoverageTile coverageTile = stored.get(CoverageTile.getKey(tileX, tileY));
+                return coverageTile == null ? null : CoverageTile.fromBytes(tileX, tileY,
+                        coverageTile.toBytes());
+            }
+        }, 1);
+
+        // Short segments about 11 km apart, each within one tile.
+        SegmentObject first = new SegmentObject(1, 0, 0.011, 0.011, 10000, 0.011, 0.012);
+        SegmentObject second = new SegmentObject(2, 20000, 0.111, 0.011, 30000, 0.111, 0.012);
+        for (SegmentObject segmentObject : new SegmentObject[] {first, second}) {
+            for (CoverageTile coverageTile : exploredRegion.addSegment(segmentObject)) {
+                stored.put(CoverageTile.getKey(coverageTile.getTileX(), coverageTile.getTileY()),
+                        coverageTile);
+            }
+            exploredRegion.trimTiles();
+            assertEquals(1, exploredRegion.getTiles().size());
+        }
+        assertEquals(2, loads[0]);
+
+        // Returning to the first tile reads it back with everything explored in it.
+        assertTrue(exploredRegion.addSegment(first).isEmpty());
+        assertEquals(3, loads[0]);
+    }
+
+    @Test
+    public void checkpoint_roundTripsThroughCompressedBytes() throws Exception {
+        ExploredRegion exploredRegion = new ExploredRegion(25, null);
+        exploredRegion.addSegment(new SegmentObject(1, 0, 0.001, 0.001, 10000, 0.001, 0.01));
+        CoverageTile coverageTile = exploredRegion.getTiles().iterator().next();
+
+        byte[] compressed = coverageTile.toCompressedBytes();
+        assertTrue(compressed.length < coverageTile.toBytes().length / 10);
+        CoverageTile restored = CoverageTile.fromCompressedBytes(coverageTile.getTileX(),
+                coverageTile.getTileY(), compressed);
+        assertEquals(coverageTile.getCellCount(), restored.getCellCount());
+        assertArrayEquals(coverageTile.toBytes(), restored.toBytes());
+    }
+
+    @Test
+    public void checkpointWeeks_startOnMonday() throws Exception {
+        // Monday 1 January 2024 00:00 UTC, and the Sunday before.
+        long monday = 1704067200000L;
+        int week = CheckpointWeeks.getWeek(monday);
+        assertEquals(monday, CheckpointWeeks.getWeekStart(week));
+        assertEquals(week - 1, CheckpointWeeks.getWeek(monday - 1));
+    }
+}
@@ -0,0 +1,71 @@
+package com.danielcswain.fogofwar.Explored;
+
+import com.danielcswain.fogofwar.Geometry.GeoMath;
+import com.danielcswain.fogofwar.Geometry.WebMercator;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for finding unexplored areas in the fog pyramid.
+ */
+public class FogFinderTest {
+
+    // A tile in London, explored in a five by five block of cells around the middle cell.
+    private static final int TILE_X = 8186;
+    private static final int TILE_Y = 5448;
+    private static final int CELL = 128;
+
+    private static FogFinder buildFinder() {
+        CoverageTile coverageTile = new CoverageTile(TILE_X, TILE_Y);
+        for (int y = CELL - 2; y <= CELL + 2; y++) {
+            for (int x = CELL - 2; x <= CELL + 2; x++) {
+                coverageTile.cover(x, y);
+            }
+        }
+
+        final Map<String, FogTile> tiles = new HashMap<>();
+        FogTile child = FogTile.fromCoverageTile(coverageTile);
+        tiles.put(child.toString(), child);
+        for (int zoom = CoverageTile.TILE_ZOOM - 1; zoom >= 0; zoom--) {
+            FogTile parent = new FogTile(zoom, child.getTileX() >> 1, child.getTileY() >> 1);
+            parent.putChild(child);
+            tiles.put(parent.toString(), parent);
+            child = parent;
+        }
+
+        return new FogFinder(new FogFinder.TileLoader() {
+            @Override
+            public FogTile loadTile(int zoom, int tileX, int tileY) {
+                return tiles.get(new FogTile(zoom, tileX, tileY).toString());
+            }
+        });
+    }
+
+    @Test
+    public void nearestAndLargestFog_areFoundAroundTheExploredBlock() throws Exception {
+        double latitude = WebMercator.toLatitude(
+                (TILE_Y * 256 + CELL + 0.5) / CoverageTile.WORLD_CELLS);
+        double longitude = WebMercator.toLongitude(
+                (TILE_X * 256 + CELL + 0.5) / CoverageTile.WORLD_CELLS);
+        double cellMetres = 2 * Math.PI * GeoMath.EARTH_RADIUS_METRES *
+                Math.cos(Math.toRadians(latitude)) / CoverageTile.WORLD_CELLS;
+        FogFinder fogFinder = buildFinder();
+
+        // The nearest unexplored cells are the ones just outside the block, three cells away.
+        FogTarget nearest = fogFinder.getNearestFog(latitude, longitude);
+        assertNotNull(nearest);
+        assertEquals(3 * cellMetres, nearest.getDistanceMetres(), 0.1 * cellMetres);
+        assertEquals(cellMetres, nearest.getSizeMetres(), 0.1 * cellMetres);
+
+        // Nothing else is explored, so the largest area nearby is as big as the search allows.
+        FogTarget largest = fogFinder.getLargestFog(latitude, longitude);
+        assertNotNull(largest);
+        assertTrue(largest.getSizeMetres() > FogFinder.LARGEST_SEARCH_RADIUS_METRES / 4);
+        assertTrue(largest.getDistanceMetres() <= FogFinder.LARGEST_SEARCH_RADIUS_METRES);
+    }
+}
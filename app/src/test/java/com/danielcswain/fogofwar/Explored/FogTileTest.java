@@ -0,0 +1,35 @@
+package com.danielcswain.fogofwar.Explored;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for downsampling the explored area into the fog pyramid.
+ */
+public class FogTileTest {
+
+    @Test
+    public void child_isDownsampledIntoItsQuarterOfTheParent() throws Exception {
+        // The south east child of tile 13/0/0, with one fully explored 2 x 2 block and one cell.
+        CoverageTile coverageTile = new CoverageTile(1, 1);
+        coverageTile.cover(10, 20);
+        coverageTile.cover(11, 20);
+        coverageTile.cover(10, 21);
+        coverageTile.cover(11, 21);
+        coverageTile.cover(40, 40);
+
+        FogTile parent = new FogTile(CoverageTile.TILE_ZOOM - 1, 0, 0);
+        assertTrue(parent.putChild(FogTile.fromCoverageTile(coverageTile)));
+        assertEquals(255, parent.getAlpha(128 + 5, 128 + 10));
+        assertEquals(64, parent.getAlpha(128 + 20, 128 + 20));
+        assertEquals(0, parent.getAlpha(5, 10));
+
+        // Merging the same child again changes nothing, which ends the climb up the pyramid.
+        assertFalse(parent.putChild(FogTile.fromCoverageTile(coverageTile)));
+
+        FogTile stored = FogTile.fromCompressedBytes(parent.getZoom(), 0, 0,
+                parent.toCompressedBytes());
+        assertEquals(64, stored.getAlpha(128 + 20, 128 + 20));
+    }
+}
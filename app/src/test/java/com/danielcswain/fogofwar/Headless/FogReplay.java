@@ -0,0 +1,158 @@
+package com.danielcswain.fogofwar.Headless;
+
+import com.danielcswain.fogofwar.Cache.CacheGovernor;
+import com.danielcswain.fogofwar.Cache.TrackTileCache;
+import com.danielcswain.fogofwar.Data.LocationCsv;
+import com.danielcswain.fogofwar.Data.LocationObject;
+import com.danielcswain.fogofwar.Data.SQLDatabaseHelper;
+import com.danielcswain.fogofwar.Geometry.WebMercator;
+import com.danielcswain.fogofwar.Rendering.CameraState;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Replays a recorded track through the app's ingestion and storage code, then renders the fog
+ * for a set of camera states to PNG files, timing each stage.
+ */
+public class FogReplay {
+
+    private final SQLDatabaseHelper mSqlDatabaseHelper;
+    // The budget of a 64 MB heap device.
+    private static final long CACHE_BUDGET = 16 * 1024 * 1024;
+
+    private final TrackTileCache mTrackTileCache;
+    private final StageTimings mStageTimings = new StageTimings();
+    private final HeadlessFogRenderer mRenderer;
+
+    /**
+     * Constructor for the FogReplay.
+     * @param sqlDatabaseHelper: A SQLDatabaseHelper on an empty database to replay into.
+     */
+    public FogReplay(SQLDatabaseHelper sqlDatabaseHelper) {
+        mSqlDatabaseHelper = sqlDatabaseHelper;
+        mTrackTileCache = new TrackTileCache(sqlDatabaseHelper,
+                CacheGovernor.newInstance(CACHE_BUDGET));
+        mRenderer = new HeadlessFogRenderer(mTrackTileCache, mStageTimings);
+    }
+
+    public StageTimings getStageTimings() {
+        return mStageTimings;
+    }
+
+    public TrackTileCache getTrackTileCache() {
+        return mTrackTileCache;
+    }
+
+    /**
+     * Store each fix in turn, as MainActivity does on every location result.
+     * @param locationObjects: A List of LocationObjects in the order they were recorded.
+     */
+    public void ingest(List<LocationObject> locationObjects) {
+        for (LocationObject locationObject : locationObjects) {
+            long start = System.nanoTime();
+            mSqlDatabaseHelper.addLocation(locationObject);
+            mStageTimings.record("ingest", start);
+        }
+    }
+
+    /**
+     * Render a camera state and write it as a PNG.
+     * @param cameraState: The CameraState to render.
+     * @param outputFile: The PNG file to write, or null to skip writing.
+     * @return the rendered image.
+     */
+    public BufferedImage render(CameraState cameraState, File outputFile) throws IOException {
+        BufferedImage image = mRenderer.render(cameraState);
+        if (outputFile != null) {
+            long start = System.nanoTime();
+            ImageIO.write(image, "png", outputFile);
+            mStageTimings.record("encode", start);
+        }
+        return image;
+    }
+
+    /**
+     * Read a recorded track in LocationCsv format.
+     * @param trackFile: The CSV file.
+     * @return a List of LocationObjects in file order.
+     */
+    public static List<LocationObject> readTrack(File trackFile) throws IOException {
+        List<LocationObject> locationObjects = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(trackFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                LocationObject locationObject = LocationCsv.parse(line);
+                if (locationObject != null) {
+                    locationObjects.add(locationObject);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return locationObjects;
+    }
+
+    /**
+     * Parse camera states written as "latitude,longitude,zoom" separated by semicolons.
+     * @return a List of CameraStates.
+     */
+    public static List<CameraState> parseCameras(String cameras, int width, int height,
+                                                 float density) {
+        List<CameraState> cameraStates = new ArrayList<>();
+        for (String camera : cameras.split(";")) {
+            String[] fields = camera.trim().split(",");
+            if (fields.length != 3) {
+                throw new IllegalArgumentException("Expected latitude,longitude,zoom: " + camera);
+            }
+            cameraStates.add(new CameraState(Double.parseDouble(fields[0]),
+                    Double.parseDouble(fields[1]), Double.parseDouble(fields[2]),
+                    width, height, density));
+        }
+        return cameraStates;
+    }
+
+    /**
+     * Choose camera states for a track: one fitting the whole track, and street level views of its
+     * start, middle and end.
+     * @return a List of CameraStates.
+     */
+    public static List<CameraState> defaultCameras(List<LocationObject> locationObjects,
+                                                   int width, int height, float density) {
+        double minX = 1, minY = 1, maxX = 0, maxY = 0;
+        for (LocationObject locationObject : locationObjects) {
+            double x = WebMercator.toNormalisedX(locationObject.getLongitude());
+            double y = WebMercator.toNormalisedY(locationObject.getLatitude());
+            minX = Math.min(minX, x);
+            maxX = Math.max(maxX, x);
+            minY = Math.min(minY, y);
+            maxY = Math.max(maxY, y);
+        }
+
+        double tileSize = WebMercator.TILE_SIZE * density;
+        double fitZoom = Math.log(Math.min(width / Math.max(maxX - minX, 1e-9) / tileSize,
+                height / Math.max(maxY - minY, 1e-9) / tileSize)) / Math.log(2);
+
+        List<CameraState> cameraStates = new ArrayList<>();
+        cameraStates.add(new CameraState(
+                WebMercator.toLatitude((minY + maxY) / 2), WebMercator.toLongitude((minX + maxX) / 2),
+                Math.floor(fitZoom * 4) / 4, width, height, density));
+        int[] indexes = {0, locationObjects.size() / 2, locationObjects.size() - 1};
+        for (int index : indexes) {
+            LocationObject locationObject = locationObjects.get(index);
+            cameraStates.add(new CameraState(locationObject.getLatitude(),
+                    locationObject.getLongitude(), 17, width, height, density));
+        }
+        return cameraStates;
+    }
+}
@@ -0,0 +1,189 @@
+package com.danielcswain.fogofwar.Headless;
+
+import com.danielcswain.fogofwar.BuildConfig;
+import com.danielcswain.fogofwar.Data.LocationObject;
+import com.danielcswain.fogofwar.Data.SQLDatabaseHelper;
+import com.danielcswain.fogofwar.Rendering.CameraState;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replays a track through the real database code and renders the fog off-device.
+ *
+ * A synthetic walk is replayed and checked for fog cleared along the track and nowhere far from
+ * it. It is also compared against the golden images in src/test/resources/golden when they are
+ * present, and the comparison is skipped otherwise; replay.record=true writes the rendered images
+ * as the new golden images.
+ *
+ * A user's recorded track and camera states can be replayed with system properties, writing the
+ * images and a timing report, e.g.
+ *
+ *   ./gradlew testDebugUnitTest --tests '*FogReplayTest' -Dreplay.track=walk.csv \
+ *       -Dreplay.cameras="-33.87,151.21,16;-33.86,151.20,13" -Dreplay.out=/tmp/fog
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 25)
+public class FogReplayTest {
+
+    private static final int WIDTH = 540;
+    private static final int HEIGHT = 960;
+    private static final float DENSITY = 1.5f;
+
+    // Golden images may differ by this fraction of pixels, allowing for rasteriser differences
+    // between JDK versions.
+    private static final double MAX_DIFFERENT_PIXELS = 0.002;
+
+    // Fixes which may be left in fog, e.g. at the butt-capped ends of the track.
+    private static final double MAX_FOGGED_FIXES = 0.05;
+
+    // How far south of the track the camera which must be all fog is, about 5.5 km.
+    private static final double FAR_CAMERA_DEGREES = 0.05;
+
+    private static final File GOLDEN_DIRECTORY = new File("src/test/resources/golden");
+
+    private static List<LocationObject> syntheticTrack() {
+        return new SyntheticTrack(42, -33.8688, 151.2093, 1500000000000L).next(2000);
+    }
+
+    private static FogReplay replay(List<LocationObject> track) {
+        FogReplay fogReplay = new FogReplay(SQLDatabaseHelper.newInstance(
+                RuntimeEnvironment.application, "replay-" + System.nanoTime() + ".db"));
+        fogReplay.ingest(track);
+        return fogReplay;
+    }
+
+    @Test
+    public void replay_clearsFogAlongTheTrackOnly() throws Exception {
+        List<LocationObject> track = syntheticTrack();
+        FogReplay fogReplay = replay(track);
+
+        // Street level at the middle of the track: the fixes in view are under cleared pixels.
+        LocationObject middle = track.get(track.size() / 2);
+        CameraState cameraState = new CameraState(middle.getLatitude(), middle.getLongitude(),
+                17, WIDTH, HEIGHT, DENSITY);
+        BufferedImage image = fogReplay.render(cameraState, null);
+        float[] point = new float[2];
+        int inView = 0;
+        int fogged = 0;
+        for (LocationObject locationObject : track) {
+            cameraState.toScreenLocation(locationObject.getLatitude(),
+                    locationObject.getLongitude(), point);
+            int x = Math.round(point[0]);
+            int y = Math.round(point[1]);
+            if (x < 0 || y < 0 || x >= WIDTH || y >= HEIGHT) {
+                continue;
+            }
+            inView++;
+            if (getAlpha(image, x, y) != 0) {
+                fogged++;
+            }
+        }
+        assertTrue("No fixes in view", inView > 0);
+        assertTrue(fogged + " of " + inView + " fixes in view are fogged",
+                fogged <= inView * MAX_FOGGED_FIXES);
+
+        // Well south of the whole track: nothing is cleared.
+        double south = 90;
+        for (LocationObject locationObject : track) {
+            south = Math.min(south, locationObject.getLatitude());
+        }
+        image = fogReplay.render(new CameraState(south - FAR_CAMERA_DEGREES,
+                middle.getLongitude(), 17, WIDTH, HEIGHT, DENSITY), null);
+        int overlayAlpha = getAlpha(image, 0, 0);
+        assertTrue("The overlay is transparent", overlayAlpha > 0);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals("Pixel " + x + "," + y + " far from the track",
+                        overlayAlpha, getAlpha(image, x, y));
+            }
+        }
+    }
+
+    @Test
+    public void replay_matchesGoldenImages() throws Exception {
+        List<LocationObject> track = syntheticTrack();
+        List<CameraState> cameraStates =
+                FogReplay.defaultCameras(track, WIDTH, HEIGHT, DENSITY);
+        boolean record = Boolean.getBoolean("replay.record");
+        Assume.assumeTrue("No golden images in " + GOLDEN_DIRECTORY,
+                record || new File(GOLDEN_DIRECTORY, "camera-0.png").exists());
+
+        FogReplay fogReplay = replay(track);
+        for (int i = 0; i < cameraStates.size(); i++) {
+            String name = "camera-" + i + ".png";
+            BufferedImage image = fogReplay.render(cameraStates.get(i), null);
+            File golden = new File(GOLDEN_DIRECTORY, name);
+            if (record) {
+                assertTrue(GOLDEN_DIRECTORY.isDirectory() || GOLDEN_DIRECTORY.mkdirs());
+                ImageIO.write(image, "png", golden);
+            } else {
+                assertTrue("Missing golden image " + golden, golden.exists());
+                assertMatchesGolden(name, image, golden);
+            }
+        }
+    }
+
+    @Test
+    public void replay_writesRecordedTrack() throws Exception {
+        String trackPath = System.getProperty("replay.track");
+        String cameras = System.getProperty("replay.cameras");
+        Assume.assumeTrue("Set replay.track or replay.cameras to replay a recorded track",
+                trackPath != null || cameras != null);
+
+        List<LocationObject> track = trackPath != null ?
+                FogReplay.readTrack(new File(trackPath)) : syntheticTrack();
+        List<CameraState> cameraStates = cameras != null ?
+                FogReplay.parseCameras(cameras, WIDTH, HEIGHT, DENSITY) :
+                FogReplay.defaultCameras(track, WIDTH, HEIGHT, DENSITY);
+        File outputDirectory = new File(System.getProperty("replay.out", "build/replay"));
+        assertTrue(outputDirectory.isDirectory() || outputDirectory.mkdirs());
+
+        FogReplay fogReplay = replay(track);
+        for (int i = 0; i < cameraStates.size(); i++) {
+            fogReplay.render(cameraStates.get(i),
+                    new File(outputDirectory, "camera-" + i + ".png"));
+        }
+
+        System.out.println("Replayed " + track.size() + " fixes, " + cameraStates.size() +
+                " cameras, output in " + outputDirectory.getAbsolutePath());
+        System.out.println(fogReplay.getStageTimings().report());
+        System.out.println(fogReplay.getTrackTileCache().getStats());
+    }
+
+    private static int getAlpha(BufferedImage image, int x, int y) {
+        return image.getRGB(x, y) >>> 24;
+    }
+
+    private static void assertMatchesGolden(String name, BufferedImage image, File golden)
+            throws IOException {
+        BufferedImage expected = ImageIO.read(golden);
+        assertEquals(name + " width", expected.getWidth(), image.getWidth());
+        assertEquals(name + " height", expected.getHeight(), image.getHeight());
+
+        long different = 0;
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                if (expected.getRGB(x, y) != image.getRGB(x, y)) {
+                    different++;
+                }
+            }
+        }
+        double fraction = (double) different / (image.getWidth() * image.getHeight());
+        assertTrue(name + " differs from the golden image in " + different + " pixels",
+                fraction <= MAX_DIFFERENT_PIXELS);
+    }
+}
@@ -0,0 +1,92 @@
+package com.danielcswain.fogofwar.Headless;
+
+import com.danielcswain.fogofwar.Cache.TrackTileCache;
+import com.danielcswain.fogofwar.Data.SegmentObject;
+import com.danielcswain.fogofwar.Rendering.CameraState;
+import com.danielcswain.fogofwar.Rendering.PathSink;
+import com.danielcswain.fogofwar.Rendering.TrackPathBuilder;
+
+import java.awt.AlphaComposite;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+/**
+ * Renders the fog for a camera state to an image with java.awt, following the same query and
+ * path building steps as MainActivity and OverlayView.
+ */
+public class HeadlessFogRenderer {
+
+    // R.color.overlay.
+    private static final Color OVERLAY_COLOR = new Color(0x77000000, true);
+
+    private final TrackTileCache mTrackTileCache;
+    private final StageTimings mStageTimings;
+
+    /**
+     * Constructor for the HeadlessFogRenderer.
+     * @param trackTileCache: The TrackTileCache the viewport segments are queried through.
+     * @param stageTimings: The StageTimings to record the query, path and raster stages in.
+     */
+    public HeadlessFogRenderer(TrackTileCache trackTileCache, StageTimings stageTimings) {
+        mTrackTileCache = trackTileCache;
+        mStageTimings = stageTimings;
+    }
+
+    /**
+     * Render the fog as seen through a camera.
+     * @param cameraState: The CameraState to render.
+     * @return an ARGB image of the fog layer.
+     */
+    public BufferedImage render(CameraState cameraState) {
+        int width = cameraState.getWidth();
+        int height = cameraState.getHeight();
+        float margin = TrackPathBuilder.getStrokeWidth(cameraState, cameraState.getLatitude(),
+                cameraState.getLongitude()) / 2;
+
+        long start = System.nanoTime();
+        List<SegmentObject> segmentObjects = mTrackTileCache.getSegmentsInWindow(
+                TrackPathBuilder.getBoundsWithStrokeMargin(
+                        cameraState.getBounds(), margin, width, height));
+        mStageTimings.record("query", start);
+
+        start = System.nanoTime();
+        final Path2D.Float path = new Path2D.Float(Path2D.WIND_EVEN_ODD);
+        TrackPathBuilder.buildPath(segmentObjects, cameraState, width, height, margin,
+                new PathSink() {
+                    @Override
+                    public void moveTo(float x, float y) {
+                        path.moveTo(x, y);
+                    }
+
+                    @Override
+                    public void lineTo(float x, float y) {
+                        path.lineTo(x, y);
+                    }
+                });
+        mStageTimings.record("path", start);
+
+        start = System.nanoTime();
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                RenderingHints.VALUE_ANTIALIAS_OFF);
+        graphics.setColor(OVERLAY_COLOR);
+        graphics.fillRect(0, 0, width, height);
+
+        // Erase the path from the overlay, as the PorterDuff CLEAR paint does on the device.
+        graphics.setComposite(AlphaComposite.Clear);
+        // Android's default Paint stroke cap, join and miter limit.
+        graphics.setStroke(new BasicStroke(
+                2 * margin, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 4));
+        graphics.draw(path);
+        graphics.dispose();
+        mStageTimings.record("raster", start);
+
+        return image;
+    }
+}
@@ -0,0 +1,126 @@
+package com.danielcswain.fogofwar.Headless;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Counts latencies in logarithmic buckets, so percentiles of millions of samples can be read in
+ * constant memory. Each power of two is split into SUB_BUCKETS linear buckets, which bounds the
+ * error of a percentile to about 1 / SUB_BUCKETS of its value.
+ *
+ * Thread safe, so one histogram can be shared by the threads recording a stage.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] mCounts = new long[64 * SUB_BUCKETS];
+    private long mCount;
+    private long mTotalNanos;
+    private long mMaxNanos;
+
+    /**
+     * Record one latency.
+     * @param nanos: long, the latency in nanoseconds.
+     */
+    public synchronized void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        mCounts[getBucket(value)]++;
+        mCount++;
+        mTotalNanos += value;
+        mMaxNanos = Math.max(mMaxNanos, value);
+    }
+
+    /**
+     * Add every latency recorded in another histogram.
+     * @param other: The LatencyHistogram to add.
+     */
+    public synchronized void add(LatencyHistogram other) {
+        synchronized (other) {
+            for (int i = 0; i < mCounts.length; i++) {
+                mCounts[i] += other.mCounts[i];
+            }
+            mCount += other.mCount;
+            mTotalNanos += other.mTotalNanos;
+            mMaxNanos = Math.max(mMaxNanos, other.mMaxNanos);
+        }
+    }
+
+    /**
+     * Take a copy of the histogram and clear it, e.g. at the end of a reporting interval.
+     * @return a LatencyHistogram holding what had been recorded.
+     */
+    public synchronized LatencyHistogram drain() {
+        LatencyHistogram copy = new LatencyHistogram();
+        copy.add(this);
+        Arrays.fill(mCounts, 0);
+        mCount = 0;
+        mTotalNanos = 0;
+        mMaxNanos = 0;
+        return copy;
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized long getMaxNanos() {
+        return mMaxNanos;
+    }
+
+    /**
+     * Get a percentile of the recorded latencies.
+     * @param percentile: double, between 0 and 100, e.g. 99.9.
+     * @return the latency in nanoseconds, the upper end of the bucket it falls in, or 0 if
+     *      nothing has been recorded.
+     */
+    public synchronized long getPercentileNanos(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(mCount * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return Math.min(getBucketEnd(i), mMaxNanos);
+            }
+        }
+        return mMaxNanos;
+    }
+
+    /**
+     * Format the count, mean, p50, p99, p999 and maximum in milliseconds.
+     */
+    public synchronized String summary() {
+        return String.format(Locale.US, "n=%d mean=%.3f p50=%.3f p99=%.3f p999=%.3f max=%.3f",
+                mCount, mCount == 0 ? 0 : mTotalNanos / 1e6 / mCount,
+                getPercentileNanos(50) / 1e6, getPercentileNanos(99) / 1e6,
+                getPercentileNanos(99.9) / 1e6, mMaxNanos / 1e6);
+    }
+
+    /**
+     * Values below SUB_BUCKETS each have their own bucket; above that, the bucket is the power of
+     * two the value falls in plus its top SUB_BUCKET_BITS bits after the leading one.
+     */
+    private static int getBucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long getBucketEnd(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+}
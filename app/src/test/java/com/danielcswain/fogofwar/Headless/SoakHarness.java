@@ -0,0 +1,400 @@
+package com.danielcswain.fogofwar.Headless;
+
+import com.danielcswain.fogofwar.Cache.CacheGovernor;
+import com.danielcswain.fogofwar.Cache.TrackTileCache;
+import com.danielcswain.fogofwar.Data.LocationObject;
+import com.danielcswain.fogofwar.Data.SQLDatabaseHelper;
+import com.danielcswain.fogofwar.Data.SegmentObject;
+import com.danielcswain.fogofwar.Rendering.CameraState;
+import com.danielcswain.fogofwar.Rendering.PathSink;
+import com.danielcswain.fogofwar.Rendering.TrackPathBuilder;
+
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Soaks the storage and drawing paths together: one thread stores a synthetic track through
+ * SQLDatabaseHelper.addLocation as the writer thread does, while another keeps panning and
+ * zooming a camera over it, querying the viewport through the TrackTileCache and building the
+ * fog path each frame as MainActivity and OverlayView do.
+ *
+ * The fixes keep their simulated times, so months of history are stored in minutes, crossing
+ * month partitions and coverage weeks as they would on a device. The latency of every fix and
+ * frame is counted in a LatencyHistogram per stage. Every report interval a line is printed with
+ * the interval's percentiles, throughput, heap and garbage collection, and once the track has
+ * been stored the totals are returned so they can be checked against latency budgets.
+ */
+public class SoakHarness {
+
+    public static final String INGEST = "ingest";
+    public static final String QUERY = "query";
+    public static final String PATH = "path";
+    public static final String FRAME = "frame";
+
+    private static final int WIDTH = 540;
+    private static final int HEIGHT = 960;
+    private static final float DENSITY = 1.5f;
+
+    // The budget of a 64 MB heap device, as for FogReplay.
+    private static final long CACHE_BUDGET = 16 * 1024 * 1024;
+
+    // Fixes the camera may jump back to, sampled evenly from everything stored so far.
+    private static final int RESERVOIR_SIZE = 1024;
+
+    // The camera zooms between street and city level and picks somewhere new to pan to this often.
+    private static final int FRAMES_PER_ZOOM_CYCLE = 600;
+    private static final int FRAMES_PER_TARGET = 240;
+    private static final double PAN_FRACTION_PER_FRAME = 0.05;
+
+    private final SQLDatabaseHelper mSqlDatabaseHelper;
+    private final TrackTileCache mTrackTileCache;
+    private final PrintStream mOutput;
+
+    private final Map<String, LatencyHistogram> mIntervals = new LinkedHashMap<>();
+    private final Map<String, LatencyHistogram> mTotals = new LinkedHashMap<>();
+
+    private final Object mReservoirLock = new Object();
+    private final LocationObject[] mReservoir = new LocationObject[RESERVOIR_SIZE];
+    private final Random mReservoirRandom = new Random(1);
+    private long mStoredFixes;
+    private volatile LocationObject mLatestFix;
+
+    private final AtomicLong mFrames = new AtomicLong();
+    private final AtomicBoolean mStopping = new AtomicBoolean();
+    private final AtomicReference<Throwable> mFailure = new AtomicReference<>();
+    private long mPeakHeapBytes;
+
+    /**
+     * Constructor for the SoakHarness.
+     * @param sqlDatabaseHelper: A SQLDatabaseHelper on an empty database to soak.
+     * @param output: The PrintStream the progress and summary are printed to.
+     */
+    public SoakHarness(SQLDatabaseHelper sqlDatabaseHelper, PrintStream output) {
+        mSqlDatabaseHelper = sqlDatabaseHelper;
+        mTrackTileCache = new TrackTileCache(sqlDatabaseHelper,
+                CacheGovernor.newInstance(CACHE_BUDGET));
+        mOutput = output;
+        for (String stage : new String[] {INGEST, QUERY, PATH, FRAME}) {
+            mIntervals.put(stage, new LatencyHistogram());
+            mTotals.put(stage, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Store a synthetic track up to a time while the camera moves over it.
+     * @param syntheticTrack: The SyntheticTrack to store.
+     * @param endDatetime: long, the simulated time to stop storing at.
+     * @param fixesPerSecond: double, the most fixes stored per second of wall clock time, or 0
+     *      to store them as fast as they can be.
+     * @param frameIntervalMs: long, the wall clock time between the starts of camera frames.
+     * @param reportIntervalMs: long, the wall clock time between progress lines.
+     * @return the latencies of the whole run by stage.
+     * @throws Exception if storing a fix or drawing a frame failed.
+     */
+    public Map<String, LatencyHistogram> run(final SyntheticTrack syntheticTrack,
+                                             final long endDatetime, final double fixesPerSecond,
+                                             final long frameIntervalMs, long reportIntervalMs)
+            throws Exception {
+        Thread ingestThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ingest(syntheticTrack, endDatetime, fixesPerSecond);
+                } catch (Throwable e) {
+                    mFailure.compareAndSet(null, e);
+                }
+            }
+        }, "soak-ingest");
+        Thread cameraThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    moveCamera(frameIntervalMs);
+                } catch (Throwable e) {
+                    mFailure.compareAndSet(null, e);
+                }
+            }
+        }, "soak-camera");
+
+        long start = System.nanoTime();
+        GcSample previousGc = GcSample.now();
+        long previousFixes = 0;
+        long previousFrames = 0;
+        long previousReport = start;
+
+        mOutput.println(String.format(Locale.US, "%8s %10s %8s %7s %7s %-24s %-24s %11s %9s",
+                "elapsed", "simulated", "fixes", "fix/s", "frame/s", "ingest p50/p99/p999 ms",
+                "frame p50/p99/p999 ms", "heap MB", "gc n/ms"));
+        ingestThread.start();
+        cameraThread.start();
+        while (ingestThread.isAlive()) {
+            ingestThread.join(reportIntervalMs);
+            if (mFailure.get() != null) {
+                break;
+            }
+
+            long now = System.nanoTime();
+            long fixes = getStoredFixes();
+            long frames = mFrames.get();
+            GcSample gc = GcSample.now();
+            report(now - start, now - previousReport, fixes - previousFixes,
+                    frames - previousFrames, gc, previousGc);
+            previousReport = now;
+            previousFixes = fixes;
+            previousFrames = frames;
+            previousGc = gc;
+        }
+
+        mStopping.set(true);
+        ingestThread.join();
+        cameraThread.join();
+        mTrackTileCache.release();
+
+        Throwable failure = mFailure.get();
+        if (failure instanceof Exception) {
+            throw (Exception) failure;
+        } else if (failure != null) {
+            throw new RuntimeException(failure);
+        }
+
+        for (Map.Entry<String, LatencyHistogram> stage : mIntervals.entrySet()) {
+            mTotals.get(stage.getKey()).add(stage.getValue().drain());
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        mOutput.println(String.format(Locale.US,
+                "Soaked %d fixes and %d frames in %.1f s (%.0f fixes/s, %.1f frames/s), " +
+                        "peak heap %.1f MB",
+                getStoredFixes(), mFrames.get(), seconds, getStoredFixes() / seconds,
+                mFrames.get() / seconds, mPeakHeapBytes / 1e6));
+        for (Map.Entry<String, LatencyHistogram> stage : mTotals.entrySet()) {
+            mOutput.println(String.format(Locale.US, "%-8s %s", stage.getKey(),
+                    stage.getValue().summary()));
+        }
+        mOutput.println(mTrackTileCache.getStats());
+        return mTotals;
+    }
+
+    /**
+     * Check the latencies of a run against budgets written as "stage.pNN=ms" separated by commas,
+     * e.g. "ingest.p99=20,frame.p999=250".
+     * @param totals: Map of the LatencyHistograms returned by run.
+     * @param budgets: String, the budgets.
+     * @return a List of the budgets exceeded, empty if every one was met.
+     */
+    public static List<String> findExceededBudgets(Map<String, LatencyHistogram> totals,
+                                                   String budgets) {
+        List<String> exceeded = new ArrayList<>();
+        for (String budget : budgets.split(",")) {
+            if (budget.trim().isEmpty()) {
+                continue;
+            }
+            String[] fields = budget.trim().split("[.=]", 3);
+            if (fields.length != 3 || !fields[1].startsWith("p") ||
+                    !totals.containsKey(fields[0])) {
+                throw new IllegalArgumentException("Expected stage.pNN=ms: " + budget);
+            }
+
+            // "p999" is the 99.9th percentile.
+            String digits = fields[1].substring(1);
+            double percentile = Double.parseDouble(digits.length() > 2 ?
+                    digits.substring(0, 2) + "." + digits.substring(2) : digits);
+            double limitMs = Double.parseDouble(fields[2]);
+            double actualMs = totals.get(fields[0]).getPercentileNanos(percentile) / 1e6;
+            if (actualMs > limitMs) {
+                exceeded.add(String.format(Locale.US, "%s.%s was %.3f ms, over %s ms",
+                        fields[0], fields[1], actualMs, fields[2]));
+            }
+        }
+        return exceeded;
+    }
+
+    private void ingest(SyntheticTrack syntheticTrack, long endDatetime, double fixesPerSecond)
+            throws InterruptedException {
+        long start = System.nanoTime();
+        long count = 0;
+        while (!mStopping.get()) {
+            LocationObject locationObject = syntheticTrack.next();
+            if (locationObject.getDatetime() > endDatetime) {
+                break;
+            }
+
+            long fixStart = System.nanoTime();
+            LocationObject storedLocation = mSqlDatabaseHelper.addLocation(locationObject);
+            mIntervals.get(INGEST).record(System.nanoTime() - fixStart);
+            addToReservoir(storedLocation);
+            count++;
+
+            if (fixesPerSecond > 0) {
+                long dueNanos = start + (long) (count * 1e9 / fixesPerSecond);
+                long waitNanos = dueNanos - System.nanoTime();
+                if (waitNanos > 0) {
+                    Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                }
+            }
+        }
+    }
+
+    private void moveCamera(long frameIntervalMs) throws InterruptedException {
+        Random random = new Random(2);
+        final int[] pathPoints = new int[1];
+        PathSink pathSink = new PathSink() {
+            @Override
+            public void moveTo(float x, float y) {
+                pathPoints[0]++;
+            }
+
+            @Override
+            public void lineTo(float x, float y) {
+                pathPoints[0]++;
+            }
+        };
+
+        double latitude = 0;
+        double longitude = 0;
+        LocationObject target = null;
+        long frame = 0;
+        while (!mStopping.get()) {
+            long frameStart = System.nanoTime();
+            if (target == null || frame % FRAMES_PER_TARGET == 0) {
+                target = chooseTarget(random);
+                if (target == null) {
+                    Thread.sleep(frameIntervalMs);
+                    continue;
+                }
+                if (frame == 0) {
+                    latitude = target.getLatitude();
+                    longitude = target.getLongitude();
+                }
+            }
+
+            latitude += (target.getLatitude() - latitude) * PAN_FRACTION_PER_FRAME;
+            longitude += (target.getLongitude() - longitude) * PAN_FRACTION_PER_FRAME;
+            double zoom = 15 + 3 * Math.sin(2 * Math.PI * frame / FRAMES_PER_ZOOM_CYCLE);
+            CameraState cameraState = new CameraState(latitude, longitude, zoom,
+                    WIDTH, HEIGHT, DENSITY);
+            float margin = TrackPathBuilder.getStrokeWidth(cameraState, latitude, longitude) / 2;
+
+            long queryStart = System.nanoTime();
+            List<SegmentObject> segmentObjects = mTrackTileCache.getSegmentsInWindow(
+                    TrackPathBuilder.getBoundsWithStrokeMargin(
+                            cameraState.getBounds(), margin, WIDTH, HEIGHT));
+            long pathStart = System.nanoTime();
+            TrackPathBuilder.buildPath(segmentObjects, cameraState, WIDTH, HEIGHT, margin,
+                    pathSink);
+            long frameEnd = System.nanoTime();
+
+            mIntervals.get(QUERY).record(pathStart - queryStart);
+            mIntervals.get(PATH).record(frameEnd - pathStart);
+            mIntervals.get(FRAME).record(frameEnd - frameStart);
+            mFrames.incrementAndGet();
+            frame++;
+
+            long waitMs = frameIntervalMs - (System.nanoTime() - frameStart) / 1000000;
+            if (waitMs > 0) {
+                Thread.sleep(waitMs);
+            }
+        }
+    }
+
+    /**
+     * Pick where the camera pans to next: usually the newest fix, as when following the user,
+     * and sometimes somewhere from the history, as when browsing the map.
+     * @return a LocationObject, or null if nothing has been stored yet.
+     */
+    private LocationObject chooseTarget(Random random) {
+        LocationObject latestFix = mLatestFix;
+        if (latestFix == null || random.nextInt(10) < 7) {
+            return latestFix;
+        }
+        synchronized (mReservoirLock) {
+            int filled = (int) Math.min(mStoredFixes, RESERVOIR_SIZE);
+            return mReservoir[random.nextInt(filled)];
+        }
+    }
+
+    private void addToReservoir(LocationObject locationObject) {
+        synchronized (mReservoirLock) {
+            if (mStoredFixes < RESERVOIR_SIZE) {
+                mReservoir[(int) mStoredFixes] = locationObject;
+            } else {
+                long index = (long) (mReservoirRandom.nextDouble() * (mStoredFixes + 1));
+                if (index < RESERVOIR_SIZE) {
+                    mReservoir[(int) index] = locationObject;
+                }
+            }
+            mStoredFixes++;
+        }
+        mLatestFix = locationObject;
+    }
+
+    private long getStoredFixes() {
+        synchronized (mReservoirLock) {
+            return mStoredFixes;
+        }
+    }
+
+    private void report(long elapsedNanos, long intervalNanos, long fixes, long frames,
+                        GcSample gc, GcSample previousGc) {
+        Map<String, LatencyHistogram> interval = new LinkedHashMap<>();
+        for (Map.Entry<String, LatencyHistogram> stage : mIntervals.entrySet()) {
+            LatencyHistogram histogram = stage.getValue().drain();
+            interval.put(stage.getKey(), histogram);
+            mTotals.get(stage.getKey()).add(histogram);
+        }
+
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        mPeakHeapBytes = Math.max(mPeakHeapBytes, heap.getUsed());
+        LocationObject latestFix = mLatestFix;
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        double seconds = intervalNanos / 1e9;
+
+        mOutput.println(String.format(Locale.US,
+                "%7.1fs %10s %8d %7.0f %7.1f %-24s %-24s %5d/%-5d %4d/%-4d",
+                elapsedNanos / 1e9,
+                latestFix == null ? "-" : dateFormat.format(new Date(latestFix.getDatetime())),
+                getStoredFixes(), fixes / seconds, frames / seconds,
+                formatPercentiles(interval.get(INGEST)), formatPercentiles(interval.get(FRAME)),
+                heap.getUsed() >> 20, heap.getCommitted() >> 20,
+                gc.count - previousGc.count, gc.timeMs - previousGc.timeMs));
+    }
+
+    private static String formatPercentiles(LatencyHistogram histogram) {
+        return String.format(Locale.US, "%.2f/%.2f/%.2f",
+                histogram.getPercentileNanos(50) / 1e6, histogram.getPercentileNanos(99) / 1e6,
+                histogram.getPercentileNanos(99.9) / 1e6);
+    }
+
+    /**
+     * The collections and collection time of every garbage collector so far.
+     */
+    private static class GcSample {
+
+        private long count;
+        private long timeMs;
+
+        static GcSample now() {
+            GcSample sample = new GcSample();
+            for (GarbageCollectorMXBean collector :
+                    ManagementFactory.getGarbageCollectorMXBeans()) {
+                sample.count += Math.max(collector.getCollectionCount(), 0);
+                sample.timeMs += Math.max(collector.getCollectionTime(), 0);
+            }
+            return sample;
+        }
+    }
+}
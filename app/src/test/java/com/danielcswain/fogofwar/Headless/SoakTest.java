@@ -0,0 +1,62 @@
+package com.danielcswain.fogofwar.Headless;
+
+import com.danielcswain.fogofwar.BuildConfig;
+import com.danielcswain.fogofwar.Data.SQLDatabaseHelper;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Stores a synthetic track while a camera pans and zooms over it, and fails if the latencies go
+ * over their budgets (see SoakHarness).
+ *
+ * By default a day crossing into a new month is soaked with budgets loose enough for any build
+ * machine. Longer runs and tighter budgets are set with system properties, e.g.
+ *
+ *   ./gradlew testDebugUnitTest --tests '*SoakTest' -Dsoak.days=90 -Dsoak.fixesPerSecond=500 \
+ *       -Dsoak.budgets="ingest.p99=20,ingest.p999=100,frame.p99=16,frame.p999=50"
+ *
+ * soak.frameIntervalMs and soak.reportSeconds set the camera's frame rate and how often progress
+ * is printed. Robolectric runs every SQLite call of the process on one thread, so readers wait on
+ * the writer here more than they would on a device; compare runs with each other rather than
+ * with frame times measured on a phone.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 25)
+public class SoakTest {
+
+    // 30 June 2017 12:00 UTC, so the default day crosses into July and seals June.
+    private static final long START_DATETIME = 1498824000000L;
+
+    private static final String DEFAULT_BUDGETS = "ingest.p999=1000,frame.p999=2000";
+
+    @Test
+    public void soak_staysWithinLatencyBudgets() throws Exception {
+        double days = Double.parseDouble(System.getProperty("soak.days", "1"));
+        double fixesPerSecond = Double.parseDouble(System.getProperty("soak.fixesPerSecond", "0"));
+        long frameIntervalMs = Long.getLong("soak.frameIntervalMs", 16);
+        long reportSeconds = Long.getLong("soak.reportSeconds", 5);
+        String budgets = System.getProperty("soak.budgets", DEFAULT_BUDGETS);
+
+        SoakHarness soakHarness = new SoakHarness(SQLDatabaseHelper.newInstance(
+                RuntimeEnvironment.application, "soak-" + System.nanoTime() + ".db"), System.out);
+        Map<String, LatencyHistogram> totals = soakHarness.run(
+                new SyntheticTrack(42, -33.8688, 151.2093, START_DATETIME),
+                START_DATETIME + (long) (days * TimeUnit.DAYS.toMillis(1)),
+                fixesPerSecond, frameIntervalMs, TimeUnit.SECONDS.toMillis(reportSeconds));
+
+        assertTrue("No fixes were stored", totals.get(SoakHarness.INGEST).getCount() > 0);
+        assertTrue("No frames were drawn", totals.get(SoakHarness.FRAME).getCount() > 0);
+        List<String> exceeded = SoakHarness.findExceededBudgets(totals, budgets);
+        assertTrue("Latency budgets exceeded: " + exceeded, exceeded.isEmpty());
+    }
+}
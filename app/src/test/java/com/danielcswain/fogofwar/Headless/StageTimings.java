@@ -0,0 +1,52 @@
+package com.danielcswain.fogofwar.Headless;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Accumulates wall clock time per pipeline stage so runs can be compared across versions.
+ */
+public class StageTimings {
+
+    private final Map<String, long[]> mStages = new LinkedHashMap<>();
+
+    /**
+     * Record one run of a stage.
+     * @param stage: String, the name of the stage.
+     * @param startNanos: long, System.nanoTime() when the stage started.
+     */
+    public void record(String stage, long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        long[] totals = mStages.get(stage);
+        if (totals == null) {
+            // Count, total, maximum.
+            totals = new long[3];
+            mStages.put(stage, totals);
+        }
+        totals[0]++;
+        totals[1] += elapsed;
+        totals[2] = Math.max(totals[2], elapsed);
+    }
+
+    public long getTotalNanos(String stage) {
+        long[] totals = mStages.get(stage);
+        return totals == null ? 0 : totals[1];
+    }
+
+    /**
+     * Format the timings as a table with one stage per line.
+     * @return the report.
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder(String.format(Locale.US,
+                "%-12s %8s %12s %12s %12s%n", "stage", "count", "total ms", "mean ms", "max ms"));
+        for (Map.Entry<String, long[]> stage : mStages.entrySet()) {
+            long[] totals = stage.getValue();
+            report.append(String.format(Locale.US, "%-12s %8d %12.2f %12.3f %12.3f%n",
+                    stage.getKey(), totals[0], totals[1] / 1e6, totals[1] / 1e6 / totals[0],
+                    totals[2] / 1e6));
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,86 @@
+package com.danielcswain.fogofwar.Headless;
+
+import com.danielcswain.fogofwar.Data.LocationObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates a deterministic, plausible track of location fixes: walks along a street grid with
+ * occasional stops, turns and GPS jitter, sampled at the app's 5 to 10 second update interval.
+ */
+public class SyntheticTrack {
+
+    private static final double METRES_PER_DEGREE = 111320;
+
+    private final Random mRandom;
+    private double mLatitude;
+    private double mLongitude;
+    private long mDatetime;
+    private int mHeading;
+
+    /**
+     * Constructor for a new SyntheticTrack.
+     * @param seed: long, seed so the same track is generated every run.
+     * @param latitude: double, starting latitude.
+     * @param longitude: double, starting longitude.
+     * @param startDatetime: long, time of the first fix in milliseconds.
+     */
+    public SyntheticTrack(long seed, double latitude, double longitude, long startDatetime) {
+        mRandom = new Random(seed);
+        mLatitude = latitude;
+        mLongitude = longitude;
+        mDatetime = startDatetime;
+    }
+
+    /**
+     * Generate the next fix.
+     * @return a LocationObject for the next fix.
+     */
+    public LocationObject next() {
+        long interval = 5000 + mRandom.nextInt(5001);
+        mDatetime += interval;
+
+        // Mostly walk, sometimes stop, and turn at roughly one in twenty fixes.
+        double speed = mRandom.nextInt(10) == 0 ? 0 : 1.0 + mRandom.nextDouble() * 1.5;
+        if (mRandom.nextInt(20) == 0) {
+            mHeading = (mHeading + (mRandom.nextBoolean() ? 1 : 3)) % 4;
+        }
+
+        double distance = speed * interval / 1000.0;
+        double metresPerDegreeLongitude = METRES_PER_DEGREE * Math.cos(Math.toRadians(mLatitude));
+        switch (mHeading) {
+            case 0:
+                mLatitude += distance / METRES_PER_DEGREE;
+                break;
+            case 1:
+                mLongitude += distance / metresPerDegreeLongitude;
+                break;
+            case 2:
+                mLatitude -= distance / METRES_PER_DEGREE;
+                break;
+            default:
+                mLongitude -= distance / metresPerDegreeLongitude;
+                break;
+        }
+
+        double jitter = 3 / METRES_PER_DEGREE;
+        return new LocationObject(0, mDatetime,
+                mLatitude + mRandom.nextGaussian() * jitter,
+                mLongitude + mRandom.nextGaussian() * jitter);
+    }
+
+    /**
+     * Generate a number of fixes.
+     * @param count: int, the number of fixes.
+     * @return a List of LocationObjects in time order.
+     */
+    public List<LocationObject> next(int count) {
+        List<LocationObject> locationObjects = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            locationObjects.add(next());
+        }
+        return locationObjects;
+    }
+}
@@ -0,0 +1,88 @@
+package com.danielcswain.fogofwar.Heatmap;
+
+import com.danielcswain.fogofwar.Data.LocationObject;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for detecting heatmap cell visits as fixes arrive.
+ */
+public class VisitCounterTest {
+
+    private static final double LATITUDE = -33.8688;
+    private static final double LONGITUDE = 151.2093;
+
+    private static void assertCell(VisitEvent visitEvent, double latitude, double longitude) {
+        assertEquals(VisitCounter.getCellX(longitude), visitEvent.getCellX());
+        assertEquals(VisitCounter.getCellY(latitude), visitEvent.getCellY());
+    }
+
+    private static void assertVisit(VisitEvent visitEvent, double latitude, double longitude,
+                                    long datetime, long dwellMillis) {
+        assertCell(visitEvent, latitude, longitude);
+        assertEquals(datetime, visitEvent.getDatetime());
+        assertEquals(dwellMillis, visitEvent.getDwellMillis());
+    }
+
+    @Test
+    public void stayingInACell_addsDwellTime() throws Exception {
+        VisitCounter visitCounter = new VisitCounter();
+        List<VisitEvent> visitEvents =
+                visitCounter.addLocation(new LocationObject(1, 0, LATITUDE, LONGITUDE));
+        assertEquals(1, visitEvents.size());
+        assertVisit(visitEvents.get(0), LATITUDE, LONGITUDE, 0, 0);
+
+        visitEvents = visitCounter.addLocation(new LocationObject(2, 10000, LATITUDE, LONGITUDE));
+        assertEquals(1, visitEvents.size());
+        assertVisit(visitEvents.get(0), LATITUDE, LONGITUDE, 10000, 10000);
+    }
+
+    @Test
+    public void leavingAndReturning_visitsTheCellAgain() throws Exception {
+        VisitCounter visitCounter = new VisitCounter();
+        visitCounter.addLocation(new LocationObject(1, 0, LATITUDE, LONGITUDE));
+
+        // About 110 m north in a minute, then back. Each cell on the way is entered when the
+        // line between the fixes reaches it.
+        List<VisitEvent> visitEvents = visitCounter.addLocation(
+                new LocationObject(2, 60000, LATITUDE + 0.001, LONGITUDE));
+        assertTrue(visitEvents.size() > 1);
+        assertCell(visitEvents.get(visitEvents.size() - 1), LATITUDE + 0.001, LONGITUDE);
+
+        visitEvents = visitCounter.addLocation(
+                new LocationObject(3, 120000, LATITUDE, LONGITUDE));
+        assertTrue(visitEvents.size() > 1);
+        VisitEvent returned = visitEvents.get(visitEvents.size() - 1);
+        assertCell(returned, LATITUDE, LONGITUDE);
+        assertTrue(returned.getDatetime() > 60000 && returned.getDatetime() <= 120000);
+        assertEquals(0, returned.getDwellMillis());
+    }
+
+    @Test
+    public void longGap_isNotDwellTime() throws Exception {
+        VisitCounter visitCounter = new VisitCounter();
+        visitCounter.addLocation(new LocationObject(1, 0, LATITUDE, LONGITUDE));
+
+        long datetime = 11 * 60 * 1000;
+        List<VisitEvent> visitEvents =
+                visitCounter.addLocation(new LocationObject(2, datetime, LATITUDE, LONGITUDE));
+        assertEquals(1, visitEvents.size());
+        assertVisit(visitEvents.get(0), LATITUDE, LONGITUDE, datetime, 0);
+    }
+
+    @Test
+    public void gpsJump_onlyVisitsTheCellLandedIn() throws Exception {
+        VisitCounter visitCounter = new VisitCounter();
+        visitCounter.addLocation(new LocationObject(1, 0, LATITUDE, LONGITUDE));
+
+        // About 11 km in 5 s, which SegmentBuilder would not join.
+        List<VisitEvent> visitEvents = visitCounter.addLocation(
+                new LocationObject(2, 5000, LATITUDE + 0.1, LONGITUDE));
+        assertEquals(1, visitEvents.size());
+        assertVisit(visitEvents.get(0), LATITUDE + 0.1, LONGITUDE, 5000, 0);
+    }
+}
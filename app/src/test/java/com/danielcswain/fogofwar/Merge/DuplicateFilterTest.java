@@ -0,0 +1,72 @@
+package com.danielcswain.fogofwar.Merge;
+
+import com.danielcswain.fogofwar.Data.LocationObject;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for dropping fixes repeated between merged histories or already stored.
+ */
+public class DuplicateFilterTest {
+
+    private static final double LATITUDE = -33.8688;
+    private static final double LONGITUDE = 151.2093;
+
+    // About 8 m and 16 m of latitude, inside and outside MAX_DISTANCE_METRES.
+    private static final double NEAR = 0.00007;
+    private static final double FAR = 0.00014;
+
+    @Test
+    public void sameFix_fromTwoHistories_isKeptOnce() throws Exception {
+        DuplicateFilter duplicateFilter = new DuplicateFilter();
+        assertFalse(duplicateFilter.isDuplicate(new SourcedFix(0, 1000, LATITUDE, LONGITUDE)));
+        assertTrue(duplicateFilter.isDuplicate(new SourcedFix(1, 1000, LATITUDE, LONGITUDE)));
+
+        // The same history exported twice repeats each fix at the same moment.
+        assertTrue(duplicateFilter.isDuplicate(new SourcedFix(0, 1000, LATITUDE, LONGITUDE)));
+    }
+
+    @Test
+    public void nearDuplicates_areOnlyDroppedWithinTheTolerance() throws Exception {
+        long limit = DuplicateFilter.MAX_TIME_DIFFERENCE_MS;
+
+        DuplicateFilter duplicateFilter = new DuplicateFilter();
+        duplicateFilter.isDuplicate(new SourcedFix(0, 1000, LATITUDE, LONGITUDE));
+        assertTrue(duplicateFilter.isDuplicate(
+                new SourcedFix(1, 1000 + limit, LATITUDE + NEAR, LONGITUDE)));
+
+        duplicateFilter = new DuplicateFilter();
+        duplicateFilter.isDuplicate(new SourcedFix(0, 1000, LATITUDE, LONGITUDE));
+        assertFalse(duplicateFilter.isDuplicate(
+                new SourcedFix(1, 1000 + limit + 1, LATITUDE, LONGITUDE)));
+
+        duplicateFilter = new DuplicateFilter();
+        duplicateFilter.isDuplicate(new SourcedFix(0, 1000, LATITUDE, LONGITUDE));
+        assertFalse(duplicateFilter.isDuplicate(
+                new SourcedFix(1, 1000, LATITUDE + FAR, LONGITUDE)));
+    }
+
+    @Test
+    public void fixAlreadyStored_isFoundEitherSideOfIt() throws Exception {
+        long limit = DuplicateFilter.MAX_TIME_DIFFERENCE_MS;
+        List<LocationObject> storedFixes = new ArrayList<>();
+        storedFixes.add(new LocationObject(3, 90000, LATITUDE, LONGITUDE));
+        storedFixes.add(new LocationObject(1, 10000, LATITUDE, LONGITUDE));
+        storedFixes.add(new LocationObject(2, 50000, LATITUDE + FAR, LONGITUDE));
+        DuplicateFilter.sortByTime(storedFixes);
+
+        assertTrue(DuplicateFilter.isStored(
+                new SourcedFix(0, 50000 - limit, LATITUDE + FAR + NEAR, LONGITUDE), storedFixes));
+        assertTrue(DuplicateFilter.isStored(
+                new SourcedFix(0, 50000 + limit, LATITUDE + FAR, LONGITUDE), storedFixes));
+        assertFalse(DuplicateFilter.isStored(
+                new SourcedFix(0, 50000 + limit + 1, LATITUDE + FAR, LONGITUDE), storedFixes));
+        assertFalse(DuplicateFilter.isStored(
+                new SourcedFix(0, 50000, LATITUDE, LONGITUDE), storedFixes));
+    }
+}
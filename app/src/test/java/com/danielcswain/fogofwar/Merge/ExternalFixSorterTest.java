@@ -0,0 +1,73 @@
+package com.danielcswain.fogofwar.Merge;
+
+import com.danielcswain.fogofwar.Data.LocationObject;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for sorting merged histories on disk and dropping their duplicate fixes.
+ */
+public class ExternalFixSorterTest {
+
+    @Test
+    public void manyRuns_mergeBackInTimeOrder_andAreDeleted() throws Exception {
+        File directory = Files.createTempDirectory("merge").toFile();
+        Random random = new Random(7);
+        int count = 20000;
+
+        // Runs of 100 fixes make 200 runs, more than one merge pass can take.
+        ExternalFixSorter sorter = new ExternalFixSorter(directory, 100);
+        for (int i = 0; i < count; i++) {
+            sorter.add(new SourcedFix(random.nextInt(3), random.nextInt(1000000),
+                    random.nextDouble(), random.nextDouble()));
+        }
+        sorter.finish();
+        assertTrue(sorter.getRunsWritten() > count / 100);
+
+        SourcedFix previous = null;
+        int read = 0;
+        SourcedFix sourcedFix;
+        while ((sourcedFix = sorter.next()) != null) {
+            if (previous != null) {
+                assertTrue(ExternalFixSorter.TIME_ORDER.compare(previous, sourcedFix) <= 0);
+            }
+            previous = sourcedFix;
+            read++;
+        }
+        assertEquals(count, read);
+
+        sorter.close();
+        assertEquals(0, directory.list().length);
+        directory.delete();
+    }
+
+    @Test
+    public void fixesFromAnotherDevice_atTheSamePlaceAndTime_areDuplicates() throws Exception {
+        DuplicateFilter duplicateFilter = new DuplicateFilter();
+        assertFalse(duplicateFilter.isDuplicate(new SourcedFix(0, 1000, -33.8688, 151.2093)));
+        // The other phone in the same pocket, a second later and a few metres off.
+        assertTrue(duplicateFilter.isDuplicate(new SourcedFix(1, 2000, -33.86883, 151.20932)));
+        // The same phone a second later has just walked on.
+        assertFalse(duplicateFilter.isDuplicate(new SourcedFix(0, 2000, -33.86881, 151.20931)));
+        // The other phone well after or well away is not a duplicate.
+        assertFalse(duplicateFilter.isDuplicate(new SourcedFix(1, 9000, -33.8688, 151.2093)));
+        assertFalse(duplicateFilter.isDuplicate(new SourcedFix(1, 9500, -33.8700, 151.2093)));
+
+        List<LocationObject> storedFixes = new ArrayList<>();
+        storedFixes.add(new LocationObject(2, 50000, -33.8688, 151.2093));
+        storedFixes.add(new LocationObject(1, 20000, -33.8688, 151.2093));
+        DuplicateFilter.sortByTime(storedFixes);
+        assertTrue(DuplicateFilter.isStored(new SourcedFix(1, 21000, -33.8688, 151.2093),
+                storedFixes));
+        assertFalse(DuplicateFilter.isStored(new SourcedFix(1, 30000, -33.8688, 151.2093),
+                storedFixes));
+    }
+}
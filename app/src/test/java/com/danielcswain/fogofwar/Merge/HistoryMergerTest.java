@@ -0,0 +1,103 @@
+package com.danielcswain.fogofwar.Merge;
+
+import com.danielcswain.fogofwar.BuildConfig;
+import com.danielcswain.fogofwar.Data.LocationObject;
+import com.danielcswain.fogofwar.Data.SQLDatabaseHelper;
+import com.danielcswain.fogofwar.Data.SegmentObject;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for merging histories into a database which already holds a track.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 25)
+public class HistoryMergerTest {
+
+    private static final double LATITUDE = -33.8688;
+    private static final double LONGITUDE = 151.2093;
+
+    // 2018-01-10T09:00:00Z.
+    private static final long T = 1515574800000L;
+
+    private static HistoryMerger.HistorySource history(final String... lines) {
+        return new HistoryMerger.HistorySource() {
+            @Override
+            public InputStream open() {
+                StringBuilder builder = new StringBuilder();
+                for (String line : lines) {
+                    builder.append(line).append('\n');
+                }
+                return new ByteArrayInputStream(builder.toString().getBytes());
+            }
+        };
+    }
+
+    private static String fix(long datetime, double latitude) {
+        return datetime + "," + latitude + "," + LONGITUDE;
+    }
+
+    @Test
+    public void duplicates_betweenHistoriesAndOfStoredFixes_areDropped() throws Exception {
+        SQLDatabaseHelper sqlDatabaseHelper = SQLDatabaseHelper.newInstance(
+                RuntimeEnvironment.application, "merge-" + System.nanoTime() + ".db");
+        sqlDatabaseHelper.addLocation(new LocationObject(0, T, LATITUDE, LONGITUDE));
+        sqlDatabaseHelper.addLocation(new LocationObject(0, T + 10000, LATITUDE + 0.0001,
+                LONGITUDE));
+
+        // The last fix is a second after the one before it, but an hour after the start of the
+        // merge, so it is checked against the stored fixes in a batch of its own. The fix before
+        // it was stored by this merge, so does not count as stored.
+        long hourLater = T - 120000 + HistoryMerger.MAX_BATCH_SPAN_MS;
+        List<HistoryMerger.HistorySource> historySources = new ArrayList<>();
+        historySources.add(history(
+                fix(T + 1000, LATITUDE),
+                fix(T + 60000, LATITUDE + 0.001),
+                fix(hourLater, LATITUDE + 0.002),
+                fix(hourLater + 1000, LATITUDE + 0.00201)));
+        historySources.add(history(
+                fix(T - 120000, LATITUDE - 0.001),
+                fix(T - 60000, LATITUDE - 0.0005),
+                fix(T + 60500, LATITUDE + 0.00105),
+                fix(T + 200000, LATITUDE + 0.005)));
+
+        MergeResult mergeResult = new HistoryMerger(
+                Files.createTempDirectory("merge").toFile(), sqlDatabaseHelper)
+                .merge(historySources);
+
+        // The first history's first fix repeats a stored one, and the second history's third
+        // fix repeats the first history's second.
+        assertEquals(2, mergeResult.getSources());
+        assertEquals(8, mergeResult.getFixesRead());
+        assertEquals(2, mergeResult.getDuplicatesRemoved());
+        assertEquals(6, mergeResult.getFixesStored());
+        assertEquals(2, sqlDatabaseHelper.getLocationsInTimeRange(
+                hourLater, hourLater + 1000).size());
+
+        // The merged history took IDs after the stored track but is returned in the order it
+        // was travelled, starting before it.
+        List<SegmentObject> segmentObjects = sqlDatabaseHelper.getSegmentsInWindow(
+                new LatLngBounds(new LatLng(LATITUDE - 0.01, LONGITUDE - 0.01),
+                        new LatLng(LATITUDE + 0.01, LONGITUDE + 0.01)));
+        assertEquals(5, segmentObjects.size());
+        assertEquals(T - 60000, segmentObjects.get(0).getEndDatetime());
+        for (int i = 1; i < segmentObjects.size(); i++) {
+            assertTrue(segmentObjects.get(i - 1).getEndDatetime() <=
+                    segmentObjects.get(i).getEndDatetime());
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.danielcswain.fogofwar.Rendering;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for fitting the homography the GPU fog projects its vertices with.
+ */
+public class HomographyTest {
+
+    @Test
+    public void similarity_mapsOtherPointsExactly() throws Exception {
+        // Scale by 2, rotate by 90 degrees and translate by (10, 20).
+        double[] source = {0, 0, 1, 0, 1, 1, 0, 1};
+        double[] destination = {10, 20, 10, 22, 8, 22, 8, 20};
+        double[] matrix = Homography.fromPoints(source, destination);
+        assertNotNull(matrix);
+
+        double[] point = {0.5, 0.25};
+        Homography.map(matrix, point);
+        assertEquals(9.5, point[0], 1e-9);
+        assertEquals(21, point[1], 1e-9);
+    }
+
+    @Test
+    public void perspective_mapsTheFittedCorners() throws Exception {
+        // A tilted camera shows the far edge of a square narrower than the near edge.
+        double[] source = {0, 0, 1, 0, 1, 1, 0, 1};
+        double[] destination = {300, 100, 500, 100, 700, 600, 100, 600};
+        double[] matrix = Homography.fromPoints(source, destination);
+        assertNotNull(matrix);
+
+        for (int i = 0; i < 4; i++) {
+            double[] point = {source[2 * i], source[2 * i + 1]};
+            Homography.map(matrix, point);
+            assertEquals(destination[2 * i], point[0], 1e-6);
+            assertEquals(destination[2 * i + 1], point[1], 1e-6);
+        }
+
+        // The centre of the square appears closer to the far edge than the near one.
+        double[] centre = {0.5, 0.5};
+        Homography.map(matrix, centre);
+        assertTrue(centre[1] < 350);
+    }
+
+    @Test
+    public void collinearPoints_haveNoHomography() throws Exception {
+        double[] source = {0, 0, 1, 1, 2, 2, 0, 1};
+        double[] destination = {0, 0, 1, 0, 1, 1, 0, 1};
+        assertNull(Homography.fromPoints(source, destination));
+    }
+}
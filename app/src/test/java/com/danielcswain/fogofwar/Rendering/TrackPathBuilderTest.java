@@ -0,0 +1,142 @@
+package com.danielcswain.fogofwar.Rendering;
+
+import com.danielcswain.fogofwar.Data.SegmentObject;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for finding the areas a moved path must be completed with.
+ */
+public class TrackPathBuilderTest {
+
+    // Pixels per degree of the test camera, which projects without distortion.
+    private static final float SCALE = 10000;
+
+    private static LatLngBounds bounds(double south, double west, double north, double east) {
+        return new LatLngBounds(new LatLng(south, west), new LatLng(north, east));
+    }
+
+    @Test
+    public void panningNorthEast_exposesTheEastAndNorthStrips() throws Exception {
+        List<LatLngBounds> exposed = TrackPathBuilder.getExposedBounds(
+                bounds(0, 0, 10, 10), bounds(2, 3, 12, 13));
+        assertNotNull(exposed);
+        assertEquals(2, exposed.size());
+
+        // The full height of the viewport east of the covered area.
+        assertEquals(2, exposed.get(0).southwest.latitude, 0);
+        assertEquals(10, exposed.get(0).southwest.longitude, 0);
+        assertEquals(12, exposed.get(0).northeast.latitude, 0);
+        assertEquals(13, exposed.get(0).northeast.longitude, 0);
+
+        // North of the covered area, up to the east strip.
+        assertEquals(10, exposed.get(1).southwest.latitude, 0);
+        assertEquals(3, exposed.get(1).southwest.longitude, 0);
+        assertEquals(12, exposed.get(1).northeast.latitude, 0);
+        assertEquals(10, exposed.get(1).northeast.longitude, 0);
+    }
+
+    @Test
+    public void zoomingInOrJumpingAway_exposesNothingOrNeedsARebuild() throws Exception {
+        assertTrue(TrackPathBuilder.getExposedBounds(
+                bounds(0, 0, 10, 10), bounds(2, 2, 8, 8)).isEmpty());
+        assertEquals(4, TrackPathBuilder.getExposedBounds(
+                bounds(2, 2, 8, 8), bounds(0, 0, 10, 10)).size());
+        assertNull(TrackPathBuilder.getExposedBounds(
+                bounds(0, 0, 10, 10), bounds(20, 20, 30, 30)));
+    }
+
+    @Test
+    public void smallPans_addOnlyTheExposedStrips() throws Exception {
+        // Rows of track about 110 m apart, each row a chain of 200 segments.
+        List<SegmentObject> track = new ArrayList<>();
+        for (int row = 0; row < 100; row++) {
+            double latitude = 0.0005 + row * 0.001;
+            for (int i = 0; i < 200; i++) {
+                track.add(new SegmentObject(track.size() + 1, 0, latitude, i * 0.001,
+                        0, latitude, (i + 1) * 0.001));
+            }
+        }
+
+        // A 500 pixel square view with 50 rows in it, built for its first camera.
+        LatLngBounds pathBounds = bounds(0.025, 0.05, 0.075, 0.1);
+        ScreenProjection pathProjection = projection(pathBounds);
+        int[] lines = new int[1];
+        PathSink pathSink = countingSink(lines);
+        int builtCount = TrackPathBuilder.buildPath(getSegmentsIn(track, pathBounds),
+                pathProjection, 0, 0, 500, 500, pathSink);
+        assertTrue(builtCount >= 50 * 50);
+
+        // Pan east and back again, two and a half pixels a frame. The segments fetched each frame
+        // are all those in view, as whole tiles would return.
+        LatLngBounds completedBounds = pathBounds;
+        int addedCount = 0;
+        for (int frame = 1; frame <= 40; frame++) {
+            double offset = (frame <= 20 ? frame : 40 - frame) * 0.00025;
+            LatLngBounds viewBounds = bounds(0.025, 0.05 + offset, 0.075, 0.1 + offset);
+            List<LatLngBounds> exposedBounds = TrackPathBuilder.getExposedBounds(
+                    Arrays.asList(completedBounds, pathBounds), viewBounds);
+            assertNotNull(exposedBounds);
+
+            lines[0] = 0;
+            addedCount += TrackPathBuilder.buildExposedPath(getSegmentsIn(track, viewBounds),
+                    exposedBounds, pathProjection, pathSink);
+            completedBounds = viewBounds;
+
+            if (frame <= 20) {
+                // Each row crosses the new strip with at most two segments.
+                assertTrue("frame " + frame + " added " + lines[0], lines[0] <= 2 * 50);
+            } else {
+                // Panning back only shows what the path was built with.
+                assertEquals(0, lines[0]);
+            }
+        }
+
+        // A tenth of a view of panning, a few pixels a frame, adds fewer pieces than the view was
+        // built with, so a moving path is only rebuilt now and then.
+        assertTrue(addedCount < builtCount);
+    }
+
+    private static List<SegmentObject> getSegmentsIn(List<SegmentObject> track,
+                                                     LatLngBounds bounds) {
+        List<SegmentObject> segmentObjects = new ArrayList<>();
+        for (SegmentObject segmentObject : track) {
+            if (segmentObject.overlaps(bounds.southwest.latitude, bounds.southwest.longitude,
+                    bounds.northeast.latitude, bounds.northeast.longitude)) {
+                segmentObjects.add(segmentObject);
+            }
+        }
+        return segmentObjects;
+    }
+
+    private static ScreenProjection projection(final LatLngBounds viewBounds) {
+        return new ScreenProjection() {
+            @Override
+            public void toScreenLocation(double latitude, double longitude, float[] point) {
+                point[0] = (float) ((longitude - viewBounds.southwest.longitude) * SCALE);
+                point[1] = (float) ((viewBounds.northeast.latitude - latitude) * SCALE);
+            }
+        };
+    }
+
+    private static PathSink countingSink(final int[] lines) {
+        return new PathSink() {
+            @Override
+            public void moveTo(float x, float y) {
+            }
+
+            @Override
+            public void lineTo(float x, float y) {
+                lines[0]++;
+            }
+        };
+    }
+}